@@ -1,21 +1,74 @@
 package iinteractive.bullfinch;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Phrasebook {
 
 	private HashMap<String,String> phraseMap;
 	private HashMap<String,List<ParamType>> phraseParamMap;
+	private HashSet<String> readOnly;
+	private ConcurrentHashMap<String,String> expanded;
+	private HashMap<String,List<ParamMode>> callables;
 
+	/**
+	 * The types of params.  An array type stands for a list of values, its
+	 * placeholder is expanded to one per value, e.g. for "id IN (?)".
+	 */
     public enum ParamType {
-        BOOLEAN, NUMBER, INTEGER, STRING
+        BOOLEAN, NUMBER, INTEGER, STRING,
+        NUMBER_ARRAY, INTEGER_ARRAY, STRING_ARRAY;
+
+        public boolean isArray() {
+
+        	return getElementType() != this;
+        }
+
+        /**
+         * @return The type of the values in an array type, or the type itself.
+         */
+        public ParamType getElementType() {
+
+        	switch(this) {
+        		case NUMBER_ARRAY :
+        			return NUMBER;
+        		case INTEGER_ARRAY :
+        			return INTEGER;
+        		case STRING_ARRAY :
+        			return STRING;
+        		default :
+        			return this;
+        	}
+        }
     }
 
+	/**
+	 * Which way a param of a callable statement goes.  OUT params aren't
+	 * sent, their values come back after the call.
+	 */
+	public enum ParamMode {
+		IN, OUT, INOUT;
+
+		public boolean isIn() {
+
+			return this != OUT;
+		}
+
+		public boolean isOut() {
+
+			return this != IN;
+		}
+	}
+
     public Phrasebook() {
 
     	this.phraseMap = new HashMap<String,String>();
     	this.phraseParamMap = new HashMap<String,List<ParamType>>();
+    	this.readOnly = new HashSet<String>();
+    	this.expanded = new ConcurrentHashMap<String,String>();
+    	this.callables = new HashMap<String,List<ParamMode>>();
     }
 
 	public void addPhrase(String name, String phrase) {
@@ -60,4 +113,138 @@ public class Phrasebook {
 
 		return this.phraseParamMap.get(name);
 	}
+
+	/**
+	 * Get the phrase for the specified name with the placeholders of its
+	 * array params expanded.  Expansions are kept, so use sizes from
+	 * bucket() to keep the number of different statements down.  Safe to
+	 * call from several threads, as hedged reads do.
+	 *
+	 * @param name	The name of the phrase
+	 * @param sizes	The number of placeholders for each param, ignored for
+	 * 				params that aren't arrays
+	 * @return The expanded phrase or null if there is no phrase for the name.
+	 */
+	public String getPhrase(String name, int[] sizes) {
+
+		String phrase = this.phraseMap.get(name);
+		List<ParamType> params = this.phraseParamMap.get(name);
+		if(phrase == null || params == null) {
+			return phrase;
+		}
+
+		StringBuilder key = new StringBuilder(name);
+		for(int i = 0; i < sizes.length; i++) {
+			key.append(i == 0 ? '/' : ',').append(params.get(i).isArray() ? sizes[i] : 1);
+		}
+		String sql = expanded.get(key.toString());
+		if(sql == null) {
+			sql = expand(phrase, params, sizes);
+			String other = expanded.putIfAbsent(key.toString(), sql);
+			if(other != null) {
+				sql = other;
+			}
+		}
+		return sql;
+	}
+
+	/**
+	 * Round an array size up to the next power of two, so that a few
+	 * expansions serve every size.
+	 *
+	 * @param size	The number of values
+	 * @return The number of placeholders, at least 1
+	 */
+	public static int bucket(int size) {
+
+		int bucket = 1;
+		while(bucket < size) {
+			bucket <<= 1;
+		}
+		return bucket;
+	}
+
+	/*
+	 * Replace the placeholder of each array param with as many as it needs,
+	 * skipping question marks in quoted strings.
+	 */
+	private static String expand(String phrase, List<ParamType> params, int[] sizes) {
+
+		StringBuilder sql = new StringBuilder(phrase.length() + 16);
+		int param = 0;
+		char quote = 0;
+		for(int i = 0; i < phrase.length(); i++) {
+			char c = phrase.charAt(i);
+			if(quote != 0) {
+				if(c == quote) {
+					quote = 0;
+				}
+			} else if(c == '\'' || c == '"') {
+				quote = c;
+			} else if(c == '?') {
+				if(param < params.size() && params.get(param).isArray()) {
+					for(int j = 1; j < sizes[param]; j++) {
+						sql.append("?, ");
+					}
+				}
+				param++;
+			}
+			sql.append(c);
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * Mark a phrase as a call to a stored procedure.
+	 *
+	 * @param name	The name of the phrase
+	 * @param modes	The mode of each param, null if they are all IN
+	 */
+	public void setCallable(String name, List<ParamMode> modes) {
+
+		callables.put(name, modes);
+	}
+
+	/**
+	 * Is the phrase a call to a stored procedure?
+	 *
+	 * @param name	The name of the phrase
+	 * @return True if it was marked callable
+	 */
+	public boolean isCallable(String name) {
+
+		return callables.containsKey(name);
+	}
+
+	/**
+	 * Get the modes of a phrase's params.
+	 *
+	 * @param name	The name of the phrase
+	 * @return The list of modes, null if the params are all IN
+	 */
+	public List<ParamMode> getParamModes(String name) {
+
+		return callables.get(name);
+	}
+
+	/**
+	 * Mark a phrase as only reading, so it is safe to run more than once.
+	 *
+	 * @param name	The name of the phrase
+	 */
+	public void setReadOnly(String name) {
+
+		readOnly.add(name);
+	}
+
+	/**
+	 * Is the phrase read only?
+	 *
+	 * @param name	The name of the phrase
+	 * @return True if it was marked read only
+	 */
+	public boolean isReadOnly(String name) {
+
+		return readOnly.contains(name);
+	}
 }
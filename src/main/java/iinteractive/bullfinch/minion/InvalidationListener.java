@@ -0,0 +1,203 @@
+package iinteractive.bullfinch.minion;
+
+import iinteractive.bullfinch.ConfigurationException;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.util.Backoff;
+import iinteractive.bullfinch.util.ResultCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the invalidations JDBCQueryRunners on other nodes send when they
+ * write, so this node's result caches don't go stale.
+ *
+ * Runners with an invalidation_queue send each write's tables to it.  Make
+ * it a kestrel fanout queue and give each node a listener reading its own
+ * child queue, invalidations+node1 and so on.  Each invalidation is
+ * applied to the cache with the same name (the DSN) if this process has
+ * one, and its own are skipped since they were applied when they were sent.
+ *
+ * How long invalidations took to arrive is reported as "Cache invalidation
+ * lag".  One that took longer than max_lag means this node has fallen
+ * behind, and its cache is cleared rather than trusted.
+ *
+ */
+public class InvalidationListener extends KestrelBased {
+
+	static Logger logger = LoggerFactory.getLogger(InvalidationListener.class);
+
+	private String queue;
+	private int timeout = 1000;
+	private int batchSize = 100;
+	private long maxLag = 5000;
+
+	private long applied = 0;
+	private long cleared = 0;
+
+	public InvalidationListener(PerformanceCollector collector) {
+
+		super(collector);
+	}
+
+	@Override
+	public void configure(HashMap<String,Object> config) throws Exception {
+
+		super.configure(config);
+
+		this.queue = (String) config.get("subscribe_to");
+		if(this.queue == null) {
+			throw new ConfigurationException("An InvalidationListener needs a queue to subscribe_to");
+		}
+		Long timeoutLng = (Long) config.get("timeout");
+		if(timeoutLng != null) {
+			this.timeout = timeoutLng.intValue();
+		}
+		Long batchLng = (Long) config.get("batch_size");
+		if(batchLng != null) {
+			this.batchSize = batchLng.intValue();
+		}
+		Long maxLagLng = (Long) config.get("max_lag");
+		if(maxLagLng != null) {
+			this.maxLag = maxLagLng.longValue();
+		}
+	}
+
+	/**
+	 * Run the thread.  Invalidations are taken off the queue in batches and
+	 * confirmed once they're applied.  Applying one twice does no harm.
+	 */
+	public void run() {
+
+		Backoff backoff = newBackoff();
+		while(this.shouldContinue()) {
+			if(!getBreaker().allowRequest()) {
+				pause(getBreaker().getRetryDelay());
+				continue;
+			}
+			try {
+				List<KestrelItem> items = getTransport().open(this.queue, this.batchSize, this.timeout);
+				getBreaker().recordSuccess();
+				backoff.reset();
+				if(items.isEmpty()) {
+					continue;
+				}
+				List<KestrelItem> done = new ArrayList<KestrelItem>(items.size());
+				for(int i = 0; i < items.size(); i++) {
+					// A bad invalidation is confirmed anyway, it won't get better.
+					try {
+						apply(items.get(i).getData());
+					} catch(RuntimeException e) {
+						logger.error("Couldn't apply invalidation: " + items.get(i).getData(), e);
+					}
+					done.add(items.get(i));
+				}
+				getTransport().confirm(this.queue, done);
+			} catch(TimeoutException e) {
+				logger.debug("Timeout expired, cycling");
+				getBreaker().recordSuccess();
+			} catch(MemcachedException e) {
+				logger.error("Caught exception from memcached", e);
+				getBreaker().recordFailure();
+				pause(backoff.nextDelay());
+			} catch(Exception e) {
+				logger.error("Unknown exception in invalidation loop", e);
+				getBreaker().recordFailure();
+				pause(backoff.nextDelay());
+			}
+		}
+	}
+
+	/**
+	 * Apply an invalidation.  Written as a separate method to facilitate
+	 * testing.
+	 *
+	 * @param message	The invalidation, as sent by a JDBCQueryRunner
+	 * @return True if it was applied to a cache in this process
+	 */
+	public boolean apply(String message) {
+
+		JSONObject event;
+		try {
+			event = (JSONObject) JSONValue.parse(message);
+		} catch(Exception e) {
+			event = null;
+		} catch(Error e) {
+			// json-simple's lexer throws Errors at garbage.
+			event = null;
+		}
+		if(event == null || !(event.get("cache") instanceof String) || !isTableList(event.get("tables"))) {
+			logger.warn("Ignoring bad invalidation: " + message);
+			return false;
+		}
+		if(ResultCache.NODE.equals(event.get("node"))) {
+			return false;
+		}
+		ResultCache cache = ResultCache.find((String) event.get("cache"));
+		if(cache == null) {
+			return false;
+		}
+
+		// Clocks differ a little between nodes, the lag can't be negative.
+		long lag = 0;
+		if(event.get("sent_at") instanceof Number) {
+			lag = Math.max(0, System.currentTimeMillis() - ((Number) event.get("sent_at")).longValue());
+		}
+		collector.add("Cache invalidation lag", lag, null);
+
+		if(lag > this.maxLag) {
+			int removed = cache.clear();
+			logger.warn("Invalidation took " + lag + "ms to arrive, over max_lag of " + this.maxLag + "ms, cleared " + removed + " cached results");
+			synchronized(this) {
+				cleared++;
+			}
+		} else {
+			@SuppressWarnings("unchecked")
+			List<String> tables = (List<String>) event.get("tables");
+			cache.invalidate(tables);
+		}
+		synchronized(this) {
+			applied++;
+		}
+		return true;
+	}
+
+	private static boolean isTableList(Object tables) {
+
+		if(!(tables instanceof List)) {
+			return false;
+		}
+		List<?> list = (List<?>) tables;
+		for(int i = 0; i < list.size(); i++) {
+			if(!(list.get(i) instanceof String)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return How many invalidations have been applied
+	 */
+	public synchronized long getApplied() {
+
+		return applied;
+	}
+
+	/**
+	 * @return How many times a late invalidation cleared a cache
+	 */
+	public synchronized long getCleared() {
+
+		return cleared;
+	}
+}
@@ -2,22 +2,47 @@ package iinteractive.bullfinch.minion;
 
 import iinteractive.bullfinch.PerformanceCollector;
 import iinteractive.bullfinch.Phrasebook;
+import iinteractive.bullfinch.Phrasebook.ParamMode;
 import iinteractive.bullfinch.Phrasebook.ParamType;
 import iinteractive.bullfinch.ProcessTimeoutException;
+import iinteractive.bullfinch.util.CircuitBreaker;
+import iinteractive.bullfinch.util.ConcurrencyLimiter;
+import iinteractive.bullfinch.util.DocumentAssembler;
+import iinteractive.bullfinch.util.Hedger;
 import iinteractive.bullfinch.util.JSONResultSetWrapper;
+import iinteractive.bullfinch.util.ReferenceTable;
+import iinteractive.bullfinch.util.ResultCache;
+import iinteractive.bullfinch.util.RowExpression;
 
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Types;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.dbcp.BasicDataSource;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,6 +50,29 @@ import org.slf4j.LoggerFactory;
 /**
  * A worker for executing JDBC statements over kestrel queues.
  *
+ * Statements marked read_only can be hedged: if the database is slow to
+ * give up a first row the same query is sent to a replica and whichever
+ * answers first is used.
+ *
+ * Statements marked callable are calls to stored procedures, which may
+ * have OUT params and return several result sets.
+ *
+ * Every worker using the same database shares a circuit breaker.  While the
+ * database is failing requests are answered with an ERROR at once rather
+ * than waiting on connections that won't come.
+ *
+ * Requests can carry a filter and a projection, RowExpressions applied to
+ * the rows before they're sent, so clients only get the rows and fields
+ * they want.  They are never put in the SQL.
+ *
+ * Small tables can be kept in memory as reference tables, and statements
+ * that look rows up in them answered without going to the database.
+ *
+ * Statements can say which tables they read and write.  The results of
+ * reads can be cached, and a write throws out the cached results that read
+ * the tables it wrote.  With an invalidation_queue, the tables are sent on
+ * to other nodes' InvalidationListeners too.
+ *
  * @author gphat
  *
  */
@@ -40,8 +88,37 @@ public class JDBCQueryRunner extends QueueMonitor {
 	private Duration durTTLProcessByDefault;
 
 	private Phrasebook statementBook;
+	private int maxArraySize = 1000;
+	private int lobChunkSize = 65536;
+	private HashMap<String,DocumentAssembler.Shape> shapes = new HashMap<String,DocumentAssembler.Shape>();
+	private HashMap<String,ReferenceSource> references = new HashMap<String,ReferenceSource>();
+	private HashMap<String,Lookup> lookups = new HashMap<String,Lookup>();
+	private HashMap<String,List<String>> reads = new HashMap<String,List<String>>();
+	private HashMap<String,List<String>> writes = new HashMap<String,List<String>>();
+	private HashMap<String,Long> cacheTTLs = new HashMap<String,Long>();
+	private ResultCache cache;
+	private int cacheMaxRows = 1000;
+	private String invalidationQueue;
 
 	private BasicDataSource ds;
+	private ConcurrencyLimiter limiter;
+	private CircuitBreaker dbBreaker;
+
+	// One breaker per database, shared by every minion that uses it.
+	private static HashMap<String,CircuitBreaker> dbBreakers = new HashMap<String,CircuitBreaker>();
+
+	private Hedger hedger;
+	private List<BasicDataSource> replicas;
+	private int nextReplica = 0;
+
+	// Runs the queries of hedged reads, shared by every minion.
+	private static ExecutorService readers = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "hedged-read");
+			t.setDaemon(true);
+			return t;
+		}
+	});
 
 	public JDBCQueryRunner(PerformanceCollector collector) {
 
@@ -110,7 +187,120 @@ public class JDBCQueryRunner extends QueueMonitor {
 		}
 
 		// Setup our connection pool
-		this.ds = connect();
+		this.ds = connect(this.dsn);
+
+		Long dbThresholdLng = (Long) config.get("db_failure_threshold");
+		Long dbBaseLng = (Long) config.get("db_backoff_base");
+		Long dbMaxLng = (Long) config.get("db_backoff_max");
+		this.dbBreaker = getDbBreaker(
+			this.dsn,
+			dbThresholdLng != null ? dbThresholdLng.intValue() : 5,
+			dbBaseLng != null ? dbBaseLng.longValue() : 1000,
+			dbMaxLng != null ? dbMaxLng.longValue() : 30000
+		);
+
+		// Replicas to hedge slow reads against.
+		@SuppressWarnings("unchecked")
+		HashMap<String,Object> hedgeConfig = (HashMap<String,Object>) config.get("hedge");
+		if(hedgeConfig != null) {
+			@SuppressWarnings("unchecked")
+			List<String> replicaDsns = (List<String>) hedgeConfig.get("replicas");
+			if(replicaDsns == null || replicaDsns.isEmpty()) {
+				throw new Exception("JDBCMinion hedge configuration needs replicas");
+			}
+			this.replicas = new ArrayList<BasicDataSource>(replicaDsns.size());
+			for(int i = 0; i < replicaDsns.size(); i++) {
+				this.replicas.add(connect(replicaDsns.get(i)));
+			}
+			Number percentile = (Number) hedgeConfig.get("percentile");
+			Number maxPercent = (Number) hedgeConfig.get("max_percent");
+			Long minDelayLng = (Long) hedgeConfig.get("min_delay");
+			Long windowLng = (Long) hedgeConfig.get("window");
+			this.hedger = Hedger.get(
+				this.dsn,
+				percentile != null ? percentile.doubleValue() : 95,
+				maxPercent != null ? maxPercent.doubleValue() : 5,
+				minDelayLng != null ? minDelayLng.longValue() : 5,
+				windowLng != null ? windowLng.intValue() : 100
+			);
+		}
+
+		// Optionally limit how many minions use the database at once.
+		@SuppressWarnings("unchecked")
+		HashMap<String,Object> limitConfig = (HashMap<String,Object>) config.get("concurrency");
+		if(limitConfig != null) {
+			Long initialLng = (Long) limitConfig.get("initial");
+			Long minLng = (Long) limitConfig.get("min");
+			Long maxLng = (Long) limitConfig.get("max");
+			Number tolerance = (Number) limitConfig.get("tolerance");
+			Number backoff = (Number) limitConfig.get("backoff");
+			int max = maxLng != null ? maxLng.intValue() : 16;
+			this.limiter = ConcurrencyLimiter.get(
+				this.dsn,
+				initialLng != null ? initialLng.intValue() : max,
+				minLng != null ? minLng.intValue() : 1,
+				max,
+				tolerance != null ? tolerance.doubleValue() : 2.0,
+				backoff != null ? backoff.doubleValue() : 0.9
+			);
+		}
+
+		Long arrayLng = (Long) config.get("max_array_size");
+		if(arrayLng != null) {
+			this.maxArraySize = arrayLng.intValue();
+		}
+
+		Long chunkLng = (Long) config.get("lob_chunk_size");
+		if(chunkLng != null) {
+			this.lobChunkSize = chunkLng.intValue();
+		}
+
+		// Results of reads are cached per database, so a write through any
+		// worker using it throws out what it made stale.
+		Long cacheEntriesLng = (Long) config.get("cache_max_entries");
+		this.cache = ResultCache.get(this.dsn, cacheEntriesLng != null ? cacheEntriesLng.intValue() : 1000);
+		Long cacheRowsLng = (Long) config.get("cache_max_rows");
+		if(cacheRowsLng != null) {
+			this.cacheMaxRows = cacheRowsLng.intValue();
+		}
+		this.invalidationQueue = (String) config.get("invalidation_queue");
+
+		// Tables to keep in memory.
+		@SuppressWarnings("unchecked")
+		HashMap<String,HashMap<String,Object>> refConfig = (HashMap<String,HashMap<String,Object>>) config.get("reference_tables");
+		if(refConfig != null) {
+			Iterator<String> names = refConfig.keySet().iterator();
+			while(names.hasNext()) {
+				String name = names.next();
+				HashMap<String,Object> tableInfo = refConfig.get(name);
+				String sql = (String) tableInfo.get("sql");
+				if(sql == null) {
+					throw new Exception("Reference table " + name + " needs sql");
+				}
+				// Each index is a column or a list of them.
+				List<List<String>> indexes = new ArrayList<List<String>>();
+				List<?> indexInfo = (List<?>) tableInfo.get("indexes");
+				if(indexInfo != null) {
+					for(int i = 0; i < indexInfo.size(); i++) {
+						indexes.add(columnList(indexInfo.get(i)));
+					}
+				}
+				Long refreshLng = (Long) tableInfo.get("refresh");
+				Long maxRowsLng = (Long) tableInfo.get("max_rows");
+				ReferenceTable table = ReferenceTable.get(
+					this.dsn + "\n" + name + "\n" + sql,
+					indexes,
+					refreshLng != null ? refreshLng.longValue() : 0
+				);
+				this.references.put(name, new ReferenceSource(
+					table,
+					name,
+					sql,
+					(String) tableInfo.get("change_query"),
+					maxRowsLng != null ? maxRowsLng.intValue() : 100000
+				));
+			}
+		}
 
 		// Get the statement config
 		@SuppressWarnings("unchecked")
@@ -130,7 +320,11 @@ public class JDBCQueryRunner extends QueueMonitor {
 				// to go later.
 				String stmt = (String) stmtInfo.get("sql");
 
+				Boolean callable = (Boolean) stmtInfo.get("callable");
+				boolean isCallable = callable != null && callable.booleanValue();
+
 				// If the statement has params, stuff them into a param map
+				ArrayList<ParamMode> mList = null;
 				if(stmtInfo.containsKey("params")) {
 					@SuppressWarnings("unchecked")
 
@@ -140,11 +334,23 @@ public class JDBCQueryRunner extends QueueMonitor {
 						logger.warn("statement claims params, but lists none!");
 					}
 					ArrayList<ParamType> pList = new ArrayList<ParamType>(pTypes.size());
+					mList = new ArrayList<ParamMode>(pTypes.size());
 
-					// Do the actual conversion
+					// Do the actual conversion, callables' params may
+					// start with OUT or INOUT.
 					Iterator<String> pTypeIter = pTypes.iterator();
 					while(pTypeIter.hasNext()) {
-						pList.add(ParamType.valueOf(pTypeIter.next()));
+						String[] pType = pTypeIter.next().trim().split("\\s+");
+						ParamMode mode = pType.length > 1 ? ParamMode.valueOf(pType[0]) : ParamMode.IN;
+						ParamType type = ParamType.valueOf(pType[pType.length - 1]);
+						if(mode != ParamMode.IN && !isCallable) {
+							throw new Exception("Statement " + key + " has " + mode + " params but isn't callable");
+						}
+						if(type.isArray() && isCallable) {
+							throw new Exception("Statement " + key + " is callable and can't have array params");
+						}
+						pList.add(type);
+						mList.add(mode);
 					}
 
 					logger.debug("Statement has " + pList.size() + " params");
@@ -152,8 +358,94 @@ public class JDBCQueryRunner extends QueueMonitor {
 				} else {
 					this.statementBook.addPhrase(key, stmt);
 				}
+				if(isCallable) {
+					this.statementBook.setCallable(key, mList);
+				}
+
+				Boolean readOnly = (Boolean) stmtInfo.get("read_only");
+				if(readOnly != null && readOnly.booleanValue()) {
+					this.statementBook.setReadOnly(key);
+				}
+
+				// Rows can be grouped into documents by key columns.
+				@SuppressWarnings("unchecked")
+				HashMap<String,Object> group = (HashMap<String,Object>) stmtInfo.get("group");
+				if(group != null) {
+					@SuppressWarnings("unchecked")
+					List<String> keyColumns = (List<String>) group.get("keys");
+					if(keyColumns == null || keyColumns.isEmpty()) {
+						throw new Exception("Statement " + key + " groups rows but has no keys");
+					}
+					@SuppressWarnings("unchecked")
+					List<String> parentColumns = (List<String>) group.get("parent");
+					this.shapes.put(key, new DocumentAssembler.Shape(keyColumns, parentColumns, (String) group.get("children")));
+				}
+
+				// Lookups in a reference table are answered from memory,
+				// the sql is only used while the table isn't loaded.
+				@SuppressWarnings("unchecked")
+				HashMap<String,Object> reference = (HashMap<String,Object>) stmtInfo.get("reference");
+				if(reference != null) {
+					ReferenceSource source = this.references.get((String) reference.get("table"));
+					if(source == null) {
+						throw new Exception("Statement " + key + " refers to unknown reference table " + reference.get("table"));
+					}
+					if(isCallable || group != null) {
+						throw new Exception("Statement " + key + " is a reference lookup and can't be callable or grouped");
+					}
+					int index = -1;
+					if(reference.get("keys") != null) {
+						List<String> keyColumns = columnList(reference.get("keys"));
+						index = source.table.findIndex(keyColumns);
+						if(index < 0) {
+							throw new Exception("Reference table " + source.name + " has no index on " + keyColumns + " for statement " + key);
+						}
+					}
+					this.lookups.put(key, new Lookup(source, index));
+				}
+
+				// The tables a statement reads and writes, by name.
+				if(stmtInfo.get("reads") != null) {
+					this.reads.put(key, columnList(stmtInfo.get("reads")));
+				}
+				if(stmtInfo.get("writes") != null) {
+					this.writes.put(key, columnList(stmtInfo.get("writes")));
+				}
+				Long cacheTTLLng = (Long) stmtInfo.get("cache_ttl");
+				if(cacheTTLLng != null) {
+					if(!this.reads.containsKey(key)) {
+						throw new Exception("Statement " + key + " is cached but doesn't say which tables it reads");
+					}
+					if(isCallable || group != null || reference != null) {
+						throw new Exception("Statement " + key + " is cached and can't be callable, grouped or a reference lookup");
+					}
+					this.cacheTTLs.put(key, cacheTTLLng);
+				}
 			}
 		}
+
+		// Load the reference tables now, rather than on the first request.
+		refreshReferences();
+	}
+
+	/*
+	 * A column or table name, or a list of them, as a list.
+	 */
+	private static List<String> columnList(Object columns) throws Exception {
+
+		List<String> list = new ArrayList<String>();
+		if(columns instanceof String) {
+			list.add((String) columns);
+		} else if(columns instanceof List) {
+			List<?> names = (List<?>) columns;
+			for(int i = 0; i < names.size(); i++) {
+				list.add((String) names.get(i));
+			}
+		}
+		if(list.isEmpty()) {
+			throw new Exception("Expected a name or a list of names, got " + columns);
+		}
+		return list;
 	}
 
 	/**
@@ -167,10 +459,16 @@ public class JDBCQueryRunner extends QueueMonitor {
 	public void handle(PerformanceCollector collector, String responseQueue, HashMap<String,Object> request) throws ProcessTimeoutException {
 
 		String tracer = (String) request.get("tracer");
+		List<String> written = this.writes.get((String) request.get("statement"));
 
 		Connection conn = null;
 		ResultSet rs = null;
 		PreparedStatement ps = null;
+		boolean limited = false;
+		long queryMillis = -1;
+		boolean dbFailed = false;
+		boolean allowed = false;
+		boolean outage = false;
 		try {
 			DateTime dtProcessBy;
 
@@ -185,20 +483,104 @@ public class JDBCQueryRunner extends QueueMonitor {
 			if (dtProcessBy.isBefore(DateTime.now()))
 				throw new ProcessTimeoutException("process-by time exceeded");
 
-			// Grab a connection from the pool
-			long connStart = System.currentTimeMillis();
-			conn = this.ds.getConnection();
-			collector.add(
-				"Connection retrieval",
-				System.currentTimeMillis() - connStart,
-				tracer
-			);
+			// Compile the filter and projection before going near the
+			// database, a bad one is the client's problem.
+			RowExpression filter = null;
+			if(request.get("filter") != null) {
+				if(!(request.get("filter") instanceof String)) {
+					throw new Exception("Bad filter: filter must be a string");
+				}
+				try {
+					filter = RowExpression.compile((String) request.get("filter"));
+				} catch(ParseException e) {
+					throw new Exception("Bad filter: " + e.getMessage());
+				}
+			}
+			Map<String,RowExpression> projection = compileProjection(request.get("project"));
 
-			// Get the resultset back and transfer it's content into a list so
-			// that we can return an iterator AFTER closing the connection.
-			long start = System.currentTimeMillis();
-			ps = bindAndExecuteQuery(conn, request);
-			rs = ps.getResultSet();
+			// Lookups in a loaded reference table don't need the database.
+			Lookup lookup = this.lookups.get((String) request.get("statement"));
+			if(lookup != null) {
+				long start = System.currentTimeMillis();
+				List<JSONObject> rows = lookup.find(request);
+				if(rows != null) {
+					sendRows(responseQueue, tracer, rows, filter, projection);
+					collector.add("Reference lookup", System.currentTimeMillis() - start, tracer);
+					return;
+				}
+			}
+
+			// Cached reads don't need the database either.  The stamp is
+			// taken before querying so a write meanwhile keeps the result
+			// out of the cache.
+			String cacheKey = null;
+			long[] stamp = null;
+			Long cacheTTL = this.cacheTTLs.get((String) request.get("statement"));
+			if(cacheTTL != null) {
+				cacheKey = cacheKey(request);
+				List<JSONObject> rows = this.cache.get(cacheKey);
+				if(rows != null) {
+					sendRows(responseQueue, tracer, rows, filter, projection);
+					collector.add("Result cache hit", rows.size(), tracer);
+					return;
+				}
+				stamp = this.cache.stamp(this.reads.get((String) request.get("statement")));
+			}
+
+			// Don't wait on a database that's down, not even for a place in
+			// the limiter.
+			if(!this.dbBreaker.allowRequest()) {
+				refuse(responseQueue, tracer);
+				return;
+			}
+			allowed = true;
+
+			// Wait our turn if the database is being limited.  Not getting
+			// one says nothing about the database, so let the breaker go.
+			if(this.limiter != null) {
+				boolean acquired = false;
+				try {
+					acquired = this.limiter.acquire(dtProcessBy.getMillis() - System.currentTimeMillis());
+				} finally {
+					if(!acquired) {
+						allowed = false;
+						this.dbBreaker.release();
+					}
+				}
+				if(!acquired) {
+					throw new ProcessTimeoutException("process-by time exceeded waiting for the database");
+				}
+				limited = true;
+			}
+
+			long start;
+			Attempt read = null;
+			if(this.hedger != null && this.statementBook.isReadOnly((String) request.get("statement"))) {
+				// Reads may be hedged against a replica, the attempt that
+				// won hands over its connection.
+				start = System.currentTimeMillis();
+				read = hedgedRead(request, dtProcessBy);
+				conn = read.conn;
+				ps = read.ps;
+				rs = read.rs;
+				queryMillis = System.currentTimeMillis() - start;
+			} else {
+				// Grab a connection from the pool
+				long connStart = System.currentTimeMillis();
+				conn = getConnection(this.ds);
+				collector.add(
+					"Connection retrieval",
+					System.currentTimeMillis() - connStart,
+					tracer
+				);
+
+				// Get the resultset back and transfer it's content into a list so
+				// that we can return an iterator AFTER closing the connection.
+				start = System.currentTimeMillis();
+				ps = bindAndExecuteQuery(conn, request);
+				queryMillis = System.currentTimeMillis() - start;
+				rs = ps.getResultSet();
+			}
 
 			if(rs != null) {
 				collector.add(
@@ -206,14 +588,31 @@ public class JDBCQueryRunner extends QueueMonitor {
 					System.currentTimeMillis() - start,
 					tracer
 				);
+			}
 
-				JSONResultSetWrapper wrapper =  new JSONResultSetWrapper(
-					(String) request.get("tracer"), rs
-				);
-
-				while(wrapper.hasNext()) {
-					sendMessage(responseQueue, wrapper.next());
+			String name = (String) request.get("statement");
+			if(this.statementBook.isCallable(name)) {
+				// A procedure can return any number of result sets, each
+				// row says which one it's from, then the OUT params.
+				int set = 0;
+				while(true) {
+					if(rs != null) {
+						sendResultSet(responseQueue, tracer, rs, set++, read, this.shapes.get(name), filter, projection);
+						read = null;
+					}
+					if(!ps.getMoreResults() && ps.getUpdateCount() == -1) {
+						break;
+					}
+					rs = ps.getResultSet();
 				}
+				sendOutParams(responseQueue, tracer, (CallableStatement) ps, this.statementBook.getParamModes(name));
+			} else if(rs != null && cacheKey != null) {
+				List<JSONObject> rows = new ArrayList<JSONObject>();
+				if(sendAndCapture(responseQueue, tracer, rs, read, filter, projection, rows)) {
+					this.cache.put(cacheKey, rows, this.reads.get(name), stamp, cacheTTL.longValue());
+				}
+			} else if(rs != null) {
+				sendResultSet(responseQueue, tracer, rs, -1, read, this.shapes.get(name), filter, projection);
 			}
 
 			// Check the process timeout again
@@ -223,8 +622,12 @@ public class JDBCQueryRunner extends QueueMonitor {
 		} catch(ProcessTimeoutException e) {
 			logger.error(e.getMessage());
 			throw new ProcessTimeoutException(e.getMessage());
+		} catch(InterruptedException e) {
+			throw new ProcessTimeoutException("Interrupted waiting for the database");
 		} catch(Exception e) {
 			logger.error("Got an exception from SQL execution", e);
+			dbFailed = e instanceof SQLException;
+			outage = isOutage(e);
 			// In the case of an exception, reply back with an ERROR as the
 			// key and the message as the value.
 			JSONObject obj = new JSONObject();
@@ -245,10 +648,648 @@ public class JDBCQueryRunner extends QueueMonitor {
 			if(conn != null) {
 				try { conn.close(); } catch(SQLException e) { logger.error("Failed to close connection", e); }
 			}
+			if(allowed) {
+				if(outage) {
+					this.dbBreaker.recordFailure();
+				} else {
+					this.dbBreaker.recordSuccess();
+				}
+				// Even a failed write may have changed something.
+				if(written != null) {
+					invalidate(written, tracer);
+				}
+			}
+			if(limited) {
+				this.limiter.release(queryMillis, !dbFailed);
+				collector.add("Concurrency limit", this.limiter.getLimit(), tracer);
+				collector.add("Smoothed query latency", this.limiter.getLatency(), tracer);
+			}
 		}
 	}
 
-	private BasicDataSource connect() throws Exception {
+	/*
+	 * Compile a request's projection, either a list of columns or an object
+	 * of field names and expressions.
+	 */
+	private Map<String,RowExpression> compileProjection(Object project) throws Exception {
+
+		if(project == null) {
+			return null;
+		}
+		Map<String,RowExpression> projection = new LinkedHashMap<String,RowExpression>();
+		try {
+			if(project instanceof List) {
+				List<?> columns = (List<?>) project;
+				for(int i = 0; i < columns.size(); i++) {
+					projection.put((String) columns.get(i), RowExpression.compile((String) columns.get(i)));
+				}
+			} else if(project instanceof Map) {
+				Iterator<?> fields = ((Map<?,?>) project).entrySet().iterator();
+				while(fields.hasNext()) {
+					Map.Entry<?,?> field = (Map.Entry<?,?>) fields.next();
+					projection.put((String) field.getKey(), RowExpression.compile((String) field.getValue()));
+				}
+			} else {
+				throw new Exception("Bad projection: project must be a list or an object");
+			}
+		} catch(ParseException e) {
+			throw new Exception("Bad projection: " + e.getMessage());
+		} catch(ClassCastException e) {
+			throw new Exception("Bad projection: expressions must be strings");
+		}
+		return projection;
+	}
+
+	/*
+	 * Send the rows of a result set, tagged with its index if that isn't -1,
+	 * filtered and projected if asked, and grouped into documents if there's
+	 * a shape.  A hedged read has already looked at the first row.
+	 */
+	private void sendResultSet(String responseQueue, String tracer, ResultSet rs, int index, Attempt read, DocumentAssembler.Shape shape, RowExpression filter, Map<String,RowExpression> projection) throws Exception {
+
+		JSONResultSetWrapper wrapper =  new JSONResultSetWrapper(tracer, rs);
+		if(read != null) {
+			wrapper.setAdvanced(read.hasRow);
+		}
+		wrapper.setResultSetIndex(index);
+		wrapper.setFilter(filter);
+		wrapper.setProjection(projection);
+
+		Iterator<String> messages = wrapper;
+		if(shape != null) {
+			// A document has to hold whole values.
+			wrapper.setChunkSize(0);
+			messages = new DocumentAssembler(wrapper, shape);
+		} else {
+			wrapper.setChunkSize(this.lobChunkSize);
+		}
+
+		int rows = 0;
+		while(messages.hasNext()) {
+			// Don't bury a client that isn't reading in rows.
+			if(!awaitResponseRoom(responseQueue)) {
+				throw new Exception("Response queue " + responseQueue + " is over its watermark, gave up after " + rows + " rows");
+			}
+			sendMessage(responseQueue, messages.next());
+			rows++;
+		}
+	}
+
+	/*
+	 * Send the rows of a cached statement's result set, keeping their whole
+	 * row_data in rows as they go.  The result is only complete, and worth
+	 * caching, if it had no more than cacheMaxRows rows.
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean sendAndCapture(String responseQueue, String tracer, ResultSet rs, Attempt read, RowExpression filter, Map<String,RowExpression> projection, List<JSONObject> rows) throws Exception {
+
+		JSONResultSetWrapper wrapper = new JSONResultSetWrapper(tracer, rs);
+		if(read != null) {
+			wrapper.setAdvanced(read.hasRow);
+		}
+		// The cache keeps whole rows, the filter and projection are applied
+		// here so that requests with different ones share them.
+		wrapper.setChunkSize(0);
+
+		boolean complete = true;
+		int sent = 0;
+		while(wrapper.hasNext()) {
+			JSONObject obj = wrapper.nextObject();
+			JSONObject data = (JSONObject) obj.get("row_data");
+			if(data == null) {
+				// Not a row, something went wrong.
+				complete = false;
+			} else {
+				if(complete && rows.size() < this.cacheMaxRows) {
+					rows.add(data);
+				} else {
+					complete = false;
+					rows.clear();
+				}
+				if(filter != null && !filter.matches(data)) {
+					continue;
+				}
+				if(projection != null) {
+					obj.put("row_data", RowExpression.project(projection, data));
+				}
+			}
+			if(!awaitResponseRoom(responseQueue)) {
+				throw new Exception("Response queue " + responseQueue + " is over its watermark, gave up after " + sent + " rows");
+			}
+			sendMessage(responseQueue, obj.toString());
+			sent++;
+		}
+		return complete;
+	}
+
+	/*
+	 * A cached statement's result is kept under its sql and params.
+	 */
+	@SuppressWarnings("unchecked")
+	private String cacheKey(HashMap<String,Object> request) {
+
+		JSONArray params = new JSONArray();
+		if(request.get("params") != null) {
+			params.addAll((List<Object>) request.get("params"));
+		}
+		return this.statementBook.getPhrase((String) request.get("statement")) + "\n" + params.toString();
+	}
+
+	/**
+	 * Throw out the cached results that read any of these tables, here and,
+	 * with an invalidation_queue, on other nodes.
+	 *
+	 * @param tables	The tables written to
+	 * @param tracer	The tracer of the request that wrote them, or null
+	 */
+	@SuppressWarnings("unchecked")
+	protected void invalidate(List<String> tables, String tracer) {
+
+		int removed = this.cache.invalidate(tables);
+		collector.add("Result cache invalidated", removed, tracer);
+
+		if(this.invalidationQueue != null) {
+			JSONArray names = new JSONArray();
+			names.addAll(tables);
+			JSONObject event = new JSONObject();
+			event.put("cache", this.dsn);
+			event.put("tables", names);
+			event.put("node", ResultCache.NODE);
+			event.put("sent_at", new Long(System.currentTimeMillis()));
+			// Listeners that fell behind clear their caches, so old
+			// invalidations are still worth having.
+			sendMessage(this.invalidationQueue, event.toString(), 0);
+		}
+	}
+
+	/**
+	 * @return The result cache shared by the workers using this database
+	 */
+	protected ResultCache getResultCache() {
+
+		return this.cache;
+	}
+
+	/*
+	 * Send rows from a reference table or the result cache, filtered and
+	 * projected if asked, just as if they came from the database.
+	 */
+	private void sendRows(String responseQueue, String tracer, List<JSONObject> rows, RowExpression filter, Map<String,RowExpression> projection) throws Exception {
+
+		for(int i = 0; i < rows.size(); i++) {
+			JSONObject data = rows.get(i);
+			if(filter != null && !filter.matches(data)) {
+				continue;
+			}
+			if(!awaitResponseRoom(responseQueue)) {
+				throw new Exception("Response queue " + responseQueue + " is over its watermark, gave up after " + i + " rows");
+			}
+			JSONObject obj = new JSONObject();
+			if(tracer != null) {
+				obj.put("tracer", tracer);
+			}
+			obj.put("row_num", new Integer(i + 1));
+			obj.put("row_data", projection != null ? RowExpression.project(projection, data) : data);
+			sendMessage(responseQueue, obj.toString());
+		}
+	}
+
+	@Override
+	protected void betweenItems() {
+
+		refreshReferences();
+	}
+
+	/**
+	 * Load any reference tables that are due.  Tables are shared, so only
+	 * one worker loads each.  Written as a separate method to facilitate
+	 * testing.
+	 */
+	public void refreshReferences() {
+
+		Iterator<ReferenceSource> iter = this.references.values().iterator();
+		while(iter.hasNext()) {
+			ReferenceSource source = iter.next();
+			if(!source.table.claimRefresh(System.currentTimeMillis())) {
+				continue;
+			}
+			try {
+				loadReference(source);
+			} catch(Exception e) {
+				logger.error("Failed to load reference table " + source.name, e);
+			} finally {
+				source.table.release();
+			}
+		}
+	}
+
+	/*
+	 * Load a reference table, unless its change query says nothing changed.
+	 */
+	private void loadReference(ReferenceSource source) throws Exception {
+
+		if(!this.dbBreaker.allowRequest()) {
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		Connection conn = null;
+		boolean outage = false;
+		try {
+			conn = getConnection(this.ds);
+
+			Object token = null;
+			if(source.changeQuery != null) {
+				token = queryValue(conn, source.changeQuery);
+				if(source.table.isLoaded() && token != null && token.equals(source.table.getChangeToken())) {
+					return;
+				}
+			}
+
+			List<JSONObject> rows = new ArrayList<JSONObject>();
+			PreparedStatement ps = conn.prepareStatement(source.sql);
+			ResultSet rs = null;
+			try {
+				rs = ps.executeQuery();
+				JSONResultSetWrapper wrapper = new JSONResultSetWrapper(null, rs);
+				// Rows are kept whole.
+				wrapper.setChunkSize(0);
+				while(wrapper.hasNext()) {
+					if(rows.size() >= source.maxRows) {
+						throw new Exception("Reference table " + source.name + " has more than " + source.maxRows + " rows");
+					}
+					rows.add((JSONObject) wrapper.nextObject().get("row_data"));
+				}
+			} finally {
+				if(rs != null) {
+					rs.close();
+				}
+				ps.close();
+			}
+			source.table.loaded(rows, token);
+			logger.info("Loaded " + rows.size() + " rows into reference table " + source.name);
+			collector.add("Reference table load", System.currentTimeMillis() - start, null);
+		} catch(Exception e) {
+			outage = isOutage(e);
+			throw e;
+		} finally {
+			if(conn != null) {
+				try { conn.close(); } catch(SQLException e) { logger.error("Failed to close connection", e); }
+			}
+			if(outage) {
+				this.dbBreaker.recordFailure();
+			} else {
+				this.dbBreaker.recordSuccess();
+			}
+		}
+	}
+
+	/*
+	 * The first column of the first row of a query.
+	 */
+	private static Object queryValue(Connection conn, String sql) throws SQLException {
+
+		PreparedStatement ps = conn.prepareStatement(sql);
+		try {
+			ResultSet rs = ps.executeQuery();
+			try {
+				return rs.next() ? rs.getObject(1) : null;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+	}
+
+	/*
+	 * Send the values of a procedure's OUT params, by position, if it has
+	 * any.
+	 */
+	private void sendOutParams(String responseQueue, String tracer, CallableStatement cs, List<ParamMode> modes) throws SQLException {
+
+		if(modes == null) {
+			return;
+		}
+		JSONObject params = new JSONObject();
+		for(int i = 0; i < modes.size(); i++) {
+			if(modes.get(i).isOut()) {
+				Object value = cs.getObject(i + 1);
+				if(value != null && !(value instanceof Number || value instanceof Boolean || value instanceof String)) {
+					value = value.toString();
+				}
+				params.put(Integer.toString(i + 1), value);
+			}
+		}
+		if(params.isEmpty()) {
+			return;
+		}
+		JSONObject obj = new JSONObject();
+		obj.put("out_params", params);
+		if(tracer != null) {
+			obj.put("tracer", tracer);
+		}
+		sendMessage(responseQueue, obj.toString());
+	}
+
+	/*
+	 * Answer right away, the database's circuit is open.
+	 */
+	private void refuse(String responseQueue, String tracer) {
+
+		long retry = this.dbBreaker.getRetryDelay();
+		collector.add("Database circuit refused", retry, tracer);
+		JSONObject obj = new JSONObject();
+		obj.put("ERROR", "Database unavailable, circuit open for " + this.dsn);
+		obj.put("retry_after_ms", retry);
+		if(tracer != null) {
+			obj.put("tracer", tracer);
+		}
+		sendMessage(responseQueue, obj.toString());
+	}
+
+	/*
+	 * A reference table and how to load it.
+	 */
+	private static class ReferenceSource {
+
+		ReferenceTable table;
+		String name;
+		String sql;
+		String changeQuery;
+		int maxRows;
+
+		ReferenceSource(ReferenceTable table, String name, String sql, String changeQuery, int maxRows) {
+
+			this.table = table;
+			this.name = name;
+			this.sql = sql;
+			this.changeQuery = changeQuery;
+			this.maxRows = maxRows;
+		}
+	}
+
+	/*
+	 * A statement answered from a reference table, by an index or with
+	 * every row if index is -1.
+	 */
+	private static class Lookup {
+
+		ReferenceSource source;
+		int index;
+
+		Lookup(ReferenceSource source, int index) {
+
+			this.source = source;
+			this.index = index;
+		}
+
+		/*
+		 * The rows for a request, or null if it has to go to the database.
+		 */
+		List<JSONObject> find(HashMap<String,Object> request) throws Exception {
+
+			if(index < 0) {
+				return source.table.getRows();
+			}
+			@SuppressWarnings("unchecked")
+			List<Object> params = (List<Object>) request.get("params");
+			int expected = source.table.getIndexSize(index);
+			int given = params == null ? 0 : params.size();
+			if(given != expected) {
+				throw new Exception("Statement expects " + expected + " but was given " + given);
+			}
+			for(int i = 0; i < params.size(); i++) {
+				if(params.get(i) instanceof List) {
+					// IN lists are left to the database.
+					return null;
+				}
+			}
+			return source.table.lookup(index, params);
+		}
+	}
+
+	private static synchronized CircuitBreaker getDbBreaker(String name, int threshold, long base, long max) {
+
+		CircuitBreaker cb = dbBreakers.get(name);
+		if(cb == null) {
+			cb = new CircuitBreaker(name, threshold, base, max);
+			dbBreakers.put(name, cb);
+		}
+		return cb;
+	}
+
+	/**
+	 * Get a connection to the database from the pool.  Callers should ask
+	 * the database's breaker first and tell it how things went.
+	 */
+	protected Connection getConnection() throws SQLException {
+
+		return getConnection(this.ds);
+	}
+
+	/**
+	 * @return The circuit breaker shared by the workers using this database
+	 */
+	protected CircuitBreaker getDatabaseBreaker() {
+
+		return this.dbBreaker;
+	}
+
+	protected String getDsn() {
+
+		return this.dsn;
+	}
+
+	protected Phrasebook getStatementBook() {
+
+		return this.statementBook;
+	}
+
+	/*
+	 * Get a connection, making any failure to do so a connection exception
+	 * so it counts against the breaker.
+	 */
+	private static Connection getConnection(BasicDataSource source) throws SQLException {
+
+		try {
+			return source.getConnection();
+		} catch(SQLException e) {
+			throw new SQLNonTransientConnectionException(e.getMessage(), "08001", e);
+		}
+	}
+
+	/*
+	 * Is this a sign the database is down, rather than a bad query?  A
+	 * query that times out is usually just a slow query, so only connection
+	 * errors count.
+	 */
+	static boolean isOutage(Exception e) {
+
+		if(e instanceof SQLNonTransientConnectionException
+			|| e instanceof SQLTransientConnectionException) {
+			return true;
+		}
+		if(e instanceof SQLException) {
+			String state = ((SQLException) e).getSQLState();
+			return state != null && state.startsWith("08");
+		}
+		return false;
+	}
+
+	/*
+	 * Run a read on the database, and if it hasn't got a first row within
+	 * the hedger's delay, on a replica too.  The first to answer wins and
+	 * the other is cancelled.
+	 */
+	private Attempt hedgedRead(HashMap<String,Object> request, DateTime dtProcessBy) throws Exception {
+
+		String name = (String) request.get("statement");
+		long start = System.currentTimeMillis();
+		long delay = this.hedger.begin(name);
+
+		CompletionService<Attempt> reads = new ExecutorCompletionService<Attempt>(readers);
+		List<Attempt> attempts = new ArrayList<Attempt>(2);
+		Attempt primary = new Attempt(this.ds, request);
+		attempts.add(primary);
+		reads.submit(primary);
+
+		Future<Attempt> first = null;
+		if(delay >= 0) {
+			first = reads.poll(delay, TimeUnit.MILLISECONDS);
+			if(first == null && this.hedger.allowHedge()) {
+				BasicDataSource replica = this.replicas.get(nextReplica++ % this.replicas.size());
+				logger.debug("No first row for " + name + " after " + delay + "ms, hedging");
+				Attempt hedge = new Attempt(replica, request);
+				attempts.add(hedge);
+				reads.submit(hedge);
+			}
+		}
+
+		Attempt winner = null;
+		Exception failure = null;
+		try {
+			for(int i = 0; i < attempts.size() && winner == null; i++) {
+				if(first == null) {
+					first = reads.poll(Math.max(0, dtProcessBy.getMillis() - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					if(first == null) {
+						throw new ProcessTimeoutException("process-by time exceeded");
+					}
+				}
+				try {
+					winner = first.get();
+				} catch(ExecutionException e) {
+					// If the other attempt is still going it may yet answer.
+					failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+				first = null;
+			}
+		} finally {
+			for(int i = 0; i < attempts.size(); i++) {
+				if(attempts.get(i) != winner) {
+					attempts.get(i).abandon();
+				}
+			}
+		}
+		if(winner == null) {
+			throw failure;
+		}
+
+		this.hedger.record(name, System.currentTimeMillis() - start, winner != primary);
+		if(attempts.size() > 1) {
+			collector.add("Hedged read (" + (winner == primary ? "primary" : "replica") + " won)", System.currentTimeMillis() - start, (String) request.get("tracer"));
+		}
+		return winner;
+	}
+
+	/*
+	 * One run of a read, up to its first row.  Abandoning it cancels the
+	 * query, and it closes itself once it's done.
+	 */
+	private class Attempt implements Callable<Attempt> {
+
+		private BasicDataSource source;
+		private HashMap<String,Object> request;
+
+		Connection conn;
+		PreparedStatement ps;
+		ResultSet rs;
+		boolean hasRow = false;
+		private boolean abandoned = false;
+		private boolean finished = false;
+
+		Attempt(BasicDataSource source, HashMap<String,Object> request) {
+
+			this.source = source;
+			this.request = request;
+		}
+
+		public Attempt call() throws Exception {
+
+			try {
+				Connection c = getConnection(source);
+				synchronized(this) {
+					conn = c;
+				}
+				PreparedStatement p = bindQuery(c, request);
+				synchronized(this) {
+					ps = p;
+					if(abandoned) {
+						throw new SQLException("Read abandoned");
+					}
+				}
+				p.execute();
+				ResultSet r = p.getResultSet();
+				synchronized(this) {
+					rs = r;
+				}
+				if(r != null) {
+					hasRow = r.next();
+				}
+				return this;
+			} catch(Exception e) {
+				synchronized(this) {
+					abandoned = true;
+				}
+				throw e;
+			} finally {
+				synchronized(this) {
+					finished = true;
+					if(abandoned) {
+						close();
+					}
+				}
+			}
+		}
+
+		synchronized void abandon() {
+
+			abandoned = true;
+			if(finished) {
+				close();
+			} else if(ps != null) {
+				try { ps.cancel(); } catch(SQLException e) { logger.debug("Couldn't cancel read", e); }
+			}
+		}
+
+		private void close() {
+
+			if(rs != null) {
+				try { rs.close(); } catch(SQLException e) { logger.error("Failed to close resultset", e); }
+			}
+			if(ps != null) {
+				try { ps.close(); } catch(SQLException e) { logger.error("Failed to close statement", e); }
+			}
+			if(conn != null) {
+				try { conn.close(); } catch(SQLException e) { logger.error("Failed to close connection", e); }
+			}
+			rs = null;
+			ps = null;
+			conn = null;
+		}
+	}
+
+	private BasicDataSource connect(String dsn) throws Exception {
 
 		// Not going to try anything fancy here.  If this fails, then
 		// the exception will bubble all the way up.
@@ -266,14 +1307,29 @@ public class JDBCQueryRunner extends QueueMonitor {
 		ds.setDriverClassName(this.driver);
 		ds.setUsername(this.username);
 		ds.setPassword(this.password);
-		ds.setUrl(this.dsn);
+		ds.setUrl(dsn);
 		return ds;
 	}
 
-	/*
+	/**
 	 * Find the query and execute it it.
+	 *
+	 * @param conn		A connection
+	 * @param request	The request, with a statement and any params
+	 * @return The executed statement
+	 */
+	protected PreparedStatement bindAndExecuteQuery(Connection conn, HashMap<String,Object> request) throws Exception {
+
+		PreparedStatement prepStatement = bindQuery(conn, request);
+		prepStatement.execute();
+
+		return prepStatement;
+	}
+
+	/*
+	 * Find the query and bind its params.
 	 */
-	private PreparedStatement bindAndExecuteQuery(Connection conn, HashMap<String,Object> request) throws Exception {
+	private PreparedStatement bindQuery(Connection conn, HashMap<String,Object> request) throws Exception {
 
 		// Verify the requested statement exists
 		String name = (String) request.get("statement");
@@ -282,44 +1338,128 @@ public class JDBCQueryRunner extends QueueMonitor {
 			throw new Exception("Unknown statement " + name);
 		}
 
-		PreparedStatement prepStatement = conn.prepareStatement(statement);
-
+		boolean callable = this.statementBook.isCallable(name);
 		@SuppressWarnings("unchecked")
 		ArrayList<Object> rparams = (ArrayList<Object>) request.get("params");
 		List<ParamType> reqParams = this.statementBook.getParams(name);
-		if(reqParams != null) {
+		if(reqParams == null) {
+			return callable ? conn.prepareCall(statement) : conn.prepareStatement(statement);
+		}
+		List<ParamMode> modes = this.statementBook.getParamModes(name);
+
+		// Verify we have params if they are needed, OUT params aren't sent.
+		int expected = 0;
+		for(int i = 0; i < reqParams.size(); i++) {
+			if(modes == null || modes.get(i).isIn()) {
+				expected++;
+			}
+		}
+		if(expected > 0 && rparams == null) {
+			throw new Exception("Statement " + name + " requires params");
+		}
+		int given = rparams == null ? 0 : rparams.size();
+		if(given != expected) {
+			throw new Exception("Statement expects " + expected + " but was given " + given);
+		}
 
-			// Verify we have params if they are needed
-			if(rparams == null) {
-				throw new Exception("Statement " + name + " requires params");
+		if(callable) {
+			CallableStatement call = conn.prepareCall(statement);
+			try {
+				int sent = 0;
+				for(int i = 0; i < reqParams.size(); i++) {
+					ParamMode mode = modes.get(i);
+					if(mode.isIn()) {
+						bindParam(call, i + 1, reqParams.get(i), rparams.get(sent++));
+					}
+					if(mode.isOut()) {
+						call.registerOutParameter(i + 1, sqlType(reqParams.get(i)));
+					}
+				}
+			} catch(Exception e) {
+				call.close();
+				throw e;
 			}
-			if(rparams.size() != reqParams.size()) {
-				throw new Exception("Statement expects " + reqParams.size() + " but was given " + rparams.size());
+			return call;
+		}
+
+		// Array params get a placeholder per value, rounded up so that
+		// similar sizes share a prepared statement.
+		int[] sizes = new int[reqParams.size()];
+		for(int i = 0; i < reqParams.size(); i++) {
+			if(reqParams.get(i).isArray()) {
+				if(!(rparams.get(i) instanceof List)) {
+					throw new Exception("Param " + (i + 1) + " of " + name + " must be a list");
+				}
+				int size = ((List<?>) rparams.get(i)).size();
+				// A NULL placeholder would do for IN, but NOT IN (NULL)
+				// matches nothing either, so don't guess.
+				if(size == 0) {
+					throw new Exception("Param " + (i + 1) + " of " + name + " is an empty list, it needs at least one value");
+				}
+				if(size > this.maxArraySize) {
+					throw new Exception("Param " + (i + 1) + " of " + name + " has " + size + " values, the most is " + this.maxArraySize);
+				}
+				sizes[i] = Phrasebook.bucket(size);
+			} else {
+				sizes[i] = 1;
 			}
+		}
 
+		PreparedStatement prepStatement = conn.prepareStatement(this.statementBook.getPhrase(name, sizes));
+		try {
+			int index = 1;
 			for(int i = 0; i < reqParams.size(); i++) {
-                ParamType paramType = reqParams.get(i);
-                switch ( paramType ) {
-	                case BOOLEAN :
-	                    prepStatement.setBoolean(i + 1, ((Boolean) rparams.get(i)).booleanValue());
-	                    break;
-	                case NUMBER :
-	                	prepStatement.setDouble(i + 1, ((Number) rparams.get(i)).doubleValue());
-	                	break;
-	                case INTEGER :
-                        prepStatement.setInt(i + 1, ((Long) rparams.get(i)).intValue() );
-                        break;
-                    case STRING :
-                        prepStatement.setString(i + 1, (String) rparams.get(i));
-                        break;
-                    default :
-                        throw new Exception ("Don't understand param-type '" + paramType + "'");
-                }
+				ParamType paramType = reqParams.get(i);
+				if(!paramType.isArray()) {
+					bindParam(prepStatement, index++, paramType, rparams.get(i));
+					continue;
+				}
+				// Pad out to the bucket with the last value, repeats don't
+				// change what an IN list matches.
+				List<?> values = (List<?>) rparams.get(i);
+				for(int j = 0; j < sizes[i]; j++) {
+					bindParam(prepStatement, index++, paramType.getElementType(), values.get(Math.min(j, values.size() - 1)));
+				}
 			}
+		} catch(Exception e) {
+			prepStatement.close();
+			throw e;
 		}
 
-		prepStatement.execute();
-
 		return prepStatement;
 	}
+
+	private static void bindParam(PreparedStatement prepStatement, int index, ParamType paramType, Object value) throws Exception {
+
+        switch ( paramType ) {
+            case BOOLEAN :
+                prepStatement.setBoolean(index, ((Boolean) value).booleanValue());
+                break;
+            case NUMBER :
+            	prepStatement.setDouble(index, ((Number) value).doubleValue());
+            	break;
+            case INTEGER :
+                prepStatement.setInt(index, ((Long) value).intValue() );
+                break;
+            case STRING :
+                prepStatement.setString(index, (String) value);
+                break;
+            default :
+                throw new Exception ("Don't understand param-type '" + paramType + "'");
+        }
+	}
+
+	private static int sqlType(ParamType paramType) {
+
+		switch(paramType) {
+			case BOOLEAN :
+				return Types.BOOLEAN;
+			case NUMBER :
+				return Types.DOUBLE;
+			case INTEGER :
+				return Types.INTEGER;
+			default :
+				return Types.VARCHAR;
+		}
+	}
 }
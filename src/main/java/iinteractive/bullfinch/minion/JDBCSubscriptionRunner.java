@@ -0,0 +1,472 @@
+package iinteractive.bullfinch.minion;
+
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.ProcessTimeoutException;
+import iinteractive.bullfinch.util.CircuitBreaker;
+import iinteractive.bullfinch.util.JSONResultSetWrapper;
+import iinteractive.bullfinch.util.SnapshotDiff;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A worker that runs statements over and over for subscribers, and sends
+ * them only the rows that changed.
+ *
+ * Requests subscribe to a statement with some params, much like a request
+ * to a JDBCQueryRunner.  The subscriber gets the whole result as inserts.
+ * After that the statement is run every interval and each subscriber is
+ * sent the rows that were inserted, updated or deleted since, identified by
+ * the statement's key columns, followed by an EOF.  Subscribers to the same
+ * statement and params share one query.
+ *
+ * Subscriptions lapse unless renewed within subscription_ttl.  The polling
+ * is done by the workers between requests, so their timeout should be well
+ * under the shortest interval.
+ *
+ */
+public class JDBCSubscriptionRunner extends JDBCQueryRunner {
+
+	static Logger logger = LoggerFactory.getLogger(JDBCSubscriptionRunner.class);
+
+	// Feeds are shared by every worker in the JVM, whoever gets to one
+	// first when it's due runs it.
+	private static HashMap<String,Feed> feeds = new HashMap<String,Feed>();
+
+	private long defaultInterval = 5000;
+	private long subscriptionTTL = 300000;
+	private int maxRows = 10000;
+	private HashMap<String,List<String>> keys = new HashMap<String,List<String>>();
+	private HashMap<String,Long> intervals = new HashMap<String,Long>();
+
+	public JDBCSubscriptionRunner(PerformanceCollector collector) {
+
+		super(collector);
+	}
+
+	/**
+	 * Configure the worker.  Takes the same options as a JDBCQueryRunner,
+	 * and each statement that can be subscribed to needs a key:
+	 *
+	 * "statements" : {
+	 *     "getOrders" : {
+	 *         "sql"      : "SELECT id, status FROM orders WHERE customer = ?",
+	 *         "params"   : [ "INTEGER" ],
+	 *         "key"      : "id",
+	 *         "interval" : 2000
+	 *     }
+	 * }
+	 *
+	 * @param config
+	 * @throws Exception
+	 */
+	@Override
+	public void configure(HashMap<String,Object> config) throws Exception {
+
+		super.configure(config);
+
+		Long intervalLng = (Long) config.get("interval");
+		if(intervalLng != null) {
+			this.defaultInterval = intervalLng.longValue();
+		}
+
+		Long ttlLng = (Long) config.get("subscription_ttl");
+		if(ttlLng != null) {
+			this.subscriptionTTL = ttlLng.longValue();
+		}
+
+		Long maxRowsLng = (Long) config.get("max_rows");
+		if(maxRowsLng != null) {
+			this.maxRows = maxRowsLng.intValue();
+		}
+
+		@SuppressWarnings("unchecked")
+		HashMap<String,HashMap<String,Object>> statements = (HashMap<String,HashMap<String,Object>>) config.get("statements");
+		if(statements != null) {
+			Iterator<String> names = statements.keySet().iterator();
+			while(names.hasNext()) {
+				String name = names.next();
+				HashMap<String,Object> stmtInfo = statements.get(name);
+
+				// The key can be a column or a list of them.
+				Object key = stmtInfo.get("key");
+				List<String> keyColumns = new ArrayList<String>();
+				if(key instanceof String) {
+					keyColumns.add((String) key);
+				} else if(key instanceof List) {
+					List<?> columns = (List<?>) key;
+					for(int i = 0; i < columns.size(); i++) {
+						keyColumns.add((String) columns.get(i));
+					}
+				}
+				if(!keyColumns.isEmpty()) {
+					this.keys.put(name, keyColumns);
+				}
+
+				Long stmtIntervalLng = (Long) stmtInfo.get("interval");
+				if(stmtIntervalLng != null) {
+					this.intervals.put(name, stmtIntervalLng);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handle a subscription request:
+	 *
+	 * {
+	 *     "statement"      : "getOrders",
+	 *     "params"         : [ 12 ],
+	 *     "response_queue" : "orders-for-12",
+	 *     "subscription"   : "subscribe" // or "renew" or "unsubscribe"
+	 * }
+	 */
+	@Override
+	public void handle(PerformanceCollector collector, String responseQueue, HashMap<String,Object> request) throws ProcessTimeoutException {
+
+		String tracer = (String) request.get("tracer");
+		try {
+			String name = (String) request.get("statement");
+			if(name == null || getStatementBook().getPhrase(name) == null) {
+				throw new Exception("Unknown statement " + name);
+			}
+			List<String> keyColumns = this.keys.get(name);
+			if(keyColumns == null) {
+				throw new Exception("Statement " + name + " has no key, it can't be subscribed to");
+			}
+			@SuppressWarnings("unchecked")
+			List<Object> params = (List<Object>) request.get("params");
+
+			String action = (String) request.get("subscription");
+			if(action == null) {
+				action = "subscribe";
+			}
+			JSONArray paramList = new JSONArray();
+			if(params != null) {
+				paramList.addAll(params);
+			}
+			String id = getDsn() + "\n" + getStatementBook().getPhrase(name) + "\n" + paramList;
+
+			if(action.equals("unsubscribe")) {
+				Feed feed = existingFeed(id);
+				if(feed != null) {
+					feed.claim();
+					try {
+						feed.subscribers.remove(responseQueue);
+					} finally {
+						finish(id, feed);
+					}
+				}
+				return;
+			}
+			if(!action.equals("subscribe") && !action.equals("renew")) {
+				throw new Exception("Unknown subscription action " + action);
+			}
+
+			while(true) {
+				Feed feed = feedFor(id, name, params, keyColumns);
+				feed.claim();
+				try {
+					if(feed.removed) {
+						// Dropped while we waited, start over.
+						continue;
+					}
+					Subscriber sub = feed.subscribers.get(responseQueue);
+					if(action.equals("renew") && sub != null) {
+						sub.expiresAt = System.currentTimeMillis() + this.subscriptionTTL;
+						return;
+					}
+					// Bring everyone up to date, then send the newcomer the
+					// lot.
+					refresh(feed);
+					sub = new Subscriber(tracer, System.currentTimeMillis() + this.subscriptionTTL);
+					feed.subscribers.put(responseQueue, sub);
+					List<JSONObject> rows = feed.snapshot.getRows();
+					for(int i = 0; i < rows.size(); i++) {
+						sendMessage(responseQueue, message(rows.get(i), sub, feed.snapshot.getVersion()), expiryOf(sub));
+					}
+					collector.add("Subscription snapshot", rows.size(), tracer);
+					return;
+				} finally {
+					finish(id, feed);
+				}
+			}
+		} catch(Exception e) {
+			logger.error("Failed to handle subscription", e);
+			JSONObject obj = new JSONObject();
+			obj.put("ERROR", e.getMessage());
+			if(tracer != null) {
+				obj.put("tracer", tracer);
+			}
+			sendMessage(responseQueue, obj.toString());
+		}
+	}
+
+	@Override
+	protected void betweenItems() {
+
+		super.betweenItems();
+		pollFeeds();
+	}
+
+	/**
+	 * Run any feeds that are due.  Written as a separate method to
+	 * facilitate testing.
+	 */
+	public void pollFeeds() {
+
+		List<Feed> due = new ArrayList<Feed>();
+		synchronized(feeds) {
+			due.addAll(feeds.values());
+		}
+
+		boolean sent = false;
+		Iterator<Feed> iter = due.iterator();
+		while(iter.hasNext()) {
+			Feed feed = iter.next();
+			if(!feed.tryClaim(System.currentTimeMillis())) {
+				continue;
+			}
+			try {
+				sent |= refresh(feed);
+			} catch(Exception e) {
+				logger.error("Failed to refresh subscription to " + feed.statement, e);
+			} finally {
+				finish(feed.id, feed);
+			}
+		}
+
+		if(sent && !flushMessages()) {
+			logger.error("Couldn't deliver every subscription delta");
+		}
+	}
+
+	/*
+	 * Run a feed's statement and send what changed to its subscribers.  The
+	 * feed must be claimed.  Returns true if anything was sent.
+	 */
+	private boolean refresh(Feed feed) throws Exception {
+
+		long now = System.currentTimeMillis();
+		Iterator<Subscriber> lapsed = feed.subscribers.values().iterator();
+		while(lapsed.hasNext()) {
+			if(lapsed.next().expiresAt < now) {
+				lapsed.remove();
+			}
+		}
+
+		CircuitBreaker breaker = getDatabaseBreaker();
+		if(!breaker.allowRequest()) {
+			throw new Exception("Database unavailable, circuit open for " + getDsn());
+		}
+
+		List<JSONObject> result = new ArrayList<JSONObject>();
+		Connection conn = null;
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		boolean outage = false;
+		try {
+			HashMap<String,Object> request = new HashMap<String,Object>();
+			request.put("statement", feed.statement);
+			request.put("params", feed.params);
+			conn = getConnection();
+			ps = bindAndExecuteQuery(conn, request);
+			rs = ps.getResultSet();
+			if(rs == null) {
+				throw new Exception("Statement " + feed.statement + " didn't return any rows to subscribe to");
+			}
+			JSONResultSetWrapper wrapper = new JSONResultSetWrapper(null, rs);
+			// Rows are compared whole.
+			wrapper.setChunkSize(0);
+			while(wrapper.hasNext()) {
+				if(result.size() >= this.maxRows) {
+					throw new Exception("Statement " + feed.statement + " returned more than " + this.maxRows + " rows to subscribe to");
+				}
+				result.add((JSONObject) wrapper.nextObject().get("row_data"));
+			}
+		} catch(Exception e) {
+			outage = isOutage(e);
+			throw e;
+		} finally {
+			if(rs != null) {
+				try { rs.close(); } catch(SQLException e) { logger.error("Failed to close resultset", e); }
+			}
+			if(ps != null) {
+				try { ps.close(); } catch(SQLException e) { logger.error("Failed to close statement", e); }
+			}
+			if(conn != null) {
+				try { conn.close(); } catch(SQLException e) { logger.error("Failed to close connection", e); }
+			}
+			if(outage) {
+				breaker.recordFailure();
+			} else {
+				breaker.recordSuccess();
+			}
+		}
+		collector.add("Subscription query", System.currentTimeMillis() - now, null);
+
+		List<JSONObject> deltas = feed.snapshot.update(result);
+		if(deltas.isEmpty() || feed.subscribers.isEmpty()) {
+			return false;
+		}
+		collector.add("Subscription deltas", deltas.size(), null);
+
+		long version = feed.snapshot.getVersion();
+		Iterator<Map.Entry<String,Subscriber>> subs = feed.subscribers.entrySet().iterator();
+		while(subs.hasNext()) {
+			Map.Entry<String,Subscriber> e = subs.next();
+			Subscriber sub = e.getValue();
+			for(int i = 0; i < deltas.size(); i++) {
+				sendMessage(e.getKey(), message(deltas.get(i), sub, version), expiryOf(sub));
+			}
+			sendMessage(e.getKey(), "{ \"EOF\":\"EOF\", \"version\":" + version + " }", expiryOf(sub));
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static String message(JSONObject delta, Subscriber sub, long version) {
+
+		JSONObject obj = new JSONObject();
+		obj.putAll(delta);
+		obj.put("version", new Long(version));
+		if(sub.tracer != null) {
+			obj.put("tracer", sub.tracer);
+		}
+		return obj.toString();
+	}
+
+	/*
+	 * Nobody will read what's sent after the subscription lapses.
+	 */
+	private static int expiryOf(Subscriber sub) {
+
+		return Math.max(1, (int) ((sub.expiresAt - System.currentTimeMillis()) / 1000) + 1);
+	}
+
+	private Feed feedFor(String id, String name, List<Object> params, List<String> keyColumns) {
+
+		synchronized(feeds) {
+			Feed feed = feeds.get(id);
+			if(feed == null) {
+				Long interval = this.intervals.get(name);
+				feed = new Feed(id, name, params, keyColumns, interval != null ? interval.longValue() : this.defaultInterval);
+				feeds.put(id, feed);
+			}
+			return feed;
+		}
+	}
+
+	private static Feed existingFeed(String id) {
+
+		synchronized(feeds) {
+			return feeds.get(id);
+		}
+	}
+
+	/*
+	 * Let go of a claimed feed, dropping it if nobody is subscribed.
+	 */
+	private static void finish(String id, Feed feed) {
+
+		synchronized(feeds) {
+			if(feed.subscribers.isEmpty() && !feed.removed) {
+				feed.removed = true;
+				feeds.remove(id);
+			}
+		}
+		feed.release();
+	}
+
+	/**
+	 * @return How many statement and params pairs have subscribers
+	 */
+	public static int getFeedCount() {
+
+		synchronized(feeds) {
+			return feeds.size();
+		}
+	}
+
+	/*
+	 * A statement with its params, and who's subscribed to it.  Only the
+	 * worker that has claimed a feed touches its snapshot and subscribers.
+	 */
+	private static class Feed {
+
+		String id;
+		String statement;
+		List<Object> params;
+		long interval;
+		SnapshotDiff snapshot;
+		LinkedHashMap<String,Subscriber> subscribers = new LinkedHashMap<String,Subscriber>();
+		boolean removed = false;
+
+		private boolean busy = false;
+		private long nextRun = 0;
+
+		Feed(String id, String statement, List<Object> params, List<String> keyColumns, long interval) {
+
+			this.id = id;
+			this.statement = statement;
+			this.params = params;
+			this.interval = interval;
+			this.snapshot = new SnapshotDiff(keyColumns);
+		}
+
+		/*
+		 * Claim the feed if it's due and nobody else has it.
+		 */
+		synchronized boolean tryClaim(long now) {
+
+			if(busy || removed || now < nextRun) {
+				return false;
+			}
+			busy = true;
+			return true;
+		}
+
+		/*
+		 * Claim the feed, waiting for whoever has it.
+		 */
+		synchronized void claim() throws InterruptedException {
+
+			while(busy) {
+				wait();
+			}
+			busy = true;
+		}
+
+		synchronized void release() {
+
+			busy = false;
+			nextRun = System.currentTimeMillis() + interval;
+			notifyAll();
+		}
+	}
+
+	private static class Subscriber {
+
+		String tracer;
+		long expiresAt;
+
+		Subscriber(String tracer, long expiresAt) {
+
+			this.tracer = tracer;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
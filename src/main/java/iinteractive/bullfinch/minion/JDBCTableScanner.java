@@ -173,8 +173,12 @@ public class JDBCTableScanner extends KestrelBased {
 				wrapper.bindKeyToQuery(markStatement);
 				// Now send and mark as quickly as possible to minimize
 				// any failures that could cause the row to be send and
-				// not marked.
-				sendMessage(publishTo, wrapper.next());
+				// not marked.  Only mark it once kestrel has it, a
+				// buffered row would be lost with us.
+				if(!sendMessage(publishTo, wrapper.next()) || !flushMessages()) {
+					logger.error("Couldn't publish row, leaving it and the rest for next time.");
+					break;
+				}
 				logger.debug("Deleting sent row.");
 				markStatement.execute();
 			}
@@ -3,8 +3,13 @@ package iinteractive.bullfinch.minion;
 import iinteractive.bullfinch.ConfigurationException;
 import iinteractive.bullfinch.Minion;
 import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.util.Backoff;
+import iinteractive.bullfinch.util.CircuitBreaker;
+import iinteractive.bullfinch.util.SpillJournal;
+import iinteractive.bullfinch.util.SpillJournal.FsyncPolicy;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.concurrent.TimeoutException;
 
 import net.rubyeye.xmemcached.MemcachedClient;
@@ -14,6 +19,7 @@ import net.rubyeye.xmemcached.command.KestrelCommandFactory;
 import net.rubyeye.xmemcached.exception.MemcachedException;
 import net.rubyeye.xmemcached.utils.AddrUtil;
 
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,6 +35,35 @@ public abstract class KestrelBased extends Minion {
 	static Logger logger = LoggerFactory.getLogger(KestrelBased.class);
 	protected String queueName;
 	protected MemcachedClient client;
+	protected KestrelTransport transport;
+	protected CircuitBreaker breaker;
+	protected SpillJournal journal;
+
+	// One breaker per kestrel server, shared by every minion that uses it.
+	private static HashMap<String,CircuitBreaker> breakers = new HashMap<String,CircuitBreaker>();
+
+	private String workHost;
+	private int workPort;
+	private String clientType;
+	private HashMap<String,Object> kestrelConfig;
+
+	private int sendRetries = 20;
+	private long backoffBase = 100;
+	private long backoffMax = 30000;
+
+	// Seconds before response items expire in kestrel, 0 for never.
+	private int responseTTL = 0;
+	private int responseTTLGrace = 60;
+	private int responseExpiry = 0;
+
+	// Watermarks for response queues, 0 for none.
+	private long maxQueueItems = 0;
+	private long maxQueueBytes = 0;
+	private int checkEvery = 100;
+	private long maxBackpressureWait = 30000;
+	private long backpressurePoll = 500;
+	private int sinceCheck = 0;
+	private long backpressurePaused = 0;
 
 	public MemcachedClient getClient() {
 		return client;
@@ -36,6 +71,64 @@ public abstract class KestrelBased extends Minion {
 
 	public void setClient(MemcachedClient client) {
 		this.client = client;
+		this.transport = new XMemcachedTransport(client);
+	}
+
+	/**
+	 * Get the transport used to talk to kestrel.  If a subclass only set the
+	 * xmemcached client then it gets wrapped.
+	 *
+	 * @return The transport
+	 */
+	public KestrelTransport getTransport() {
+
+		if(this.transport == null && this.client != null) {
+			this.transport = new XMemcachedTransport(this.client);
+		}
+		return transport;
+	}
+
+	/**
+	 * Get the circuit breaker for this minion's kestrel server.
+	 *
+	 * @return The breaker
+	 */
+	public CircuitBreaker getBreaker() {
+
+		if(this.breaker == null) {
+			this.breaker = getBreaker("kestrel", 5, backoffBase, backoffMax);
+		}
+		return breaker;
+	}
+
+	private static synchronized CircuitBreaker getBreaker(String name, int threshold, long base, long max) {
+
+		CircuitBreaker cb = breakers.get(name);
+		if(cb == null) {
+			cb = new CircuitBreaker(name, threshold, base, max);
+			breakers.put(name, cb);
+		}
+		return cb;
+	}
+
+	/**
+	 * Create a backoff using this minion's configured delays.
+	 *
+	 * @return A new Backoff
+	 */
+	protected Backoff newBackoff() {
+
+		return new Backoff(backoffBase, backoffMax);
+	}
+
+	/**
+	 * Sleep, keeping the interrupt flag if interrupted.
+	 *
+	 * @param millis Milliseconds to sleep
+	 */
+	protected void pause(long millis) {
+
+		try { Thread.sleep(millis); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
 	}
 
 	public KestrelBased(PerformanceCollector collector) {
@@ -46,7 +139,7 @@ public abstract class KestrelBased extends Minion {
 	@Override
 	public void configure(HashMap<String,Object> config) throws Exception {
 
-		String workHost = (String) config.get("kestrel_host");
+		workHost = (String) config.get("kestrel_host");
 		if(workHost == null) {
 			throw new ConfigurationException("Each kestrel-based worker must have a kestrel_host!");
 		}
@@ -55,55 +148,404 @@ public abstract class KestrelBased extends Minion {
 		if(workPortLng == null) {
 			throw new ConfigurationException("Each kestrel-based worker must have a kestrel_port!");
 		}
-		int workPort = workPortLng.intValue();
+		workPort = workPortLng.intValue();
+
+		clientType = (String) config.get("kestrel_client");
+		if(clientType == null) {
+			clientType = "xmemcached";
+		}
+		kestrelConfig = config;
+
+		Long retriesLng = (Long) config.get("kestrel_send_retries");
+		if(retriesLng != null) {
+			sendRetries = retriesLng.intValue();
+		}
+		Long baseLng = (Long) config.get("kestrel_backoff_base");
+		if(baseLng != null) {
+			backoffBase = baseLng.longValue();
+		}
+		Long maxLng = (Long) config.get("kestrel_backoff_max");
+		if(maxLng != null) {
+			backoffMax = maxLng.longValue();
+		}
+		Long thresholdLng = (Long) config.get("kestrel_failure_threshold");
+		int threshold = thresholdLng != null ? thresholdLng.intValue() : 5;
+		this.breaker = getBreaker(getKestrelAddress(), threshold, backoffBase, backoffMax);
+
+		Long ttlLng = (Long) config.get("response_ttl");
+		if(ttlLng != null) {
+			responseTTL = ttlLng.intValue();
+		}
+		Long graceLng = (Long) config.get("response_ttl_grace");
+		if(graceLng != null) {
+			responseTTLGrace = graceLng.intValue();
+		}
+		responseExpiry = responseTTL;
+
+		@SuppressWarnings("unchecked")
+		HashMap<String,Object> bpConfig = (HashMap<String,Object>) config.get("backpressure");
+		if(bpConfig != null) {
+			Long itemsLng = (Long) bpConfig.get("max_items");
+			maxQueueItems = itemsLng != null ? itemsLng.longValue() : 0;
+			Long bytesLng = (Long) bpConfig.get("max_bytes");
+			maxQueueBytes = bytesLng != null ? bytesLng.longValue() : 0;
+			Long everyLng = (Long) bpConfig.get("check_every");
+			if(everyLng != null) {
+				checkEvery = everyLng.intValue();
+			}
+			Long waitLng = (Long) bpConfig.get("max_wait");
+			if(waitLng != null) {
+				maxBackpressureWait = waitLng.longValue();
+			}
+			Long pollLng = (Long) bpConfig.get("poll_interval");
+			if(pollLng != null) {
+				backpressurePoll = pollLng.longValue();
+			}
+		}
 
 		// This is here to facilitate testing
-		if(this.client == null) {
+		if(this.transport == null) {
+			this.transport = newTransport();
+			if(this.transport instanceof XMemcachedTransport) {
+				this.client = ((XMemcachedTransport) this.transport).getClient();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		HashMap<String,Object> spillConfig = (HashMap<String,Object>) config.get("spill");
+		if(spillConfig != null) {
+			String path = (String) spillConfig.get("path");
+			if(path == null) {
+				throw new ConfigurationException("A spill section needs a path");
+			}
+			Long maxBytesLng = (Long) spillConfig.get("max_bytes");
+			int maxBytes = maxBytesLng != null ? maxBytesLng.intValue() : 64 * 1024 * 1024;
+
+			String fsync = (String) spillConfig.get("fsync");
+			FsyncPolicy policy = fsync != null ? FsyncPolicy.valueOf(fsync.toUpperCase()) : FsyncPolicy.INTERVAL;
+
+			Long intervalLng = (Long) spillConfig.get("fsync_interval");
+			long interval = intervalLng != null ? intervalLng.longValue() : 1000;
+
+			this.journal = SpillJournal.open(path, maxBytes, policy, interval);
+			// The replayer gets its own connection, transports aren't shared.
+			this.journal.startReplayer(newTransport(), this.breaker, 1000, collector);
+		}
+	}
+
+	/**
+	 * The kestrel server as host:port.
+	 */
+	public String getKestrelAddress() {
+
+		return workHost + ":" + workPort;
+	}
+
+	/**
+	 * Create a new connection to kestrel using the configured client, for
+	 * things that need a connection of their own.
+	 *
+	 * @return A new transport
+	 */
+	protected KestrelTransport newTransport() throws Exception {
+
+		HashMap<String,Object> config = kestrelConfig;
+
+		if(clientType.equals("native")) {
+			Long timeoutLng = (Long) config.get("kestrel_op_timeout");
+			long opTimeout = timeoutLng != null ? timeoutLng.longValue() : 5000;
+
+			Long depthLng = (Long) config.get("kestrel_pipeline_depth");
+			int depth = depthLng != null ? depthLng.intValue() : 16;
+
+			return new KestrelTextClient(workHost, workPort, opTimeout, depth, collector);
+		} else if(clientType.equals("thrift")) {
+			Long timeoutLng = (Long) config.get("kestrel_op_timeout");
+			int opTimeout = timeoutLng != null ? timeoutLng.intValue() : 5000;
+
+			Long batchLng = (Long) config.get("kestrel_put_batch_size");
+			int putBatch = batchLng != null ? batchLng.intValue() : 32;
+
+			return new KestrelThriftClient(workHost, workPort, opTimeout, putBatch, getAutoAbort());
+		} else if(clientType.equals("xmemcached")) {
 			// Give it a kestrel connection.
 			MemcachedClientBuilder builder = new XMemcachedClientBuilder(AddrUtil.getAddresses(workHost + ":" + workPort));
 			builder.setCommandFactory(new KestrelCommandFactory());
 			builder.setFailureMode(true);
 			builder.getTranscoder().setCompressionThreshold(1073741824);
-			client = builder.build();
-			client.setEnableHeartBeat(false);
-			client.setPrimitiveAsString(true);
+			MemcachedClient mc = builder.build();
+			mc.setEnableHeartBeat(false);
+			mc.setPrimitiveAsString(true);
+			return new XMemcachedTransport(mc);
+		}
+		throw new ConfigurationException("Unknown kestrel_client '" + clientType + "', expected xmemcached, native or thrift");
+	}
+
+	/**
+	 * @return Milliseconds kestrel holds an opened item before giving it to
+	 * someone else, 0 if it holds it until the connection goes away.
+	 */
+	protected int getAutoAbort() {
+
+		if(!"thrift".equals(clientType)) {
+			return 0;
 		}
+		Long abortLng = (Long) kestrelConfig.get("kestrel_auto_abort");
+		return abortLng != null ? abortLng.intValue() : 0;
+	}
+
+	/**
+	 * Work out how long the responses to a request should live in kestrel.
+	 * A request may ask for a response_ttl in seconds.  Otherwise, if it has
+	 * a process-by, nobody will be waiting for the responses much after that
+	 * so they expire response_ttl_grace seconds later.  Otherwise the
+	 * worker's response_ttl applies.
+	 *
+	 * @param request The request
+	 * @return Seconds, 0 for never
+	 */
+	protected int responseExpiryFor(HashMap<String,Object> request) {
+
+		Object ttl = request.get("response_ttl");
+		if(ttl instanceof Number && ((Number) ttl).intValue() > 0) {
+			return ((Number) ttl).intValue();
+		}
+
+		Object processBy = request.get("process-by");
+		if(processBy instanceof String) {
+			try {
+				long left = DateTime.parse((String) processBy).getMillis() - System.currentTimeMillis();
+				// Never 0, that would mean it never expires.
+				return Math.max(1, (int) (left / 1000) + responseTTLGrace);
+			} catch(Exception e) {
+				// The worker will complain about it, fall through to the default
+			}
+		}
+		return responseTTL;
+	}
+
+	/**
+	 * Set the expiry used by sendMessage for the request being handled.
+	 *
+	 * @param expiry Seconds, 0 for never
+	 */
+	protected void setResponseExpiry(int expiry) {
+
+		this.responseExpiry = expiry;
+	}
+
+	/**
+	 * Go back to the worker's response_ttl.
+	 */
+	protected void resetResponseExpiry() {
+
+		this.responseExpiry = responseTTL;
+	}
+
+	public int getResponseExpiry() {
+
+		return responseExpiry;
+	}
+
+	/**
+	 * Call before sending each message of a long stream.  Every check_every
+	 * calls this asks kestrel how big the queue is, and if it's over the
+	 * configured watermark waits for the client to catch up.
+	 *
+	 * @param queue The response queue
+	 * @return False if the queue stayed over the watermark for max_wait and
+	 * the stream should be given up on.
+	 */
+	protected boolean awaitResponseRoom(String queue) {
+
+		if(maxQueueItems <= 0 && maxQueueBytes <= 0) {
+			return true;
+		}
+		if(++sinceCheck < checkEvery) {
+			return true;
+		}
+		sinceCheck = 0;
+
+		long start = System.currentTimeMillis();
+		while(true) {
+			KestrelQueueInfo info;
+			try {
+				info = getTransport().getQueueInfo(queue);
+			} catch(Exception e) {
+				// Not knowing is no reason to stop.
+				logger.warn("Couldn't get the size of " + queue + " from kestrel", e);
+				return true;
+			}
+			long waited = System.currentTimeMillis() - start;
+			if(info == null
+				|| ((maxQueueItems <= 0 || info.getItems() <= maxQueueItems)
+					&& (maxQueueBytes <= 0 || info.getBytes() <= maxQueueBytes))) {
+				backpressurePaused += waited;
+				return true;
+			}
+			if(waited >= maxBackpressureWait) {
+				backpressurePaused += waited;
+				logger.warn("Response queue " + queue + " has " + info.getItems() + " items (" + info.getBytes() + " bytes) after waiting " + waited + "ms, giving up");
+				return false;
+			}
+			logger.debug("Response queue " + queue + " has " + info.getItems() + " items, waiting for the client to catch up");
+			pause(backpressurePoll);
+		}
+	}
+
+	/**
+	 * Start counting backpressure for a new request.
+	 */
+	protected void resetBackpressure() {
+
+		sinceCheck = 0;
+		backpressurePaused = 0;
+	}
+
+	/**
+	 * @return Milliseconds spent waiting on the response queue since the last reset
+	 */
+	public long getBackpressurePaused() {
+
+		return backpressurePaused;
 	}
 
 	/*
 	 * Convenience method that wraps kestrel.set so that network errors and
-	 * whatnot will get handled and responses will get sent.
+	 * whatnot will get handled and responses will get sent.  Failures are
+	 * retried with a jittered, growing delay.  If kestrel's circuit is open
+	 * we give up right away instead of sleeping through every retry.
+	 *
+	 * Items expire as set with setResponseExpiry.  Returns false if the
+	 * message was given up on, true if it was sent (or buffered, see
+	 * flushMessages) or spilled.
+	 */
+	protected boolean sendMessage(String queue, String message) {
+
+		return sendMessage(queue, message, responseExpiry);
+	}
+
+	/*
+	 * Send a message that kestrel drops after expiry seconds, 0 for never.
 	 */
-	protected void sendMessage(String queue, String message) {
+	protected boolean sendMessage(String queue, String message, int expiry) {
 
 		if(message == null) {
 			logger.warn("Ignoring empty response we were supposed to send to kestrel");
-			return;
+			return false;
+		}
+
+		// Keep things in order, nothing jumps ahead of the spill journal.
+		if(journal != null && journal.hasBacklog() && spill(queue, expiry, message)) {
+			return true;
 		}
 
+		Backoff backoff = newBackoff();
 		int retries = 0;
-		boolean notSent = true;
-		while(notSent) {
+		while(true) {
+			if(!getBreaker().allowRequest()) {
+				if(spill(queue, expiry, message)) {
+					return true;
+				}
+				logger.error("Abandoning response, circuit for kestrel " + getBreaker().getName() + " is open.");
+				logger.error("Response meant for '" + queue + "': " + message);
+				return false;
+			}
 			try {
-				this.client.set(queue, 0, message);
-				notSent = false;
+				if(getTransport().set(queue, expiry, message)) {
+					getBreaker().recordSuccess();
+				} else {
+					// Only buffered, flushMessages finds out how it went.
+					getBreaker().release();
+				}
+				return true;
 			} catch(MemcachedException e) {
 				logger.error("Error sending response to kestrel", e);
-				try { Thread.sleep(2000); } catch (InterruptedException ie) { logger.warn("Interrupted sleep"); }
+				getBreaker().recordFailure();
 			} catch(InterruptedException e) {
 				logger.error("Interrupted", e);
-				try { Thread.sleep(2000); } catch (InterruptedException ie) { logger.warn("Interrupted sleep"); }
+				getBreaker().release();
 			} catch(TimeoutException e) {
 				logger.error("Timed out sending response to complete response", e);
-				try { Thread.sleep(2000); } catch (InterruptedException ie) { logger.warn("Interrupted sleep"); }
+				getBreaker().recordFailure();
+			} catch(RuntimeException e) {
+				// Whatever broke, the send didn't happen.
+				logger.error("Error sending response to kestrel", e);
+				getBreaker().recordFailure();
 			}
-			if(retries >= 20) {
+			if(retries >= sendRetries) {
 				// We can't try forever.  We have to give up eventually.
-				logger.error("Abandoning response to kestrel, couldn't send after 20 tries.");
+				if(spill(queue, expiry, message)) {
+					return true;
+				}
+				logger.error("Abandoning response to kestrel, couldn't send after " + sendRetries + " tries.");
 				logger.error("Response meant for '" + queue + "': " + message);
-				notSent = false;
+				return false;
 			}
 			retries++;
+			try { Thread.sleep(backoff.nextDelay()); } catch (InterruptedException ie) { logger.warn("Interrupted sleep"); }
+		}
+	}
+
+	/**
+	 * Wait until kestrel has acknowledged every message sent so far, and tell
+	 * the breaker how it went.  Messages kestrel refused are spilled if there
+	 * is a journal.  Call this before confirming whatever the messages
+	 * answered.
+	 *
+	 * @return False if some messages were neither delivered nor spilled.
+	 */
+	protected boolean flushMessages() {
+
+		try {
+			getTransport().flush();
+			getBreaker().recordSuccess();
+			return true;
+		} catch(KestrelRefusedException e) {
+			logger.error(e.getMessage());
+			getBreaker().recordFailure();
+			boolean kept = true;
+			Iterator<KestrelRefusedException.Refused> refused = e.getItems().iterator();
+			while(refused.hasNext()) {
+				KestrelRefusedException.Refused item = refused.next();
+				if(!spill(item.getQueue(), item.getExpiry(), item.getMessage())) {
+					logger.error("Response meant for '" + item.getQueue() + "': " + item.getMessage());
+					kept = false;
+				}
+			}
+			return kept;
+		} catch(MemcachedException e) {
+			logger.error("Error flushing responses to kestrel", e);
+			getBreaker().recordFailure();
+		} catch(TimeoutException e) {
+			logger.error("Timed out flushing responses to kestrel", e);
+			getBreaker().recordFailure();
+		} catch(InterruptedException e) {
+			logger.error("Interrupted flushing responses to kestrel", e);
+			getBreaker().release();
+			Thread.currentThread().interrupt();
+		} catch(RuntimeException e) {
+			logger.error("Error flushing responses to kestrel", e);
+			getBreaker().recordFailure();
+		}
+		return false;
+	}
+
+	/*
+	 * Put an undeliverable message in the spill journal, if there is one.
+	 */
+	private boolean spill(String queue, int expiry, String message) {
+
+		if(journal == null) {
+			return false;
+		}
+		// The journal keeps when the item expires, not for how long.
+		int expiresAt = expiry > 0 ? (int) (System.currentTimeMillis() / 1000) + expiry : 0;
+		if(journal.append(queue, expiresAt, message)) {
+			logger.warn("Spilled response for '" + queue + "' to " + journal.getPath() + ", " + journal.getBacklogItems() + " items waiting");
+			return true;
 		}
+		logger.error("Spill journal " + journal.getPath() + " is full");
+		return false;
 	}
 }
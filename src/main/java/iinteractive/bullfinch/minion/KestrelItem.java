@@ -0,0 +1,28 @@
+package iinteractive.bullfinch.minion;
+
+/**
+ * An item opened from a queue.  The id is only meaningful to transports that
+ * can hold more than one open item, the text protocol leaves it at 0.
+ *
+ */
+public class KestrelItem {
+
+	private String data;
+	private long id;
+
+	public KestrelItem(String data, long id) {
+
+		this.data = data;
+		this.id = id;
+	}
+
+	public String getData() {
+
+		return data;
+	}
+
+	public long getId() {
+
+		return id;
+	}
+}
@@ -0,0 +1,33 @@
+package iinteractive.bullfinch.minion;
+
+/**
+ * What kestrel says about a queue.
+ *
+ */
+public class KestrelQueueInfo {
+
+	private long items;
+	private long bytes;
+
+	public KestrelQueueInfo(long items, long bytes) {
+
+		this.items = items;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @return Items waiting in the queue
+	 */
+	public long getItems() {
+
+		return items;
+	}
+
+	/**
+	 * @return Bytes of items waiting in the queue
+	 */
+	public long getBytes() {
+
+		return bytes;
+	}
+}
@@ -0,0 +1,62 @@
+package iinteractive.bullfinch.minion;
+
+import java.util.List;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+/**
+ * Thrown by a transport's flush() when kestrel answered but wouldn't take
+ * some of the items put since the last flush.  The items are handed back so
+ * the caller can spill them or give up on what they answered.
+ *
+ */
+public class KestrelRefusedException extends MemcachedException {
+
+	private List<Refused> items;
+
+	public KestrelRefusedException(String message, List<Refused> items) {
+
+		super(message);
+		this.items = items;
+	}
+
+	public List<Refused> getItems() {
+
+		return items;
+	}
+
+	/**
+	 * An item kestrel refused, and where it was going.
+	 */
+	public static class Refused {
+
+		private String queue;
+		private int expiry;
+		private String message;
+
+		public Refused(String queue, int expiry, String message) {
+
+			this.queue = queue;
+			this.expiry = expiry;
+			this.message = message;
+		}
+
+		public String getQueue() {
+
+			return queue;
+		}
+
+		/**
+		 * @return Seconds the item was to live in kestrel, 0 for ever
+		 */
+		public int getExpiry() {
+
+			return expiry;
+		}
+
+		public String getMessage() {
+
+			return message;
+		}
+	}
+}
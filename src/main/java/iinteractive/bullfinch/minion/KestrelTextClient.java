@@ -0,0 +1,712 @@
+package iinteractive.bullfinch.minion;
+
+import iinteractive.bullfinch.PerformanceCollector;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small non-blocking client for kestrel's text protocol.  It only knows
+ * the two commands Bullfinch uses, get and set, and is tuned for the way a
+ * minion uses them:
+ *
+ * - Sets are pipelined.  Up to pipelineDepth sets may be outstanding before
+ *   the caller has to wait for a STORED, so streaming a result set into a
+ *   response queue doesn't pay a round trip per row.  flush() waits for all
+ *   of them.  Sets that were written but not acknowledged when the
+ *   connection dropped are resent after reconnecting.  Sets kestrel
+ *   refuses are kept, and the next flush() hands them back in a
+ *   KestrelRefusedException.
+ * - Reads and writes go through direct ByteBuffers that are reused for the
+ *   life of the connection.
+ * - Values are decoded straight out of the read buffer, there is no
+ *   intermediate byte array.
+ * - Each operation type keeps count, error and latency counters.  Given a
+ *   PerformanceCollector, the mean and max latency and the errors since the
+ *   last report are added to it every REPORT_INTERVAL milliseconds, as
+ *   "Kestrel get latency", "Kestrel get max latency", "Kestrel get errors"
+ *   and the same for set.
+ *
+ * Like every transport, an instance is meant to be used by one minion.
+ *
+ */
+public class KestrelTextClient extends TextProtocolTransport {
+
+	static Logger logger = LoggerFactory.getLogger(KestrelTextClient.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long REPORT_INTERVAL = 10000;
+
+	private InetSocketAddress address;
+	private long opTimeout;
+	private int pipelineDepth;
+
+	private SocketChannel channel;
+	private Selector selector;
+	private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private ByteBuffer valueBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private CharsetEncoder encoder = UTF8.newEncoder();
+	private CharsetDecoder decoder = UTF8.newDecoder();
+
+	// Operations written to (or waiting to be written to) the socket, in the
+	// order kestrel will answer them.
+	private LinkedList<Operation> pending = new LinkedList<Operation>();
+	private int pendingSets = 0;
+
+	// Sets kestrel refused since the last flush.
+	private List<Operation> refused = new ArrayList<Operation>();
+
+	private OperationStats getStats = new OperationStats("get");
+	private OperationStats setStats = new OperationStats("set");
+
+	private PerformanceCollector collector;
+	private long lastReport = System.currentTimeMillis();
+
+	/**
+	 * Create a new client.  No connection is made until the first operation.
+	 *
+	 * @param host			Kestrel host
+	 * @param port			Kestrel port
+	 * @param opTimeout		Milliseconds to wait on a set or a flush
+	 * @param pipelineDepth	Number of unacknowledged sets allowed
+	 */
+	public KestrelTextClient(String host, int port, long opTimeout, int pipelineDepth) {
+
+		this(host, port, opTimeout, pipelineDepth, null);
+	}
+
+	/**
+	 * Create a new client that reports its latencies.
+	 *
+	 * @param host			Kestrel host
+	 * @param port			Kestrel port
+	 * @param opTimeout		Milliseconds to wait on a set or a flush
+	 * @param pipelineDepth	Number of unacknowledged sets allowed
+	 * @param collector		Where to report, may be null
+	 */
+	public KestrelTextClient(String host, int port, long opTimeout, int pipelineDepth, PerformanceCollector collector) {
+
+		this.collector = collector;
+		this.address = new InetSocketAddress(host, port);
+		this.opTimeout = opTimeout;
+		this.pipelineDepth = pipelineDepth < 1 ? 1 : pipelineDepth;
+		this.decoder.onMalformedInput(CodingErrorAction.REPLACE);
+		this.decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	@Override
+	public String get(String key, long timeout) throws TimeoutException, InterruptedException, MemcachedException {
+
+		if(timeout <= 0) {
+			timeout = this.opTimeout;
+		}
+		connect();
+
+		Operation op = new Operation(Operation.GET, key, null);
+		writeCommand("get " + key + "\r\n", null);
+		pending.add(op);
+		waitFor(op, timeout);
+
+		if(op.error != null) {
+			throw new MemcachedException(op.error);
+		}
+		return op.result;
+	}
+
+	@Override
+	public boolean set(String queue, int expiry, String value) throws TimeoutException, InterruptedException, MemcachedException {
+
+		connect();
+
+		Operation op = new Operation(Operation.SET, queue, value);
+		op.expiry = expiry;
+		writeSet(op);
+		pending.add(op);
+		pendingSets++;
+
+		try {
+			// Get it on the wire without waiting for the reply, and only wait
+			// if we've got too many sets in flight.
+			pump(0);
+			while(pendingSets > pipelineDepth) {
+				waitFor(firstPendingSet(), this.opTimeout);
+			}
+			if(pipelineDepth == 1) {
+				waitFor(op, this.opTimeout);
+			}
+		} catch(MemcachedException e) {
+			// The set we were handed is going to be retried by our caller,
+			// don't resend it on reconnect as well.
+			op.abandoned = true;
+			throw e;
+		} catch(TimeoutException e) {
+			op.abandoned = true;
+			throw e;
+		}
+
+		if(op.done && op.error != null) {
+			// Our caller hears about this one now.
+			refused.remove(op);
+			throw new MemcachedException(op.error);
+		}
+		return op.done;
+	}
+
+	@Override
+	protected Map<String,String> stats() throws TimeoutException, InterruptedException, MemcachedException {
+
+		connect();
+
+		Operation op = new Operation(Operation.STATS, "stats", null);
+		op.stats = new HashMap<String,String>();
+		writeCommand("stats\r\n", null);
+		pending.add(op);
+		waitFor(op, this.opTimeout);
+
+		if(op.error != null) {
+			throw new MemcachedException(op.error);
+		}
+		return op.stats;
+	}
+
+	@Override
+	public void flush() throws TimeoutException, InterruptedException, MemcachedException {
+
+		if(!pending.isEmpty()) {
+			// Reconnecting rebuilds pending, and may leave nothing to wait on.
+			connect();
+			if(!pending.isEmpty()) {
+				waitFor(pending.getLast(), this.opTimeout);
+			}
+		}
+		if(refused.isEmpty()) {
+			return;
+		}
+		List<KestrelRefusedException.Refused> items = new ArrayList<KestrelRefusedException.Refused>(refused.size());
+		for(int i = 0; i < refused.size(); i++) {
+			Operation op = refused.get(i);
+			items.add(new KestrelRefusedException.Refused(op.key, op.expiry, op.value));
+		}
+		String error = refused.get(0).error;
+		refused.clear();
+		throw new KestrelRefusedException("Kestrel refused " + items.size() + " items: " + error, items);
+	}
+
+	/**
+	 * Close the connection.  Unacknowledged sets are dropped.
+	 */
+	public void shutdown() {
+
+		if(!pending.isEmpty()) {
+			logger.warn("Shutting down with " + pending.size() + " unacknowledged operations");
+		}
+		if(!refused.isEmpty()) {
+			logger.warn("Shutting down with " + refused.size() + " refused sets nobody flushed");
+		}
+		pending.clear();
+		pendingSets = 0;
+		refused.clear();
+		disconnect();
+		logger.debug(getStats.toString());
+		logger.debug(setStats.toString());
+		report();
+	}
+
+	public OperationStats getGetStats() {
+
+		return getStats;
+	}
+
+	public OperationStats getSetStats() {
+
+		return setStats;
+	}
+
+	/*
+	 * Hand what's been seen since the last report to the collector.
+	 */
+	private void report() {
+
+		if(collector == null) {
+			return;
+		}
+		lastReport = System.currentTimeMillis();
+		getStats.report(collector);
+		setStats.report(collector);
+	}
+
+	private Operation firstPendingSet() {
+
+		Iterator<Operation> ops = pending.iterator();
+		while(ops.hasNext()) {
+			Operation op = ops.next();
+			if(op.type == Operation.SET) {
+				return op;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Connect if we aren't already, resending any sets that were lost with
+	 * the last connection.
+	 */
+	private void connect() throws MemcachedException {
+
+		if(channel != null && channel.isConnected()) {
+			return;
+		}
+
+		try {
+			selector = Selector.open();
+			channel = SocketChannel.open();
+			channel.socket().setTcpNoDelay(true);
+			channel.connect(address);
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch(IOException e) {
+			disconnect();
+			throw new MemcachedException("Couldn't connect to kestrel at " + address, e);
+		}
+		writeBuffer.clear();
+		readBuffer.clear();
+
+		// Anything still pending is either a get (which we've already given
+		// up on) or a set that was never acknowledged.  Resend the latter.
+		LinkedList<Operation> lost = pending;
+		pending = new LinkedList<Operation>();
+		pendingSets = 0;
+		Iterator<Operation> ops = lost.iterator();
+		while(ops.hasNext()) {
+			Operation op = ops.next();
+			if(op.type == Operation.SET && !op.done && !op.abandoned) {
+				writeSet(op);
+				pending.add(op);
+				pendingSets++;
+			}
+		}
+		if(pendingSets > 0) {
+			logger.info("Resending " + pendingSets + " unacknowledged sets after reconnecting");
+		}
+	}
+
+	private void disconnect() {
+
+		try {
+			if(channel != null) {
+				channel.close();
+			}
+			if(selector != null) {
+				selector.close();
+			}
+		} catch(IOException e) {
+			logger.warn("Error closing kestrel connection", e);
+		}
+		channel = null;
+		selector = null;
+	}
+
+	private void writeSet(Operation op) throws MemcachedException {
+
+		valueBuffer.clear();
+		valueBuffer = encode(op.value, valueBuffer);
+		valueBuffer.flip();
+		writeCommand("set " + op.key + " 0 " + op.expiry + " " + valueBuffer.remaining() + "\r\n", valueBuffer);
+		op.start = System.nanoTime();
+	}
+
+	/*
+	 * Append a command (and optionally its data block) to the write buffer.
+	 */
+	private void writeCommand(String command, ByteBuffer data) throws MemcachedException {
+
+		writeBuffer = encode(command, writeBuffer);
+		if(data != null) {
+			writeBuffer = ensureCapacity(writeBuffer, data.remaining() + 2);
+			writeBuffer.put(data);
+			writeBuffer = encode("\r\n", writeBuffer);
+		}
+	}
+
+	/*
+	 * Encode the string into the end of the buffer, growing it if need be.
+	 */
+	private ByteBuffer encode(String str, ByteBuffer buffer) throws MemcachedException {
+
+		try {
+			buffer = ensureCapacity(buffer, (int) (str.length() * encoder.maxBytesPerChar()));
+			encoder.reset();
+			encoder.encode(CharBuffer.wrap(str), buffer, true);
+			encoder.flush(buffer);
+			return buffer;
+		} catch(Exception e) {
+			throw new MemcachedException("Couldn't encode value", e);
+		}
+	}
+
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+
+		if(buffer.remaining() >= needed) {
+			return buffer;
+		}
+		int size = buffer.capacity();
+		while(size - buffer.position() < needed) {
+			size *= 2;
+		}
+		ByteBuffer bigger = ByteBuffer.allocateDirect(size);
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	/*
+	 * Pump the socket until the given operation (and therefore everything
+	 * before it) has been answered.
+	 */
+	private void waitFor(Operation op, long timeout) throws TimeoutException, InterruptedException, MemcachedException {
+
+		long deadline = System.currentTimeMillis() + timeout;
+		while(!op.done) {
+			if(Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0) {
+				op.abandoned = true;
+				throw new TimeoutException("Timed out waiting on kestrel " + op.describe());
+			}
+			pump(remaining);
+		}
+	}
+
+	/*
+	 * Write whatever we can and read whatever has arrived.  Waits at most
+	 * timeout milliseconds for the socket to become ready, 0 doesn't wait.
+	 */
+	private void pump(long timeout) throws MemcachedException {
+
+		try {
+			SelectionKey key = channel.keyFor(selector);
+			key.interestOps(writeBuffer.position() > 0
+				? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+				: SelectionKey.OP_READ);
+			if(timeout > 0) {
+				selector.select(timeout);
+			} else {
+				selector.selectNow();
+			}
+			selector.selectedKeys().clear();
+
+			if(writeBuffer.position() > 0) {
+				writeBuffer.flip();
+				channel.write(writeBuffer);
+				writeBuffer.compact();
+			}
+
+			int read = channel.read(readBuffer);
+			if(read < 0) {
+				throw new IOException("Kestrel closed the connection");
+			}
+			if(read > 0) {
+				parseResponses();
+			}
+		} catch(IOException e) {
+			disconnect();
+			failGets(e.getMessage());
+			throw new MemcachedException("Lost connection to kestrel", e);
+		}
+	}
+
+	/*
+	 * Gets (and stats) can't be retried behind the caller's back, fail them.
+	 */
+	private void failGets(String reason) {
+
+		Iterator<Operation> ops = pending.iterator();
+		while(ops.hasNext()) {
+			Operation op = ops.next();
+			if(op.type != Operation.SET) {
+				op.error = reason;
+				op.done = true;
+				ops.remove();
+			}
+		}
+	}
+
+	/*
+	 * Consume every complete response in the read buffer.
+	 */
+	private void parseResponses() throws IOException {
+
+		readBuffer.flip();
+		try {
+			while(!pending.isEmpty()) {
+				int start = readBuffer.position();
+				int eol = findEOL(readBuffer, start);
+				if(eol < 0) {
+					break;
+				}
+				String line = decode(readBuffer, start, eol - start);
+				Operation op = pending.getFirst();
+
+				if(op.type == Operation.STATS) {
+					// STAT <name> <value> lines until END
+					readBuffer.position(eol + 2);
+					if(line.startsWith("STAT ")) {
+						String[] stat = line.split(" ", 3);
+						op.stats.put(stat[1], stat.length > 2 ? stat[2] : "");
+						continue;
+					}
+					if(!line.equals("END")) {
+						op.error = line;
+					}
+				} else if(line.startsWith("VALUE ")) {
+					// VALUE <key> <flags> <bytes>
+					int bytes = Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+					int dataStart = eol + 2;
+					// data, \r\n, END\r\n
+					if(readBuffer.limit() - dataStart < bytes + 7) {
+						if(readBuffer.capacity() < bytes + line.length() + 16) {
+							readBuffer.position(start);
+							growReadBuffer(bytes + line.length() + 16);
+							return;
+						}
+						readBuffer.position(start);
+						break;
+					}
+					op.result = decode(readBuffer, dataStart, bytes);
+					readBuffer.position(dataStart + bytes + 7);
+				} else if(line.equals("END")) {
+					readBuffer.position(eol + 2);
+				} else if(line.equals("STORED")) {
+					readBuffer.position(eol + 2);
+				} else {
+					// ERROR, CLIENT_ERROR, SERVER_ERROR, NOT_STORED
+					op.error = line;
+					readBuffer.position(eol + 2);
+				}
+				complete(op);
+			}
+		} finally {
+			readBuffer.compact();
+		}
+	}
+
+	private void complete(Operation op) {
+
+		pending.removeFirst();
+		op.done = true;
+		long elapsed = System.nanoTime() - op.start;
+
+		if(op.type == Operation.SET) {
+			pendingSets--;
+			setStats.record(elapsed, op.error != null);
+			if(op.error != null) {
+				logger.warn("Kestrel refused item for '" + op.key + "': " + op.error);
+				refused.add(op);
+			}
+		} else {
+			getStats.record(elapsed, op.error != null);
+			if(op.abandoned && op.result != null && op.key.endsWith("/open")) {
+				// We gave up waiting, but kestrel handed us an item anyway.
+				// Give it back so another minion can have it.
+				String queue = op.key.substring(0, op.key.indexOf('/'));
+				logger.warn("Aborting item opened after timeout on " + queue);
+				try {
+					writeCommand("get " + queue + "/abort\r\n", null);
+					Operation abort = new Operation(Operation.GET, queue + "/abort", null);
+					abort.abandoned = true;
+					pending.add(abort);
+				} catch(MemcachedException e) {
+					logger.error("Couldn't abort item", e);
+				}
+			}
+		}
+		if(collector != null && System.currentTimeMillis() - lastReport >= REPORT_INTERVAL) {
+			report();
+		}
+	}
+
+	private void growReadBuffer(int needed) {
+
+		int size = readBuffer.capacity();
+		while(size < needed) {
+			size *= 2;
+		}
+		ByteBuffer bigger = ByteBuffer.allocateDirect(size);
+		bigger.put(readBuffer);
+		// parseResponses' finally compacts, so leave this in read mode.
+		bigger.flip();
+		readBuffer = bigger;
+	}
+
+	private static int findEOL(ByteBuffer buffer, int from) {
+
+		for(int i = from; i < buffer.limit() - 1; i++) {
+			if(buffer.get(i) == '\r' && buffer.get(i + 1) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/*
+	 * Decode a region of the (direct) read buffer without copying it out.
+	 */
+	private String decode(ByteBuffer buffer, int offset, int length) throws CharacterCodingException {
+
+		ByteBuffer region = buffer.duplicate();
+		region.limit(offset + length);
+		region.position(offset);
+		decoder.reset();
+		return decoder.decode(region).toString();
+	}
+
+	private static class Operation {
+
+		static final int GET = 0;
+		static final int SET = 1;
+		static final int STATS = 2;
+
+		int type;
+		String key;
+		String value;
+		int expiry = 0;
+		long start = System.nanoTime();
+		boolean done = false;
+		boolean abandoned = false;
+		String result;
+		String error;
+		HashMap<String,String> stats;
+
+		Operation(int type, String key, String value) {
+
+			this.type = type;
+			this.key = key;
+			this.value = value;
+		}
+
+		String describe() {
+
+			if(type == STATS) {
+				return key;
+			}
+			return (type == GET ? "get " : "set ") + key;
+		}
+	}
+
+	/**
+	 * Counters for one kind of operation.
+	 */
+	public static class OperationStats {
+
+		private String name;
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong errors = new AtomicLong();
+		private AtomicLong totalNanos = new AtomicLong();
+		private AtomicLong maxNanos = new AtomicLong();
+
+		// Since the last report.
+		private long reportedCount = 0;
+		private long reportedErrors = 0;
+		private long reportedNanos = 0;
+		private AtomicLong windowMaxNanos = new AtomicLong();
+
+		public OperationStats(String name) {
+
+			this.name = name;
+		}
+
+		void record(long nanos, boolean failed) {
+
+			count.incrementAndGet();
+			if(failed) {
+				errors.incrementAndGet();
+			}
+			totalNanos.addAndGet(nanos);
+			raise(maxNanos, nanos);
+			raise(windowMaxNanos, nanos);
+		}
+
+		private static void raise(AtomicLong max, long nanos) {
+
+			long current = max.get();
+			while(nanos > current && !max.compareAndSet(current, nanos)) {
+				current = max.get();
+			}
+		}
+
+		/*
+		 * Add the mean and max latency and the errors since the last report
+		 * to the collector, if there were any operations.
+		 */
+		synchronized void report(PerformanceCollector collector) {
+
+			long c = count.get();
+			long e = errors.get();
+			long t = totalNanos.get();
+			long max = windowMaxNanos.getAndSet(0);
+			if(c > reportedCount) {
+				collector.add("Kestrel " + name + " latency", (t - reportedNanos) / (c - reportedCount) / 1000000, null);
+				collector.add("Kestrel " + name + " max latency", max / 1000000, null);
+				collector.add("Kestrel " + name + " errors", e - reportedErrors, null);
+			}
+			reportedCount = c;
+			reportedErrors = e;
+			reportedNanos = t;
+		}
+
+		public long getCount() {
+
+			return count.get();
+		}
+
+		public long getErrors() {
+
+			return errors.get();
+		}
+
+		public double getMeanMillis() {
+
+			long c = count.get();
+			return c == 0 ? 0 : (totalNanos.get() / (double) c) / 1000000;
+		}
+
+		public double getMaxMillis() {
+
+			return maxNanos.get() / 1000000.0;
+		}
+
+		@Override
+		public String toString() {
+
+			return name + ": " + getCount() + " ops, " + getErrors() + " errors, "
+				+ getMeanMillis() + "ms mean, " + getMaxMillis() + "ms max";
+		}
+	}
+}
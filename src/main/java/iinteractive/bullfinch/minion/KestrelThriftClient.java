@@ -0,0 +1,438 @@
+package iinteractive.bullfinch.minion;
+
+import iinteractive.bullfinch.util.ThriftBinaryProtocol;
+import iinteractive.bullfinch.util.ThriftBinaryProtocol.Reader;
+import iinteractive.bullfinch.util.ThriftBinaryProtocol.Writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client for kestrel's thrift service (framed transport, binary protocol,
+ * port 2229 by default).  Unlike the text protocol it can open many items
+ * with one get, confirm them with one call and put many items at once:
+ *
+ * - open() fetches up to maxItems items in one call.
+ * - confirm() confirms all of them in one call.
+ * - set() buffers items per queue and puts them putBatchSize at a time, or
+ *   when flush() is called.  Items a put didn't store are handed back by
+ *   the next flush() in a KestrelRefusedException.
+ *
+ * Connection and protocol problems are reported as MemcachedExceptions so
+ * that minions handle every transport alike.
+ *
+ */
+public class KestrelThriftClient implements KestrelTransport {
+
+	static Logger logger = LoggerFactory.getLogger(KestrelThriftClient.class);
+
+	private InetSocketAddress address;
+	private int opTimeout;
+	private int putBatchSize;
+	private int autoAbort;
+
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+	private int seqId = 0;
+
+	// Items waiting to be put, keyed by queue and expiry
+	private LinkedHashMap<String,List<byte[]>> putBuffers = new LinkedHashMap<String,List<byte[]>>();
+	// Items kestrel didn't store since the last flush
+	private List<KestrelRefusedException.Refused> refused = new ArrayList<KestrelRefusedException.Refused>();
+	// Ids opened through the text style get("queue/open") interface
+	private LinkedHashMap<String,Long> openIds = new LinkedHashMap<String,Long>();
+
+	/**
+	 * Create a new client.  No connection is made until the first call.
+	 *
+	 * @param host			Kestrel host
+	 * @param port			Kestrel thrift port
+	 * @param opTimeout		Milliseconds to wait on a call, on top of any get timeout
+	 * @param putBatchSize	Number of items to buffer per queue before putting them
+	 * @param autoAbort		Milliseconds kestrel waits for a confirm before
+	 * 						handing opened items to someone else, 0 for never
+	 */
+	public KestrelThriftClient(String host, int port, int opTimeout, int putBatchSize, int autoAbort) {
+
+		this.address = new InetSocketAddress(host, port);
+		this.opTimeout = opTimeout;
+		this.putBatchSize = putBatchSize < 1 ? 1 : putBatchSize;
+		this.autoAbort = autoAbort;
+	}
+
+	/**
+	 * Text protocol style get, for callers that don't know about open and
+	 * confirm.  Supports the /open, /close, /abort and /t= suffixes.
+	 */
+	@Override
+	public String get(String key, long timeout) throws TimeoutException, InterruptedException, MemcachedException {
+
+		String[] parts = key.split("/");
+		String queue = parts[0];
+		boolean open = false;
+		int wait = 0;
+		for(int i = 1; i < parts.length; i++) {
+			if(parts[i].equals("open")) {
+				open = true;
+			} else if(parts[i].equals("close")) {
+				Long id = openIds.remove(queue);
+				if(id != null) {
+					idCall("confirm", queue, id);
+				}
+				return null;
+			} else if(parts[i].equals("abort")) {
+				Long id = openIds.remove(queue);
+				if(id != null) {
+					idCall("abort", queue, id);
+				}
+				return null;
+			} else if(parts[i].startsWith("t=")) {
+				wait = Integer.parseInt(parts[i].substring(2));
+			}
+		}
+
+		// Without an open, ask kestrel to confirm right away.
+		List<KestrelItem> items = fetch(queue, 1, wait, open ? autoAbort : 0, !open);
+		if(items.isEmpty()) {
+			return null;
+		}
+		if(open) {
+			openIds.put(queue, new Long(items.get(0).getId()));
+		}
+		return items.get(0).getData();
+	}
+
+	@Override
+	public boolean set(String queue, int expiry, String value) throws TimeoutException, InterruptedException, MemcachedException {
+
+		String bufferKey = expiry + "/" + queue;
+		List<byte[]> buffer = putBuffers.get(bufferKey);
+		if(buffer == null) {
+			buffer = new ArrayList<byte[]>(putBatchSize);
+			putBuffers.put(bufferKey, buffer);
+		}
+		try {
+			buffer.add(value.getBytes("UTF-8"));
+		} catch(IOException e) {
+			throw new MemcachedException("Couldn't encode item", e);
+		}
+
+		if(buffer.size() >= putBatchSize) {
+			try {
+				put(queue, expiry, buffer);
+			} catch(MemcachedException e) {
+				// Our caller will retry this item, the rest go out on the
+				// next put or flush.
+				buffer.remove(buffer.size() - 1);
+				throw e;
+			} catch(TimeoutException e) {
+				buffer.remove(buffer.size() - 1);
+				throw e;
+			}
+			putBuffers.remove(bufferKey);
+			// Put, but flush has to tell our caller about anything refused.
+			return refused.isEmpty();
+		}
+		return false;
+	}
+
+	@Override
+	public void flush() throws TimeoutException, InterruptedException, MemcachedException {
+
+		Iterator<String> keys = putBuffers.keySet().iterator();
+		while(keys.hasNext()) {
+			String bufferKey = keys.next();
+			int slash = bufferKey.indexOf('/');
+			put(bufferKey.substring(slash + 1), Integer.parseInt(bufferKey.substring(0, slash)), putBuffers.get(bufferKey));
+			keys.remove();
+		}
+		if(!refused.isEmpty()) {
+			List<KestrelRefusedException.Refused> items = refused;
+			refused = new ArrayList<KestrelRefusedException.Refused>();
+			throw new KestrelRefusedException("Kestrel didn't store " + items.size() + " items", items);
+		}
+	}
+
+	@Override
+	public List<KestrelItem> open(String queue, int maxItems, int timeout) throws TimeoutException, InterruptedException, MemcachedException {
+
+		return fetch(queue, maxItems, timeout, autoAbort, false);
+	}
+
+	@Override
+	public void confirm(String queue, List<KestrelItem> items) throws TimeoutException, InterruptedException, MemcachedException {
+
+		if(items.isEmpty()) {
+			return;
+		}
+		idCall("confirm", queue, ids(items));
+	}
+
+	@Override
+	public void abort(String queue, List<KestrelItem> items) throws TimeoutException, InterruptedException, MemcachedException {
+
+		if(items.isEmpty()) {
+			return;
+		}
+		idCall("abort", queue, ids(items));
+	}
+
+	/**
+	 * Close the connection.
+	 */
+	public void shutdown() {
+
+		disconnect();
+	}
+
+	/*
+	 * put(1: string queue_name, 2: list<binary> items, 3: i32 expiration_msec) returns i32
+	 */
+	private void put(String queue, int expiry, List<byte[]> items) throws TimeoutException, MemcachedException {
+
+		if(items.isEmpty()) {
+			return;
+		}
+		try {
+			Writer w = begin("put");
+			w.writeFieldBegin(ThriftBinaryProtocol.STRING, 1).writeString(queue);
+			w.writeFieldBegin(ThriftBinaryProtocol.LIST, 2).writeListBegin(ThriftBinaryProtocol.STRING, items.size());
+			Iterator<byte[]> iter = items.iterator();
+			while(iter.hasNext()) {
+				w.writeBinary(iter.next());
+			}
+			w.writeFieldBegin(ThriftBinaryProtocol.I32, 3).writeI32(expiry * 1000);
+			w.writeFieldStop();
+
+			Reader r = call(w, "put", 0);
+			int stored = items.size();
+			while(r.readFieldBegin()) {
+				if(r.fieldId == 0 && r.fieldType == ThriftBinaryProtocol.I32) {
+					stored = r.readI32();
+				} else {
+					r.skip(r.fieldType);
+				}
+			}
+			if(stored < items.size()) {
+				logger.warn("Kestrel only accepted " + stored + " of " + items.size() + " items for '" + queue + "'");
+				for(int i = stored; i < items.size(); i++) {
+					refused.add(new KestrelRefusedException.Refused(queue, expiry, new String(items.get(i), "UTF-8")));
+				}
+			}
+		} catch(SocketTimeoutException e) {
+			disconnect();
+			throw new TimeoutException("Timed out putting items into " + queue);
+		} catch(IOException e) {
+			disconnect();
+			throw new MemcachedException("Error putting items into kestrel", e);
+		}
+	}
+
+	/*
+	 * get(1: string queue_name, 2: i32 max_items, 3: i32 timeout_msec, 4: i32 auto_abort_msec) returns list<Item>
+	 *
+	 * When confirmNow is set the items are confirmed as soon as they arrive.
+	 */
+	private List<KestrelItem> fetch(String queue, int maxItems, int timeout, int abortMsec, boolean confirmNow) throws TimeoutException, MemcachedException {
+
+		List<KestrelItem> items = new ArrayList<KestrelItem>();
+		try {
+			Writer w = begin("get");
+			w.writeFieldBegin(ThriftBinaryProtocol.STRING, 1).writeString(queue);
+			w.writeFieldBegin(ThriftBinaryProtocol.I32, 2).writeI32(maxItems);
+			w.writeFieldBegin(ThriftBinaryProtocol.I32, 3).writeI32(timeout);
+			w.writeFieldBegin(ThriftBinaryProtocol.I32, 4).writeI32(abortMsec);
+			w.writeFieldStop();
+
+			Reader r = call(w, "get", timeout);
+			while(r.readFieldBegin()) {
+				if(r.fieldId == 0 && r.fieldType == ThriftBinaryProtocol.LIST) {
+					int size = r.readListBegin();
+					for(int i = 0; i < size; i++) {
+						// Item { 1: binary data, 2: i64 id }
+						String data = null;
+						long id = 0;
+						while(r.readFieldBegin()) {
+							if(r.fieldId == 1) {
+								data = r.readString();
+							} else if(r.fieldId == 2) {
+								id = r.readI64();
+							} else {
+								r.skip(r.fieldType);
+							}
+						}
+						items.add(new KestrelItem(data, id));
+					}
+				} else {
+					r.skip(r.fieldType);
+				}
+			}
+		} catch(SocketTimeoutException e) {
+			disconnect();
+			throw new TimeoutException("Timed out getting items from " + queue);
+		} catch(IOException e) {
+			disconnect();
+			throw new MemcachedException("Error getting items from kestrel", e);
+		}
+
+		if(confirmNow && !items.isEmpty()) {
+			idCall("confirm", queue, ids(items));
+		}
+		return items;
+	}
+
+	/*
+	 * confirm/abort(1: string queue_name, 2: set<i64> ids) returns i32
+	 */
+	private void idCall(String method, String queue, long... ids) throws TimeoutException, MemcachedException {
+
+		try {
+			Writer w = begin(method);
+			w.writeFieldBegin(ThriftBinaryProtocol.STRING, 1).writeString(queue);
+			w.writeFieldBegin(ThriftBinaryProtocol.SET, 2).writeListBegin(ThriftBinaryProtocol.I64, ids.length);
+			for(int i = 0; i < ids.length; i++) {
+				w.writeI64(ids[i]);
+			}
+			w.writeFieldStop();
+
+			Reader r = call(w, method, 0);
+			while(r.readFieldBegin()) {
+				r.skip(r.fieldType);
+			}
+		} catch(SocketTimeoutException e) {
+			disconnect();
+			throw new TimeoutException("Timed out calling " + method + " on " + queue);
+		} catch(IOException e) {
+			disconnect();
+			throw new MemcachedException("Error calling " + method + " on kestrel", e);
+		}
+	}
+
+	/*
+	 * peek(1: string queue_name) returns QueueInfo
+	 *
+	 * QueueInfo { 1: optional binary head_item, 2: i64 items, 3: i64 bytes,
+	 *   4: i64 journal_bytes, 5: i64 age, 6: i32 waiters, 7: i32 open_transactions }
+	 */
+	@Override
+	public KestrelQueueInfo getQueueInfo(String queue) throws TimeoutException, InterruptedException, MemcachedException {
+
+		try {
+			Writer w = begin("peek");
+			w.writeFieldBegin(ThriftBinaryProtocol.STRING, 1).writeString(queue);
+			w.writeFieldStop();
+
+			Reader r = call(w, "peek", 0);
+			KestrelQueueInfo info = null;
+			while(r.readFieldBegin()) {
+				if(r.fieldId == 0 && r.fieldType == ThriftBinaryProtocol.STRUCT) {
+					long items = 0;
+					long bytes = 0;
+					while(r.readFieldBegin()) {
+						if(r.fieldId == 2) {
+							items = r.readI64();
+						} else if(r.fieldId == 3) {
+							bytes = r.readI64();
+						} else {
+							r.skip(r.fieldType);
+						}
+					}
+					info = new KestrelQueueInfo(items, bytes);
+				} else {
+					r.skip(r.fieldType);
+				}
+			}
+			return info;
+		} catch(SocketTimeoutException e) {
+			disconnect();
+			throw new TimeoutException("Timed out peeking at " + queue);
+		} catch(IOException e) {
+			disconnect();
+			throw new MemcachedException("Error peeking at kestrel queue " + queue, e);
+		}
+	}
+
+	private static long[] ids(List<KestrelItem> items) {
+
+		long[] ids = new long[items.size()];
+		for(int i = 0; i < ids.length; i++) {
+			ids[i] = items.get(i).getId();
+		}
+		return ids;
+	}
+
+	private Writer begin(String method) throws IOException {
+
+		Writer w = new Writer();
+		w.writeMessageBegin(method, ThriftBinaryProtocol.CALL, ++seqId);
+		// The args struct starts right away, fields follow.
+		return w;
+	}
+
+	/*
+	 * Send the call and read the reply up to the start of the result struct.
+	 */
+	private Reader call(Writer w, String method, int extraTimeout) throws IOException, MemcachedException {
+
+		connect();
+		socket.setSoTimeout(opTimeout + extraTimeout);
+		w.writeFrame(out);
+
+		Reader r = ThriftBinaryProtocol.readFrame(in);
+		r.readMessageBegin();
+		if(r.messageType == ThriftBinaryProtocol.EXCEPTION) {
+			throw new MemcachedException("Kestrel " + method + " failed: " + r.readException());
+		}
+		if(r.seqId != seqId || !method.equals(r.messageName)) {
+			disconnect();
+			throw new MemcachedException("Out of order reply from kestrel to " + method);
+		}
+		return r;
+	}
+
+	private void connect() throws MemcachedException {
+
+		if(socket != null) {
+			return;
+		}
+		try {
+			socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.connect(address, opTimeout);
+			in = new BufferedInputStream(socket.getInputStream());
+			out = new BufferedOutputStream(socket.getOutputStream());
+		} catch(IOException e) {
+			disconnect();
+			throw new MemcachedException("Couldn't connect to kestrel at " + address, e);
+		}
+	}
+
+	private void disconnect() {
+
+		if(socket != null) {
+			try { socket.close(); } catch(IOException e) { logger.warn("Error closing kestrel connection", e); }
+		}
+		socket = null;
+		in = null;
+		out = null;
+		// Kestrel aborts anything left open on a closed connection.
+		openIds.clear();
+	}
+}
@@ -0,0 +1,83 @@
+package iinteractive.bullfinch.minion;
+
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+/**
+ * The handful of kestrel operations Bullfinch actually uses.  KestrelBased
+ * talks to kestrel through one of these so that the underlying client can be
+ * chosen in the configuration.
+ *
+ * Implementations are not expected to be thread safe; each minion owns its
+ * own transport.
+ *
+ */
+public interface KestrelTransport {
+
+	/**
+	 * Get an item from kestrel.  The key may carry kestrel's usual suffixes
+	 * (/open, /close, /abort, /t=).
+	 *
+	 * @param key		The queue name, with any suffixes
+	 * @param timeout	Milliseconds to wait for a reply
+	 * @return The item, or null if the queue was empty.
+	 */
+	public String get(String key, long timeout) throws TimeoutException, InterruptedException, MemcachedException;
+
+	/**
+	 * Put an item into a queue.
+	 *
+	 * @param queue		The name of the queue
+	 * @param expiry	Expiration of the item in seconds, 0 for none
+	 * @param value		The item
+	 * @return True if kestrel acknowledged the item, false if the transport
+	 * only buffered it and flush() will say how it went.
+	 */
+	public boolean set(String queue, int expiry, String value) throws TimeoutException, InterruptedException, MemcachedException;
+
+	/**
+	 * Wait until every buffered operation has been acknowledged by kestrel.
+	 * Transports that don't pipeline can return immediately.  If kestrel
+	 * refused any of the items set since the last flush they are handed back
+	 * in a KestrelRefusedException.
+	 */
+	public void flush() throws TimeoutException, InterruptedException, MemcachedException;
+
+	/**
+	 * Open (reliably read) up to maxItems items from a queue.  Transports
+	 * that can only hold one open item per connection return at most one.
+	 *
+	 * @param queue		The name of the queue
+	 * @param maxItems	The most items to open
+	 * @param timeout	Milliseconds to wait for the first item
+	 * @return The items, which may be empty.
+	 */
+	public List<KestrelItem> open(String queue, int maxItems, int timeout) throws TimeoutException, InterruptedException, MemcachedException;
+
+	/**
+	 * Confirm items previously opened from a queue, removing them for good.
+	 *
+	 * @param queue		The name of the queue
+	 * @param items		The items returned by open
+	 */
+	public void confirm(String queue, List<KestrelItem> items) throws TimeoutException, InterruptedException, MemcachedException;
+
+	/**
+	 * Abort items previously opened from a queue, putting them back at the
+	 * head of the queue for someone else to try.
+	 *
+	 * @param queue		The name of the queue
+	 * @param items		The items returned by open
+	 */
+	public void abort(String queue, List<KestrelItem> items) throws TimeoutException, InterruptedException, MemcachedException;
+
+	/**
+	 * Ask kestrel how big a queue is.
+	 *
+	 * @param queue		The name of the queue
+	 * @return The queue's size, or null if kestrel doesn't know the queue.
+	 */
+	public KestrelQueueInfo getQueueInfo(String queue) throws TimeoutException, InterruptedException, MemcachedException;
+}
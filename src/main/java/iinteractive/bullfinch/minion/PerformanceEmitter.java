@@ -63,13 +63,17 @@ public class PerformanceEmitter extends KestrelBased {
 					logger.debug("Got tick from collector:\n" + item);
 
 					// Put the item in the queue
-					this.client.set(this.queueName, 0, item);
+					getTransport().set(this.queueName, 0, item);
 					// Try and get another item
 					count++;
 					item = collector.poll();
 				}
 				if(count > 0) {
 					logger.debug("Removed " + count + " items from the queue.");
+					// Transports may buffer sets, don't leave ticks sitting there.
+					if(!flushMessages()) {
+						logger.warn("Couldn't deliver every tick to kestrel");
+					}
 				}
 			}
 		} catch(Exception e) {
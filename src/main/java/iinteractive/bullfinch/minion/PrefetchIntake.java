@@ -0,0 +1,318 @@
+package iinteractive.bullfinch.minion;
+
+import iinteractive.bullfinch.util.Backoff;
+import iinteractive.bullfinch.util.CircuitBreaker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps items open ahead of the minions that handle them, so that a busy
+ * queue never sits idle while a minion waits on kestrel.
+ *
+ * Each of up to K fetcher threads has its own connection and holds one item
+ * open on it.  Items go into a buffer that minions take from.  When a minion
+ * is done with an item it says so and the fetcher that opened the item
+ * confirms (or aborts) it on the same connection, then opens the next one.
+ *
+ * The number of active fetchers adapts to the queue: it goes up while
+ * minions are left waiting on an empty buffer, and down each time a fetcher
+ * finds the queue empty.
+ *
+ * Intakes are shared by every minion on the same kestrel and queue.
+ *
+ */
+public class PrefetchIntake {
+
+	static Logger logger = LoggerFactory.getLogger(PrefetchIntake.class);
+
+	private static HashMap<String,PrefetchIntake> intakes = new HashMap<String,PrefetchIntake>();
+
+	private String key;
+	private String queue;
+	private int timeout;
+	private int autoAbort;
+	private int minDepth;
+	private volatile int depth;
+	private CircuitBreaker breaker;
+	private Backoff backoff;
+
+	private LinkedBlockingQueue<Prefetched> buffer = new LinkedBlockingQueue<Prefetched>();
+	private AtomicInteger waiting = new AtomicInteger(0);
+	private List<Thread> fetchers = new ArrayList<Thread>();
+	private volatile boolean running = true;
+	private int users = 0;
+
+	/**
+	 * Get the intake for a queue, starting it if need be.  Each call must be
+	 * matched by a call to release.
+	 *
+	 * @param minion	The minion asking, used to make connections
+	 * @param queue		The queue to prefetch from
+	 * @param timeout	Milliseconds a fetcher waits for an item
+	 * @param minDepth	Fewest fetchers to keep active
+	 * @param maxDepth	Most fetchers, and connections
+	 * @return The intake
+	 */
+	public static synchronized PrefetchIntake get(KestrelBased minion, String queue, int timeout, int minDepth, int maxDepth) throws Exception {
+
+		String key = minion.getKestrelAddress() + "/" + queue;
+		PrefetchIntake intake = intakes.get(key);
+		if(intake == null) {
+			List<KestrelTransport> transports = new ArrayList<KestrelTransport>(maxDepth);
+			for(int i = 0; i < maxDepth; i++) {
+				transports.add(minion.newTransport());
+			}
+			intake = new PrefetchIntake(key, queue, timeout, minion.getAutoAbort(), minDepth, transports, minion.getBreaker(), minion.newBackoff());
+			intakes.put(key, intake);
+		}
+		intake.users++;
+		return intake;
+	}
+
+	/**
+	 * Give up an intake.  The last user to release it stops it.
+	 */
+	public void release() {
+
+		synchronized(PrefetchIntake.class) {
+			users--;
+			if(users > 0) {
+				return;
+			}
+			intakes.remove(key);
+		}
+		shutdown();
+	}
+
+	PrefetchIntake(String key, String queue, int timeout, int autoAbort, int minDepth, List<KestrelTransport> transports, CircuitBreaker breaker, Backoff backoff) {
+
+		this.key = key;
+		this.queue = queue;
+		this.timeout = timeout;
+		this.autoAbort = autoAbort;
+		this.minDepth = Math.max(1, Math.min(minDepth, transports.size()));
+		this.depth = this.minDepth;
+		this.breaker = breaker;
+		this.backoff = backoff;
+
+		for(int i = 0; i < transports.size(); i++) {
+			Thread fetcher = new Thread(new Fetcher(i, transports.get(i)), "prefetch-" + queue + "-" + i);
+			fetcher.setDaemon(true);
+			fetchers.add(fetcher);
+			fetcher.start();
+		}
+	}
+
+	/**
+	 * Take an item, waiting for one if the buffer is empty.
+	 *
+	 * @param wait	Milliseconds to wait
+	 * @return The item, or null if none came along.
+	 */
+	public Prefetched take(long wait) throws InterruptedException {
+
+		waiting.incrementAndGet();
+		try {
+			return buffer.poll(wait, TimeUnit.MILLISECONDS);
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	public String getQueue() {
+
+		return queue;
+	}
+
+	/**
+	 * The number of fetchers currently active.
+	 */
+	public int getDepth() {
+
+		return depth;
+	}
+
+	public int getBuffered() {
+
+		return buffer.size();
+	}
+
+	private void shutdown() {
+
+		running = false;
+		for(int i = 0; i < fetchers.size(); i++) {
+			fetchers.get(i).interrupt();
+		}
+	}
+
+	private synchronized void grow() {
+
+		if(depth < fetchers.size()) {
+			depth++;
+			logger.debug("Prefetch depth for " + queue + " up to " + depth);
+		}
+	}
+
+	private synchronized void shrink() {
+
+		if(depth > minDepth) {
+			depth--;
+			logger.debug("Prefetch depth for " + queue + " down to " + depth);
+		}
+	}
+
+	/*
+	 * Opens items one at a time on its own connection.
+	 */
+	private class Fetcher implements Runnable {
+
+		private int index;
+		private KestrelTransport transport;
+
+		Fetcher(int index, KestrelTransport transport) {
+
+			this.index = index;
+			this.transport = transport;
+		}
+
+		public void run() {
+
+			while(running) {
+				try {
+					if(index >= depth || !breaker.allowRequest()) {
+						Thread.sleep(Math.max(50, breaker.getRetryDelay()));
+						continue;
+					}
+
+					List<KestrelItem> items = transport.open(queue, 1, timeout);
+					breaker.recordSuccess();
+					synchronized(backoff) { backoff.reset(); }
+					if(items.isEmpty()) {
+						shrink();
+						continue;
+					}
+
+					Prefetched p = new Prefetched(items.get(0));
+					buffer.put(p);
+					// Minions are still waiting with our item in the buffer,
+					// another fetcher wouldn't hurt.
+					if(waiting.get() > 0) {
+						grow();
+					}
+
+					try {
+						finish(p, items);
+					} catch(InterruptedException e) {
+						// Shutting down.  An item no minion took can go back,
+						// one a minion has is still the minion's to finish.
+						if(buffer.remove(p)) {
+							transport.abort(queue, items);
+						} else {
+							finish(p, items);
+						}
+						return;
+					}
+				} catch(InterruptedException e) {
+					return;
+				} catch(TimeoutException e) {
+					// An empty queue isn't a failure.
+					breaker.recordSuccess();
+					shrink();
+				} catch(MemcachedException e) {
+					logger.error("Error prefetching from " + queue, e);
+					breaker.recordFailure();
+					long delay;
+					synchronized(backoff) { delay = backoff.nextDelay(); }
+					try { Thread.sleep(delay); } catch(InterruptedException ie) { return; }
+				} catch(RuntimeException e) {
+					logger.error("Error prefetching from " + queue, e);
+					breaker.recordFailure();
+					long delay;
+					synchronized(backoff) { delay = backoff.nextDelay(); }
+					try { Thread.sleep(delay); } catch(InterruptedException ie) { return; }
+				}
+			}
+		}
+
+		/*
+		 * Wait for a minion to be done with the item, then confirm or abort
+		 * it.  There's no point waiting longer than kestrel holds it for us.
+		 */
+		private void finish(Prefetched p, List<KestrelItem> items) throws InterruptedException, MemcachedException, TimeoutException {
+
+			if(!p.await(autoAbort)) {
+				// Whoever has it, kestrel has handed it on by now.
+				if(!buffer.remove(p)) {
+					logger.warn("Prefetched item from " + queue + " wasn't done within " + autoAbort + "ms, kestrel has given it to someone else");
+				}
+				return;
+			}
+			if(p.isConfirmed()) {
+				transport.confirm(queue, items);
+			} else {
+				transport.abort(queue, items);
+			}
+		}
+	}
+
+	/**
+	 * An item taken from the buffer.  Call done exactly once.
+	 */
+	public static class Prefetched {
+
+		private KestrelItem item;
+		private CountDownLatch latch = new CountDownLatch(1);
+		private volatile boolean confirm;
+
+		Prefetched(KestrelItem item) {
+
+			this.item = item;
+		}
+
+		public KestrelItem getItem() {
+
+			return item;
+		}
+
+		/**
+		 * Hand the item back to the fetcher that opened it.
+		 *
+		 * @param confirm	True to confirm it, false to abort it
+		 */
+		public void done(boolean confirm) {
+
+			this.confirm = confirm;
+			latch.countDown();
+		}
+
+		/*
+		 * Wait for done, at most millis unless that's 0.  Returns false if
+		 * it didn't come.
+		 */
+		boolean await(long millis) throws InterruptedException {
+
+			if(millis <= 0) {
+				latch.await();
+				return true;
+			}
+			return latch.await(millis, TimeUnit.MILLISECONDS);
+		}
+
+		boolean isConfirmed() {
+
+			return confirm;
+		}
+	}
+}
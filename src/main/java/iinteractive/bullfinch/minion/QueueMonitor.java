@@ -3,14 +3,27 @@ package iinteractive.bullfinch.minion;
 import iinteractive.bullfinch.ConfigurationException;
 import iinteractive.bullfinch.PerformanceCollector;
 import iinteractive.bullfinch.ProcessTimeoutException;
+import iinteractive.bullfinch.minion.QueueSchedule.Subscription;
+import iinteractive.bullfinch.util.Backoff;
+import iinteractive.bullfinch.util.DedupeCache;
+import iinteractive.bullfinch.util.LatencyEstimator;
 import iinteractive.bullfinch.util.RequestWithResponseParser;
+import iinteractive.bullfinch.util.TenantLimiter;
 
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
 import net.rubyeye.xmemcached.exception.MemcachedException;
 
+import org.joda.time.DateTime;
 import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -19,6 +32,21 @@ import org.slf4j.LoggerFactory;
  * kestrel queues for message processing.  It wraps the get/process/confirm
  * loop.
  *
+ * A minion can subscribe to several queues, each with a weight.  They are
+ * polled without waiting, in weighted order, and queues that were empty are
+ * skipped for a while (see QueueSchedule).  Queues can also be split into
+ * high and low priority lanes.
+ *
+ * With shedding set, requests whose process-by can't be met given how long
+ * the statement usually takes are answered with an ERROR without running.
+ *
+ * With tenants set, each client gets a rate limit and a weighted share of
+ * the workers (see TenantLimiter).  Requests over the rate get an ERROR,
+ * requests over the share go back to the end of the queue.
+ *
+ * With prefetch set, items are opened ahead of time on connections of their
+ * own (see PrefetchIntake) and handled from a local buffer.
+ *
  * The setup of kestrel and connection to same are provided by KestrelBased,
  * so you should consult that class for configuration information.
  *
@@ -26,14 +54,50 @@ import org.slf4j.LoggerFactory;
  * loop calls handle with a HashMap<String,Object> containing the incoming
  * request decoded from JSON.
  *
+ * An item whose handler throws is aborted, going back to the head of the
+ * queue.  Failures are counted per item and once an item has failed
+ * max_attempts times it is moved to the dead_letter_queue (or, without one,
+ * logged and dropped) so a bad message can't kill workers in a loop.
+ *
  * @author gphat
  *
  */
 public abstract class QueueMonitor extends KestrelBased {
 
 	static Logger logger = LoggerFactory.getLogger(QueueMonitor.class);
-	private String queueName;
+	private QueueSchedule schedule;
 	private int timeout;
+	private int batchSize = 1;
+	private int maxAttempts = 3;
+	private int prefetch = 0;
+	private int prefetchMin = 1;
+
+	// Responses to the request being handled, kept for the dedupe cache.
+	private DedupeCache dedupe;
+	private String recordingQueue;
+	private List<String> recording;
+	private boolean recordingFailed = false;
+
+	private LatencyEstimator latencies;
+
+	private TenantLimiter tenants;
+	private String tenantField;
+	private String tenantSeparator;
+	private String deadLetterQueue;
+
+	// Charged for requests that don't say who they're from.
+	private static final String DEFAULT_TENANT = "default";
+
+	// Failures per item, shared by every minion in this process.
+	private static final int MAX_TRACKED = 10000;
+	private static Map<String,Integer> failures = new LinkedHashMap<String,Integer>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Integer> eldest) {
+			return size() > MAX_TRACKED;
+		}
+	};
 
 	public QueueMonitor(PerformanceCollector collector) {
 
@@ -49,64 +113,422 @@ public abstract class QueueMonitor extends KestrelBased {
 	public void configure(HashMap<String,Object> config) throws Exception {
 
 		super.configure(config);
-		queueName = (String) config.get("subscribe_to");
-		if(queueName == null) {
-			throw new ConfigurationException("Each worker must have a subscribe_to!");
-		}
 
 		Long timeoutLng = (Long) config.get("timeout");
 		if(timeoutLng == null) {
 			throw new ConfigurationException("Each worker must have a timeout!");
 		}
 		timeout = timeoutLng.intValue();
+
+		Long emptyBaseLng = (Long) config.get("empty_backoff_base");
+		long emptyBase = emptyBaseLng != null ? emptyBaseLng.longValue() : 50;
+		Long emptyMaxLng = (Long) config.get("empty_backoff_max");
+		long emptyMax = emptyMaxLng != null ? emptyMaxLng.longValue() : 1000;
+
+		schedule = new QueueSchedule(emptyBase, emptyMax);
+		addQueues(config.get("subscribe_to"), false);
+
+		@SuppressWarnings("unchecked")
+		HashMap<String,Object> lanes = (HashMap<String,Object>) config.get("lanes");
+		if(lanes != null) {
+			// subscribe_to queues, if any, are in the high lane too.
+			addQueues(lanes.get("high"), false);
+			addQueues(lanes.get("low"), true);
+
+			String policy = (String) lanes.get("policy");
+			Long ratioLng = (Long) lanes.get("ratio");
+			Long starvationLng = (Long) lanes.get("max_starvation");
+			schedule.setPriority(
+				policy != null ? QueueSchedule.Policy.valueOf(policy.toUpperCase()) : QueueSchedule.Policy.STRICT,
+				ratioLng != null ? ratioLng.intValue() : 4,
+				starvationLng != null ? starvationLng.longValue() : 5000
+			);
+		}
+		if(schedule.size() < 1) {
+			throw new ConfigurationException("Each worker must have a subscribe_to!");
+		}
+
+		Long batchLng = (Long) config.get("batch_size");
+		if(batchLng != null) {
+			batchSize = batchLng.intValue();
+		}
+
+		Long attemptsLng = (Long) config.get("max_attempts");
+		if(attemptsLng != null) {
+			maxAttempts = attemptsLng.intValue();
+		}
+		deadLetterQueue = (String) config.get("dead_letter_queue");
+
+		Long prefetchLng = (Long) config.get("prefetch");
+		if(prefetchLng != null) {
+			prefetch = prefetchLng.intValue();
+		}
+		Long prefetchMinLng = (Long) config.get("prefetch_min");
+		if(prefetchMinLng != null) {
+			prefetchMin = prefetchMinLng.intValue();
+		}
+		if(prefetch > 0 && schedule.size() > 1) {
+			throw new ConfigurationException("prefetch only works with a single subscribe_to queue");
+		}
+
+		@SuppressWarnings("unchecked")
+		HashMap<String,Object> dedupeConfig = (HashMap<String,Object>) config.get("dedupe");
+		if(dedupeConfig != null) {
+			Long windowLng = (Long) dedupeConfig.get("window");
+			Long entriesLng = (Long) dedupeConfig.get("max_entries");
+			Long responsesLng = (Long) dedupeConfig.get("max_responses");
+			dedupe = DedupeCache.get(
+				getGroupName(),
+				(windowLng != null ? windowLng.longValue() : 600) * 1000,
+				entriesLng != null ? entriesLng.intValue() : 10000,
+				responsesLng != null ? responsesLng.intValue() : 100,
+				(String) dedupeConfig.get("path")
+			);
+		}
+
+		@SuppressWarnings("unchecked")
+		HashMap<String,Object> shedConfig = (HashMap<String,Object>) config.get("shedding");
+		if(shedConfig != null) {
+			Number alpha = (Number) shedConfig.get("alpha");
+			Long samplesLng = (Long) shedConfig.get("min_samples");
+			Long probeLng = (Long) shedConfig.get("probe_interval");
+			latencies = LatencyEstimator.get(
+				getGroupName(),
+				alpha != null ? alpha.doubleValue() : 0.2,
+				samplesLng != null ? samplesLng.intValue() : 5,
+				probeLng != null ? probeLng.longValue() : 5000
+			);
+		}
+
+		@SuppressWarnings("unchecked")
+		HashMap<String,Object> tenantConfig = (HashMap<String,Object>) config.get("tenants");
+		if(tenantConfig != null) {
+			configureTenants(tenantConfig);
+		}
+	}
+
+	private void configureTenants(HashMap<String,Object> config) throws ConfigurationException {
+
+		tenantField = (String) config.get("field");
+		tenantSeparator = (String) config.get("queue_separator");
+		if(tenantField == null && tenantSeparator == null) {
+			throw new ConfigurationException("tenants needs a field or a queue_separator");
+		}
+
+		Number rate = (Number) config.get("rate");
+		Number burst = (Number) config.get("burst");
+		Long weightLng = (Long) config.get("weight");
+		Long windowLng = (Long) config.get("active_window");
+		Long defersLng = (Long) config.get("max_defers");
+		tenants = TenantLimiter.get(
+			getGroupName(),
+			rate != null ? rate.doubleValue() : 0,
+			burst != null ? burst.doubleValue() : (rate != null ? rate.doubleValue() : 1),
+			weightLng != null ? weightLng.intValue() : 1,
+			windowLng != null ? windowLng.longValue() : 1000,
+			defersLng != null ? defersLng.intValue() : 3
+		);
+		tenants.addWorker();
+
+		@SuppressWarnings("unchecked")
+		HashMap<String,HashMap<String,Object>> limits = (HashMap<String,HashMap<String,Object>>) config.get("limits");
+		if(limits != null) {
+			Iterator<String> names = limits.keySet().iterator();
+			while(names.hasNext()) {
+				String name = names.next();
+				HashMap<String,Object> limit = limits.get(name);
+				Number tenantRate = (Number) limit.get("rate");
+				Number tenantBurst = (Number) limit.get("burst");
+				Long tenantWeight = (Long) limit.get("weight");
+				double r = tenantRate != null ? tenantRate.doubleValue() : (rate != null ? rate.doubleValue() : 0);
+				tenants.setTenant(
+					name,
+					r,
+					tenantBurst != null ? tenantBurst.doubleValue() : (burst != null ? burst.doubleValue() : Math.max(1, r)),
+					tenantWeight != null ? tenantWeight.intValue() : (weightLng != null ? weightLng.intValue() : 1)
+				);
+			}
+		}
+	}
+
+	/*
+	 * Who a request is from: the tenant field if it has one, otherwise the
+	 * response_queue up to the separator.  Anything else is the default
+	 * tenant, response queues are often unique to a request.
+	 */
+	private String tenantOf(HashMap<String,Object> request, String responseQueue) {
+
+		if(tenantField != null) {
+			Object tenant = request.get(tenantField);
+			if(tenant != null) {
+				return tenant.toString();
+			}
+		}
+		if(tenantSeparator != null) {
+			int end = responseQueue.indexOf(tenantSeparator);
+			if(end > 0) {
+				return responseQueue.substring(0, end);
+			}
+		}
+		return DEFAULT_TENANT;
+	}
+
+	/*
+	 * A name for everything subscribed to the same queues on the same kestrel.
+	 */
+	private String getGroupName() {
+
+		StringBuilder name = new StringBuilder(getKestrelAddress());
+		Iterator<Subscription> subs = schedule.getSubscriptions().iterator();
+		while(subs.hasNext()) {
+			name.append('/').append(subs.next().getQueue());
+		}
+		return name.toString();
+	}
+
+	/*
+	 * Add a queue name, or a list of names or { "queue" : "name", "weight" : 3 }
+	 * to the schedule.
+	 */
+	private void addQueues(Object queues, boolean low) throws ConfigurationException {
+
+		if(queues == null) {
+			return;
+		}
+		if(queues instanceof String) {
+			schedule.add((String) queues, 1, low);
+			return;
+		}
+		if(!(queues instanceof List)) {
+			throw new ConfigurationException("Don't understand queue list " + queues);
+		}
+		Iterator<?> subs = ((List<?>) queues).iterator();
+		while(subs.hasNext()) {
+			Object sub = subs.next();
+			if(sub instanceof String) {
+				schedule.add((String) sub, 1, low);
+			} else if(sub instanceof Map) {
+				String queue = (String) ((Map<?,?>) sub).get("queue");
+				if(queue == null) {
+					throw new ConfigurationException("Each subscribe_to entry needs a queue");
+				}
+				Long weightLng = (Long) ((Map<?,?>) sub).get("weight");
+				schedule.add(queue, weightLng != null ? weightLng.intValue() : 1, low);
+			} else {
+				throw new ConfigurationException("Don't understand subscribe_to entry " + sub);
+			}
+		}
 	}
 
 	/**
 	 * Run the thread.  This method will call a get() on the queue, waiting on
 	 * the timeout.  When it gets a message it will pass it off to the worker
-	 * to handle.
+	 * to handle.  Transports that can open several items at once get up to
+	 * batch_size of them, which are confirmed together once all are handled.
+	 * With several queues, gets don't wait and the queue to get from is
+	 * chosen by the schedule.
 	 */
 	@Override
 	public void run() {
 
+		if(prefetch > 0) {
+			runPrefetched();
+			return;
+		}
+
+		Backoff backoff = newBackoff();
 		while(this.shouldContinue()) {
+			betweenItems();
+			Subscription sub = schedule.next();
+			if(sub == null) {
+				// Every queue was empty recently.
+				pause(schedule.getWait());
+				continue;
+			}
+			// Don't bother kestrel while its circuit is open, one minion
+			// will get to probe it.  Asked only once there's a queue to read,
+			// so every probe handed out ends in a success or failure.
+			if(!getBreaker().allowRequest()) {
+				pause(getBreaker().getRetryDelay());
+				continue;
+			}
+			String queue = sub.getQueue();
 			try {
-				logger.debug("Opening item from queue");
+				logger.debug("Opening item from queue " + queue);
 				// We're adding 1000 (1 second) to the queue timeout to let
 				// xmemcached have some breathing room. Kestrel will timeout
 				// by itself.
-				String val = this.client.get(this.queueName + "/t=" + this.timeout + "/open", this.timeout);
+				int wait = schedule.size() > 1 ? 0 : this.timeout;
+				List<KestrelItem> items = getTransport().open(queue, this.batchSize, wait);
+				getBreaker().recordSuccess();
+				backoff.reset();
 
-				if (val != null) {
-					try {
-						process(val);
-					} catch (ProcessTimeoutException e) {
-						// ignore a timeout exception
+				if (items.isEmpty()) {
+					schedule.wasEmpty(sub);
+				} else {
+					schedule.gotItems(sub);
+					List<KestrelItem> done = new ArrayList<KestrelItem>(items.size());
+					List<KestrelItem> failed = new ArrayList<KestrelItem>(0);
+					Iterator<KestrelItem> iter = items.iterator();
+					while(iter.hasNext()) {
+						KestrelItem item = iter.next();
+						try {
+							process(item.getData(), sub);
+							done.add(item);
+						} catch (ProcessTimeoutException e) {
+							// ignore a timeout exception
+							done.add(item);
+						} catch (RuntimeException e) {
+							if(recordFailure(queue, item, e)) {
+								done.add(item);
+							} else {
+								failed.add(item);
+							}
+						}
+					}
+					// Make sure the whole response made it into kestrel, then
+					// confirm the items we took off the queue.
+					if(!flushMessages()) {
+						logger.error("Couldn't deliver every response, aborting " + done.size() + " item(s) to try again");
+						failed.addAll(done);
+						done.clear();
 					}
-					// confirm the item we took off the queue.
-					logger.debug("Closing item from queue");
-					this.client.get(this.queueName + "/close");
+					logger.debug("Closing " + done.size() + " item(s) from queue");
+					getTransport().confirm(queue, done);
+					getTransport().abort(queue, failed);
 				}
 			} catch (TimeoutException e) {
+				// An empty queue isn't a failure.
 				logger.debug("Timeout expired, cycling");
+				getBreaker().recordSuccess();
+				schedule.wasEmpty(sub);
 			} catch (MemcachedException e) {
 				logger.error("Caught exception from memcached", e);
-				/* Lets sleep for 5 seconds so as not to hammer the xmemcached
-				 * library.
+				getBreaker().recordFailure();
+				/* Back off so as not to hammer kestrel, and so that every
+				 * minion doesn't come back at the same moment.
 				 */
-				try { Thread.sleep(5000); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
-			} catch(RuntimeException e) {
-				/* Rethrow RTE */
-				throw(e);
+				pause(backoff.nextDelay());
 			} catch (Exception e) {
 				logger.error("Unknown exception in processing loop", e);
-				/* Sleep for longer since we have no idea what's broken. */
-				try { Thread.sleep(3000); } catch (InterruptedException ie) { Thread.currentThread().interrupt(); }
+				// Count it against kestrel, the breaker has to hear back.
+				getBreaker().recordFailure();
+				/* Back off since we have no idea what's broken. */
+				pause(backoff.nextDelay());
+			}
+		}
+	}
+
+	/*
+	 * The run loop when items are prefetched.  Items come from the shared
+	 * intake and go back to it to be confirmed.
+	 */
+	private void runPrefetched() {
+
+		Subscription sub = schedule.next();
+		PrefetchIntake intake;
+		try {
+			intake = PrefetchIntake.get(this, sub.getQueue(), this.timeout, prefetchMin, prefetch);
+		} catch(Exception e) {
+			logger.error("Couldn't start prefetching from " + sub.getQueue(), e);
+			return;
+		}
+
+		try {
+			while(this.shouldContinue()) {
+				betweenItems();
+				PrefetchIntake.Prefetched p = intake.take(this.timeout);
+				if(p == null) {
+					continue;
+				}
+				KestrelItem item = p.getItem();
+				boolean confirm = true;
+				try {
+					process(item.getData(), sub);
+				} catch (ProcessTimeoutException e) {
+					// ignore a timeout exception
+				} catch (RuntimeException e) {
+					confirm = recordFailure(sub.getQueue(), item, e);
+				}
+				// The whole response has to be in kestrel before we confirm.
+				if(!flushMessages()) {
+					logger.error("Couldn't deliver every response, aborting item");
+					confirm = false;
+				}
+				p.done(confirm);
+			}
+		} catch(InterruptedException e) {
+			logger.debug("Interrupted waiting on prefetched items");
+		} finally {
+			intake.release();
+		}
+	}
+
+	/*
+	 * Count a failed attempt at an item.  Returns true if the item has
+	 * failed too often and was dead-lettered, so it should be confirmed
+	 * rather than aborted.
+	 */
+	private boolean recordFailure(String queue, KestrelItem item, RuntimeException e) {
+
+		String key = queue + "/" + digest(item.getData());
+		int attempts;
+		synchronized(failures) {
+			Integer previous = failures.get(key);
+			attempts = previous == null ? 1 : previous.intValue() + 1;
+			if(attempts < maxAttempts) {
+				failures.put(key, attempts);
+			} else {
+				failures.remove(key);
+			}
+		}
+
+		if(attempts < maxAttempts) {
+			logger.error("Failed to handle item from " + queue + " (attempt " + attempts + " of " + maxAttempts + "), aborting it", e);
+			return false;
+		}
+
+		if(deadLetterQueue == null) {
+			logger.error("Dropping item from " + queue + " after " + attempts + " failed attempts: " + item.getData(), e);
+		} else {
+			logger.error("Moving item from " + queue + " to " + deadLetterQueue + " after " + attempts + " failed attempts", e);
+			JSONObject letter = new JSONObject();
+			letter.put("queue", queue);
+			letter.put("attempts", attempts);
+			letter.put("error", e.toString());
+			letter.put("item", item.getData());
+			sendMessage(deadLetterQueue, letter.toString(), 0);
+		}
+
+		// Don't leave the client waiting for an EOF that will never come.
+		try {
+			RequestWithResponseParser rwrp = new RequestWithResponseParser(item.getData());
+			JSONObject obj = new JSONObject();
+			obj.put("ERROR", "Request failed " + attempts + " times: " + e.toString());
+			sendMessage(rwrp.getResponseQueue(), obj.toString());
+			sendMessage(rwrp.getResponseQueue(), "{ \"EOF\":\"EOF\" }");
+		} catch(Exception pe) {
+			// Unparseable items never get this far
+		}
+		return true;
+	}
+
+	private static String digest(String data) {
+
+		try {
+			byte[] hash = MessageDigest.getInstance("MD5").digest(data.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for(int i = 0; i < hash.length; i++) {
+				hex.append(Integer.toHexString((hash[i] & 0xff) | 0x100).substring(1));
 			}
+			return hex.toString();
+		} catch(Exception e) {
+			// MD5 and UTF-8 are always there, but just in case.
+			return Integer.toHexString(data.hashCode()) + data.length();
 		}
 	}
 
-	private void process(String val) throws ProcessTimeoutException {
+	private void process(String val, Subscription sub) throws ProcessTimeoutException {
 
 		logger.debug("Got item from queue:\n" + val);
 
@@ -123,20 +545,232 @@ public abstract class QueueMonitor extends KestrelBased {
 
 		logger.debug("Response will go to " + responseQueue);
 
-		long start = System.currentTimeMillis();
-		// Get a list of items back from the worker
-		this.handle(collector, responseQueue, request);
+		// If the client said when it queued the request, keep track of how
+		// long requests wait in each lane.
+		Object enqueuedAt = request.get("enqueued_at");
+		if(enqueuedAt instanceof String) {
+			try {
+				long waited = System.currentTimeMillis() - DateTime.parse((String) enqueuedAt).getMillis();
+				sub.recordWait(waited);
+				collector.add("Queue wait (" + sub.getLane() + ")", waited, (String) request.get("tracer"));
+			} catch(Exception e) {
+				logger.debug("Ignoring bad enqueued_at " + enqueuedAt);
+			}
+		}
+
+		// Responses nobody will read shouldn't sit in kestrel forever.
+		setResponseExpiry(responseExpiryFor(request));
+		String tenant = null;
+		try {
+			// A redelivered request we already handled doesn't run again.
+			String requestId = dedupe != null ? (String) request.get("request_id") : null;
+			if(requestId != null) {
+				DedupeCache.Entry entry = dedupe.lookup(requestId);
+				if(entry != null) {
+					replay(responseQueue, requestId, entry);
+					return;
+				}
+				recordingQueue = responseQueue;
+				recording = new ArrayList<String>();
+			}
 
-		// Send those items back into the queue
-		collector.add(
-			"ResultSet iteration and queue insertion",
-			System.currentTimeMillis() - start,
-			(String) request.get("tracer")
-		);
-		// Top if off with an EOF.
+			// Keep any one client from hogging the workers.
+			if(tenants != null) {
+				String name = tenantOf(request, responseQueue);
+				if(!admit(name, sub, responseQueue, request)) {
+					return;
+				}
+				tenant = name;
+			}
+
+			// Don't start what can't finish before the client gives up.
+			String kind = (String) request.get("statement");
+			if(kind == null) {
+				kind = "";
+			}
+			if(latencies != null && shed(responseQueue, kind, request)) {
+				return;
+			}
+
+			resetBackpressure();
+			long start = System.currentTimeMillis();
+			// Get a list of items back from the worker
+			this.handle(collector, responseQueue, request);
+			if(latencies != null) {
+				latencies.record(kind, System.currentTimeMillis() - start);
+			}
+
+			// Send those items back into the queue
+			collector.add(
+				"ResultSet iteration and queue insertion",
+				System.currentTimeMillis() - start,
+				(String) request.get("tracer")
+			);
+			// Only successes are replayed, a failure may not fail again.
+			if(requestId != null && !recordingFailed) {
+				dedupe.record(requestId, recording);
+			}
+			// Top if off with an EOF, saying if we had to wait on the client.
+			if(getBackpressurePaused() > 0) {
+				sendMessage(responseQueue, "{ \"EOF\":\"EOF\", \"backpressure_ms\":" + getBackpressurePaused() + " }");
+			} else {
+				sendMessage(responseQueue, "{ \"EOF\":\"EOF\" }");
+			}
+		} finally {
+			if(tenant != null) {
+				tenants.done(tenant);
+			}
+			recording = null;
+			recordingQueue = null;
+			recordingFailed = false;
+			resetResponseExpiry();
+		}
+	}
+
+	/*
+	 * Check a request's process-by against how long requests like it take.
+	 * If it can't make it, answer with an ERROR right away.
+	 */
+	private boolean shed(String responseQueue, String kind, HashMap<String,Object> request) {
+
+		Object processBy = request.get("process-by");
+		if(!(processBy instanceof String)) {
+			return false;
+		}
+		long remaining;
+		try {
+			remaining = DateTime.parse((String) processBy).getMillis() - System.currentTimeMillis();
+		} catch(Exception e) {
+			// Leave bad dates to the worker
+			return false;
+		}
+		if(!latencies.shouldShed(kind, remaining)) {
+			return false;
+		}
+
+		long estimate = latencies.estimate(kind);
+		logger.warn("Shedding " + kind + " request, " + remaining + "ms left but it takes about " + estimate + "ms. "
+			+ latencies.getShed() + " shed so far (" + Math.round(latencies.getShedRate() * 100) + "%)");
+		collector.add("Request shed", remaining, (String) request.get("tracer"));
+
+		JSONObject obj = new JSONObject();
+		obj.put("ERROR", "process-by time can't be met, " + remaining + "ms left and estimated " + estimate + "ms");
+		String tracer = (String) request.get("tracer");
+		if(tracer != null) {
+			obj.put("tracer", tracer);
+		}
+		sendMessage(responseQueue, obj.toString());
+		sendMessage(responseQueue, "{ \"EOF\":\"EOF\" }");
+		return true;
+	}
+
+	/*
+	 * Ask the tenant limiter about a request.  A deferred request goes back
+	 * to the end of its queue, counting the deferral, and a throttled one
+	 * gets an ERROR.  Returns true if the request should run.
+	 */
+	private boolean admit(String tenant, Subscription sub, String responseQueue, JSONObject request) {
+
+		Object deferralsObj = request.get("deferrals");
+		int deferrals = deferralsObj instanceof Number ? ((Number) deferralsObj).intValue() : 0;
+		String tracer = (String) request.get("tracer");
+
+		switch(tenants.admit(tenant, deferrals)) {
+		case DEFER:
+			logger.debug("Tenant " + tenant + " is over its share, deferring request");
+			collector.add("Tenant deferred (" + tenant + ")", tenants.getDeferred(tenant), tracer);
+			request.put("deferrals", deferrals + 1);
+			// Straight to kestrel, this isn't part of the response.
+			super.sendMessage(sub.getQueue(), request.toString(), 0);
+			return false;
+		case THROTTLE:
+			logger.warn("Tenant " + tenant + " is over its rate limit, " + tenants.getThrottled(tenant) + " throttled so far");
+			collector.add("Tenant throttled (" + tenant + ")", tenants.getThrottled(tenant), tracer);
+			JSONObject obj = new JSONObject();
+			obj.put("ERROR", "rate limit exceeded for " + tenant);
+			if(tracer != null) {
+				obj.put("tracer", tracer);
+			}
+			sendMessage(responseQueue, obj.toString());
+			sendMessage(responseQueue, "{ \"EOF\":\"EOF\" }");
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/*
+	 * Answer a duplicate request with the responses the original got, or a
+	 * DUPLICATE marker if they weren't kept.
+	 */
+	private void replay(String responseQueue, String requestId, DedupeCache.Entry entry) {
+
+		logger.info("Request " + requestId + " was already handled, not running it again");
+		List<String> responses = entry.getResponses();
+		if(responses != null) {
+			Iterator<String> iter = responses.iterator();
+			while(iter.hasNext()) {
+				sendMessage(responseQueue, iter.next());
+			}
+		} else {
+			JSONObject obj = new JSONObject();
+			obj.put("DUPLICATE", requestId);
+			sendMessage(responseQueue, obj.toString());
+		}
 		sendMessage(responseQueue, "{ \"EOF\":\"EOF\" }");
 	}
 
+	/*
+	 * Keep a copy of responses to the request being handled for the dedupe
+	 * cache, unless there are too many to keep, and note any ERROR.
+	 */
+	@Override
+	protected boolean sendMessage(String queue, String message, int expiry) {
+
+		if(recordingQueue != null && queue.equals(recordingQueue)) {
+			if(isError(message)) {
+				recordingFailed = true;
+			}
+			if(recording != null) {
+				if(recording.size() < dedupe.getMaxResponses()) {
+					recording.add(message);
+				} else {
+					// Too many to replay, but still remember it was handled.
+					recording = null;
+				}
+			}
+		}
+		return super.sendMessage(queue, message, expiry);
+	}
+
+	/*
+	 * Is this response an ERROR?  Only those mentioning one are parsed.
+	 */
+	private static boolean isError(String message) {
+
+		if(message == null || message.indexOf("\"ERROR\"") < 0) {
+			return false;
+		}
+		try {
+			Object obj = JSONValue.parse(message);
+			return obj instanceof JSONObject && ((JSONObject) obj).containsKey("ERROR");
+		} catch(Exception e) {
+			return false;
+		} catch(Error e) {
+			// json-simple's lexer throws Errors at garbage.
+			return false;
+		}
+	}
+
+	/**
+	 * Called by the run loop before each get, for workers with periodic work
+	 * of their own to do on the worker's thread.  Requests wait while it
+	 * runs, so keep it short.
+	 */
+	protected void betweenItems() {
+
+	}
+
 	/**
 	 * Handle a request. Classes extending QueueMonitoring minion should
 	 * implement this method.
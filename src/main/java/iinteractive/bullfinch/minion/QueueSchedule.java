@@ -0,0 +1,244 @@
+package iinteractive.bullfinch.minion;
+
+import iinteractive.bullfinch.util.Backoff;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which of a minion's queues to poll next.
+ *
+ * Queues are polled in smooth weighted round robin order, so a queue with
+ * weight 3 is polled three times as often as one with weight 1 and the
+ * polls are spread out rather than bunched together.  A queue that turns
+ * out to be empty is skipped for a while, backing off further each time it
+ * is still empty, so idle queues cost next to nothing.
+ *
+ * Queues are either in the high or the low priority lane.  While a high
+ * lane queue has work, the low lane is only polled:
+ *
+ * - STRICT: when no high lane queue can be polled
+ * - RATIO: once for every ratio polls of the high lane
+ *
+ * Either way, if maxStarvation is set the low lane gets a poll whenever it
+ * hasn't had one for that many milliseconds.
+ *
+ * A schedule with a single queue never backs off, the long poll on that
+ * queue does the waiting.
+ *
+ * Not thread safe, each minion has its own.
+ *
+ */
+public class QueueSchedule {
+
+	public enum Policy {
+		STRICT, RATIO
+	}
+
+	private List<Subscription> subscriptions = new ArrayList<Subscription>();
+	private long emptyBase;
+	private long emptyMax;
+
+	private Policy policy = Policy.STRICT;
+	private int ratio = 4;
+	private long maxStarvation = 0;
+	private int highSinceLow = 0;
+	private long lastLow = System.currentTimeMillis();
+
+	/**
+	 * @param emptyBase	Milliseconds to skip a queue after it was first empty
+	 * @param emptyMax	Longest a queue is skipped
+	 */
+	public QueueSchedule(long emptyBase, long emptyMax) {
+
+		this.emptyBase = emptyBase;
+		this.emptyMax = emptyMax;
+	}
+
+	/**
+	 * Add a high lane queue.
+	 */
+	public void add(String queue, int weight) {
+
+		add(queue, weight, false);
+	}
+
+	public void add(String queue, int weight, boolean low) {
+
+		subscriptions.add(new Subscription(queue, weight < 1 ? 1 : weight, low, new Backoff(emptyBase, emptyMax)));
+	}
+
+	/**
+	 * Set how the low lane is served.
+	 *
+	 * @param policy		STRICT or RATIO
+	 * @param ratio			High lane polls per low lane poll, for RATIO
+	 * @param maxStarvation	Milliseconds the low lane may go unpolled, 0 for no limit
+	 */
+	public void setPriority(Policy policy, int ratio, long maxStarvation) {
+
+		this.policy = policy;
+		this.ratio = ratio < 1 ? 1 : ratio;
+		this.maxStarvation = maxStarvation;
+	}
+
+	public int size() {
+
+		return subscriptions.size();
+	}
+
+	public List<Subscription> getSubscriptions() {
+
+		return subscriptions;
+	}
+
+	/**
+	 * Pick the queue to poll.
+	 *
+	 * @return The subscription, or null if every queue is backing off.
+	 */
+	public Subscription next() {
+
+		long now = System.currentTimeMillis();
+		List<Subscription> high = new ArrayList<Subscription>(subscriptions.size());
+		List<Subscription> low = new ArrayList<Subscription>(subscriptions.size());
+		for(int i = 0; i < subscriptions.size(); i++) {
+			Subscription sub = subscriptions.get(i);
+			if(sub.emptyUntil <= now) {
+				(sub.low ? low : high).add(sub);
+			}
+		}
+
+		if(low.isEmpty()) {
+			return pick(high);
+		}
+		if(high.isEmpty()
+			|| (maxStarvation > 0 && now - lastLow >= maxStarvation)
+			|| (policy == Policy.RATIO && highSinceLow >= ratio)) {
+			highSinceLow = 0;
+			lastLow = now;
+			return pick(low);
+		}
+		highSinceLow++;
+		return pick(high);
+	}
+
+	/*
+	 * Smooth weighted round robin.
+	 */
+	private Subscription pick(List<Subscription> candidates) {
+
+		Subscription best = null;
+		int total = 0;
+		for(int i = 0; i < candidates.size(); i++) {
+			Subscription sub = candidates.get(i);
+			sub.current += sub.weight;
+			total += sub.weight;
+			if(best == null || sub.current > best.current) {
+				best = sub;
+			}
+		}
+		if(best != null) {
+			best.current -= total;
+		}
+		return best;
+	}
+
+	/**
+	 * How long until a queue can be polled again.
+	 *
+	 * @return Milliseconds
+	 */
+	public long getWait() {
+
+		long now = System.currentTimeMillis();
+		long wait = Long.MAX_VALUE;
+		for(int i = 0; i < subscriptions.size(); i++) {
+			wait = Math.min(wait, subscriptions.get(i).emptyUntil - now);
+		}
+		return wait < 0 ? 0 : wait;
+	}
+
+	/**
+	 * Note that a poll of the queue found nothing.
+	 */
+	public void wasEmpty(Subscription sub) {
+
+		if(subscriptions.size() > 1) {
+			sub.emptyUntil = System.currentTimeMillis() + sub.backoff.nextDelay();
+		}
+	}
+
+	/**
+	 * Note that a poll of the queue got items.
+	 */
+	public void gotItems(Subscription sub) {
+
+		sub.backoff.reset();
+		sub.emptyUntil = 0;
+	}
+
+	public static class Subscription {
+
+		private String queue;
+		private int weight;
+		private boolean low;
+		private int current = 0;
+		private long emptyUntil = 0;
+		private Backoff backoff;
+
+		private long waits = 0;
+		private long waitTotal = 0;
+		private long waitMax = 0;
+
+		Subscription(String queue, int weight, boolean low, Backoff backoff) {
+
+			this.queue = queue;
+			this.weight = weight;
+			this.low = low;
+			this.backoff = backoff;
+		}
+
+		/**
+		 * Record how long an item sat in this queue.
+		 *
+		 * @param millis Milliseconds
+		 */
+		public void recordWait(long millis) {
+
+			waits++;
+			waitTotal += millis;
+			waitMax = Math.max(waitMax, millis);
+		}
+
+		public String getLane() {
+
+			return low ? "low" : "high";
+		}
+
+		public long getWaits() {
+
+			return waits;
+		}
+
+		public double getMeanWait() {
+
+			return waits == 0 ? 0 : (double) waitTotal / waits;
+		}
+
+		public long getMaxWait() {
+
+			return waitMax;
+		}
+
+		public String getQueue() {
+
+			return queue;
+		}
+
+		public int getWeight() {
+
+			return weight;
+		}
+	}
+}
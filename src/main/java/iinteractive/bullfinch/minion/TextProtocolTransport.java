@@ -0,0 +1,70 @@
+package iinteractive.bullfinch.minion;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+/**
+ * Reliable reads for transports that speak kestrel's text protocol, where a
+ * connection can only hold one open item and a get only returns one item.
+ *
+ */
+public abstract class TextProtocolTransport implements KestrelTransport {
+
+	@Override
+	public List<KestrelItem> open(String queue, int maxItems, int timeout) throws TimeoutException, InterruptedException, MemcachedException {
+
+		List<KestrelItem> items = new ArrayList<KestrelItem>(1);
+		String val = get(queue + "/t=" + timeout + "/open", timeout);
+		if(val != null) {
+			items.add(new KestrelItem(val, 0));
+		}
+		return items;
+	}
+
+	@Override
+	public void confirm(String queue, List<KestrelItem> items) throws TimeoutException, InterruptedException, MemcachedException {
+
+		if(!items.isEmpty()) {
+			get(queue + "/close", 0);
+		}
+	}
+
+	@Override
+	public void abort(String queue, List<KestrelItem> items) throws TimeoutException, InterruptedException, MemcachedException {
+
+		if(!items.isEmpty()) {
+			get(queue + "/abort", 0);
+		}
+	}
+
+	/**
+	 * Find the queue in kestrel's stats, which list every queue's
+	 * queue_<name>_items and queue_<name>_bytes.
+	 */
+	@Override
+	public KestrelQueueInfo getQueueInfo(String queue) throws TimeoutException, InterruptedException, MemcachedException {
+
+		Map<String,String> stats = stats();
+		String items = stats.get("queue_" + queue + "_items");
+		if(items == null) {
+			return null;
+		}
+		String bytes = stats.get("queue_" + queue + "_bytes");
+		try {
+			return new KestrelQueueInfo(Long.parseLong(items), bytes != null ? Long.parseLong(bytes) : 0);
+		} catch(NumberFormatException e) {
+			throw new MemcachedException("Bad stats for " + queue + " from kestrel", e);
+		}
+	}
+
+	/**
+	 * Get kestrel's stats.
+	 *
+	 * @return The stats by name
+	 */
+	protected abstract Map<String,String> stats() throws TimeoutException, InterruptedException, MemcachedException;
+}
@@ -0,0 +1,68 @@
+package iinteractive.bullfinch.minion;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+/**
+ * KestrelTransport backed by an xmemcached client.  This is the default.
+ *
+ */
+public class XMemcachedTransport extends TextProtocolTransport {
+
+	private MemcachedClient client;
+
+	public XMemcachedTransport(MemcachedClient client) {
+
+		this.client = client;
+	}
+
+	public MemcachedClient getClient() {
+
+		return client;
+	}
+
+	@Override
+	public String get(String key, long timeout) throws TimeoutException, InterruptedException, MemcachedException {
+
+		if(timeout > 0) {
+			return this.client.get(key, timeout);
+		}
+		return this.client.get(key);
+	}
+
+	@Override
+	public boolean set(String queue, int expiry, String value) throws TimeoutException, InterruptedException, MemcachedException {
+
+		if(!this.client.set(queue, expiry, value)) {
+			throw new MemcachedException("Kestrel didn't store the item for " + queue);
+		}
+		return true;
+	}
+
+	@Override
+	public void flush() {
+
+		// xmemcached waits on every set, nothing is ever buffered.
+	}
+
+	@Override
+	protected Map<String,String> stats() throws TimeoutException, InterruptedException, MemcachedException {
+
+		// There's only ever the one server.
+		Map<String,String> stats = new HashMap<String,String>();
+		Map<InetSocketAddress,Map<String,String>> servers = this.client.getStats();
+		if(servers != null) {
+			Iterator<Map<String,String>> iter = servers.values().iterator();
+			while(iter.hasNext()) {
+				stats.putAll(iter.next());
+			}
+		}
+		return stats;
+	}
+}
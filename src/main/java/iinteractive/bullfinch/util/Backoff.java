@@ -0,0 +1,76 @@
+package iinteractive.bullfinch.util;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter.  Each call to nextDelay doubles the delay
+ * (up to max) and returns a random value between half of it and all of it,
+ * so that threads which failed together don't all retry together.
+ *
+ */
+public class Backoff {
+
+	private static Random random = new Random();
+
+	private long base;
+	private long max;
+	private int attempts = 0;
+
+	/**
+	 * @param base	The first delay in milliseconds
+	 * @param max	The longest delay in milliseconds
+	 */
+	public Backoff(long base, long max) {
+
+		this.base = base < 1 ? 1 : base;
+		this.max = max < this.base ? this.base : max;
+	}
+
+	/**
+	 * Get the next delay and back off further.
+	 *
+	 * @return Milliseconds to wait
+	 */
+	public long nextDelay() {
+
+		long delay = delayFor(attempts);
+		attempts++;
+		return jitter(delay);
+	}
+
+	/**
+	 * Start over from the base delay.
+	 */
+	public void reset() {
+
+		attempts = 0;
+	}
+
+	public int getAttempts() {
+
+		return attempts;
+	}
+
+	/**
+	 * The un-jittered delay for the given attempt.
+	 */
+	public long delayFor(int attempt) {
+
+		long delay = base;
+		for(int i = 0; i < attempt && delay < max; i++) {
+			delay *= 2;
+		}
+		return delay > max ? max : delay;
+	}
+
+	/**
+	 * Pick a random delay between half of the given delay and all of it.
+	 */
+	public static long jitter(long delay) {
+
+		long half = delay / 2;
+		synchronized(random) {
+			return half + (long) (random.nextDouble() * (delay - half + 1));
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package iinteractive.bullfinch.util;
+
+/**
+ * Base64 encoding, for sending binary columns as JSON strings.
+ *
+ */
+public class Base64 {
+
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	/**
+	 * Encode bytes, with padding.
+	 *
+	 * @param data		The bytes
+	 * @param length	How many of them to encode
+	 * @return The encoded string
+	 */
+	public static String encode(byte[] data, int length) {
+
+		StringBuilder out = new StringBuilder((length + 2) / 3 * 4);
+		for(int i = 0; i < length; i += 3) {
+			int b = (data[i] & 0xff) << 16;
+			if(i + 1 < length) {
+				b |= (data[i + 1] & 0xff) << 8;
+			}
+			if(i + 2 < length) {
+				b |= data[i + 2] & 0xff;
+			}
+			out.append(ALPHABET[(b >> 18) & 0x3f]);
+			out.append(ALPHABET[(b >> 12) & 0x3f]);
+			out.append(i + 1 < length ? ALPHABET[(b >> 6) & 0x3f] : '=');
+			out.append(i + 2 < length ? ALPHABET[b & 0x3f] : '=');
+		}
+		return out.toString();
+	}
+
+	public static String encode(byte[] data) {
+
+		return encode(data, data.length);
+	}
+}
@@ -0,0 +1,160 @@
+package iinteractive.bullfinch.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A circuit breaker shared by everything that talks to one remote resource.
+ *
+ * The breaker starts CLOSED.  After failureThreshold consecutive failures it
+ * OPENs and allowRequest() returns false, so callers can fail fast instead of
+ * piling up on a resource that is down.  Once the (jittered, exponentially
+ * growing) open period passes the breaker goes HALF_OPEN and lets exactly one
+ * probe through.  A successful probe closes it, a failed one opens it again
+ * for longer.
+ *
+ * Every caller that allowRequest() lets through has to record a success or
+ * failure, or release() if it never found out, or a probe is lost and the
+ * breaker stays HALF_OPEN.
+ *
+ */
+public class CircuitBreaker {
+
+	static Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private String name;
+	private int failureThreshold;
+	private Backoff backoff;
+
+	private State state = State.CLOSED;
+	private int failures = 0;
+	private long openUntil = 0;
+	private boolean probing = false;
+	private long transitions = 0;
+
+	/**
+	 * Create a new breaker.
+	 *
+	 * @param name				Name used in logging
+	 * @param failureThreshold	Consecutive failures before opening
+	 * @param baseDelay			Milliseconds the breaker first stays open
+	 * @param maxDelay			Longest the breaker stays open
+	 */
+	public CircuitBreaker(String name, int failureThreshold, long baseDelay, long maxDelay) {
+
+		this.name = name;
+		this.failureThreshold = failureThreshold < 1 ? 1 : failureThreshold;
+		this.backoff = new Backoff(baseDelay, maxDelay);
+	}
+
+	/**
+	 * Ask if a request may go through.  When the open period has passed this
+	 * hands out the single half-open probe.
+	 *
+	 * @return True if the caller should go ahead.
+	 */
+	public synchronized boolean allowRequest() {
+
+		switch(state) {
+			case CLOSED :
+				return true;
+			case OPEN :
+				if(System.currentTimeMillis() >= openUntil) {
+					transition(State.HALF_OPEN);
+					probing = true;
+					return true;
+				}
+				return false;
+			default :
+				if(!probing) {
+					probing = true;
+					return true;
+				}
+				return false;
+		}
+	}
+
+	/**
+	 * Record a successful request.
+	 */
+	public synchronized void recordSuccess() {
+
+		failures = 0;
+		probing = false;
+		if(state != State.CLOSED) {
+			backoff.reset();
+			transition(State.CLOSED);
+		}
+	}
+
+	/**
+	 * Record a failed request.
+	 */
+	public synchronized void recordFailure() {
+
+		failures++;
+		probing = false;
+		if(state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+			openUntil = System.currentTimeMillis() + backoff.nextDelay();
+			transition(State.OPEN);
+		}
+	}
+
+	/**
+	 * Give up without an outcome, for a caller that was interrupted.  A
+	 * half-open probe goes to the next caller.
+	 */
+	public synchronized void release() {
+
+		probing = false;
+	}
+
+	/**
+	 * How long a caller that was refused should wait before asking again.
+	 *
+	 * @return Milliseconds, 0 if requests are allowed now.
+	 */
+	public synchronized long getRetryDelay() {
+
+		switch(state) {
+			case OPEN :
+				long wait = openUntil - System.currentTimeMillis();
+				// Spread out the callers waiting on the probe.
+				return wait > 0 ? wait + Backoff.jitter(backoff.delayFor(0)) : 0;
+			case HALF_OPEN :
+				return Backoff.jitter(backoff.delayFor(0));
+			default :
+				return 0;
+		}
+	}
+
+	public synchronized State getState() {
+
+		return state;
+	}
+
+	public synchronized long getTransitions() {
+
+		return transitions;
+	}
+
+	public String getName() {
+
+		return name;
+	}
+
+	private void transition(State newState) {
+
+		if(newState == State.OPEN) {
+			logger.warn("Circuit for " + name + " is now OPEN after " + failures + " failures, retrying in " + (openUntil - System.currentTimeMillis()) + "ms");
+		} else {
+			logger.info("Circuit for " + name + " is now " + newState);
+		}
+		state = newState;
+		transitions++;
+	}
+}
@@ -0,0 +1,150 @@
+package iinteractive.bullfinch.util;
+
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An adaptive limit on how many queries run against a database at once.
+ *
+ * The limiter keeps a smoothed query latency and a baseline, the lowest
+ * latency seen (drifting slowly upward so it can relearn).  When the
+ * smoothed latency climbs above tolerance times the baseline the database
+ * is struggling and the limit is cut by the backoff ratio.  Otherwise, while
+ * the limit is in full use, it grows by about one for every limit queries.
+ * Failed queries count as a sign of trouble too.
+ *
+ * Limiters are shared, there is one per name (usually the DSN).
+ *
+ */
+public class ConcurrencyLimiter {
+
+	static Logger logger = LoggerFactory.getLogger(ConcurrencyLimiter.class);
+
+	private static HashMap<String,ConcurrencyLimiter> limiters = new HashMap<String,ConcurrencyLimiter>();
+
+	private static final double SMOOTHING = 0.2;
+	private static final double BASELINE_DRIFT = 0.01;
+
+	private String name;
+	private int minLimit;
+	private int maxLimit;
+	private double tolerance;
+	private double backoff;
+
+	private double limit;
+	private int inFlight = 0;
+	private double smoothed = -1;
+	private double baseline = -1;
+
+	/**
+	 * Get a limiter, creating it if need be.
+	 *
+	 * @param name		Name of the limiter, usually the DSN
+	 * @param initial	Starting limit
+	 * @param min		Lowest limit
+	 * @param max		Highest limit
+	 * @param tolerance	How many times the baseline latency is acceptable
+	 * @param backoff	Ratio the limit is cut by, between 0 and 1
+	 * @return The limiter
+	 */
+	public static synchronized ConcurrencyLimiter get(String name, int initial, int min, int max, double tolerance, double backoff) {
+
+		ConcurrencyLimiter limiter = limiters.get(name);
+		if(limiter == null) {
+			limiter = new ConcurrencyLimiter(name, initial, min, max, tolerance, backoff);
+			limiters.put(name, limiter);
+		}
+		return limiter;
+	}
+
+	public ConcurrencyLimiter(String name, int initial, int min, int max, double tolerance, double backoff) {
+
+		this.name = name;
+		this.minLimit = Math.max(1, min);
+		this.maxLimit = Math.max(this.minLimit, max);
+		this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initial));
+		this.tolerance = tolerance;
+		this.backoff = backoff;
+	}
+
+	/**
+	 * Wait for a slot.
+	 *
+	 * @param timeout	Milliseconds to wait
+	 * @return False if no slot came free in time.
+	 */
+	public synchronized boolean acquire(long timeout) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeout;
+		while(inFlight >= getLimit()) {
+			long left = deadline - System.currentTimeMillis();
+			if(left <= 0) {
+				return false;
+			}
+			wait(left);
+		}
+		inFlight++;
+		return true;
+	}
+
+	/**
+	 * Give a slot back.
+	 *
+	 * @param millis	How long the query took, -1 if it didn't run
+	 * @param ok		False if the database failed
+	 */
+	public synchronized void release(long millis, boolean ok) {
+
+		boolean wasFull = inFlight >= getLimit();
+		inFlight--;
+		int before = getLimit();
+
+		if(ok && millis >= 0) {
+			smoothed = smoothed < 0 ? millis : smoothed + SMOOTHING * (millis - smoothed);
+			if(baseline < 0 || millis < baseline) {
+				baseline = millis;
+			} else {
+				baseline += BASELINE_DRIFT * (millis - baseline);
+			}
+		}
+
+		if(!ok || (millis >= 0 && smoothed > baseline * tolerance)) {
+			limit = Math.max(minLimit, limit * backoff);
+		} else if(wasFull && millis >= 0) {
+			limit = Math.min(maxLimit, limit + 1.0 / limit);
+		}
+
+		if(getLimit() != before) {
+			logger.info("Concurrency limit for " + name + " now " + getLimit() + " (latency " + Math.round(smoothed) + "ms, baseline " + Math.round(baseline) + "ms)");
+		}
+		notifyAll();
+	}
+
+	public synchronized int getLimit() {
+
+		return (int) limit;
+	}
+
+	public synchronized int getInFlight() {
+
+		return inFlight;
+	}
+
+	/**
+	 * @return The smoothed latency the limit reacts to, in milliseconds
+	 */
+	public synchronized long getLatency() {
+
+		return Math.round(smoothed);
+	}
+
+	/**
+	 * @return The baseline latency, in milliseconds
+	 */
+	public synchronized long getBaseline() {
+
+		return Math.round(baseline);
+	}
+}
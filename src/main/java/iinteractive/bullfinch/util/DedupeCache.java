@@ -0,0 +1,228 @@
+package iinteractive.bullfinch.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the request_ids of requests that were handled in the last
+ * window seconds, and up to a few of their responses, so that a request
+ * redelivered by kestrel can be answered without running it again.
+ *
+ * The cache holds at most maxEntries ids, dropping the oldest first.  If
+ * given a file, ids are also appended to it and read back (without their
+ * responses) when the cache is opened, so redeliveries after a restart are
+ * caught too.
+ *
+ * Caches are shared, there is one per name.
+ *
+ */
+public class DedupeCache {
+
+	static Logger logger = LoggerFactory.getLogger(DedupeCache.class);
+
+	private static HashMap<String,DedupeCache> caches = new HashMap<String,DedupeCache>();
+
+	private long window;
+	private int maxEntries;
+	private int maxResponses;
+	private LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>();
+	private Writer log;
+
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Get a cache, creating it if need be.
+	 *
+	 * @param name			Name of the cache, usually the queue
+	 * @param window		Milliseconds to remember a request
+	 * @param maxEntries	Most requests to remember
+	 * @param maxResponses	Most responses to keep for replay per request
+	 * @param path			File to keep ids in, or null
+	 * @return The cache
+	 */
+	public static synchronized DedupeCache get(String name, long window, int maxEntries, int maxResponses, String path) throws IOException {
+
+		DedupeCache cache = caches.get(name);
+		if(cache == null) {
+			cache = new DedupeCache(window, maxEntries, maxResponses, path);
+			caches.put(name, cache);
+		}
+		return cache;
+	}
+
+	public DedupeCache(long window, int maxEntries, int maxResponses, String path) throws IOException {
+
+		this.window = window;
+		this.maxEntries = maxEntries;
+		this.maxResponses = maxResponses;
+		if(path != null) {
+			load(path);
+			log = new FileWriter(path, true);
+		}
+	}
+
+	/**
+	 * Look up a request.
+	 *
+	 * @param requestId	The request's request_id
+	 * @return The entry if the request was handled recently, otherwise null.
+	 */
+	public synchronized Entry lookup(String requestId) {
+
+		expire();
+		Entry entry = entries.get(requestId);
+		if(entry == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return entry;
+	}
+
+	/**
+	 * Remember that a request was handled.
+	 *
+	 * @param requestId	The request's request_id
+	 * @param responses	What was sent back, or null if too much to keep
+	 */
+	public synchronized void record(String requestId, List<String> responses) {
+
+		if(responses != null && responses.size() > maxResponses) {
+			responses = null;
+		}
+		long now = System.currentTimeMillis();
+		entries.remove(requestId);
+		entries.put(requestId, new Entry(now, responses));
+		expire();
+
+		if(log != null) {
+			try {
+				log.write(now + " " + requestId + "\n");
+				log.flush();
+			} catch(IOException e) {
+				logger.error("Couldn't write request_id to dedupe log", e);
+			}
+		}
+	}
+
+	/**
+	 * The most responses kept per request, callers can stop collecting
+	 * after this.
+	 */
+	public int getMaxResponses() {
+
+		return maxResponses;
+	}
+
+	public synchronized int size() {
+
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+
+		return misses;
+	}
+
+	private void expire() {
+
+		long oldest = System.currentTimeMillis() - window;
+		Iterator<Map.Entry<String,Entry>> iter = entries.entrySet().iterator();
+		while(iter.hasNext()) {
+			Map.Entry<String,Entry> e = iter.next();
+			if(e.getValue().at >= oldest && entries.size() <= maxEntries) {
+				break;
+			}
+			iter.remove();
+		}
+	}
+
+	/*
+	 * Read back the ids still in the window and write only those back out,
+	 * so the file doesn't grow forever.
+	 */
+	private void load(String path) throws IOException {
+
+		File file = new File(path);
+		if(file.exists()) {
+			long oldest = System.currentTimeMillis() - window;
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					int space = line.indexOf(' ');
+					if(space < 1) {
+						continue;
+					}
+					try {
+						long at = Long.parseLong(line.substring(0, space));
+						if(at >= oldest) {
+							entries.put(line.substring(space + 1), new Entry(at, null));
+						}
+					} catch(NumberFormatException e) {
+						// A torn write, skip it
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			expire();
+			logger.info("Loaded " + entries.size() + " recent request_ids from " + path);
+		}
+
+		Writer out = new FileWriter(file, false);
+		try {
+			Iterator<Map.Entry<String,Entry>> iter = entries.entrySet().iterator();
+			while(iter.hasNext()) {
+				Map.Entry<String,Entry> e = iter.next();
+				out.write(e.getValue().at + " " + e.getKey() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public static class Entry {
+
+		private long at;
+		private List<String> responses;
+
+		Entry(long at, List<String> responses) {
+
+			this.at = at;
+			this.responses = responses == null ? null : new ArrayList<String>(responses);
+		}
+
+		/**
+		 * @return The responses to replay, or null if they weren't kept.
+		 */
+		public List<String> getResponses() {
+
+			return responses;
+		}
+
+		public long getHandledAt() {
+
+			return at;
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package iinteractive.bullfinch.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Groups the rows of a one-to-many join into one document per parent.
+ *
+ * Consecutive rows with the same values in the key columns become one
+ * document.  Its row_data holds the parent columns, taken from the first
+ * row, and a list of the other columns of each row under the children name.
+ * Only consecutive rows are grouped, so the statement should order by the
+ * keys.  Only one document is held in memory at a time.
+ *
+ */
+public class DocumentAssembler implements Iterator<String> {
+
+	private JSONResultSetWrapper rows;
+	private Shape shape;
+
+	private JSONObject current;
+	private List<Object> currentKey;
+	private JSONObject ahead;
+	private int documents = 0;
+
+	public DocumentAssembler(JSONResultSetWrapper rows, Shape shape) {
+
+		this.rows = rows;
+		this.shape = shape;
+	}
+
+	@Override
+	public boolean hasNext() {
+
+		return ahead != null || rows.hasNext();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public String next() {
+
+		JSONObject row = ahead != null ? ahead : rows.nextObject();
+		ahead = null;
+		start(row);
+
+		while(rows.hasNext()) {
+			row = rows.nextObject();
+			JSONObject data = (JSONObject) row.get("row_data");
+			if(data == null || !key(data).equals(currentKey)) {
+				ahead = row;
+				break;
+			}
+			((JSONArray) ((JSONObject) current.get("row_data")).get(shape.children)).add(child(data));
+		}
+		return current.toString();
+	}
+
+	@Override
+	public void remove() {
+
+		throw new UnsupportedOperationException();
+	}
+
+	/*
+	 * Start a document with the parent columns of its first row.
+	 */
+	@SuppressWarnings("unchecked")
+	private void start(JSONObject row) {
+
+		current = new JSONObject();
+		if(row.containsKey("tracer")) {
+			current.put("tracer", row.get("tracer"));
+		}
+		if(row.containsKey("result_set")) {
+			current.put("result_set", row.get("result_set"));
+		}
+		current.put("row_num", new Integer(++documents));
+
+		JSONObject data = (JSONObject) row.get("row_data");
+		JSONObject doc = new JSONObject();
+		JSONArray children = new JSONArray();
+		if(data != null) {
+			Iterator<Map.Entry<String,Object>> columns = data.entrySet().iterator();
+			while(columns.hasNext()) {
+				Map.Entry<String,Object> column = columns.next();
+				if(shape.isParent(column.getKey())) {
+					doc.put(column.getKey(), column.getValue());
+				}
+			}
+			children.add(child(data));
+			currentKey = key(data);
+		}
+		doc.put(shape.children, children);
+		current.put("row_data", doc);
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject child(JSONObject data) {
+
+		JSONObject child = new JSONObject();
+		Iterator<Map.Entry<String,Object>> columns = data.entrySet().iterator();
+		while(columns.hasNext()) {
+			Map.Entry<String,Object> column = columns.next();
+			if(!shape.isParent(column.getKey())) {
+				child.put(column.getKey(), column.getValue());
+			}
+		}
+		return child;
+	}
+
+	private List<Object> key(JSONObject data) {
+
+		List<Object> key = new ArrayList<Object>(shape.keys.size());
+		for(int i = 0; i < shape.keys.size(); i++) {
+			key.add(get(data, shape.keys.get(i)));
+		}
+		return key;
+	}
+
+	private static Object get(JSONObject data, String column) {
+
+		if(data.containsKey(column)) {
+			return data.get(column);
+		}
+		Iterator<?> names = data.keySet().iterator();
+		while(names.hasNext()) {
+			String name = (String) names.next();
+			if(name.equalsIgnoreCase(column)) {
+				return data.get(name);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * How a statement's rows are grouped.
+	 */
+	public static class Shape {
+
+		private List<String> keys;
+		private HashSet<String> parent = new HashSet<String>();
+		private String children;
+
+		/**
+		 * @param keys		Columns that identify a parent
+		 * @param parent	Other columns of the parent, may be null
+		 * @param children	Name of the list of children, null for "rows"
+		 */
+		public Shape(List<String> keys, List<String> parent, String children) {
+
+			this.keys = keys;
+			for(int i = 0; i < keys.size(); i++) {
+				this.parent.add(keys.get(i).toUpperCase());
+			}
+			if(parent != null) {
+				for(int i = 0; i < parent.size(); i++) {
+					this.parent.add(parent.get(i).toUpperCase());
+				}
+			}
+			this.children = children != null ? children : "rows";
+		}
+
+		boolean isParent(String column) {
+
+			return parent.contains(column.toUpperCase());
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package iinteractive.bullfinch.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Decides when a slow read is worth repeating against a replica.
+ *
+ * For each statement the hedger keeps the last few times it took to get a
+ * first row.  A read that hasn't answered within the given percentile of
+ * those times is hedged, unless that would take hedges over maxPercent of
+ * all reads.
+ *
+ * Hedgers are shared, there is one per name.
+ *
+ */
+public class Hedger {
+
+	private static HashMap<String,Hedger> hedgers = new HashMap<String,Hedger>();
+
+	private static final int MIN_SAMPLES = 10;
+
+	private double percentile;
+	private double maxPercent;
+	private long minDelay;
+	private int window;
+	private HashMap<String,Samples> samples = new HashMap<String,Samples>();
+
+	private long reads = 0;
+	private long hedges = 0;
+	private long hedgeWins = 0;
+
+	/**
+	 * Get a hedger, creating it if need be.
+	 *
+	 * @param name			Name of the hedger, usually the DSN
+	 * @param percentile	Percentile of first row times to wait, e.g. 95
+	 * @param maxPercent	Most hedges, as a percentage of reads
+	 * @param minDelay		Shortest wait before hedging, in milliseconds
+	 * @param window		Samples kept per statement
+	 * @return The hedger
+	 */
+	public static synchronized Hedger get(String name, double percentile, double maxPercent, long minDelay, int window) {
+
+		Hedger hedger = hedgers.get(name);
+		if(hedger == null) {
+			hedger = new Hedger(percentile, maxPercent, minDelay, window);
+			hedgers.put(name, hedger);
+		}
+		return hedger;
+	}
+
+	public Hedger(double percentile, double maxPercent, long minDelay, int window) {
+
+		this.percentile = percentile;
+		this.maxPercent = maxPercent;
+		this.minDelay = minDelay;
+		this.window = Math.max(MIN_SAMPLES, window);
+	}
+
+	/**
+	 * Note that a read is starting.
+	 *
+	 * @param statement	The statement being read
+	 * @return Milliseconds to wait before hedging, or -1 if there aren't
+	 * enough samples to tell yet.
+	 */
+	public synchronized long begin(String statement) {
+
+		reads++;
+		Samples s = samples.get(statement);
+		if(s == null || s.count < MIN_SAMPLES) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(s.times, Math.min(s.count, window));
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+		return Math.max(minDelay, sorted[Math.max(0, Math.min(sorted.length - 1, index))]);
+	}
+
+	/**
+	 * Ask to hedge a read.
+	 *
+	 * @return False if hedging would go over the budget.
+	 */
+	public synchronized boolean allowHedge() {
+
+		if((hedges + 1) * 100 > reads * maxPercent) {
+			return false;
+		}
+		hedges++;
+		return true;
+	}
+
+	/**
+	 * Record how long a read took to get its first row.
+	 *
+	 * @param statement	The statement read
+	 * @param millis	Milliseconds
+	 * @param hedgeWon	True if the hedge answered first
+	 */
+	public synchronized void record(String statement, long millis, boolean hedgeWon) {
+
+		Samples s = samples.get(statement);
+		if(s == null) {
+			s = new Samples(window);
+			samples.put(statement, s);
+		}
+		s.times[s.count % window] = millis;
+		s.count++;
+		if(hedgeWon) {
+			hedgeWins++;
+		}
+	}
+
+	public synchronized long getReads() {
+
+		return reads;
+	}
+
+	public synchronized long getHedges() {
+
+		return hedges;
+	}
+
+	public synchronized long getHedgeWins() {
+
+		return hedgeWins;
+	}
+
+	private static class Samples {
+
+		long[] times;
+		int count = 0;
+
+		Samples(int window) {
+
+			times = new long[window];
+		}
+	}
+}
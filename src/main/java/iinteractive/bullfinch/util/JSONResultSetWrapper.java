@@ -1,5 +1,10 @@
 package iinteractive.bullfinch.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Blob;
+import java.sql.Clob;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -8,11 +13,25 @@ import java.sql.SQLException;
 import java.sql.Time;
 import java.sql.Types;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
 
 import org.json.simple.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Turns the rows of a ResultSet into JSON, one message per row.
+ *
+ * Text and binary values bigger than the chunk size don't go in the row.
+ * The row has { "chunked" : true } in their place and each value follows it
+ * as a series of chunk messages, read a chunk at a time (see LobChunker).
+ * Binary values are base64 encoded.
+ *
+ * Rows can be filtered, and their columns replaced by computed fields, with
+ * RowExpressions before they are sent.
+ *
+ */
 public class JSONResultSetWrapper implements Iterator<String> {
 
 	static Logger logger = LoggerFactory.getLogger(JSONResultSetWrapper.class);
@@ -28,6 +47,15 @@ public class JSONResultSetWrapper implements Iterator<String> {
 	private boolean checkedNext = false;
 	private boolean hasNext = false;
 	private int keyColumn;
+	private int resultSetIndex = -1;
+	private int chunkSize = 65536;
+	// Values of the last row still to be sent in chunks.
+	private LinkedList<LobChunker> pending = new LinkedList<LobChunker>();
+	private RowExpression filter;
+	private Map<String,RowExpression> projection;
+	// The next row that passed the filter, read ahead by hasNext.
+	private JSONObject ahead;
+	private long filtered = 0;
 
 
 	public JSONResultSetWrapper(String tracer, ResultSet rs) throws SQLException {
@@ -98,6 +126,67 @@ public class JSONResultSetWrapper implements Iterator<String> {
         }
 	}
 
+	/**
+	 * Tell the wrapper that the ResultSet was already advanced to its first
+	 * row, by someone who wanted to know when it arrived.
+	 *
+	 * @param hasRow	What the ResultSet's next() returned
+	 */
+	public void setAdvanced(boolean hasRow) {
+
+		checkedNext = true;
+		hasNext = hasRow;
+	}
+
+	/**
+	 * Tag each row with the index of its ResultSet, for statements that
+	 * return more than one.
+	 *
+	 * @param index	The index, counting from 0
+	 */
+	public void setResultSetIndex(int index) {
+
+		resultSetIndex = index;
+	}
+
+	/**
+	 * Set the most characters, or bytes, of a value sent in one message.
+	 *
+	 * @param chunkSize	The size, 0 to never chunk values
+	 */
+	public void setChunkSize(int chunkSize) {
+
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Only send the rows the expression is true for.
+	 *
+	 * @param filter	The expression, or null for every row
+	 */
+	public void setFilter(RowExpression filter) {
+
+		this.filter = filter;
+	}
+
+	/**
+	 * Send these fields in each row's row_data instead of its columns.
+	 *
+	 * @param projection	Field names and their expressions, or null
+	 */
+	public void setProjection(Map<String,RowExpression> projection) {
+
+		this.projection = projection;
+	}
+
+	/**
+	 * @return How many rows the filter has left out so far
+	 */
+	public long getFiltered() {
+
+		return filtered;
+	}
+
 	/**
 	 * Returns true if this iterator has more values.  Also advances the
 	 * ResultSet, so always use this!  This is horrible, but it works. - CGW
@@ -105,6 +194,30 @@ public class JSONResultSetWrapper implements Iterator<String> {
 	@Override
 	public boolean hasNext() {
 
+		// A filtered row read ahead, then chunks of the last row, come first.
+		if(ahead != null || !pending.isEmpty()) {
+			return true;
+		}
+
+		if(filter != null) {
+			// Read rows until one passes.
+			while(advance()) {
+				JSONObject row = nextRow();
+				if(filter.matches((JSONObject) row.get("row_data"))) {
+					ahead = row;
+					return true;
+				}
+				filtered++;
+				dropPending(null);
+			}
+			return false;
+		}
+
+		return advance();
+	}
+
+	private boolean advance() {
+
 		// Don't advance the resultset unless next() has cleared the checkedNext
 		// sentinel.  This makes it save to call hasNext multiple times so long
 		// as next isn't called.
@@ -128,10 +241,79 @@ public class JSONResultSetWrapper implements Iterator<String> {
 	 * Returns the next item in the iterator.  Assumes you have called hasNext()
 	 * already, since that calls next() on the ResultSet. :)
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public String next() {
 
+		return nextObject().toString();
+	}
+
+	/**
+	 * Returns the next item as a JSONObject, for callers that want to do
+	 * more with it before it's sent.  Like next(), call hasNext() first.
+	 */
+	public JSONObject nextObject() {
+
+		if(ahead != null) {
+			JSONObject row = ahead;
+			ahead = null;
+			return project(row);
+		}
+		if(!pending.isEmpty()) {
+			return nextChunk();
+		}
+		return project(nextRow());
+	}
+
+	/*
+	 * Swap a row's columns for the projected fields.  Chunks of values the
+	 * projection passes on are sent under the field's name, the rest are
+	 * dropped.
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject project(JSONObject row) {
+
+		if(projection == null || !row.containsKey("row_data")) {
+			return row;
+		}
+		row.put("row_data", RowExpression.project(projection, (JSONObject) row.get("row_data")));
+		dropPending(projection);
+		return row;
+	}
+
+	/*
+	 * Close and forget the chunked values of the last row, except those a
+	 * projection passes on.
+	 */
+	private void dropPending(Map<String,RowExpression> keep) {
+
+		Iterator<LobChunker> iter = pending.iterator();
+		while(iter.hasNext()) {
+			LobChunker chunker = iter.next();
+			String field = null;
+			if(keep != null) {
+				Iterator<Map.Entry<String,RowExpression>> fields = keep.entrySet().iterator();
+				while(field == null && fields.hasNext()) {
+					Map.Entry<String,RowExpression> f = fields.next();
+					if(chunker.getColumn().equalsIgnoreCase(f.getValue().getColumn())) {
+						field = f.getKey();
+					}
+				}
+			}
+			if(field == null) {
+				chunker.close();
+				iter.remove();
+			} else {
+				chunker.setColumn(field);
+			}
+		}
+	}
+
+	/*
+	 * Encode the current row of the ResultSet.
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject nextRow() {
+
 		JSONObject obj = new JSONObject();
 
 		try {
@@ -146,6 +328,9 @@ public class JSONResultSetWrapper implements Iterator<String> {
 			}
 			lastRowNum = rowNum;
 			obj.put("row_num", new Integer(rowNum));
+			if(resultSetIndex >= 0) {
+				obj.put("result_set", new Integer(resultSetIndex));
+			}
 
 	        JSONObject data = new JSONObject();
 	        obj.put("row_data", data);
@@ -157,9 +342,27 @@ public class JSONResultSetWrapper implements Iterator<String> {
 	            switch (this.columnTypes[i - 1]) {
 	                case Types.CHAR        :
 	                case Types.VARCHAR     :
-	                case Types.LONGVARCHAR :
 	                    data.put(col_name, resultSet.getString(i));
 	                    break;
+	                case Types.LONGVARCHAR :
+	                	String s = resultSet.getString(i);
+	                	addLob(data, col_name, s == null ? null : new LobChunker(col_name, new StringReader(s), chunkFor(s.length())));
+	                	break;
+	                case Types.CLOB :
+	                case Types.NCLOB :
+	                	Clob clob = resultSet.getClob(i);
+	                	addLob(data, col_name, clob == null ? null : new LobChunker(col_name, clob.getCharacterStream(), chunkFor(clob.length())));
+	                	break;
+	                case Types.BLOB :
+	                	Blob blob = resultSet.getBlob(i);
+	                	addLob(data, col_name, blob == null ? null : new LobChunker(col_name, blob.getBinaryStream(), chunkFor(blob.length())));
+	                	break;
+	                case Types.BINARY        :
+	                case Types.VARBINARY     :
+	                case Types.LONGVARBINARY :
+	                	byte[] bytes = resultSet.getBytes(i);
+	                	addLob(data, col_name, bytes == null ? null : new LobChunker(col_name, new ByteArrayInputStream(bytes), chunkFor(bytes.length)));
+	                	break;
 	                case Types.NUMERIC :
 	                case Types.DECIMAL :
 	                    data.put(col_name, resultSet.getBigDecimal(i));
@@ -203,9 +406,76 @@ public class JSONResultSetWrapper implements Iterator<String> {
 	        checkedNext = false;
 		} catch(SQLException e) {
 			logger.error("Failed to JSON-ify resultset", e);
+			checkedNext = false;
+		} catch(IOException e) {
+			logger.error("Failed to read large value", e);
+			checkedNext = false;
+		}
+
+        return obj;
+	}
+
+	/*
+	 * The chunk size for a value, big enough for the whole value (with room
+	 * to round up to whole base64 groups) if values aren't chunked.
+	 */
+	private int chunkFor(long length) {
+
+		return chunkSize > 0 ? chunkSize : (int) Math.min(Integer.MAX_VALUE - 3, length) + 3;
+	}
+
+	/*
+	 * Put a value in the row if it fits in a chunk, otherwise leave a marker
+	 * and send it in chunks after the row.
+	 */
+	@SuppressWarnings("unchecked")
+	private void addLob(JSONObject data, String column, LobChunker chunker) throws IOException {
+
+		if(chunker == null) {
+			data.put(column, null);
+		} else if(chunker.fitsInOne()) {
+			String value = chunker.next();
+			data.put(column, value == null ? "" : value);
+		} else {
+			JSONObject marker = new JSONObject();
+			marker.put("chunked", Boolean.TRUE);
+			data.put(column, marker);
+			pending.add(chunker);
 		}
+	}
+
+	/*
+	 * The next chunk of a value from the last row.
+	 */
+	@SuppressWarnings("unchecked")
+	private JSONObject nextChunk() {
 
-        return obj.toString();
+		LobChunker chunker = pending.getFirst();
+		JSONObject obj = new JSONObject();
+		if(this.tracer != null) {
+			obj.put("tracer", this.tracer);
+		}
+		obj.put("row_num", new Integer(lastRowNum));
+		if(resultSetIndex >= 0) {
+			obj.put("result_set", new Integer(resultSetIndex));
+		}
+		obj.put("column", chunker.getColumn());
+		obj.put("chunk", new Integer(chunker.getIndex()));
+		try {
+			boolean last = chunker.isLast();
+			obj.put("data", chunker.next());
+			obj.put("last", Boolean.valueOf(last));
+			if(last) {
+				pending.removeFirst();
+			}
+		} catch(IOException e) {
+			logger.error("Failed to read chunk of " + chunker.getColumn(), e);
+			obj.put("ERROR", "Failed to read " + chunker.getColumn() + ": " + e.getMessage());
+			obj.put("last", Boolean.TRUE);
+			chunker.close();
+			pending.removeFirst();
+		}
+		return obj;
 	}
 
 	@Override
@@ -0,0 +1,170 @@
+package iinteractive.bullfinch.util;
+
+import java.util.HashMap;
+
+/**
+ * Keeps a running estimate of how long each kind of request (for the JDBC
+ * workers, each statement) takes, and counts the requests that were shed
+ * because they couldn't have finished in time.
+ *
+ * The estimate is an exponentially weighted moving average of the latency
+ * plus the moving average of its deviation, the same way TCP estimates
+ * round trip times, so a statement with erratic timings gets a more
+ * cautious estimate.
+ *
+ * Only requests that run give samples, so a statement that is shed every
+ * time would keep its estimate forever.  Instead one of its requests is let
+ * through every probeInterval milliseconds, so a statement that got fast
+ * again stops being shed.
+ *
+ * Estimators are shared, there is one per name.
+ *
+ */
+public class LatencyEstimator {
+
+	private static HashMap<String,LatencyEstimator> estimators = new HashMap<String,LatencyEstimator>();
+
+	private double alpha;
+	private int minSamples;
+	private long probeInterval;
+	private HashMap<String,Stat> stats = new HashMap<String,Stat>();
+
+	private long shed = 0;
+	private long accepted = 0;
+	private long probes = 0;
+
+	/**
+	 * Get an estimator, creating it if need be.
+	 *
+	 * @param name			Name of the estimator, usually the queue
+	 * @param alpha			Weight of each new sample, between 0 and 1
+	 * @param minSamples	Samples needed before there is an estimate
+	 * @param probeInterval	Milliseconds between requests let through while shedding
+	 * @return The estimator
+	 */
+	public static synchronized LatencyEstimator get(String name, double alpha, int minSamples, long probeInterval) {
+
+		LatencyEstimator estimator = estimators.get(name);
+		if(estimator == null) {
+			estimator = new LatencyEstimator(alpha, minSamples, probeInterval);
+			estimators.put(name, estimator);
+		}
+		return estimator;
+	}
+
+	public LatencyEstimator(double alpha, int minSamples) {
+
+		this(alpha, minSamples, 5000);
+	}
+
+	public LatencyEstimator(double alpha, int minSamples, long probeInterval) {
+
+		this.alpha = alpha;
+		this.minSamples = minSamples;
+		this.probeInterval = probeInterval;
+	}
+
+	/**
+	 * Add a sample.
+	 *
+	 * @param key		What was timed
+	 * @param millis	How long it took
+	 */
+	public synchronized void record(String key, long millis) {
+
+		Stat stat = stats.get(key);
+		if(stat == null) {
+			stat = new Stat();
+			stat.mean = millis;
+			stats.put(key, stat);
+		} else {
+			double error = millis - stat.mean;
+			stat.mean += alpha * error;
+			stat.deviation += alpha * (Math.abs(error) - stat.deviation);
+		}
+		stat.samples++;
+		stat.lastRun = System.currentTimeMillis();
+	}
+
+	/**
+	 * The expected latency.
+	 *
+	 * @param key	What is being estimated
+	 * @return Milliseconds, or -1 if there aren't enough samples yet.
+	 */
+	public synchronized long estimate(String key) {
+
+		Stat stat = stats.get(key);
+		if(stat == null || stat.samples < minSamples) {
+			return -1;
+		}
+		return (long) (stat.mean + stat.deviation);
+	}
+
+	/**
+	 * Decide whether a request with the given time left should be run.
+	 * Requests whose time is already up are always shed, others only when
+	 * there is an estimate and it doesn't fit, and a request for it was run
+	 * or let through as a probe within probeInterval.
+	 *
+	 * @param key		What is being run
+	 * @param remaining	Milliseconds until the deadline
+	 * @return True if the request should be shed
+	 */
+	public synchronized boolean shouldShed(String key, long remaining) {
+
+		long estimate = estimate(key);
+		boolean shedIt = remaining <= 0 || (estimate >= 0 && estimate > remaining);
+		if(shedIt && remaining > 0) {
+			// Let one through now and then for a fresh sample.
+			Stat stat = stats.get(key);
+			long now = System.currentTimeMillis();
+			if(now - stat.lastRun >= probeInterval) {
+				stat.lastRun = now;
+				probes++;
+				shedIt = false;
+			}
+		}
+		if(shedIt) {
+			shed++;
+		} else {
+			accepted++;
+		}
+		return shedIt;
+	}
+
+	public synchronized long getShed() {
+
+		return shed;
+	}
+
+	public synchronized long getAccepted() {
+
+		return accepted;
+	}
+
+	/**
+	 * @return How many requests were let through as probes
+	 */
+	public synchronized long getProbes() {
+
+		return probes;
+	}
+
+	/**
+	 * The fraction of requests shed so far.
+	 */
+	public synchronized double getShedRate() {
+
+		long total = shed + accepted;
+		return total == 0 ? 0 : (double) shed / total;
+	}
+
+	private static class Stat {
+
+		double mean;
+		double deviation = 0;
+		long samples = 0;
+		long lastRun = 0;
+	}
+}
@@ -0,0 +1,196 @@
+package iinteractive.bullfinch.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads a large column value a chunk at a time, from a Reader for text or an
+ * InputStream for binary values (which come out base64 encoded).
+ *
+ * One chunk is always read ahead, so the chunker knows whether the chunk it
+ * hands out is the last one and a value that fits in one chunk can be sent
+ * as is.  Only a few chunks' worth of memory is used, whatever the size of
+ * the value.
+ *
+ */
+public class LobChunker {
+
+	static Logger logger = LoggerFactory.getLogger(LobChunker.class);
+
+	private static final int PEEK_NONE = -2;
+	private static final int PEEK_END = -1;
+
+	private String column;
+	private Reader reader;
+	private InputStream stream;
+	private char[] chars;
+	private byte[] bytes;
+	private char[] charScratch;
+	private byte[] byteScratch;
+
+	private String ahead;
+	private int peeked = PEEK_NONE;
+	private int index = 0;
+
+	/**
+	 * Chunk a text value.
+	 *
+	 * @param column	The column's name
+	 * @param reader	The value
+	 * @param chunkSize	Characters per chunk
+	 */
+	public LobChunker(String column, Reader reader, int chunkSize) throws IOException {
+
+		this.column = column;
+		this.reader = reader;
+		this.chars = new char[Math.max(1, chunkSize)];
+		this.charScratch = new char[chars.length];
+		this.ahead = read();
+	}
+
+	/**
+	 * Chunk a binary value.  Chunks are a multiple of three bytes so each
+	 * can be decoded on its own.
+	 *
+	 * @param column	The column's name
+	 * @param stream	The value
+	 * @param chunkSize	Bytes per chunk, before encoding
+	 */
+	public LobChunker(String column, InputStream stream, int chunkSize) throws IOException {
+
+		this.column = column;
+		this.stream = stream;
+		this.bytes = new byte[Math.max(3, chunkSize - chunkSize % 3)];
+		this.byteScratch = new byte[bytes.length];
+		this.ahead = read();
+	}
+
+	/**
+	 * @return True if the whole value fits in the first chunk, or is empty.
+	 */
+	public boolean fitsInOne() throws IOException {
+
+		return index == 0 && isLast();
+	}
+
+	/**
+	 * The next chunk.
+	 *
+	 * @return The chunk, or null if there are no more.
+	 */
+	public String next() throws IOException {
+
+		if(ahead == null) {
+			return null;
+		}
+		String chunk = ahead;
+		ahead = read();
+		index++;
+		if(ahead == null) {
+			close();
+		}
+		return chunk;
+	}
+
+	/**
+	 * @return True if the chunk next hands out is the last one.
+	 */
+	public boolean isLast() throws IOException {
+
+		return ahead == null || peekEnd();
+	}
+
+	/**
+	 * @return The index of the chunk next will hand out, counting from 0.
+	 */
+	public int getIndex() {
+
+		return index;
+	}
+
+	public String getColumn() {
+
+		return column;
+	}
+
+	/**
+	 * Send the chunks under another name.
+	 */
+	public void setColumn(String column) {
+
+		this.column = column;
+	}
+
+	public boolean isBinary() {
+
+		return stream != null;
+	}
+
+	public void close() {
+
+		try {
+			if(reader != null) {
+				reader.close();
+			}
+			if(stream != null) {
+				stream.close();
+			}
+		} catch(IOException e) {
+			logger.debug("Failed to close LOB", e);
+		}
+	}
+
+	/*
+	 * Read one more character or byte to tell if the value ends after the
+	 * chunk read ahead.  It's kept for the next read.
+	 */
+	private boolean peekEnd() throws IOException {
+
+		if(peeked == PEEK_NONE) {
+			peeked = reader != null ? reader.read() : stream.read();
+			if(peeked < 0) {
+				peeked = PEEK_END;
+			}
+		}
+		return peeked == PEEK_END;
+	}
+
+	/*
+	 * Fill a chunk, or return null at the end of the value.  Reads go to
+	 * the start of a scratch buffer, some drivers' LOB streams (hsqldb's
+	 * for one) get reads at an offset wrong.
+	 */
+	private String read() throws IOException {
+
+		if(peeked == PEEK_END) {
+			return null;
+		}
+		int length = 0;
+		if(reader != null) {
+			if(peeked != PEEK_NONE) {
+				chars[length++] = (char) peeked;
+			}
+			peeked = PEEK_NONE;
+			int n;
+			while(length < chars.length && (n = reader.read(charScratch, 0, chars.length - length)) > 0) {
+				System.arraycopy(charScratch, 0, chars, length, n);
+				length += n;
+			}
+			return length == 0 ? null : new String(chars, 0, length);
+		}
+		if(peeked != PEEK_NONE) {
+			bytes[length++] = (byte) peeked;
+		}
+		peeked = PEEK_NONE;
+		int n;
+		while(length < bytes.length && (n = stream.read(byteScratch, 0, bytes.length - length)) > 0) {
+			System.arraycopy(byteScratch, 0, bytes, length, n);
+			length += n;
+		}
+		return length == 0 ? null : Base64.encode(bytes, length);
+	}
+}
@@ -0,0 +1,292 @@
+package iinteractive.bullfinch.util;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A small table kept in memory, with hash indexes on some of its columns,
+ * so lookups don't have to go to the database.
+ *
+ * The rows are replaced whole when the table is reloaded, readers carry on
+ * with the rows they started with.  Loading is left to the caller: a table
+ * says when it's due with claimRefresh, and whoever claims it loads it,
+ * calls loaded if it worked, and then release.
+ *
+ * Tables are shared, there is one per name.
+ *
+ */
+public class ReferenceTable {
+
+	private static HashMap<String,ReferenceTable> tables = new HashMap<String,ReferenceTable>();
+
+	/**
+	 * Milliseconds between tries at loading a table that failed to load.
+	 */
+	public static final long RETRY = 30000;
+
+	private String name;
+	private List<List<String>> indexColumns;
+	private long interval;
+
+	private volatile Contents contents;
+	private Object changeToken;
+	private boolean refreshing = false;
+	private long nextRefresh = 0;
+
+	private long loads = 0;
+	private long hits = 0;
+
+	/**
+	 * Get a table, creating it if need be.
+	 *
+	 * @param name		Name of the table
+	 * @param indexes	The columns of each index
+	 * @param interval	Milliseconds between refreshes, 0 for never
+	 * @return The table
+	 */
+	public static synchronized ReferenceTable get(String name, List<List<String>> indexes, long interval) {
+
+		ReferenceTable table = tables.get(name);
+		if(table == null) {
+			table = new ReferenceTable(name, indexes, interval);
+			tables.put(name, table);
+		}
+		return table;
+	}
+
+	public ReferenceTable(String name, List<List<String>> indexes, long interval) {
+
+		this.name = name;
+		this.indexColumns = indexes;
+		this.interval = interval;
+	}
+
+	/**
+	 * Find the index on the given columns.
+	 *
+	 * @param columns	The columns, in any case
+	 * @return The index's number, or -1 if there's no such index
+	 */
+	public int findIndex(List<String> columns) {
+
+		for(int i = 0; i < indexColumns.size(); i++) {
+			List<String> index = indexColumns.get(i);
+			if(index.size() != columns.size()) {
+				continue;
+			}
+			boolean same = true;
+			for(int j = 0; j < index.size() && same; j++) {
+				same = index.get(j).equalsIgnoreCase(columns.get(j));
+			}
+			if(same) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return How many columns the index has
+	 */
+	public int getIndexSize(int index) {
+
+		return indexColumns.get(index).size();
+	}
+
+	/**
+	 * Replace the rows.
+	 *
+	 * @param rows			The row_data of each row
+	 * @param changeToken	What the change query said, or null
+	 */
+	public void loaded(List<JSONObject> rows, Object changeToken) {
+
+		List<HashMap<String,List<JSONObject>>> indexes = new ArrayList<HashMap<String,List<JSONObject>>>(indexColumns.size());
+		for(int i = 0; i < indexColumns.size(); i++) {
+			List<String> columns = indexColumns.get(i);
+			HashMap<String,List<JSONObject>> index = new HashMap<String,List<JSONObject>>(rows.size() * 4 / 3 + 1);
+			for(int j = 0; j < rows.size(); j++) {
+				JSONObject row = rows.get(j);
+				List<Object> values = new ArrayList<Object>(columns.size());
+				for(int k = 0; k < columns.size(); k++) {
+					values.add(value(row, columns.get(k)));
+				}
+				String key = keyOf(values);
+				List<JSONObject> matches = index.get(key);
+				if(matches == null) {
+					matches = new ArrayList<JSONObject>(1);
+					index.put(key, matches);
+				}
+				matches.add(row);
+			}
+			indexes.add(index);
+		}
+		this.contents = new Contents(Collections.unmodifiableList(rows), indexes);
+
+		synchronized(this) {
+			this.changeToken = changeToken;
+			loads++;
+		}
+	}
+
+	/**
+	 * @return True once the table has been loaded.
+	 */
+	public boolean isLoaded() {
+
+		return contents != null;
+	}
+
+	/**
+	 * Look rows up in an index.
+	 *
+	 * @param index		The index's number, from findIndex
+	 * @param values	A value for each column of the index
+	 * @return The matching rows, or null if the table isn't loaded.
+	 */
+	public List<JSONObject> lookup(int index, List<Object> values) {
+
+		Contents c = contents;
+		if(c == null) {
+			return null;
+		}
+		synchronized(this) {
+			hits++;
+		}
+		List<JSONObject> matches = c.indexes.get(index).get(keyOf(values));
+		return matches != null ? matches : Collections.<JSONObject>emptyList();
+	}
+
+	/**
+	 * @return Every row, or null if the table isn't loaded.
+	 */
+	public List<JSONObject> getRows() {
+
+		Contents c = contents;
+		if(c == null) {
+			return null;
+		}
+		synchronized(this) {
+			hits++;
+		}
+		return c.rows;
+	}
+
+	/**
+	 * Claim the table for refreshing if it's due and nobody else has it.
+	 * A table that was never loaded is due every RETRY milliseconds until
+	 * it is.
+	 */
+	public synchronized boolean claimRefresh(long now) {
+
+		if(refreshing || now < nextRefresh || (contents != null && interval <= 0)) {
+			return false;
+		}
+		refreshing = true;
+		return true;
+	}
+
+	/**
+	 * Give up a claim, the table's refresh is done or failed.
+	 */
+	public synchronized void release() {
+
+		refreshing = false;
+		long wait = interval;
+		if(contents == null && (wait <= 0 || wait > RETRY)) {
+			wait = RETRY;
+		}
+		nextRefresh = System.currentTimeMillis() + wait;
+	}
+
+	/**
+	 * @return What the change query said when the table was loaded
+	 */
+	public synchronized Object getChangeToken() {
+
+		return changeToken;
+	}
+
+	public String getName() {
+
+		return name;
+	}
+
+	public synchronized long getLoads() {
+
+		return loads;
+	}
+
+	public synchronized long getHits() {
+
+		return hits;
+	}
+
+	public int size() {
+
+		Contents c = contents;
+		return c == null ? 0 : c.rows.size();
+	}
+
+	/*
+	 * Values of different types that mean the same, like 4 the Integer and
+	 * 4 the Long, make the same key.
+	 */
+	private static String keyOf(List<Object> values) {
+
+		StringBuilder key = new StringBuilder();
+		for(int i = 0; i < values.size(); i++) {
+			Object value = values.get(i);
+			if(value == null) {
+				key.append('z');
+			} else if(value instanceof Number) {
+				String s;
+				try {
+					s = new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+				} catch(NumberFormatException e) {
+					s = value.toString();
+				}
+				key.append('n').append(s);
+			} else if(value instanceof Boolean) {
+				key.append('b').append(value);
+			} else {
+				key.append('s').append(value);
+			}
+			key.append('\u0000');
+		}
+		return key.toString();
+	}
+
+	private static Object value(JSONObject row, String column) {
+
+		if(row.containsKey(column)) {
+			return row.get(column);
+		}
+		Iterator<?> names = row.keySet().iterator();
+		while(names.hasNext()) {
+			String name = (String) names.next();
+			if(name.equalsIgnoreCase(column)) {
+				return row.get(name);
+			}
+		}
+		return null;
+	}
+
+	private static class Contents {
+
+		List<JSONObject> rows;
+		List<HashMap<String,List<JSONObject>>> indexes;
+
+		Contents(List<JSONObject> rows, List<HashMap<String,List<JSONObject>>> indexes) {
+
+			this.rows = rows;
+			this.indexes = indexes;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package iinteractive.bullfinch.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Keeps the results of read statements for a while, tagged with the tables
+ * they read, so that a write to one of those tables can throw them out.
+ *
+ * Each tag has a generation that goes up when it's invalidated.  A reader
+ * takes a stamp of its tags' generations before it queries, and its result
+ * is only kept if none of them moved in the meantime, so a read that raced
+ * a write can't put a stale result back.
+ *
+ * The cache holds at most maxEntries results, dropping the least recently
+ * used first.
+ *
+ * Caches are shared, there is one per name.  Writes on other nodes reach
+ * them through InvalidationListener.
+ *
+ */
+public class ResultCache {
+
+	private static HashMap<String,ResultCache> caches = new HashMap<String,ResultCache>();
+
+	/**
+	 * Names this process in invalidations it sends to other nodes.
+	 */
+	public static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+	private int maxEntries;
+	private LinkedHashMap<String,Entry> entries;
+	private HashMap<String,HashSet<String>> keysByTag = new HashMap<String,HashSet<String>>();
+	private HashMap<String,Long> generations = new HashMap<String,Long>();
+	// Goes up when the whole cache is cleared.
+	private long epoch = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long invalidated = 0;
+
+	/**
+	 * Get a cache, creating it if need be.
+	 *
+	 * @param name			Name of the cache, usually the DSN
+	 * @param maxEntries	Most results to keep
+	 * @return The cache
+	 */
+	public static synchronized ResultCache get(String name, int maxEntries) {
+
+		ResultCache cache = caches.get(name);
+		if(cache == null) {
+			cache = new ResultCache(maxEntries);
+			caches.put(name, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Get a cache if there is one.
+	 *
+	 * @param name	Name of the cache, usually the DSN
+	 * @return The cache, or null
+	 */
+	public static synchronized ResultCache find(String name) {
+
+		return caches.get(name);
+	}
+
+	public ResultCache(int maxEntries) {
+
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Look up a result.
+	 *
+	 * @param key	The statement and its params
+	 * @return The rows' row_data, or null if there's no fresh result.
+	 */
+	public synchronized List<JSONObject> get(String key) {
+
+		Entry entry = entries.get(key);
+		if(entry != null && entry.expiresAt < System.currentTimeMillis()) {
+			remove(key);
+			entry = null;
+		}
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.rows;
+	}
+
+	/**
+	 * Take a stamp of the tags' generations, before querying.
+	 */
+	public synchronized long[] stamp(List<String> tags) {
+
+		long[] stamp = new long[tags.size() + 1];
+		for(int i = 0; i < tags.size(); i++) {
+			stamp[i] = generation(tags.get(i));
+		}
+		stamp[tags.size()] = epoch;
+		return stamp;
+	}
+
+	/**
+	 * Keep a result, unless one of its tags was invalidated since the stamp
+	 * was taken.
+	 *
+	 * @param key		The statement and its params
+	 * @param rows		The rows' row_data
+	 * @param tags		The tables the statement reads
+	 * @param stamp		The stamp taken before the query
+	 * @param ttl		Milliseconds to keep the result
+	 * @return True if the result was kept
+	 */
+	public synchronized boolean put(String key, List<JSONObject> rows, List<String> tags, long[] stamp, long ttl) {
+
+		if(stamp[tags.size()] != epoch) {
+			return false;
+		}
+		for(int i = 0; i < tags.size(); i++) {
+			if(generation(tags.get(i)) != stamp[i]) {
+				return false;
+			}
+		}
+		remove(key);
+		entries.put(key, new Entry(Collections.unmodifiableList(rows), tags, System.currentTimeMillis() + ttl));
+		for(int i = 0; i < tags.size(); i++) {
+			String tag = tags.get(i).toLowerCase();
+			HashSet<String> keys = keysByTag.get(tag);
+			if(keys == null) {
+				keys = new HashSet<String>();
+				keysByTag.put(tag, keys);
+			}
+			keys.add(key);
+		}
+
+		while(entries.size() > maxEntries) {
+			remove(entries.keySet().iterator().next());
+		}
+		return true;
+	}
+
+	/**
+	 * Throw out every result tagged with one of the tags.
+	 *
+	 * @param tags	The tables written to
+	 * @return How many results were thrown out
+	 */
+	public synchronized int invalidate(Collection<String> tags) {
+
+		int removed = 0;
+		Iterator<String> iter = tags.iterator();
+		while(iter.hasNext()) {
+			String tag = iter.next().toLowerCase();
+			generations.put(tag, new Long(generation(tag) + 1));
+			HashSet<String> keys = keysByTag.remove(tag);
+			if(keys == null) {
+				continue;
+			}
+			Iterator<String> k = keys.iterator();
+			while(k.hasNext()) {
+				if(remove(k.next())) {
+					removed++;
+				}
+			}
+		}
+		invalidated += removed;
+		return removed;
+	}
+
+	/**
+	 * Throw out every result, for when invalidations may have been missed.
+	 *
+	 * @return How many results were thrown out
+	 */
+	public synchronized int clear() {
+
+		int removed = entries.size();
+		entries.clear();
+		keysByTag.clear();
+		epoch++;
+		invalidated += removed;
+		return removed;
+	}
+
+	public synchronized int size() {
+
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+
+		return misses;
+	}
+
+	public synchronized long getInvalidated() {
+
+		return invalidated;
+	}
+
+	private long generation(String tag) {
+
+		Long gen = generations.get(tag.toLowerCase());
+		return gen == null ? 0 : gen.longValue();
+	}
+
+	/*
+	 * Drop a result, and take it out of the tag index.
+	 */
+	private boolean remove(String key) {
+
+		Entry entry = entries.remove(key);
+		if(entry == null) {
+			return false;
+		}
+		Iterator<String> tags = entry.tags.iterator();
+		while(tags.hasNext()) {
+			String tag = tags.next();
+			HashSet<String> keys = keysByTag.get(tag);
+			if(keys != null) {
+				keys.remove(key);
+				if(keys.isEmpty()) {
+					keysByTag.remove(tag);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static class Entry {
+
+		List<JSONObject> rows;
+		HashSet<String> tags = new HashSet<String>();
+		long expiresAt;
+
+		Entry(List<JSONObject> rows, List<String> tags, long expiresAt) {
+
+			this.rows = rows;
+			for(int i = 0; i < tags.size(); i++) {
+				this.tags.add(tags.get(i).toLowerCase());
+			}
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,793 @@
+package iinteractive.bullfinch.util;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A small expression over the columns of a row, used to filter rows and
+ * compute fields before they are sent.
+ *
+ * Expressions are compiled once and then evaluated against the row_data of
+ * each row.  They only ever read the row, nothing in them reaches the
+ * database or the JVM.  The language has:
+ *
+ * <ul>
+ * <li>column names (matched without regard to case), numbers, 'strings',
+ * true, false and null</li>
+ * <li>+ - * / % on numbers</li>
+ * <li>= != &lt;&gt; &lt; &lt;= &gt; &gt;=, IS [NOT] NULL and IN (a, b, ...)</li>
+ * <li>AND, OR, NOT and parentheses</li>
+ * <li>the functions lower, upper, length, abs, round, coalesce, concat,
+ * starts_with and contains</li>
+ * </ul>
+ *
+ * Comparing with null, or values of different types, is never true, and
+ * sums with a null in them are null.  Chunked values read as null.
+ *
+ */
+public abstract class RowExpression {
+
+	/**
+	 * The longest expression accepted.
+	 */
+	public static final int MAX_LENGTH = 1024;
+
+	/**
+	 * The deepest nesting accepted.
+	 */
+	public static final int MAX_DEPTH = 32;
+
+	private static final MathContext CONTEXT = MathContext.DECIMAL64;
+
+	/**
+	 * Compile an expression.
+	 *
+	 * @param source	The expression
+	 * @return The compiled expression
+	 * @throws ParseException if it isn't a valid expression
+	 */
+	public static RowExpression compile(String source) throws ParseException {
+
+		if(source == null) {
+			throw new ParseException("Empty expression", 0);
+		}
+		if(source.length() > MAX_LENGTH) {
+			throw new ParseException("Expression longer than " + MAX_LENGTH + " characters", MAX_LENGTH);
+		}
+		return new Parser(source).parse();
+	}
+
+	/**
+	 * Evaluate the expression.
+	 *
+	 * @param row	The row's row_data
+	 * @return A Boolean, BigDecimal, String or null
+	 */
+	public abstract Object evaluate(JSONObject row);
+
+	/**
+	 * @return True if the expression is true for the row.
+	 */
+	public boolean matches(JSONObject row) {
+
+		return Boolean.TRUE.equals(evaluate(row));
+	}
+
+	/**
+	 * @return The column if the expression is just a column name, else null.
+	 */
+	public String getColumn() {
+
+		return null;
+	}
+
+	/**
+	 * Apply a projection to a row.
+	 *
+	 * @param projection	Field names and their expressions, in order
+	 * @param row			The row's row_data
+	 * @return The new row_data
+	 */
+	@SuppressWarnings("unchecked")
+	public static JSONObject project(Map<String,RowExpression> projection, JSONObject row) {
+
+		JSONObject out = new JSONObject();
+		Iterator<Map.Entry<String,RowExpression>> iter = projection.entrySet().iterator();
+		while(iter.hasNext()) {
+			Map.Entry<String,RowExpression> field = iter.next();
+			String column = field.getValue().getColumn();
+			if(column != null) {
+				// Keep the value as it is, a chunk marker included.
+				out.put(field.getKey(), Column.raw(row, column));
+			} else {
+				out.put(field.getKey(), field.getValue().evaluate(row));
+			}
+		}
+		return out;
+	}
+
+	/*
+	 * A value from the row, as one of the types expressions work with.
+	 */
+	private static Object normalize(Object value) {
+
+		if(value instanceof BigDecimal || value instanceof String || value instanceof Boolean || value == null) {
+			return value;
+		}
+		if(value instanceof Number) {
+			try {
+				return new BigDecimal(value.toString());
+			} catch(NumberFormatException e) {
+				// NaN or infinity
+				return null;
+			}
+		}
+		// A chunked value's marker, or something else we can't use.
+		return null;
+	}
+
+	/*
+	 * Compare two values, null if they can't be compared.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Integer compare(Object a, Object b) {
+
+		if(a == null || b == null) {
+			return null;
+		}
+		if(a instanceof BigDecimal && b instanceof BigDecimal) {
+			return new Integer(((BigDecimal) a).compareTo((BigDecimal) b));
+		}
+		if(a.getClass() == b.getClass()) {
+			return new Integer(((Comparable) a).compareTo(b));
+		}
+		return null;
+	}
+
+	private static class Literal extends RowExpression {
+
+		private Object value;
+
+		Literal(Object value) {
+
+			this.value = value;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			return value;
+		}
+	}
+
+	private static class Column extends RowExpression {
+
+		private String name;
+
+		Column(String name) {
+
+			this.name = name;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			return normalize(raw(row, name));
+		}
+
+		@Override
+		public String getColumn() {
+
+			return name;
+		}
+
+		/*
+		 * A value from the row as it is.
+		 */
+		static Object raw(JSONObject row, String name) {
+
+			if(row.containsKey(name)) {
+				return row.get(name);
+			}
+			Iterator<?> names = row.keySet().iterator();
+			while(names.hasNext()) {
+				String other = (String) names.next();
+				if(other.equalsIgnoreCase(name)) {
+					return row.get(other);
+				}
+			}
+			return null;
+		}
+	}
+
+	private static class Not extends RowExpression {
+
+		private RowExpression operand;
+
+		Not(RowExpression operand) {
+
+			this.operand = operand;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			Object value = operand.evaluate(row);
+			return value instanceof Boolean ? Boolean.valueOf(!((Boolean) value).booleanValue()) : null;
+		}
+	}
+
+	private static class Negate extends RowExpression {
+
+		private RowExpression operand;
+
+		Negate(RowExpression operand) {
+
+			this.operand = operand;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			Object value = operand.evaluate(row);
+			return value instanceof BigDecimal ? ((BigDecimal) value).negate() : null;
+		}
+	}
+
+	private static class Logical extends RowExpression {
+
+		private boolean and;
+		private RowExpression left;
+		private RowExpression right;
+
+		Logical(boolean and, RowExpression left, RowExpression right) {
+
+			this.and = and;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			boolean l = left.matches(row);
+			if(and ? !l : l) {
+				return Boolean.valueOf(l);
+			}
+			return Boolean.valueOf(right.matches(row));
+		}
+	}
+
+	private static class Comparison extends RowExpression {
+
+		private String op;
+		private RowExpression left;
+		private RowExpression right;
+
+		Comparison(String op, RowExpression left, RowExpression right) {
+
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			Integer c = compare(left.evaluate(row), right.evaluate(row));
+			if(c == null) {
+				return Boolean.FALSE;
+			}
+			int i = c.intValue();
+			boolean result;
+			if(op.equals("=")) {
+				result = i == 0;
+			} else if(op.equals("!=")) {
+				result = i != 0;
+			} else if(op.equals("<")) {
+				result = i < 0;
+			} else if(op.equals("<=")) {
+				result = i <= 0;
+			} else if(op.equals(">")) {
+				result = i > 0;
+			} else {
+				result = i >= 0;
+			}
+			return Boolean.valueOf(result);
+		}
+	}
+
+	private static class IsNull extends RowExpression {
+
+		private RowExpression operand;
+		private boolean negated;
+
+		IsNull(RowExpression operand, boolean negated) {
+
+			this.operand = operand;
+			this.negated = negated;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			return Boolean.valueOf((operand.evaluate(row) == null) != negated);
+		}
+	}
+
+	private static class In extends RowExpression {
+
+		private RowExpression operand;
+		private List<RowExpression> values;
+		private boolean negated;
+
+		In(RowExpression operand, List<RowExpression> values, boolean negated) {
+
+			this.operand = operand;
+			this.values = values;
+			this.negated = negated;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			Object value = operand.evaluate(row);
+			if(value == null) {
+				return Boolean.FALSE;
+			}
+			for(int i = 0; i < values.size(); i++) {
+				Integer c = compare(value, values.get(i).evaluate(row));
+				if(c != null && c.intValue() == 0) {
+					return Boolean.valueOf(!negated);
+				}
+			}
+			return Boolean.valueOf(negated);
+		}
+	}
+
+	private static class Arithmetic extends RowExpression {
+
+		private char op;
+		private RowExpression left;
+		private RowExpression right;
+
+		Arithmetic(char op, RowExpression left, RowExpression right) {
+
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			Object l = left.evaluate(row);
+			Object r = right.evaluate(row);
+			if(!(l instanceof BigDecimal) || !(r instanceof BigDecimal)) {
+				return null;
+			}
+			BigDecimal a = (BigDecimal) l;
+			BigDecimal b = (BigDecimal) r;
+			switch(op) {
+				case '+' :
+					return a.add(b, CONTEXT);
+				case '-' :
+					return a.subtract(b, CONTEXT);
+				case '*' :
+					return a.multiply(b, CONTEXT);
+				case '/' :
+					return b.signum() == 0 ? null : a.divide(b, CONTEXT);
+				default :
+					return b.signum() == 0 ? null : a.remainder(b, CONTEXT);
+			}
+		}
+	}
+
+	private static class Function extends RowExpression {
+
+		private String name;
+		private List<RowExpression> args;
+
+		Function(String name, List<RowExpression> args) {
+
+			this.name = name;
+			this.args = args;
+		}
+
+		@Override
+		public Object evaluate(JSONObject row) {
+
+			if(name.equals("coalesce")) {
+				for(int i = 0; i < args.size(); i++) {
+					Object value = args.get(i).evaluate(row);
+					if(value != null) {
+						return value;
+					}
+				}
+				return null;
+			}
+			if(name.equals("concat")) {
+				StringBuilder s = new StringBuilder();
+				for(int i = 0; i < args.size(); i++) {
+					Object value = args.get(i).evaluate(row);
+					if(value != null) {
+						s.append(value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : value.toString());
+					}
+				}
+				return s.toString();
+			}
+
+			Object value = args.get(0).evaluate(row);
+			if(name.equals("lower")) {
+				return value instanceof String ? ((String) value).toLowerCase() : null;
+			}
+			if(name.equals("upper")) {
+				return value instanceof String ? ((String) value).toUpperCase() : null;
+			}
+			if(name.equals("length")) {
+				return value instanceof String ? new BigDecimal(((String) value).length()) : null;
+			}
+			if(name.equals("abs")) {
+				return value instanceof BigDecimal ? ((BigDecimal) value).abs() : null;
+			}
+			if(name.equals("round")) {
+				if(!(value instanceof BigDecimal)) {
+					return null;
+				}
+				int places = 0;
+				if(args.size() > 1) {
+					Object p = args.get(1).evaluate(row);
+					if(!(p instanceof BigDecimal)) {
+						return null;
+					}
+					places = Math.max(0, Math.min(MAX_LENGTH, ((BigDecimal) p).intValue()));
+				}
+				return ((BigDecimal) value).setScale(places, BigDecimal.ROUND_HALF_UP);
+			}
+
+			// starts_with and contains
+			Object other = args.get(1).evaluate(row);
+			if(!(value instanceof String) || !(other instanceof String)) {
+				return Boolean.FALSE;
+			}
+			if(name.equals("starts_with")) {
+				return Boolean.valueOf(((String) value).startsWith((String) other));
+			}
+			return Boolean.valueOf(((String) value).indexOf((String) other) >= 0);
+		}
+	}
+
+	/*
+	 * A recursive descent parser, lowest precedence first:
+	 *
+	 *   or      := and ( OR and )*
+	 *   and     := not ( AND not )*
+	 *   not     := NOT not | compare
+	 *   compare := sum [ op sum | IS [NOT] NULL | [NOT] IN ( expr, ... ) ]
+	 *   sum     := product ( [+-] product )*
+	 *   product := unary ( [*%/] unary )*
+	 *   unary   := - unary | atom
+	 *   atom    := number | string | TRUE | FALSE | NULL | name
+	 *            | function ( expr, ... ) | ( or )
+	 */
+	private static class Parser {
+
+		private String source;
+		private int pos = 0;
+		private int depth = 0;
+
+		Parser(String source) {
+
+			this.source = source;
+		}
+
+		RowExpression parse() throws ParseException {
+
+			RowExpression expr = or();
+			skipSpace();
+			if(pos < source.length()) {
+				throw error("Unexpected '" + source.charAt(pos) + "'");
+			}
+			return expr;
+		}
+
+		private RowExpression or() throws ParseException {
+
+			enter();
+			RowExpression left = and();
+			while(keyword("or")) {
+				left = new Logical(false, left, and());
+			}
+			depth--;
+			return left;
+		}
+
+		private RowExpression and() throws ParseException {
+
+			RowExpression left = not();
+			while(keyword("and")) {
+				left = new Logical(true, left, not());
+			}
+			return left;
+		}
+
+		private RowExpression not() throws ParseException {
+
+			if(keyword("not")) {
+				enter();
+				RowExpression operand = not();
+				depth--;
+				return new Not(operand);
+			}
+			return compare();
+		}
+
+		private RowExpression compare() throws ParseException {
+
+			RowExpression left = sum();
+			skipSpace();
+			String[] ops = { "<=", ">=", "!=", "<>", "==", "=", "<", ">" };
+			for(int i = 0; i < ops.length; i++) {
+				if(source.startsWith(ops[i], pos)) {
+					pos += ops[i].length();
+					String op = ops[i];
+					if(op.equals("<>")) {
+						op = "!=";
+					} else if(op.equals("==")) {
+						op = "=";
+					}
+					return new Comparison(op, left, sum());
+				}
+			}
+			if(keyword("is")) {
+				boolean negated = keyword("not");
+				if(!keyword("null")) {
+					throw error("Expected NULL after IS");
+				}
+				return new IsNull(left, negated);
+			}
+			int mark = pos;
+			boolean negated = keyword("not");
+			if(keyword("in")) {
+				expect('(');
+				return new In(left, arguments(), negated);
+			}
+			pos = mark;
+			return left;
+		}
+
+		private RowExpression sum() throws ParseException {
+
+			RowExpression left = product();
+			while(true) {
+				skipSpace();
+				if(pos < source.length() && (source.charAt(pos) == '+' || source.charAt(pos) == '-')) {
+					char op = source.charAt(pos++);
+					left = new Arithmetic(op, left, product());
+				} else {
+					return left;
+				}
+			}
+		}
+
+		private RowExpression product() throws ParseException {
+
+			RowExpression left = unary();
+			while(true) {
+				skipSpace();
+				if(pos < source.length() && "*/%".indexOf(source.charAt(pos)) >= 0) {
+					char op = source.charAt(pos++);
+					left = new Arithmetic(op, left, unary());
+				} else {
+					return left;
+				}
+			}
+		}
+
+		private RowExpression unary() throws ParseException {
+
+			skipSpace();
+			if(pos < source.length() && source.charAt(pos) == '-') {
+				pos++;
+				enter();
+				RowExpression operand = unary();
+				depth--;
+				return new Negate(operand);
+			}
+			return atom();
+		}
+
+		private RowExpression atom() throws ParseException {
+
+			skipSpace();
+			if(pos >= source.length()) {
+				throw error("Unexpected end of expression");
+			}
+			char c = source.charAt(pos);
+
+			if(c == '(') {
+				pos++;
+				RowExpression expr = or();
+				expect(')');
+				return expr;
+			}
+
+			if(c == '\'' || c == '"') {
+				return new Literal(string(c));
+			}
+
+			if(Character.isDigit(c) || c == '.') {
+				int start = pos;
+				while(pos < source.length() && (Character.isDigit(source.charAt(pos)) || source.charAt(pos) == '.')) {
+					pos++;
+				}
+				try {
+					return new Literal(new BigDecimal(source.substring(start, pos)));
+				} catch(NumberFormatException e) {
+					throw new ParseException("Bad number '" + source.substring(start, pos) + "'", start);
+				}
+			}
+
+			if(Character.isLetter(c) || c == '_') {
+				int start = pos;
+				String word = word();
+				String lower = word.toLowerCase();
+				if(lower.equals("true")) {
+					return new Literal(Boolean.TRUE);
+				}
+				if(lower.equals("false")) {
+					return new Literal(Boolean.FALSE);
+				}
+				if(lower.equals("null")) {
+					return new Literal(null);
+				}
+				if(isReserved(lower)) {
+					throw new ParseException("Unexpected " + word.toUpperCase(), start);
+				}
+				skipSpace();
+				if(pos < source.length() && source.charAt(pos) == '(') {
+					pos++;
+					return function(lower, start);
+				}
+				return new Column(word);
+			}
+
+			throw error("Unexpected '" + c + "'");
+		}
+
+		private RowExpression function(String name, int start) throws ParseException {
+
+			int min;
+			int max;
+			if(name.equals("lower") || name.equals("upper") || name.equals("length") || name.equals("abs")) {
+				min = max = 1;
+			} else if(name.equals("round")) {
+				min = 1;
+				max = 2;
+			} else if(name.equals("starts_with") || name.equals("contains")) {
+				min = max = 2;
+			} else if(name.equals("coalesce") || name.equals("concat")) {
+				min = 1;
+				max = Integer.MAX_VALUE;
+			} else {
+				throw new ParseException("Unknown function " + name, start);
+			}
+			List<RowExpression> args = arguments();
+			if(args.size() < min || args.size() > max) {
+				throw new ParseException("Wrong number of arguments to " + name, start);
+			}
+			return new Function(name, args);
+		}
+
+		/*
+		 * A list of expressions up to a closing parenthesis, the opening
+		 * one already read.
+		 */
+		private List<RowExpression> arguments() throws ParseException {
+
+			List<RowExpression> args = new ArrayList<RowExpression>();
+			skipSpace();
+			if(pos < source.length() && source.charAt(pos) == ')') {
+				pos++;
+				return args;
+			}
+			while(true) {
+				args.add(or());
+				skipSpace();
+				if(pos < source.length() && source.charAt(pos) == ',') {
+					pos++;
+				} else {
+					expect(')');
+					return args;
+				}
+			}
+		}
+
+		/*
+		 * A quoted string, a doubled quote stands for itself.
+		 */
+		private String string(char quote) throws ParseException {
+
+			int start = pos++;
+			StringBuilder s = new StringBuilder();
+			while(pos < source.length()) {
+				char c = source.charAt(pos++);
+				if(c == quote) {
+					if(pos < source.length() && source.charAt(pos) == quote) {
+						pos++;
+					} else {
+						return s.toString();
+					}
+				}
+				s.append(c);
+			}
+			throw new ParseException("Unterminated string", start);
+		}
+
+		private String word() {
+
+			int start = pos;
+			while(pos < source.length() && (Character.isLetterOrDigit(source.charAt(pos)) || source.charAt(pos) == '_')) {
+				pos++;
+			}
+			return source.substring(start, pos);
+		}
+
+		/*
+		 * Read a keyword if it's next.
+		 */
+		private boolean keyword(String keyword) {
+
+			skipSpace();
+			int start = pos;
+			if(pos < source.length() && Character.isLetter(source.charAt(pos))) {
+				if(word().equalsIgnoreCase(keyword)) {
+					return true;
+				}
+			}
+			pos = start;
+			return false;
+		}
+
+		private boolean isReserved(String word) {
+
+			return word.equals("and") || word.equals("or") || word.equals("not")
+				|| word.equals("is") || word.equals("in");
+		}
+
+		private void expect(char c) throws ParseException {
+
+			skipSpace();
+			if(pos >= source.length() || source.charAt(pos) != c) {
+				throw error("Expected '" + c + "'");
+			}
+			pos++;
+		}
+
+		private void enter() throws ParseException {
+
+			if(++depth > MAX_DEPTH) {
+				throw error("Expression nested more than " + MAX_DEPTH + " deep");
+			}
+		}
+
+		private void skipSpace() {
+
+			while(pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+				pos++;
+			}
+		}
+
+		private ParseException error(String message) {
+
+			return new ParseException(message + " at " + pos, pos);
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package iinteractive.bullfinch.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the last result of a query, keyed by its key columns, and works out
+ * what changed when the query is run again.
+ *
+ * Each change is a delta:
+ *
+ *   { "op" : "insert", "key" : 4, "row_data" : { ... } }
+ *   { "op" : "update", "key" : 4, "row_data" : { ... } }
+ *   { "op" : "delete", "key" : 4 }
+ *
+ * The key is the value of the key column, or a list of values if there are
+ * several.  The version counts the results that changed anything.
+ *
+ */
+public class SnapshotDiff {
+
+	static Logger logger = LoggerFactory.getLogger(SnapshotDiff.class);
+
+	private List<String> keyColumns;
+	private LinkedHashMap<String,Entry> rows = new LinkedHashMap<String,Entry>();
+	private long version = 0;
+
+	/**
+	 * @param keyColumns	The columns that identify a row
+	 */
+	public SnapshotDiff(List<String> keyColumns) {
+
+		this.keyColumns = keyColumns;
+	}
+
+	/**
+	 * Take a new result and work out what changed.
+	 *
+	 * @param result	The row_data of each row
+	 * @return The deltas, in the order of the new result with deletes last
+	 */
+	public List<JSONObject> update(List<JSONObject> result) {
+
+		List<JSONObject> deltas = new ArrayList<JSONObject>();
+		LinkedHashMap<String,Entry> next = new LinkedHashMap<String,Entry>(result.size() * 4 / 3 + 1);
+		int duplicates = 0;
+
+		for(int i = 0; i < result.size(); i++) {
+			JSONObject row = result.get(i);
+			Object key = keyOf(row);
+			String id = idOf(key);
+			if(next.containsKey(id)) {
+				duplicates++;
+			}
+			next.put(id, new Entry(key, row));
+
+			Entry old = rows.get(id);
+			if(old == null) {
+				deltas.add(delta("insert", key, row));
+			} else if(!old.row.equals(row)) {
+				deltas.add(delta("update", key, row));
+			}
+		}
+
+		Iterator<Map.Entry<String,Entry>> iter = rows.entrySet().iterator();
+		while(iter.hasNext()) {
+			Map.Entry<String,Entry> e = iter.next();
+			if(!next.containsKey(e.getKey())) {
+				deltas.add(delta("delete", e.getValue().key, null));
+			}
+		}
+
+		if(duplicates > 0) {
+			logger.warn(duplicates + " rows had a key already seen, only the last of each was kept");
+		}
+
+		rows = next;
+		if(!deltas.isEmpty()) {
+			version++;
+		}
+		return deltas;
+	}
+
+	/**
+	 * The whole of the last result, as inserts.
+	 */
+	public List<JSONObject> getRows() {
+
+		List<JSONObject> all = new ArrayList<JSONObject>(rows.size());
+		Collection<Entry> entries = rows.values();
+		Iterator<Entry> iter = entries.iterator();
+		while(iter.hasNext()) {
+			Entry e = iter.next();
+			all.add(delta("insert", e.key, e.row));
+		}
+		return all;
+	}
+
+	public long getVersion() {
+
+		return version;
+	}
+
+	public int size() {
+
+		return rows.size();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object keyOf(JSONObject row) {
+
+		if(keyColumns.size() == 1) {
+			return value(row, keyColumns.get(0));
+		}
+		JSONArray key = new JSONArray();
+		for(int i = 0; i < keyColumns.size(); i++) {
+			key.add(value(row, keyColumns.get(i)));
+		}
+		return key;
+	}
+
+	/*
+	 * The key as a string, so that keys of any type can be looked up.
+	 */
+	@SuppressWarnings("unchecked")
+	private static String idOf(Object key) {
+
+		if(key instanceof JSONArray) {
+			return key.toString();
+		}
+		JSONArray id = new JSONArray();
+		id.add(key);
+		return id.toString();
+	}
+
+	private static Object value(JSONObject row, String column) {
+
+		if(row.containsKey(column)) {
+			return row.get(column);
+		}
+		Iterator<?> names = row.keySet().iterator();
+		while(names.hasNext()) {
+			String name = (String) names.next();
+			if(name.equalsIgnoreCase(column)) {
+				return row.get(name);
+			}
+		}
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject delta(String op, Object key, JSONObject row) {
+
+		JSONObject delta = new JSONObject();
+		delta.put("op", op);
+		delta.put("key", key);
+		if(row != null) {
+			delta.put("row_data", row);
+		}
+		return delta;
+	}
+
+	private static class Entry {
+
+		Object key;
+		JSONObject row;
+
+		Entry(Object key, JSONObject row) {
+
+			this.key = key;
+			this.row = row;
+		}
+	}
+}
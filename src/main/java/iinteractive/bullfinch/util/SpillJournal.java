@@ -0,0 +1,438 @@
+package iinteractive.bullfinch.util;
+
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.KestrelRefusedException;
+import iinteractive.bullfinch.minion.KestrelTransport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local, append-only journal for items that couldn't be put into kestrel.
+ *
+ * The journal is a fixed size, memory-mapped ring.  Each record holds the
+ * queue, the expiry and the item.  A replayer thread drains records in the
+ * order they were written once kestrel's circuit lets requests through
+ * again.  When the ring is full new records are refused, so the journal never
+ * grows past max_bytes.
+ *
+ * Expiries are kept as unix times, items that expired while waiting are
+ * dropped rather than replayed.  So are items kestrel answers but refuses,
+ * replaying them again would only resend the rest of their batch.
+ *
+ * The header at the start of the file keeps the read and write positions,
+ * so a backlog survives a restart.  How often the mapping is forced to disk
+ * is controlled by the fsync policy:
+ *
+ * - always: after every write and every replayed batch
+ * - interval: at most every fsyncInterval milliseconds
+ * - never: leave it to the OS
+ *
+ * While there is something to tell, the replayer reports the backlog and
+ * how many items were replayed and dropped (refused or expired) since the
+ * last report as "Spill backlog", "Spill replayed" and "Spill dropped".
+ *
+ * Journals are shared, there is one per file.
+ *
+ */
+public class SpillJournal {
+
+	static Logger logger = LoggerFactory.getLogger(SpillJournal.class);
+
+	public enum FsyncPolicy {
+		ALWAYS, INTERVAL, NEVER
+	}
+
+	private static final int MAGIC = 0x42465350; // BFSP
+	private static final int HEADER = 32;
+	private static final int WRAP = -1;
+	private static final int REPLAY_BATCH = 64;
+
+	private static HashMap<String,SpillJournal> journals = new HashMap<String,SpillJournal>();
+
+	private String path;
+	private int capacity;
+	private FsyncPolicy fsyncPolicy;
+	private long fsyncInterval;
+	private MappedByteBuffer map;
+
+	private int readPos;
+	private int writePos;
+	private int count;
+	private long lastSync = System.currentTimeMillis();
+
+	private long spilled = 0;
+	private long replayed = 0;
+	private long refused = 0;
+	private long expired = 0;
+	private long rejected = 0;
+	private long reportedReplayed = 0;
+	private long reportedDropped = 0;
+	private Thread replayer;
+
+	/**
+	 * Get the journal for a file, opening it if need be.
+	 *
+	 * @param path			The journal file
+	 * @param maxBytes		Size of the journal, used when creating it
+	 * @param fsyncPolicy	When to force writes to disk
+	 * @param fsyncInterval	Milliseconds between forces for the INTERVAL policy
+	 * @return The journal
+	 */
+	public static synchronized SpillJournal open(String path, int maxBytes, FsyncPolicy fsyncPolicy, long fsyncInterval) throws IOException {
+
+		String key = new File(path).getCanonicalPath();
+		SpillJournal journal = journals.get(key);
+		if(journal == null) {
+			journal = new SpillJournal(key, maxBytes, fsyncPolicy, fsyncInterval);
+			journals.put(key, journal);
+		}
+		return journal;
+	}
+
+	private SpillJournal(String path, int maxBytes, FsyncPolicy fsyncPolicy, long fsyncInterval) throws IOException {
+
+		this.path = path;
+		this.fsyncPolicy = fsyncPolicy;
+		this.fsyncInterval = fsyncInterval;
+
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			boolean existing = file.length() >= HEADER;
+			this.capacity = existing ? (int) file.length() : Math.max(maxBytes, HEADER * 2);
+			FileChannel channel = file.getChannel();
+			this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		} finally {
+			// The mapping stays valid after the file is closed.
+			file.close();
+		}
+
+		if(map.getInt(0) == MAGIC) {
+			readPos = map.getInt(4);
+			writePos = map.getInt(8);
+			count = map.getInt(12);
+			if(count > 0) {
+				logger.warn("Spill journal " + path + " has " + count + " items waiting to be replayed");
+			}
+		} else {
+			readPos = HEADER;
+			writePos = HEADER;
+			count = 0;
+			map.putInt(0, MAGIC);
+			writeHeader();
+		}
+	}
+
+	/**
+	 * Start the replayer thread if it isn't running.
+	 *
+	 * @param transport		A transport for the replayer's own use
+	 * @param breaker		The circuit breaker for the kestrel server
+	 * @param idle			Milliseconds to sleep when there is nothing to do
+	 * @param collector		Where to report the journal's counts, may be null
+	 */
+	public synchronized void startReplayer(final KestrelTransport transport, final CircuitBreaker breaker, final long idle, final PerformanceCollector collector) {
+
+		if(replayer != null) {
+			return;
+		}
+		replayer = new Thread(new Runnable() {
+			public void run() {
+				while(!Thread.currentThread().isInterrupted()) {
+					try {
+						drain(transport, breaker);
+						sync(false);
+						if(collector != null) {
+							report(collector);
+						}
+						long wait = breaker.getRetryDelay();
+						Thread.sleep(wait > 0 ? wait : idle);
+					} catch(InterruptedException e) {
+						return;
+					} catch(Exception e) {
+						logger.error("Error replaying spill journal", e);
+					}
+				}
+			}
+		}, "spill-replayer");
+		replayer.setDaemon(true);
+		replayer.start();
+	}
+
+	/**
+	 * Append an item.
+	 *
+	 * @param queue		The queue it was meant for
+	 * @param expiry	When the item expires in unix seconds, 0 for never
+	 * @param message	The item
+	 * @return False if the journal is full.
+	 */
+	public synchronized boolean append(String queue, int expiry, String message) {
+
+		byte[] q;
+		byte[] m;
+		try {
+			q = queue.getBytes("UTF-8");
+			m = message.getBytes("UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		// length, expiry, queue length, queue, message
+		int size = 4 + 4 + 2 + q.length + m.length;
+
+		int at = reserve(size);
+		if(at < 0) {
+			refused++;
+			return false;
+		}
+		map.position(at);
+		map.putInt(size - 4);
+		map.putInt(expiry);
+		map.putShort((short) q.length);
+		map.put(q);
+		map.put(m);
+		writePos = at + size;
+		count++;
+		spilled++;
+		writeHeader();
+		sync(fsyncPolicy == FsyncPolicy.ALWAYS);
+		return true;
+	}
+
+	/**
+	 * Replay as much of the journal as kestrel will take, in order.
+	 *
+	 * @param transport	Where to send the items
+	 * @param breaker	The circuit breaker for the kestrel server
+	 * @return The number of items replayed
+	 */
+	public int drain(KestrelTransport transport, CircuitBreaker breaker) {
+
+		int sent = 0;
+		while(hasBacklog() && breaker.allowRequest()) {
+			int pos;
+			int available;
+			synchronized(this) {
+				pos = readPos;
+				available = count;
+			}
+			int batch = 0;
+			int dropped = 0;
+			try {
+				int now = (int) (System.currentTimeMillis() / 1000);
+				while(batch < REPLAY_BATCH && batch < available) {
+					Record r = read(pos);
+					if(r.expiry == 0) {
+						transport.set(r.queue, 0, r.message);
+					} else if(r.expiry > now) {
+						transport.set(r.queue, r.expiry - now, r.message);
+					} else {
+						dropped++;
+					}
+					pos = r.next;
+					batch++;
+				}
+				transport.flush();
+				breaker.recordSuccess();
+			} catch(KestrelRefusedException e) {
+				logger.error(e.getMessage() + ", dropping them from spill journal");
+				for(int i = 0; i < e.getItems().size(); i++) {
+					logger.error("Response meant for '" + e.getItems().get(i).getQueue() + "': " + e.getItems().get(i).getMessage());
+				}
+				breaker.recordFailure();
+				commit(pos, batch, dropped, e.getItems().size());
+				return sent + batch - dropped - e.getItems().size();
+			} catch(Exception e) {
+				logger.warn("Kestrel still unavailable, " + getBacklogItems() + " items remain in spill journal", e);
+				breaker.recordFailure();
+				return sent;
+			}
+			commit(pos, batch, dropped, 0);
+			sent += batch - dropped;
+		}
+		if(sent > 0) {
+			logger.info("Replayed " + sent + " items from spill journal, " + getBacklogItems() + " remain");
+		}
+		return sent;
+	}
+
+	/**
+	 * Add the backlog and what was replayed and dropped since the last
+	 * report to the collector.  Nothing is added while the journal is idle.
+	 *
+	 * @param collector	The collector
+	 */
+	public synchronized void report(PerformanceCollector collector) {
+
+		long dropped = refused + expired + rejected;
+		if(count == 0 && replayed == reportedReplayed && dropped == reportedDropped) {
+			return;
+		}
+		collector.add("Spill backlog", count, null);
+		collector.add("Spill replayed", replayed - reportedReplayed, null);
+		collector.add("Spill dropped", dropped - reportedDropped, null);
+		reportedReplayed = replayed;
+		reportedDropped = dropped;
+	}
+
+	public synchronized boolean hasBacklog() {
+
+		return count > 0;
+	}
+
+	public synchronized int getBacklogItems() {
+
+		return count;
+	}
+
+	/**
+	 * Bytes of journal in use.
+	 */
+	public synchronized int getBacklogBytes() {
+
+		if(count == 0) {
+			return 0;
+		}
+		if(writePos > readPos) {
+			return writePos - readPos;
+		}
+		return (capacity - readPos) + (writePos - HEADER);
+	}
+
+	public synchronized long getSpilled() {
+
+		return spilled;
+	}
+
+	public synchronized long getReplayed() {
+
+		return replayed;
+	}
+
+	/**
+	 * Items kestrel wouldn't take when they were replayed.
+	 */
+	public synchronized long getRejected() {
+
+		return rejected;
+	}
+
+	public synchronized long getRefused() {
+
+		return refused;
+	}
+
+	/**
+	 * Items that expired before they could be replayed.
+	 */
+	public synchronized long getExpired() {
+
+		return expired;
+	}
+
+	public String getPath() {
+
+		return path;
+	}
+
+	/*
+	 * Find room for a record, wrapping around to the start of the ring if
+	 * need be.  Returns -1 if there's no room.
+	 */
+	private int reserve(int size) {
+
+		if(count == 0) {
+			readPos = HEADER;
+			writePos = HEADER;
+		}
+		if(size > capacity - HEADER) {
+			return -1;
+		}
+		if(count == 0 || writePos > readPos) {
+			if(capacity - writePos >= size) {
+				return writePos;
+			}
+			// Wrap, if the start of the ring has been read.
+			if(readPos - HEADER > size) {
+				if(capacity - writePos >= 4) {
+					map.putInt(writePos, WRAP);
+				}
+				return HEADER;
+			}
+			return -1;
+		}
+		// Already wrapped, we can write up to the reader.
+		return readPos - writePos > size ? writePos : -1;
+	}
+
+	private synchronized Record read(int pos) {
+
+		if(capacity - pos < 4 || map.getInt(pos) == WRAP) {
+			pos = HEADER;
+		}
+		int length = map.getInt(pos);
+		Record r = new Record();
+		r.expiry = map.getInt(pos + 4);
+		int qlen = map.getShort(pos + 8);
+		byte[] q = new byte[qlen];
+		byte[] m = new byte[length - 6 - qlen];
+		map.position(pos + 10);
+		map.get(q);
+		map.get(m);
+		try {
+			r.queue = new String(q, "UTF-8");
+			r.message = new String(m, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		r.next = pos + 4 + length;
+		return r;
+	}
+
+	private synchronized void commit(int pos, int items, int dropped, int refusedByKestrel) {
+
+		readPos = pos;
+		count -= items;
+		replayed += items - dropped - refusedByKestrel;
+		expired += dropped;
+		rejected += refusedByKestrel;
+		if(count == 0) {
+			readPos = HEADER;
+			writePos = HEADER;
+		}
+		writeHeader();
+		sync(fsyncPolicy == FsyncPolicy.ALWAYS);
+	}
+
+	private void writeHeader() {
+
+		map.putInt(4, readPos);
+		map.putInt(8, writePos);
+		map.putInt(12, count);
+	}
+
+	private synchronized void sync(boolean force) {
+
+		long now = System.currentTimeMillis();
+		if(force || (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastSync >= fsyncInterval)) {
+			map.force();
+			lastSync = now;
+		}
+	}
+
+	private static class Record {
+
+		String queue;
+		int expiry;
+		String message;
+		int next;
+	}
+}
@@ -0,0 +1,246 @@
+package iinteractive.bullfinch.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Keeps one client (tenant) from taking over a group of workers.
+ *
+ * Each tenant has a token bucket: it may make rate requests a second, with
+ * bursts of up to burst requests.  Requests beyond that are throttled.
+ *
+ * The workers of the group are also shared out between the tenants that are
+ * active, in proportion to their weights.  A tenant already using its share
+ * has its request deferred, put back at the end of the queue, unless it has
+ * been deferred maxDefers times already.  A tenant with nobody else around
+ * can use every worker.
+ *
+ * Tenants that have been idle for activeWindow, with nothing in flight and
+ * a full bucket, are forgotten, since they'd come back just the same.
+ * Tenants given their own limits are kept.
+ *
+ * Limiters are shared, there is one per name.
+ *
+ */
+public class TenantLimiter {
+
+	public enum Decision {
+		ADMIT, THROTTLE, DEFER
+	}
+
+	private static HashMap<String,TenantLimiter> limiters = new HashMap<String,TenantLimiter>();
+
+	private double defaultRate;
+	private double defaultBurst;
+	private int defaultWeight;
+	private long activeWindow;
+	private int maxDefers;
+	private int workers = 0;
+
+	private HashMap<String,Tenant> tenants = new HashMap<String,Tenant>();
+	private long lastSweep = System.currentTimeMillis();
+
+	/**
+	 * Get a limiter, creating it if need be.
+	 *
+	 * @param name			Name of the limiter, usually the queue
+	 * @param rate			Requests a second per tenant, 0 for no limit
+	 * @param burst			Most requests a tenant can save up
+	 * @param weight		Share of the workers each tenant gets
+	 * @param activeWindow	Milliseconds a tenant counts as active after a request
+	 * @param maxDefers		Most times a request is deferred
+	 * @return The limiter
+	 */
+	public static synchronized TenantLimiter get(String name, double rate, double burst, int weight, long activeWindow, int maxDefers) {
+
+		TenantLimiter limiter = limiters.get(name);
+		if(limiter == null) {
+			limiter = new TenantLimiter(rate, burst, weight, activeWindow, maxDefers);
+			limiters.put(name, limiter);
+		}
+		return limiter;
+	}
+
+	public TenantLimiter(double rate, double burst, int weight, long activeWindow, int maxDefers) {
+
+		this.defaultRate = rate;
+		this.defaultBurst = Math.max(1, burst);
+		this.defaultWeight = Math.max(1, weight);
+		this.activeWindow = activeWindow;
+		this.maxDefers = maxDefers;
+	}
+
+	/**
+	 * Count a worker that takes requests through this limiter.
+	 */
+	public synchronized void addWorker() {
+
+		workers++;
+	}
+
+	/**
+	 * Give a tenant limits other than the defaults.
+	 */
+	public synchronized void setTenant(String name, double rate, double burst, int weight) {
+
+		Tenant tenant = tenant(name);
+		tenant.configured = true;
+		tenant.rate = rate;
+		tenant.burst = Math.max(1, burst);
+		tenant.weight = Math.max(1, weight);
+		tenant.tokens = Math.min(tenant.tokens, tenant.burst);
+	}
+
+	/**
+	 * Decide what to do with a tenant's request.  Admitted requests must be
+	 * matched by a call to done.
+	 *
+	 * @param name		The tenant
+	 * @param deferrals	How many times the request was deferred already
+	 * @return ADMIT, THROTTLE or DEFER
+	 */
+	public synchronized Decision admit(String name, int deferrals) {
+
+		long now = System.currentTimeMillis();
+		if(now - lastSweep > activeWindow) {
+			sweep(now);
+		}
+		Tenant tenant = tenant(name);
+		tenant.lastSeen = now;
+
+		if(deferrals < maxDefers && tenant.inFlight >= share(tenant, now)) {
+			tenant.deferred++;
+			return Decision.DEFER;
+		}
+
+		if(tenant.rate > 0) {
+			// A tenant made just now may have been refilled after now.
+			tenant.tokens = Math.min(tenant.burst, tenant.tokens + Math.max(0, now - tenant.refilled) * tenant.rate / 1000);
+			tenant.refilled = now;
+			if(tenant.tokens < 1) {
+				tenant.throttled++;
+				return Decision.THROTTLE;
+			}
+			tenant.tokens -= 1;
+		}
+		tenant.inFlight++;
+		tenant.admitted++;
+		return Decision.ADMIT;
+	}
+
+	/**
+	 * Note that an admitted request is finished.
+	 */
+	public synchronized void done(String name) {
+
+		Tenant tenant = tenants.get(name);
+		if(tenant != null && tenant.inFlight > 0) {
+			tenant.inFlight--;
+		}
+	}
+
+	/*
+	 * The workers a tenant may use, out of those of the group, given the
+	 * weights of the tenants active right now.
+	 */
+	private int share(Tenant tenant, long now) {
+
+		int totalWeight = 0;
+		Iterator<Tenant> iter = tenants.values().iterator();
+		while(iter.hasNext()) {
+			Tenant other = iter.next();
+			if(other == tenant || other.inFlight > 0 || now - other.lastSeen <= activeWindow) {
+				totalWeight += other.weight;
+			}
+		}
+		return Math.max(1, (int) Math.ceil((double) Math.max(workers, 1) * tenant.weight / totalWeight));
+	}
+
+	/*
+	 * Forget the tenants that would come back just as they are.
+	 */
+	private void sweep(long now) {
+
+		lastSweep = now;
+		Iterator<Tenant> iter = tenants.values().iterator();
+		while(iter.hasNext()) {
+			Tenant tenant = iter.next();
+			if(tenant.configured || tenant.inFlight > 0 || now - tenant.lastSeen <= activeWindow) {
+				continue;
+			}
+			if(tenant.rate > 0 && tenant.tokens + Math.max(0, now - tenant.refilled) * tenant.rate / 1000 < tenant.burst) {
+				continue;
+			}
+			iter.remove();
+		}
+	}
+
+	/**
+	 * @return How many tenants are being kept track of
+	 */
+	public synchronized int size() {
+
+		return tenants.size();
+	}
+
+	private Tenant tenant(String name) {
+
+		Tenant tenant = tenants.get(name);
+		if(tenant == null) {
+			tenant = new Tenant(defaultRate, defaultBurst, defaultWeight);
+			tenants.put(name, tenant);
+		}
+		return tenant;
+	}
+
+	/**
+	 * @return The tenant's throttled requests so far
+	 */
+	public synchronized long getThrottled(String name) {
+
+		Tenant tenant = tenants.get(name);
+		return tenant == null ? 0 : tenant.throttled;
+	}
+
+	/**
+	 * @return The tenant's deferred requests so far
+	 */
+	public synchronized long getDeferred(String name) {
+
+		Tenant tenant = tenants.get(name);
+		return tenant == null ? 0 : tenant.deferred;
+	}
+
+	/**
+	 * @return The tenant's admitted requests so far
+	 */
+	public synchronized long getAdmitted(String name) {
+
+		Tenant tenant = tenants.get(name);
+		return tenant == null ? 0 : tenant.admitted;
+	}
+
+	private static class Tenant {
+
+		double rate;
+		double burst;
+		int weight;
+		double tokens;
+		long refilled = System.currentTimeMillis();
+		long lastSeen = 0;
+		int inFlight = 0;
+		boolean configured = false;
+
+		long admitted = 0;
+		long throttled = 0;
+		long deferred = 0;
+
+		Tenant(double rate, double burst, int weight) {
+
+			this.rate = rate;
+			this.burst = burst;
+			this.weight = weight;
+			this.tokens = burst;
+		}
+	}
+}
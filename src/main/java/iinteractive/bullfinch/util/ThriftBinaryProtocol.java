@@ -0,0 +1,274 @@
+package iinteractive.bullfinch.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Just enough of Thrift's binary protocol and framed transport to talk to
+ * kestrel's thrift service without dragging in libthrift.  Messages are
+ * built in memory and written as a single frame.
+ *
+ */
+public class ThriftBinaryProtocol {
+
+	public static final byte STOP   = 0;
+	public static final byte BOOL   = 2;
+	public static final byte BYTE   = 3;
+	public static final byte DOUBLE = 4;
+	public static final byte I16    = 6;
+	public static final byte I32    = 8;
+	public static final byte I64    = 10;
+	public static final byte STRING = 11;
+	public static final byte STRUCT = 12;
+	public static final byte MAP    = 13;
+	public static final byte SET    = 14;
+	public static final byte LIST   = 15;
+
+	public static final byte CALL      = 1;
+	public static final byte REPLY     = 2;
+	public static final byte EXCEPTION = 3;
+
+	private static final int VERSION_1 = 0x80010000;
+	private static final int VERSION_MASK = 0xffff0000;
+
+	/**
+	 * Read one frame off the stream.
+	 *
+	 * @param in	The stream
+	 * @return A reader positioned at the start of the frame.
+	 */
+	public static Reader readFrame(InputStream in) throws IOException {
+
+		DataInputStream din = new DataInputStream(in);
+		int size = din.readInt();
+		if(size < 0 || size > 64 * 1024 * 1024) {
+			throw new IOException("Bad thrift frame size " + size);
+		}
+		byte[] frame = new byte[size];
+		din.readFully(frame);
+		return new Reader(frame);
+	}
+
+	/**
+	 * Builds a single framed message.
+	 */
+	public static class Writer {
+
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(bytes);
+
+		public Writer writeMessageBegin(String name, byte type, int seqId) throws IOException {
+
+			out.writeInt(VERSION_1 | type);
+			writeString(name);
+			out.writeInt(seqId);
+			return this;
+		}
+
+		public Writer writeFieldBegin(byte type, int id) throws IOException {
+
+			out.writeByte(type);
+			out.writeShort(id);
+			return this;
+		}
+
+		public Writer writeFieldStop() throws IOException {
+
+			out.writeByte(STOP);
+			return this;
+		}
+
+		public Writer writeListBegin(byte elemType, int size) throws IOException {
+
+			out.writeByte(elemType);
+			out.writeInt(size);
+			return this;
+		}
+
+		public Writer writeI32(int i) throws IOException {
+
+			out.writeInt(i);
+			return this;
+		}
+
+		public Writer writeI64(long l) throws IOException {
+
+			out.writeLong(l);
+			return this;
+		}
+
+		public Writer writeString(String s) throws IOException {
+
+			return writeBinary(s.getBytes("UTF-8"));
+		}
+
+		public Writer writeBinary(byte[] b) throws IOException {
+
+			out.writeInt(b.length);
+			out.write(b);
+			return this;
+		}
+
+		/**
+		 * Write the length-prefixed frame to the stream.
+		 */
+		public void writeFrame(OutputStream os) throws IOException {
+
+			out.flush();
+			DataOutputStream dos = new DataOutputStream(os);
+			dos.writeInt(bytes.size());
+			bytes.writeTo(dos);
+			dos.flush();
+		}
+	}
+
+	/**
+	 * Reads fields out of a single frame.
+	 */
+	public static class Reader {
+
+		private DataInputStream in;
+
+		public String messageName;
+		public byte messageType;
+		public int seqId;
+		public byte fieldType;
+		public short fieldId;
+
+		public Reader(byte[] frame) {
+
+			in = new DataInputStream(new ByteArrayInputStream(frame));
+		}
+
+		public void readMessageBegin() throws IOException {
+
+			int version = in.readInt();
+			if((version & VERSION_MASK) != VERSION_1) {
+				throw new IOException("Unsupported thrift message version");
+			}
+			messageType = (byte) (version & 0xff);
+			messageName = readString();
+			seqId = in.readInt();
+		}
+
+		/**
+		 * Read the next field header into fieldType and fieldId.
+		 *
+		 * @return False at the end of the struct.
+		 */
+		public boolean readFieldBegin() throws IOException {
+
+			fieldType = in.readByte();
+			if(fieldType == STOP) {
+				return false;
+			}
+			fieldId = in.readShort();
+			return true;
+		}
+
+		/**
+		 * Read a list or set header.
+		 *
+		 * @return The number of elements
+		 */
+		public int readListBegin() throws IOException {
+
+			in.readByte();
+			return in.readInt();
+		}
+
+		public int readI32() throws IOException {
+
+			return in.readInt();
+		}
+
+		public long readI64() throws IOException {
+
+			return in.readLong();
+		}
+
+		public String readString() throws IOException {
+
+			return new String(readBinary(), "UTF-8");
+		}
+
+		public byte[] readBinary() throws IOException {
+
+			int size = in.readInt();
+			byte[] b = new byte[size];
+			in.readFully(b);
+			return b;
+		}
+
+		/**
+		 * Skip a value of the given type.
+		 */
+		public void skip(byte type) throws IOException {
+
+			switch(type) {
+				case BOOL :
+				case BYTE :
+					in.readByte();
+					break;
+				case I16 :
+					in.readShort();
+					break;
+				case I32 :
+					in.readInt();
+					break;
+				case DOUBLE :
+				case I64 :
+					in.readLong();
+					break;
+				case STRING :
+					readBinary();
+					break;
+				case STRUCT :
+					while(readFieldBegin()) {
+						skip(fieldType);
+					}
+					break;
+				case MAP :
+					byte keyType = in.readByte();
+					byte valueType = in.readByte();
+					int entries = in.readInt();
+					for(int i = 0; i < entries; i++) {
+						skip(keyType);
+						skip(valueType);
+					}
+					break;
+				case SET :
+				case LIST :
+					byte elemType = in.readByte();
+					int size = in.readInt();
+					for(int i = 0; i < size; i++) {
+						skip(elemType);
+					}
+					break;
+				default :
+					throw new IOException("Can't skip thrift type " + type);
+			}
+		}
+
+		/**
+		 * Read the message of a TApplicationException struct.
+		 */
+		public String readException() throws IOException {
+
+			String message = "Unknown thrift exception";
+			while(readFieldBegin()) {
+				if(fieldId == 1 && fieldType == STRING) {
+					message = readString();
+				} else {
+					skip(fieldType);
+				}
+			}
+			return message;
+		}
+	}
+}
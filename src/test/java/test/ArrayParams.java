@@ -0,0 +1,108 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+import test.util.JDBCWorkerConfig;
+
+public class ArrayParams {
+
+	private Connection conn;
+	private JDBCQueryRunner worker;
+	private MemcachedClient kestrel = new FakeKestrel();
+	private PerformanceCollector pc = new PerformanceCollector("test", false);
+
+	@Before
+	public void setup() throws Exception {
+
+		String dsn = "jdbc:hsqldb:mem:arrays";
+		conn = DriverManager.getConnection(dsn, "SA", "");
+		Statement st = conn.createStatement();
+		st.execute("CREATE TABLE PUBLIC.ARRAY_TABLE (an_int INTEGER, a_string VARCHAR(32))");
+		for(int i = 1; i <= 20; i++) {
+			st.execute("INSERT INTO PUBLIC.ARRAY_TABLE (an_int, a_string) VALUES (" + i + ", 'row" + i + "')");
+		}
+		st.close();
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(dsn, "SELECT an_int FROM PUBLIC.ARRAY_TABLE");
+		config.addStatement("getInts", "SELECT an_int FROM PUBLIC.ARRAY_TABLE WHERE an_int IN (?) AND a_string <> '?' ORDER BY an_int", "INTEGER_ARRAY");
+		config.addStatement("getStrings", "SELECT an_int FROM PUBLIC.ARRAY_TABLE WHERE a_string IN (?) AND an_int < ? ORDER BY an_int", "STRING_ARRAY", "INTEGER");
+		config.put("max_array_size", new Long(10));
+
+		worker = new JDBCQueryRunner(pc);
+		worker.setClient(kestrel);
+		worker.configure(config.getConfig());
+	}
+
+	@After
+	public void teardown() throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute("DROP TABLE PUBLIC.ARRAY_TABLE");
+		st.close();
+		conn.close();
+	}
+
+	@Test
+	public void testIntegers() throws Exception {
+
+		assertEquals("three of them", "[3, 5, 7]", ints("{\"statement\":\"getInts\",\"params\":[[3,5,7]]}").toString());
+		assertEquals("one", "[11]", ints("{\"statement\":\"getInts\",\"params\":[[11]]}").toString());
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+
+		JSONObject request = (JSONObject) JSONValue.parse("{\"statement\":\"getInts\",\"params\":[[]]}");
+		worker.handle(pc, "responses", request);
+		String error = kestrel.get("responses");
+		assertTrue("empty list refused", error.contains("is an empty list"));
+		assertTrue("no rows", kestrel.get("responses") == null);
+	}
+
+	@Test
+	public void testMixed() throws Exception {
+
+		assertEquals("strings and a scalar", "[2, 4]", ints("{\"statement\":\"getStrings\",\"params\":[[\"row2\",\"row4\",\"row16\"],10]}").toString());
+	}
+
+	@Test
+	public void testTooMany() throws Exception {
+
+		JSONObject request = (JSONObject) JSONValue.parse("{\"statement\":\"getInts\",\"params\":[[1,2,3,4,5,6,7,8,9,10,11]]}");
+		worker.handle(pc, "responses", request);
+		String error = kestrel.get("responses");
+		assertTrue("too many values", error.contains("the most is 10"));
+	}
+
+	private List<Long> ints(String json) throws Exception {
+
+		JSONObject request = (JSONObject) JSONValue.parse(json);
+		worker.handle(pc, "responses", request);
+
+		List<Long> found = new ArrayList<Long>();
+		String row;
+		while((row = kestrel.get("responses")) != null) {
+			JSONObject data = (JSONObject) ((JSONObject) JSONValue.parse(row)).get("row_data");
+			found.add((Long) data.get("AN_INT"));
+		}
+		return found;
+	}
+}
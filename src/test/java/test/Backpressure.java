@@ -0,0 +1,159 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.ProcessTimeoutException;
+import iinteractive.bullfinch.minion.KestrelQueueInfo;
+import iinteractive.bullfinch.minion.KestrelTextClient;
+import iinteractive.bullfinch.minion.QueueMonitor;
+
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrelServer;
+
+public class Backpressure {
+
+	private FakeKestrelServer server;
+
+	@Before
+	public void startServer() {
+
+		try {
+			server = new FakeKestrelServer();
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@After
+	public void stopServer() {
+
+		server.stop();
+	}
+
+	@Test
+	public void testQueueInfo() throws Exception {
+
+		server.put("responses", "12345");
+		server.put("responses", "67890");
+
+		KestrelTextClient client = new KestrelTextClient("127.0.0.1", server.getPort(), 2000, 1);
+		KestrelQueueInfo info = client.getQueueInfo("responses");
+		assertEquals("items", 2, info.getItems());
+		assertEquals("bytes", 10, info.getBytes());
+		assertTrue("unknown queue", client.getQueueInfo("nothing") == null);
+		client.shutdown();
+	}
+
+	@Test
+	public void testGivesUpOnStuckClient() throws Exception {
+
+		Streamer worker = start();
+		waitFor(worker);
+
+		assertTrue("stopped early", worker.sent < 100);
+		assertTrue("over the watermark", worker.sent >= 10);
+		assertTrue("told the client", drain("responses").contains("{\"ERROR\":\"gave up\"}{ \"EOF\":\"EOF\""));
+	}
+
+	@Test
+	public void testWaitsForSlowClient() throws Exception {
+
+		// A client that reads slowly, but reads.
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				while(!Thread.currentThread().isInterrupted()) {
+					server.take("responses");
+					try { Thread.sleep(2); } catch(InterruptedException e) { return; }
+				}
+			}
+		});
+		Streamer worker = start();
+		Thread.sleep(100);
+		reader.start();
+		waitFor(worker);
+		reader.interrupt();
+
+		assertEquals("everything sent", 100, worker.sent);
+		assertTrue("paused", worker.paused > 0);
+	}
+
+	private Streamer start() throws Exception {
+
+		server.put("work", "{\"response_queue\":\"responses\"}");
+
+		HashMap<String,Object> bpConfig = new HashMap<String,Object>();
+		bpConfig.put("max_items", new Long(10));
+		bpConfig.put("check_every", new Long(5));
+		bpConfig.put("max_wait", new Long(300));
+		bpConfig.put("poll_interval", new Long(20));
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(server.getPort()));
+		config.put("kestrel_client", "native");
+		config.put("kestrel_pipeline_depth", new Long(1));
+		config.put("subscribe_to", "work");
+		config.put("timeout", new Long(50));
+		config.put("backpressure", bpConfig);
+
+		Streamer worker = new Streamer(new PerformanceCollector("foo", false));
+		worker.configure(config);
+		worker.thread = new Thread(worker);
+		worker.thread.start();
+		return worker;
+	}
+
+	private void waitFor(Streamer worker) throws Exception {
+
+		long until = System.currentTimeMillis() + 5000;
+		while(!worker.finished && System.currentTimeMillis() < until) {
+			Thread.sleep(20);
+		}
+		worker.cancel();
+		worker.thread.join(2000);
+	}
+
+	private String drain(String queue) {
+
+		StringBuilder all = new StringBuilder();
+		String item;
+		while((item = server.take(queue)) != null) {
+			all.append(item);
+		}
+		return all.toString();
+	}
+
+	public static class Streamer extends QueueMonitor {
+
+		Thread thread;
+		volatile int sent = 0;
+		volatile long paused = 0;
+		volatile boolean finished = false;
+
+		public Streamer(PerformanceCollector collector) {
+
+			super(collector);
+		}
+
+		public void handle(PerformanceCollector collector, String responseQueue, HashMap<String,Object> request) throws ProcessTimeoutException {
+
+			for(int i = 0; i < 100; i++) {
+				if(!awaitResponseRoom(responseQueue)) {
+					sendMessage(responseQueue, "{\"ERROR\":\"gave up\"}");
+					break;
+				}
+				sendMessage(responseQueue, "{\"row\":" + i + "}");
+				sent++;
+			}
+			paused = getBackpressurePaused();
+			finished = true;
+		}
+	}
+}
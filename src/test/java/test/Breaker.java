@@ -0,0 +1,214 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+import iinteractive.bullfinch.minion.KestrelBased;
+import iinteractive.bullfinch.minion.KestrelItem;
+import iinteractive.bullfinch.minion.KestrelQueueInfo;
+import iinteractive.bullfinch.minion.KestrelTransport;
+import iinteractive.bullfinch.util.Backoff;
+import iinteractive.bullfinch.util.CircuitBreaker;
+import iinteractive.bullfinch.util.CircuitBreaker.State;
+
+import java.util.HashMap;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+
+public class Breaker {
+
+	@Test
+	public void testOpenProbeAndClose() throws Exception {
+
+		CircuitBreaker cb = new CircuitBreaker("test", 2, 400, 1000);
+
+		assertTrue("closed allows", cb.allowRequest());
+		cb.recordFailure();
+		assertEquals("one failure stays closed", State.CLOSED, cb.getState());
+		cb.recordFailure();
+		assertEquals("threshold opens", State.OPEN, cb.getState());
+		assertFalse("open fails fast", cb.allowRequest());
+
+		Thread.sleep(cb.getRetryDelay() + 10);
+		assertTrue("probe allowed", cb.allowRequest());
+		assertEquals("half open", State.HALF_OPEN, cb.getState());
+		assertFalse("only one probe", cb.allowRequest());
+
+		cb.recordSuccess();
+		assertEquals("probe success closes", State.CLOSED, cb.getState());
+		assertTrue("closed allows again", cb.allowRequest());
+	}
+
+	@Test
+	public void testFailedProbeReopens() throws Exception {
+
+		CircuitBreaker cb = new CircuitBreaker("test", 1, 200, 1000);
+
+		cb.recordFailure();
+		Thread.sleep(cb.getRetryDelay() + 10);
+		assertTrue("probe allowed", cb.allowRequest());
+		cb.recordFailure();
+		assertEquals("failed probe reopens", State.OPEN, cb.getState());
+		assertFalse("open fails fast", cb.allowRequest());
+	}
+
+	@Test
+	public void testBackoffGrowsWithJitter() {
+
+		Backoff backoff = new Backoff(100, 1000);
+
+		for(int i = 0; i < 6; i++) {
+			long expected = backoff.delayFor(i);
+			long delay = backoff.nextDelay();
+			assertTrue("at least half", delay >= expected / 2);
+			assertTrue("no more than the delay", delay <= expected);
+		}
+		assertEquals("capped", 1000, backoff.delayFor(10));
+		backoff.reset();
+		assertEquals("reset", 0, backoff.getAttempts());
+	}
+
+	@Test
+	public void testDatabaseFailsFast() throws Exception {
+
+		HashMap<String,Object> connection = new HashMap<String,Object>();
+		connection.put("driver", "org.hsqldb.jdbcDriver");
+		// Nothing listens there.
+		connection.put("dsn", "jdbc:hsqldb:hsql://127.0.0.1:1/nothing");
+		connection.put("uid", "SA");
+		connection.put("validation", "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+
+		HashMap<String,Object> goodTable = new HashMap<String,Object>();
+		goodTable.put("sql", "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+		HashMap<String,Object> statements = new HashMap<String,Object>();
+		statements.put("goodTable", goodTable);
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(22133));
+		config.put("subscribe_to", "breaker");
+		config.put("timeout", new Long(1000));
+		config.put("connection", connection);
+		config.put("statements", statements);
+		config.put("db_failure_threshold", new Long(2));
+		config.put("db_backoff_base", new Long(60000));
+
+		MemcachedClient kestrel = new FakeKestrel();
+		JDBCQueryRunner worker = new JDBCQueryRunner(new PerformanceCollector("test", false));
+		worker.setClient(kestrel);
+		worker.configure(config);
+
+		HashMap<String,Object> request = new HashMap<String,Object>();
+		request.put("statement", "goodTable");
+		for(int i = 0; i < 2; i++) {
+			worker.handle(new PerformanceCollector("test", false), "responses", request);
+			String error = kestrel.get("responses");
+			assertTrue("connection error " + i, error.startsWith("{\"ERROR\":") && !error.contains("circuit open"));
+		}
+
+		worker.handle(new PerformanceCollector("test", false), "responses", request);
+		String error = kestrel.get("responses");
+		assertTrue("refused", error.contains("circuit open"));
+		assertTrue("says when to retry", error.contains("retry_after_ms"));
+	}
+
+	@Test
+	public void testProbeEndingInRuntimeException() throws Exception {
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		// A breaker of its own.
+		config.put("kestrel_port", new Long(22999));
+		config.put("kestrel_failure_threshold", new Long(1));
+		config.put("kestrel_backoff_base", new Long(50));
+		config.put("kestrel_send_retries", new Long(0));
+
+		Sender sender = new Sender();
+		sender.configure(config);
+		CircuitBreaker cb = sender.getBreaker();
+		cb.recordFailure();
+		assertEquals(State.OPEN, cb.getState());
+
+		// The probe's send blows up with something that isn't a
+		// MemcachedException, it still has to count.
+		Thread.sleep(cb.getRetryDelay() + 10);
+		sender.send("nowhere", "hello");
+		assertEquals("failed probe reopens", State.OPEN, cb.getState());
+
+		Thread.sleep(cb.getRetryDelay() + 10);
+		assertTrue("a new probe is handed out", cb.allowRequest());
+		cb.recordSuccess();
+	}
+
+	@Test
+	public void testReleasedProbeGoesToTheNext() throws Exception {
+
+		CircuitBreaker cb = new CircuitBreaker("test", 1, 50, 1000);
+
+		cb.recordFailure();
+		Thread.sleep(cb.getRetryDelay() + 10);
+		assertTrue("probe allowed", cb.allowRequest());
+		cb.release();
+		assertEquals("still half open", State.HALF_OPEN, cb.getState());
+		assertTrue("next caller probes", cb.allowRequest());
+	}
+
+	/*
+	 * Sends through a transport that always throws.
+	 */
+	private static class Sender extends KestrelBased {
+
+		Sender() {
+
+			super(new PerformanceCollector("test", false));
+			this.transport = new BrokenTransport();
+		}
+
+		void send(String queue, String message) {
+
+			sendMessage(queue, message);
+		}
+
+		public void run() {
+
+		}
+	}
+
+	private static class BrokenTransport implements KestrelTransport {
+
+		public String get(String key, long timeout) {
+			throw new IllegalStateException("broken");
+		}
+
+		public boolean set(String queue, int expiry, String value) {
+			throw new IllegalStateException("broken");
+		}
+
+		public void flush() {
+			throw new IllegalStateException("broken");
+		}
+
+		public List<KestrelItem> open(String queue, int maxItems, int timeout) {
+			throw new IllegalStateException("broken");
+		}
+
+		public void confirm(String queue, List<KestrelItem> items) {
+			throw new IllegalStateException("broken");
+		}
+
+		public void abort(String queue, List<KestrelItem> items) {
+			throw new IllegalStateException("broken");
+		}
+
+		public KestrelQueueInfo getQueueInfo(String queue) {
+			throw new IllegalStateException("broken");
+		}
+	}
+}
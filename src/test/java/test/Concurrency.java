@@ -0,0 +1,68 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.util.ConcurrencyLimiter;
+
+import org.junit.Test;
+
+public class Concurrency {
+
+	@Test
+	public void testLimitBlocks() throws Exception {
+
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 1, 4, 2.0, 0.5);
+
+		assertTrue("first", limiter.acquire(10));
+		assertTrue("second", limiter.acquire(10));
+		assertFalse("at the limit", limiter.acquire(50));
+		assertEquals("in flight", 2, limiter.getInFlight());
+
+		limiter.release(10, true);
+		assertTrue("slot freed", limiter.acquire(10));
+	}
+
+	@Test
+	public void testShrinksAndRecovers() throws Exception {
+
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 8, 1, 8, 2.0, 0.5);
+
+		// Learn a baseline of 10ms.
+		for(int i = 0; i < 5; i++) {
+			limiter.acquire(10);
+			limiter.release(10, true);
+		}
+		assertEquals("baseline", 10, limiter.getBaseline());
+		assertEquals("still wide open", 8, limiter.getLimit());
+
+		// The database slows down.
+		for(int i = 0; i < 10; i++) {
+			limiter.acquire(10);
+			limiter.release(100, true);
+		}
+		assertTrue("latency went up", limiter.getLatency() > 50);
+		assertEquals("limit cut to the minimum", 1, limiter.getLimit());
+
+		// And recovers, with the limit in full use.
+		for(int i = 0; i < 30; i++) {
+			int slots = limiter.getLimit();
+			for(int j = 0; j < slots; j++) {
+				limiter.acquire(10);
+			}
+			for(int j = 0; j < slots; j++) {
+				limiter.release(10, true);
+			}
+		}
+		assertTrue("limit grew back", limiter.getLimit() > 4);
+	}
+
+	@Test
+	public void testFailuresShrink() throws Exception {
+
+		ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 4, 1, 4, 2.0, 0.5);
+		limiter.acquire(10);
+		limiter.release(-1, false);
+		assertEquals("halved", 2, limiter.getLimit());
+	}
+}
@@ -0,0 +1,181 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.ProcessTimeoutException;
+import iinteractive.bullfinch.minion.QueueMonitor;
+import iinteractive.bullfinch.util.DedupeCache;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrelServer;
+
+public class Dedupe {
+
+	private FakeKestrelServer server;
+
+	@Before
+	public void startServer() {
+
+		try {
+			server = new FakeKestrelServer();
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@After
+	public void stopServer() {
+
+		server.stop();
+	}
+
+	@Test
+	public void testCacheWindowAndSize() throws Exception {
+
+		DedupeCache cache = new DedupeCache(200, 2, 1, null);
+		cache.record("a", Arrays.asList("row"));
+		cache.record("b", Arrays.asList("row", "row"));
+		cache.record("c", null);
+
+		assertTrue("oldest dropped", cache.lookup("a") == null);
+		assertTrue("newest kept", cache.lookup("c") != null);
+		assertTrue("too many responses not kept", cache.lookup("b").getResponses() == null);
+
+		Thread.sleep(250);
+		assertTrue("expired", cache.lookup("c") == null);
+		assertEquals("empty", 0, cache.size());
+	}
+
+	@Test
+	public void testSurvivesRestart() throws Exception {
+
+		File file = File.createTempFile("bullfinch-dedupe", ".log");
+		file.deleteOnExit();
+
+		DedupeCache cache = new DedupeCache(60000, 100, 10, file.getPath());
+		cache.record("handled", Arrays.asList("row"));
+
+		DedupeCache restarted = new DedupeCache(60000, 100, 10, file.getPath());
+		assertTrue("remembered", restarted.lookup("handled") != null);
+		assertTrue("without responses", restarted.lookup("handled").getResponses() == null);
+	}
+
+	@Test
+	public void testRedeliveryReplayed() throws Exception {
+
+		String request = "{\"response_queue\":\"responses\",\"request_id\":\"abc-123\"}";
+		server.put("work", request);
+		server.put("work", request);
+
+		HashMap<String,Object> dedupeConfig = new HashMap<String,Object>();
+		dedupeConfig.put("window", new Long(60));
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(server.getPort()));
+		config.put("kestrel_client", "native");
+		config.put("subscribe_to", "work");
+		config.put("timeout", new Long(50));
+		config.put("dedupe", dedupeConfig);
+
+		Writer worker = new Writer(new PerformanceCollector("foo", false));
+		worker.configure(config);
+		Thread thread = new Thread(worker);
+		thread.start();
+
+		long until = System.currentTimeMillis() + 5000;
+		while(server.size("responses") < 4 && System.currentTimeMillis() < until) {
+			Thread.sleep(20);
+		}
+		worker.cancel();
+		thread.join(2000);
+
+		assertEquals("executed once", 1, worker.executed);
+		assertEquals("first answer", "{\"inserted\":1}", server.take("responses"));
+		assertEquals("first EOF", "{ \"EOF\":\"EOF\" }", server.take("responses"));
+		assertEquals("replayed answer", "{\"inserted\":1}", server.take("responses"));
+		assertEquals("replayed EOF", "{ \"EOF\":\"EOF\" }", server.take("responses"));
+	}
+
+	@Test
+	public void testFailureNotReplayed() throws Exception {
+
+		String request = "{\"response_queue\":\"responses\",\"request_id\":\"def-456\"}";
+		server.put("work", request);
+		server.put("work", request);
+
+		HashMap<String,Object> dedupeConfig = new HashMap<String,Object>();
+		dedupeConfig.put("window", new Long(60));
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(server.getPort()));
+		config.put("kestrel_client", "native");
+		config.put("subscribe_to", "work");
+		config.put("timeout", new Long(50));
+		config.put("dedupe", dedupeConfig);
+
+		FlakyWriter worker = new FlakyWriter(new PerformanceCollector("foo", false));
+		worker.configure(config);
+		Thread thread = new Thread(worker);
+		thread.start();
+
+		long until = System.currentTimeMillis() + 5000;
+		while(server.size("responses") < 4 && System.currentTimeMillis() < until) {
+			Thread.sleep(20);
+		}
+		worker.cancel();
+		thread.join(2000);
+
+		assertEquals("executed again after the error", 2, worker.executed);
+		assertEquals("first answer", "{\"ERROR\":\"database went away\"}", server.take("responses"));
+		assertEquals("first EOF", "{ \"EOF\":\"EOF\" }", server.take("responses"));
+		assertEquals("second answer", "{\"inserted\":1}", server.take("responses"));
+		assertEquals("second EOF", "{ \"EOF\":\"EOF\" }", server.take("responses"));
+	}
+
+	/*
+	 * Fails the first time, like a worker whose database blipped.
+	 */
+	public static class FlakyWriter extends Writer {
+
+		public FlakyWriter(PerformanceCollector collector) {
+
+			super(collector);
+		}
+
+		public void handle(PerformanceCollector collector, String responseQueue, HashMap<String,Object> request) throws ProcessTimeoutException {
+
+			if(executed++ == 0) {
+				sendMessage(responseQueue, "{\"ERROR\":\"database went away\"}");
+			} else {
+				sendMessage(responseQueue, "{\"inserted\":1}");
+			}
+		}
+	}
+
+	public static class Writer extends QueueMonitor {
+
+		int executed = 0;
+
+		public Writer(PerformanceCollector collector) {
+
+			super(collector);
+		}
+
+		public void handle(PerformanceCollector collector, String responseQueue, HashMap<String,Object> request) throws ProcessTimeoutException {
+
+			executed++;
+			sendMessage(responseQueue, "{\"inserted\":1}");
+		}
+	}
+}
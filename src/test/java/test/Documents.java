@@ -0,0 +1,105 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+import test.util.JDBCWorkerConfig;
+
+public class Documents {
+
+	private Connection conn;
+	private JDBCQueryRunner worker;
+	private MemcachedClient kestrel = new FakeKestrel();
+	private PerformanceCollector pc = new PerformanceCollector("test", false);
+
+	@Before
+	public void setup() throws Exception {
+
+		String dsn = "jdbc:hsqldb:mem:documents";
+		conn = DriverManager.getConnection(dsn, "SA", "");
+		Statement st = conn.createStatement();
+		st.execute("CREATE TABLE PUBLIC.ORDERS (order_id INTEGER, customer VARCHAR(32))");
+		st.execute("CREATE TABLE PUBLIC.LINES (order_id INTEGER, sku VARCHAR(32), qty INTEGER)");
+		st.execute("INSERT INTO PUBLIC.ORDERS VALUES (1, 'cory')");
+		st.execute("INSERT INTO PUBLIC.ORDERS VALUES (2, 'gphat')");
+		st.execute("INSERT INTO PUBLIC.LINES VALUES (1, 'a', 1)");
+		st.execute("INSERT INTO PUBLIC.LINES VALUES (1, 'b', 2)");
+		st.execute("INSERT INTO PUBLIC.LINES VALUES (1, 'c', 3)");
+		st.execute("INSERT INTO PUBLIC.LINES VALUES (2, 'd', 4)");
+		st.close();
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(dsn, "SELECT order_id FROM PUBLIC.ORDERS");
+		HashMap<String,Object> stmt = config.addStatement("getOrders", "SELECT o.order_id, o.customer, l.sku, l.qty "
+			+ "FROM PUBLIC.ORDERS o JOIN PUBLIC.LINES l ON l.order_id = o.order_id ORDER BY o.order_id, l.sku");
+		HashMap<String,Object> group = new HashMap<String,Object>();
+		ArrayList<String> keys = new ArrayList<String>();
+		keys.add("order_id");
+		ArrayList<String> parent = new ArrayList<String>();
+		parent.add("customer");
+		group.put("keys", keys);
+		group.put("parent", parent);
+		group.put("children", "lines");
+		stmt.put("group", group);
+
+		worker = new JDBCQueryRunner(pc);
+		worker.setClient(kestrel);
+		worker.configure(config.getConfig());
+	}
+
+	@After
+	public void teardown() throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute("DROP TABLE PUBLIC.ORDERS");
+		st.execute("DROP TABLE PUBLIC.LINES");
+		st.close();
+		conn.close();
+	}
+
+	@Test
+	public void testGrouping() throws Exception {
+
+		worker.handle(pc, "responses", (JSONObject) JSONValue.parse("{\"statement\":\"getOrders\"}"));
+		List<JSONObject> docs = new ArrayList<JSONObject>();
+		String response;
+		while((response = kestrel.get("responses")) != null) {
+			docs.add((JSONObject) JSONValue.parse(response));
+		}
+
+		assertEquals("one document per order", 2, docs.size());
+
+		JSONObject first = (JSONObject) docs.get(0).get("row_data");
+		assertEquals("numbered", new Long(1), docs.get(0).get("row_num"));
+		assertEquals("key", new Long(1), first.get("ORDER_ID"));
+		assertEquals("parent column", "cory", first.get("CUSTOMER"));
+		JSONArray lines = (JSONArray) first.get("lines");
+		assertEquals("three lines", 3, lines.size());
+		JSONObject line = (JSONObject) lines.get(1);
+		assertEquals("child column", "b", line.get("SKU"));
+		assertEquals("child column", new Long(2), line.get("QTY"));
+		assertTrue("no parent columns in children", !line.containsKey("CUSTOMER") && !line.containsKey("ORDER_ID"));
+
+		JSONObject second = (JSONObject) docs.get(1).get("row_data");
+		assertEquals("second key", new Long(2), second.get("ORDER_ID"));
+		assertEquals("one line", 1, ((JSONArray) second.get("lines")).size());
+	}
+}
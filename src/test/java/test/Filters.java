@@ -0,0 +1,163 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+import iinteractive.bullfinch.util.RowExpression;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+import test.util.JDBCWorkerConfig;
+
+public class Filters {
+
+	private Connection conn;
+	private JDBCQueryRunner worker;
+	private MemcachedClient kestrel = new FakeKestrel();
+	private PerformanceCollector pc = new PerformanceCollector("test", false);
+
+	@Before
+	public void setup() throws Exception {
+
+		String dsn = "jdbc:hsqldb:mem:filters";
+		conn = DriverManager.getConnection(dsn, "SA", "");
+		Statement st = conn.createStatement();
+		st.execute("CREATE TABLE PUBLIC.ITEMS (id INTEGER, name VARCHAR(32), price DECIMAL(10,2), qty INTEGER)");
+		st.execute("INSERT INTO PUBLIC.ITEMS VALUES (1, 'apple', 0.50, 10)");
+		st.execute("INSERT INTO PUBLIC.ITEMS VALUES (2, 'banana', 0.25, 0)");
+		st.execute("INSERT INTO PUBLIC.ITEMS VALUES (3, 'cherry', 3.00, 4)");
+		st.execute("INSERT INTO PUBLIC.ITEMS VALUES (4, 'durian', NULL, 1)");
+		st.close();
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(dsn, "SELECT id FROM PUBLIC.ITEMS");
+		config.addStatement("getItems", "SELECT id, name, price, qty FROM PUBLIC.ITEMS ORDER BY id");
+
+		worker = new JDBCQueryRunner(pc);
+		worker.setClient(kestrel);
+		worker.configure(config.getConfig());
+	}
+
+	@After
+	public void teardown() throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute("DROP TABLE PUBLIC.ITEMS");
+		st.close();
+		conn.close();
+	}
+
+	private List<JSONObject> run(String request) throws Exception {
+
+		worker.handle(pc, "responses", (JSONObject) JSONValue.parse(request));
+		List<JSONObject> responses = new ArrayList<JSONObject>();
+		String response;
+		while((response = kestrel.get("responses")) != null) {
+			responses.add((JSONObject) JSONValue.parse(response));
+		}
+		return responses;
+	}
+
+	private boolean matches(String expr, String row) throws ParseException {
+
+		return RowExpression.compile(expr).matches((JSONObject) JSONValue.parse(row));
+	}
+
+	@Test
+	public void testExpressions() throws Exception {
+
+		String row = "{\"ID\":3,\"NAME\":\"cherry\",\"PRICE\":3.0,\"QTY\":4,\"GONE\":null}";
+
+		assertTrue("comparison", matches("qty > 3", row));
+		assertTrue("arithmetic", matches("price * qty = 12", row));
+		assertTrue("precedence", matches("1 + 2 * 3 = 7 and not (1 + 2) * 3 = 7", row));
+		assertTrue("strings", matches("name = 'cherry' or name = \"apple\"", row));
+		assertTrue("in", matches("id in (1, 3, 5)", row));
+		assertTrue("not in", matches("name not in ('apple', 'banana')", row));
+		assertTrue("is null", matches("gone is null and missing is null and price is not null", row));
+		assertFalse("null never compares", matches("gone = null or gone != 1", row));
+		assertFalse("types don't mix", matches("name = 3", row));
+		assertTrue("functions", matches("upper(name) = 'CHERRY' and length(name) = 6 and starts_with(name, 'ch')", row));
+		assertTrue("coalesce", matches("coalesce(gone, qty) = 4", row));
+		assertNull("division by zero", RowExpression.compile("qty / 0").evaluate((JSONObject) JSONValue.parse(row)));
+		assertEquals("round", new BigDecimal("1.33"), RowExpression.compile("round(qty / 3, 2)").evaluate((JSONObject) JSONValue.parse(row)));
+		assertEquals("concat", "cherry x4", RowExpression.compile("concat(name, ' x', qty)").evaluate((JSONObject) JSONValue.parse(row)));
+
+		String[] bad = { "qty >", "name = 'open", "system('ls')", "qty qty", "(qty", "and", "" };
+		for(int i = 0; i < bad.length; i++) {
+			try {
+				RowExpression.compile(bad[i]);
+				fail("Compiled " + bad[i]);
+			} catch(ParseException e) {
+				// Expected
+			}
+		}
+
+		StringBuilder deep = new StringBuilder();
+		for(int i = 0; i < RowExpression.MAX_DEPTH + 1; i++) {
+			deep.append('(');
+		}
+		deep.append("1");
+		for(int i = 0; i < RowExpression.MAX_DEPTH + 1; i++) {
+			deep.append(')');
+		}
+		try {
+			RowExpression.compile(deep.toString());
+			fail("Compiled an expression nested too deep");
+		} catch(ParseException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testFilter() throws Exception {
+
+		List<JSONObject> rows = run("{\"statement\":\"getItems\",\"filter\":\"qty > 0 and price < 1\"}");
+		assertEquals("only matching rows", 1, rows.size());
+		JSONObject data = (JSONObject) rows.get(0).get("row_data");
+		assertEquals("apple", data.get("NAME"));
+		assertEquals("all columns", 4, data.size());
+	}
+
+	@Test
+	public void testProjection() throws Exception {
+
+		List<JSONObject> rows = run("{\"statement\":\"getItems\",\"filter\":\"price is not null\","
+			+ "\"project\":{\"name\":\"name\",\"total\":\"price * qty\"}}");
+		assertEquals("three priced", 3, rows.size());
+		JSONObject data = (JSONObject) rows.get(2).get("row_data");
+		assertEquals("only projected fields", 2, data.size());
+		assertEquals("cherry", data.get("name"));
+		assertEquals(0, new BigDecimal("12").compareTo(new BigDecimal(data.get("total").toString())));
+
+		rows = run("{\"statement\":\"getItems\",\"project\":[\"id\"]}");
+		assertEquals("every row", 4, rows.size());
+		assertEquals("column list", "{\"id\":1}", rows.get(0).get("row_data").toString());
+	}
+
+	@Test
+	public void testBadFilter() throws Exception {
+
+		List<JSONObject> rows = run("{\"statement\":\"getItems\",\"filter\":\"qty >\"}");
+		assertEquals("one error", 1, rows.size());
+		assertTrue("says why", ((String) rows.get(0).get("ERROR")).startsWith("Bad filter"));
+	}
+}
@@ -0,0 +1,153 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+import iinteractive.bullfinch.util.Hedger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+
+public class Hedging {
+
+	@Test
+	public void testDelay() {
+
+		Hedger hedger = new Hedger(90, 10, 5, 10);
+
+		assertEquals("no samples yet", -1, hedger.begin("getInt"));
+		for(int i = 1; i <= 10; i++) {
+			hedger.record("getInt", i * 10, false);
+		}
+		assertEquals("90th percentile", 90, hedger.begin("getInt"));
+		assertEquals("other statements", -1, hedger.begin("getFloat"));
+
+		// Old samples roll out of the window.
+		for(int i = 0; i < 10; i++) {
+			hedger.record("getInt", 1, false);
+		}
+		assertEquals("never below the minimum", 5, hedger.begin("getInt"));
+	}
+
+	@Test
+	public void testBudget() {
+
+		Hedger hedger = new Hedger(95, 10, 5, 10);
+
+		for(int i = 0; i < 9; i++) {
+			hedger.begin("getInt");
+		}
+		assertFalse("under 10 reads", hedger.allowHedge());
+		hedger.begin("getInt");
+		assertTrue("one in ten", hedger.allowHedge());
+		assertFalse("budget spent", hedger.allowHedge());
+		for(int i = 0; i < 10; i++) {
+			hedger.begin("getInt");
+		}
+		assertTrue("budget back", hedger.allowHedge());
+		assertEquals("hedges", 2, hedger.getHedges());
+	}
+
+	// How long the primary takes to answer, see slow().
+	private static volatile long primaryMillis = 0;
+
+	/*
+	 * Called by the primary's HEDGE_TABLE view for every row.
+	 */
+	public static int slow(int value) throws InterruptedException {
+
+		Thread.sleep(primaryMillis);
+		return value;
+	}
+
+	@Test
+	public void testHedgedReads() throws Exception {
+
+		// The primary answers through a view that takes primaryMillis, the
+		// replica straight from a table.
+		String dsn = "jdbc:hsqldb:mem:hedging";
+		String replicaDsn = "jdbc:hsqldb:mem:hedging_replica";
+		Connection conn = DriverManager.getConnection(dsn, "SA", "");
+		Statement st = conn.createStatement();
+		st.execute("CREATE TABLE PUBLIC.HEDGE_DATA (an_int INTEGER)");
+		st.execute("INSERT INTO PUBLIC.HEDGE_DATA (an_int) VALUES (12)");
+		st.execute("CREATE FUNCTION PUBLIC.SLOW(v INTEGER) RETURNS INTEGER LANGUAGE JAVA DETERMINISTIC NO SQL EXTERNAL NAME 'CLASSPATH:test.Hedging.slow'");
+		st.execute("CREATE VIEW PUBLIC.HEDGE_TABLE AS SELECT PUBLIC.SLOW(an_int) AS an_int FROM PUBLIC.HEDGE_DATA");
+		st.close();
+		Connection replicaConn = DriverManager.getConnection(replicaDsn, "SA", "");
+		st = replicaConn.createStatement();
+		st.execute("CREATE TABLE PUBLIC.HEDGE_TABLE (an_int INTEGER)");
+		st.execute("INSERT INTO PUBLIC.HEDGE_TABLE (an_int) VALUES (12)");
+		st.execute("CREATE TABLE PUBLIC.HEDGE_DATA (an_int INTEGER)");
+		st.execute("INSERT INTO PUBLIC.HEDGE_DATA (an_int) VALUES (12)");
+		st.close();
+
+		HashMap<String,Object> connection = new HashMap<String,Object>();
+		connection.put("driver", "org.hsqldb.jdbcDriver");
+		connection.put("dsn", dsn);
+		connection.put("uid", "SA");
+		connection.put("validation", "SELECT an_int FROM PUBLIC.HEDGE_DATA");
+
+		ArrayList<String> replicas = new ArrayList<String>();
+		replicas.add(replicaDsn);
+		HashMap<String,Object> hedge = new HashMap<String,Object>();
+		hedge.put("replicas", replicas);
+		// Hedge as often as possible.
+		hedge.put("percentile", new Long(1));
+		hedge.put("max_percent", new Long(100));
+		hedge.put("min_delay", new Long(0));
+
+		ArrayList<String> params = new ArrayList<String>();
+		params.add("INTEGER");
+		HashMap<String,Object> getInt = new HashMap<String,Object>();
+		getInt.put("sql", "SELECT an_int FROM PUBLIC.HEDGE_TABLE WHERE an_int=?");
+		getInt.put("params", params);
+		getInt.put("read_only", Boolean.TRUE);
+		HashMap<String,Object> statements = new HashMap<String,Object>();
+		statements.put("getInt", getInt);
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(22133));
+		config.put("subscribe_to", "hedging");
+		config.put("timeout", new Long(1000));
+		config.put("connection", connection);
+		config.put("hedge", hedge);
+		config.put("statements", statements);
+
+		MemcachedClient kestrel = new FakeKestrel();
+		JDBCQueryRunner worker = new JDBCQueryRunner(new PerformanceCollector("test", false));
+		worker.setClient(kestrel);
+		worker.configure(config);
+
+		// Ten quick reads teach the hedger what to expect, then the primary
+		// slows down and the replica has to answer.
+		Hedger hedger = Hedger.get(dsn, 1, 100, 0, 100);
+		for(int i = 0; i < 13; i++) {
+			primaryMillis = i < 10 ? 0 : 400;
+			JSONObject request = (JSONObject) JSONValue.parse("{\"statement\":\"getInt\",\"params\":[12]}");
+			worker.handle(new PerformanceCollector("test", false), "responses", request);
+
+			JSONObject row = (JSONObject) JSONValue.parse((String) kestrel.get("responses"));
+			assertEquals("row " + i, new Long(12), ((JSONObject) row.get("row_data")).get("AN_INT"));
+			assertTrue("one row " + i, kestrel.get("responses") == null);
+		}
+		assertEquals("hedged the slow ones", 3, hedger.getHedges());
+		assertEquals("and the replica won", 3, hedger.getHedgeWins());
+		replicaConn.close();
+		conn.close();
+	}
+}
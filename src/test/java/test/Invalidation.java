@@ -0,0 +1,161 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.InvalidationListener;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+import iinteractive.bullfinch.util.ResultCache;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+import test.util.JDBCWorkerConfig;
+
+public class Invalidation {
+
+	private static final String DSN = "jdbc:hsqldb:mem:invalidation";
+
+	private Connection conn;
+	private JDBCQueryRunner worker;
+	private InvalidationListener listener;
+	private MemcachedClient kestrel = new FakeKestrel();
+	private PerformanceCollector pc = new PerformanceCollector("test", false);
+
+	@Before
+	public void setup() throws Exception {
+
+		conn = DriverManager.getConnection(DSN, "SA", "");
+		execute("CREATE TABLE PUBLIC.THINGS (id INTEGER, name VARCHAR(32))");
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(DSN, "SELECT 1 FROM PUBLIC.THINGS");
+		config.put("invalidation_queue", "invalidations");
+		config.addStatement("addThing", "INSERT INTO PUBLIC.THINGS VALUES (?, ?)", "INTEGER", "STRING").put("writes", "things");
+
+		worker = new JDBCQueryRunner(pc);
+		worker.setClient(kestrel);
+		worker.configure(config.getConfig());
+
+		HashMap<String,Object> listenerConfig = new HashMap<String,Object>();
+		listenerConfig.put("kestrel_host", "127.0.0.1");
+		listenerConfig.put("kestrel_port", new Long(22133));
+		listenerConfig.put("subscribe_to", "invalidations+node1");
+		listenerConfig.put("max_lag", new Long(10000));
+		listener = new InvalidationListener(pc);
+		listener.setClient(kestrel);
+		listener.configure(listenerConfig);
+
+		ResultCache.find(DSN).clear();
+	}
+
+	@After
+	public void teardown() throws Exception {
+
+		execute("DROP TABLE PUBLIC.THINGS");
+		conn.close();
+	}
+
+	private void execute(String sql) throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute(sql);
+		st.close();
+	}
+
+	private void cache(String key, String table) {
+
+		ResultCache cache = ResultCache.find(DSN);
+		List<String> tags = Arrays.asList(table);
+		cache.put(key, new ArrayList<JSONObject>(), tags, cache.stamp(tags), 60000);
+	}
+
+	@SuppressWarnings("unchecked")
+	private String event(String cache, String node, long sentAt, String... tables) {
+
+		JSONArray names = new JSONArray();
+		names.addAll(Arrays.asList(tables));
+		JSONObject event = new JSONObject();
+		event.put("cache", cache);
+		event.put("tables", names);
+		event.put("node", node);
+		event.put("sent_at", new Long(sentAt));
+		return event.toString();
+	}
+
+	@Test
+	public void testWritePublishes() throws Exception {
+
+		worker.handle(pc, "responses", (JSONObject) JSONValue.parse("{\"statement\":\"addThing\",\"params\":[1, \"one\"]}"));
+
+		String message = kestrel.get("invalidations");
+		assertNotNull("the write was sent on", message);
+		JSONObject event = (JSONObject) JSONValue.parse(message);
+		assertEquals(DSN, event.get("cache"));
+		assertEquals(Arrays.asList("things"), event.get("tables"));
+		assertEquals(ResultCache.NODE, event.get("node"));
+		assertTrue(event.get("sent_at") instanceof Long);
+
+		// Already applied here when it was sent.
+		cache("a", "things");
+		assertFalse(listener.apply(message));
+		assertNotNull(ResultCache.find(DSN).get("a"));
+	}
+
+	@Test
+	public void testApply() throws Exception {
+
+		cache("a", "things");
+		cache("b", "others");
+
+		assertTrue(listener.apply(event(DSN, "node2", System.currentTimeMillis(), "THINGS")));
+		assertNull(ResultCache.find(DSN).get("a"));
+		assertNotNull(ResultCache.find(DSN).get("b"));
+		assertEquals(1, listener.getApplied());
+		assertEquals(0, listener.getCleared());
+
+		assertFalse("no such cache here", listener.apply(event("jdbc:hsqldb:mem:nowhere", "node2", System.currentTimeMillis(), "things")));
+		assertFalse(listener.apply("{\"cache\":\"" + DSN + "\"}"));
+		assertFalse(listener.apply("not json"));
+		assertFalse("tables aren't names", listener.apply("{\"cache\":\"" + DSN + "\",\"tables\":[1]}"));
+		assertNotNull(ResultCache.find(DSN).get("b"));
+	}
+
+	@Test
+	public void testLateClears() throws Exception {
+
+		cache("a", "things");
+		cache("b", "others");
+
+		assertTrue(listener.apply(event(DSN, "node2", System.currentTimeMillis() - 60000, "things")));
+		assertEquals("over max_lag, nothing kept", 0, ResultCache.find(DSN).size());
+		assertEquals(1, listener.getCleared());
+	}
+
+	@Test
+	public void testClearBeatsRacingRead() throws Exception {
+
+		ResultCache cache = ResultCache.find(DSN);
+		List<String> tags = Arrays.asList("things");
+		long[] stamp = cache.stamp(tags);
+		cache.clear();
+		assertFalse(cache.put("a", new ArrayList<JSONObject>(), tags, stamp, 60000));
+	}
+}
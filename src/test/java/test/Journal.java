@@ -0,0 +1,188 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.KestrelItem;
+import iinteractive.bullfinch.minion.KestrelQueueInfo;
+import iinteractive.bullfinch.minion.KestrelTransport;
+import iinteractive.bullfinch.util.CircuitBreaker;
+import iinteractive.bullfinch.util.SpillJournal;
+import iinteractive.bullfinch.util.SpillJournal.FsyncPolicy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+import org.junit.Test;
+
+public class Journal {
+
+	@Test
+	public void testSpillAndReplayInOrder() throws Exception {
+
+		SpillJournal journal = SpillJournal.open(tempFile(), 4096, FsyncPolicy.NEVER, 0);
+		CircuitBreaker breaker = new CircuitBreaker("journal", 1, 400, 1000);
+		RecordingTransport down = new RecordingTransport(true);
+
+		for(int i = 0; i < 10; i++) {
+			assertTrue("appended", journal.append("responses", 0, "row" + i));
+		}
+		assertEquals("backlog", 10, journal.getBacklogItems());
+		assertTrue("bytes used", journal.getBacklogBytes() > 0);
+
+		assertEquals("nothing replayed while kestrel is down", 0, journal.drain(down, breaker));
+		assertEquals("still there", 10, journal.getBacklogItems());
+
+		RecordingTransport up = new RecordingTransport(false);
+		assertEquals("nothing replayed while the circuit is open", 0, journal.drain(up, breaker));
+
+		Thread.sleep(breaker.getRetryDelay() + 10);
+		assertEquals("replayed", 10, journal.drain(up, breaker));
+		assertFalse("empty", journal.hasBacklog());
+		assertEquals("in order", "row0", up.items.get(0));
+		assertEquals("in order", "row9", up.items.get(9));
+		assertEquals("queue kept", "responses", up.queues.get(0));
+	}
+
+	@Test
+	public void testCapAndReuse() throws Exception {
+
+		SpillJournal journal = SpillJournal.open(tempFile(), 256, FsyncPolicy.ALWAYS, 0);
+		CircuitBreaker breaker = new CircuitBreaker("journal", 1, 400, 1000);
+		RecordingTransport up = new RecordingTransport(false);
+
+		int written = 0;
+		while(journal.append("q", 0, "item" + written)) {
+			written++;
+		}
+		assertTrue("some fit", written > 2);
+		assertEquals("refused when full", 1, journal.getRefused());
+
+		assertEquals("drained", written, journal.drain(up, breaker));
+
+		// An empty journal starts over at the front of the file.
+		for(int i = 0; i < written; i++) {
+			assertTrue("room again", journal.append("q", 0, "again" + i));
+		}
+		assertEquals("reused space replays", written, journal.drain(up, breaker));
+		assertEquals("last one", "again" + (written - 1), up.items.get(up.items.size() - 1));
+	}
+
+	@Test
+	public void testExpiredItemsDropped() throws Exception {
+
+		SpillJournal journal = SpillJournal.open(tempFile(), 4096, FsyncPolicy.NEVER, 0);
+		CircuitBreaker breaker = new CircuitBreaker("journal", 1, 400, 1000);
+		RecordingTransport up = new RecordingTransport(false);
+
+		int now = (int) (System.currentTimeMillis() / 1000);
+		journal.append("q", now - 10, "stale");
+		journal.append("q", now + 600, "fresh");
+		journal.append("q", 0, "forever");
+
+		assertEquals("stale one dropped", 2, journal.drain(up, breaker));
+		assertEquals("expired counted", 1, journal.getExpired());
+		assertEquals("fresh first", "fresh", up.items.get(0));
+		assertTrue("remaining ttl passed on", up.expiries.get(0) > 590 && up.expiries.get(0) <= 600);
+		assertEquals("no expiry", 0, up.expiries.get(1).intValue());
+	}
+
+	@Test
+	public void testReportsCounts() throws Exception {
+
+		SpillJournal journal = SpillJournal.open(tempFile(), 4096, FsyncPolicy.NEVER, 0);
+		CircuitBreaker breaker = new CircuitBreaker("journal", 1, 400, 1000);
+		PerformanceCollector pc = new PerformanceCollector("test", true);
+
+		journal.report(pc);
+		assertNull("nothing to say", pc.poll());
+
+		int now = (int) (System.currentTimeMillis() / 1000);
+		journal.append("q", now - 10, "stale");
+		journal.append("q", 0, "forever");
+		journal.report(pc);
+		assertTrue(pc.poll().contains("\"activity\":\"Spill backlog\""));
+		pc.poll();
+		pc.poll();
+
+		journal.drain(new RecordingTransport(false), breaker);
+		journal.report(pc);
+		assertTrue("backlog gone", pc.poll().contains("\"elapsed\":0"));
+		assertTrue("one replayed", pc.poll().contains("\"elapsed\":1"));
+		assertTrue("one expired", pc.poll().contains("\"elapsed\":1"));
+
+		journal.report(pc);
+		assertNull("idle again", pc.poll());
+	}
+
+	@Test
+	public void testSurvivesReopen() throws Exception {
+
+		String path = tempFile();
+		SpillJournal journal = SpillJournal.open(path, 4096, FsyncPolicy.ALWAYS, 0);
+		journal.append("q", 30, "kept");
+		assertTrue("same journal for the same file", journal == SpillJournal.open(path, 4096, FsyncPolicy.ALWAYS, 0));
+	}
+
+	private String tempFile() throws Exception {
+
+		File file = File.createTempFile("bullfinch-spill", ".log");
+		file.delete();
+		file.deleteOnExit();
+		return file.getPath();
+	}
+
+	private static class RecordingTransport implements KestrelTransport {
+
+		private boolean failing;
+		List<String> queues = new ArrayList<String>();
+		List<String> items = new ArrayList<String>();
+		List<Integer> expiries = new ArrayList<Integer>();
+
+		RecordingTransport(boolean failing) {
+
+			this.failing = failing;
+		}
+
+		public String get(String key, long timeout) {
+
+			return null;
+		}
+
+		public boolean set(String queue, int expiry, String value) throws TimeoutException, MemcachedException {
+
+			if(failing) {
+				throw new MemcachedException("down");
+			}
+			queues.add(queue);
+			items.add(value);
+			expiries.add(expiry);
+			return true;
+		}
+
+		public void flush() {
+		}
+
+		public List<KestrelItem> open(String queue, int maxItems, int timeout) {
+
+			return new ArrayList<KestrelItem>();
+		}
+
+		public void confirm(String queue, List<KestrelItem> items) {
+		}
+
+		public void abort(String queue, List<KestrelItem> items) {
+		}
+
+		public KestrelQueueInfo getQueueInfo(String queue) {
+
+			return null;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+import iinteractive.bullfinch.util.Base64;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+import test.util.JDBCWorkerConfig;
+
+public class LargeValues {
+
+	private Connection conn;
+	private JDBCQueryRunner worker;
+	private MemcachedClient kestrel = new FakeKestrel();
+	private PerformanceCollector pc = new PerformanceCollector("test", false);
+	private String text;
+	private byte[] bytes;
+
+	@Before
+	public void setup() throws Exception {
+
+		String dsn = "jdbc:hsqldb:mem:lobs";
+		conn = DriverManager.getConnection(dsn, "SA", "");
+		Statement st = conn.createStatement();
+		st.execute("CREATE TABLE PUBLIC.LOB_TABLE (id INTEGER, doc CLOB, pic BLOB, note CLOB)");
+		st.close();
+
+		StringBuilder sb = new StringBuilder();
+		for(int i = 0; i < 250; i++) {
+			sb.append((char) ('a' + i % 26));
+		}
+		text = sb.toString();
+		bytes = new byte[100];
+		for(int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i * 7);
+		}
+
+		PreparedStatement ps = conn.prepareStatement("INSERT INTO PUBLIC.LOB_TABLE (id, doc, pic, note) VALUES (1, ?, ?, 'short')");
+		ps.setString(1, text);
+		ps.setBytes(2, bytes);
+		ps.execute();
+		ps.close();
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(dsn, "SELECT id FROM PUBLIC.LOB_TABLE");
+		config.addStatement("getLobs", "SELECT id, doc, pic, note FROM PUBLIC.LOB_TABLE");
+		config.put("lob_chunk_size", new Long(100));
+
+		worker = new JDBCQueryRunner(pc);
+		worker.setClient(kestrel);
+		worker.configure(config.getConfig());
+	}
+
+	@After
+	public void teardown() throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute("DROP TABLE PUBLIC.LOB_TABLE");
+		st.close();
+		conn.close();
+	}
+
+	@Test
+	public void testChunks() throws Exception {
+
+		worker.handle(pc, "responses", (JSONObject) JSONValue.parse("{\"statement\":\"getLobs\"}"));
+		List<JSONObject> responses = new ArrayList<JSONObject>();
+		String response;
+		while((response = kestrel.get("responses")) != null) {
+			responses.add((JSONObject) JSONValue.parse(response));
+		}
+
+		// The row, three chunks of text and two of 99 + 1 bytes
+		assertEquals("messages", 6, responses.size());
+		JSONObject data = (JSONObject) responses.get(0).get("row_data");
+		assertEquals("small values inline", "short", data.get("NOTE"));
+		assertEquals("doc marker", Boolean.TRUE, ((JSONObject) data.get("DOC")).get("chunked"));
+		assertEquals("pic marker", Boolean.TRUE, ((JSONObject) data.get("PIC")).get("chunked"));
+
+		StringBuilder doc = new StringBuilder();
+		for(int i = 1; i <= 3; i++) {
+			JSONObject chunk = responses.get(i);
+			assertEquals("doc column", "DOC", chunk.get("column"));
+			assertEquals("doc chunk", new Long(i - 1), chunk.get("chunk"));
+			assertEquals("doc last", Boolean.valueOf(i == 3), chunk.get("last"));
+			doc.append(chunk.get("data"));
+		}
+		assertEquals("reassembled text", text, doc.toString());
+
+		assertEquals("pic column", "PIC", responses.get(4).get("column"));
+		assertEquals("first 99 bytes", Base64.encode(bytes, 99), responses.get(4).get("data"));
+		assertEquals("pic last", Boolean.TRUE, responses.get(5).get("last"));
+		assertTrue("row number on chunks", new Long(1).equals(responses.get(5).get("row_num")));
+	}
+
+	@Test
+	public void testBase64() {
+
+		assertEquals("padding", "Zm9vYg==", Base64.encode("foob".getBytes()));
+		assertEquals("no padding", "Zm9vYmFy", Base64.encode("foobar".getBytes()));
+	}
+}
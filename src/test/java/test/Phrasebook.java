@@ -1,6 +1,7 @@
 package test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import iinteractive.bullfinch.Phrasebook.ParamType;
 
@@ -46,4 +47,32 @@ public class Phrasebook {
 		assertTrue("Got 1 param", ps.size() == 1);
 		assertTrue("Got correct param", ps.get(0) == ParamType.STRING);
 	}
+
+	@Test
+	public void readOnly() {
+
+		this.book.addPhrase("foo", "select foo from dual");
+		this.book.addPhrase("bar", "delete from bar");
+		this.book.setReadOnly("foo");
+
+		assertTrue("foo is read only", this.book.isReadOnly("foo"));
+		assertFalse("bar isn't", this.book.isReadOnly("bar"));
+	}
+
+	@Test
+	public void expandArrays() {
+
+		ArrayList<ParamType> params = new ArrayList<ParamType>();
+		params.add(ParamType.INTEGER_ARRAY);
+		params.add(ParamType.STRING);
+		this.book.addPhrase("foo", "select foo from dual where id in (?) and name = ? and note <> '?'", params);
+
+		int[] sizes = { iinteractive.bullfinch.Phrasebook.bucket(3), 1 };
+		assertEquals("expanded", "select foo from dual where id in (?, ?, ?, ?) and name = ? and note <> '?'", this.book.getPhrase("foo", sizes));
+		assertTrue("cached", this.book.getPhrase("foo", sizes) == this.book.getPhrase("foo", new int[] { 4, 1 }));
+
+		assertEquals("bucket of nothing", 1, iinteractive.bullfinch.Phrasebook.bucket(0));
+		assertEquals("bucket", 8, iinteractive.bullfinch.Phrasebook.bucket(5));
+		assertEquals("exact bucket", 8, iinteractive.bullfinch.Phrasebook.bucket(8));
+	}
 }
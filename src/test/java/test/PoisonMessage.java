@@ -0,0 +1,94 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.ProcessTimeoutException;
+import iinteractive.bullfinch.minion.QueueMonitor;
+
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrelServer;
+
+public class PoisonMessage {
+
+	private FakeKestrelServer server;
+
+	@Before
+	public void startServer() {
+
+		try {
+			server = new FakeKestrelServer();
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@After
+	public void stopServer() {
+
+		server.stop();
+	}
+
+	@Test
+	public void testDeadLetter() throws Exception {
+
+		server.put("work", "{\"response_queue\":\"bad-responses\",\"poison\":true}");
+		server.put("work", "{\"response_queue\":\"good-responses\"}");
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(server.getPort()));
+		config.put("kestrel_client", "native");
+		config.put("subscribe_to", "work");
+		config.put("timeout", new Long(50));
+		config.put("max_attempts", new Long(2));
+		config.put("dead_letter_queue", "dead");
+
+		Crashy worker = new Crashy(new PerformanceCollector("foo", false));
+		worker.configure(config);
+		Thread thread = new Thread(worker);
+		thread.start();
+
+		long until = System.currentTimeMillis() + 5000;
+		while((server.size("dead") < 1 || server.size("good-responses") < 1) && System.currentTimeMillis() < until) {
+			Thread.sleep(20);
+		}
+		worker.cancel();
+		thread.join(2000);
+
+		assertTrue("worker survived", worker.handled >= 3);
+		assertEquals("failed twice", 2, worker.crashes);
+		assertEquals("dead lettered", 1, server.size("dead"));
+		assertTrue("dead letter has the item", server.take("dead").contains("poison"));
+		assertEquals("work queue empty", 0, server.size("work"));
+		assertTrue("client told", server.take("bad-responses").contains("ERROR"));
+		assertEquals("then EOF", "{ \"EOF\":\"EOF\" }", server.take("bad-responses"));
+		assertEquals("good one answered", "{ \"EOF\":\"EOF\" }", server.take("good-responses"));
+	}
+
+	public static class Crashy extends QueueMonitor {
+
+		int handled = 0;
+		int crashes = 0;
+
+		public Crashy(PerformanceCollector collector) {
+
+			super(collector);
+		}
+
+		public void handle(PerformanceCollector collector, String responseQueue, HashMap<String,Object> request) throws ProcessTimeoutException {
+
+			handled++;
+			if(request.containsKey("poison")) {
+				crashes++;
+				throw new IllegalStateException("can't handle this");
+			}
+		}
+	}
+}
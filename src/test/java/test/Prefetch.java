@@ -0,0 +1,149 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.ProcessTimeoutException;
+import iinteractive.bullfinch.minion.PrefetchIntake;
+import iinteractive.bullfinch.minion.QueueMonitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrelServer;
+
+public class Prefetch {
+
+	private FakeKestrelServer server;
+
+	@Before
+	public void startServer() {
+
+		try {
+			server = new FakeKestrelServer();
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@After
+	public void stopServer() {
+
+		server.stop();
+	}
+
+	@Test
+	public void testPrefetchedItemsHandledAndConfirmed() throws Exception {
+
+		for(int i = 0; i < 30; i++) {
+			server.put("work", "{\"response_queue\":\"responses\",\"n\":" + i + "}");
+		}
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(server.getPort()));
+		config.put("kestrel_client", "native");
+		config.put("subscribe_to", "work");
+		config.put("timeout", new Long(50));
+		config.put("prefetch", new Long(4));
+
+		AtomicInteger handled = new AtomicInteger(0);
+		List<Counting> workers = new ArrayList<Counting>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 3; i++) {
+			Counting worker = new Counting(new PerformanceCollector("foo", false), handled);
+			worker.configure(config);
+			workers.add(worker);
+			Thread thread = new Thread(worker);
+			threads.add(thread);
+			thread.start();
+		}
+
+		// The same intake the workers share.
+		PrefetchIntake intake = PrefetchIntake.get(workers.get(0), "work", 50, 1, 4);
+		int maxDepth = 0;
+		long until = System.currentTimeMillis() + 5000;
+		while(server.size("responses") < 30 && System.currentTimeMillis() < until) {
+			maxDepth = Math.max(maxDepth, intake.getDepth());
+			Thread.sleep(5);
+		}
+		intake.release();
+		// Give the fetchers a moment to confirm the last items.
+		Thread.sleep(200);
+		for(int i = 0; i < workers.size(); i++) {
+			workers.get(i).cancel();
+			threads.get(i).join(2000);
+		}
+
+		assertEquals("all handled", 30, handled.get());
+		assertEquals("all answered", 30, server.size("responses"));
+		assertEquals("all confirmed", 0, server.size("work"));
+		assertTrue("depth grew", maxDepth > 1);
+	}
+
+	@Test
+	public void testShutdownLeavesHandedOutItems() throws Exception {
+
+		server.put("work", "{\"response_queue\":\"responses\",\"n\":1}");
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(server.getPort()));
+		config.put("kestrel_client", "native");
+		config.put("subscribe_to", "work");
+		config.put("timeout", new Long(50));
+		Counting worker = new Counting(new PerformanceCollector("foo", false), new AtomicInteger(0));
+		worker.configure(config);
+
+		// A minion takes the item, then the intake shuts down under it.
+		PrefetchIntake intake = PrefetchIntake.get(worker, "work", 50, 1, 1);
+		PrefetchIntake.Prefetched p = intake.take(2000);
+		assertTrue("got the item", p != null);
+		intake.release();
+		Thread.sleep(100);
+		assertEquals("not aborted while the minion has it", 0, server.size("work"));
+
+		p.done(true);
+		Thread.sleep(200);
+		assertEquals("confirmed once done", 0, server.size("work"));
+
+		// An item nobody took goes back.
+		server.put("work", "{\"response_queue\":\"responses\",\"n\":2}");
+		intake = PrefetchIntake.get(worker, "work", 50, 1, 1);
+		long until = System.currentTimeMillis() + 2000;
+		while(intake.getBuffered() == 0 && System.currentTimeMillis() < until) {
+			Thread.sleep(5);
+		}
+		assertEquals("buffered", 1, intake.getBuffered());
+		intake.release();
+		until = System.currentTimeMillis() + 2000;
+		while(server.size("work") == 0 && System.currentTimeMillis() < until) {
+			Thread.sleep(5);
+		}
+		assertEquals("aborted", 1, server.size("work"));
+	}
+
+	public static class Counting extends QueueMonitor {
+
+		private AtomicInteger handled;
+
+		public Counting(PerformanceCollector collector, AtomicInteger handled) {
+
+			super(collector);
+			this.handled = handled;
+		}
+
+		public void handle(PerformanceCollector collector, String responseQueue, HashMap<String,Object> request) throws ProcessTimeoutException {
+
+			handled.incrementAndGet();
+			try { Thread.sleep(10); } catch(InterruptedException e) { }
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+import test.util.JDBCWorkerConfig;
+
+public class ReferenceTables {
+
+	private Connection conn;
+	private JDBCQueryRunner worker;
+	private MemcachedClient kestrel = new FakeKestrel();
+	private PerformanceCollector pc = new PerformanceCollector("test", false);
+
+	@Before
+	@SuppressWarnings("unchecked")
+	public void setup() throws Exception {
+
+		String dsn = "jdbc:hsqldb:mem:reference";
+		conn = DriverManager.getConnection(dsn, "SA", "");
+		execute("CREATE TABLE PUBLIC.CODES (country VARCHAR(2), code INTEGER, label VARCHAR(32))");
+		execute("CREATE TABLE PUBLIC.CODES_VERSION (version INTEGER)");
+		execute("INSERT INTO PUBLIC.CODES_VERSION VALUES (1)");
+		execute("INSERT INTO PUBLIC.CODES VALUES ('us', 1, 'one')");
+		execute("INSERT INTO PUBLIC.CODES VALUES ('us', 2, 'two')");
+		execute("INSERT INTO PUBLIC.CODES VALUES ('fr', 1, 'un')");
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(dsn, "SELECT 1 FROM PUBLIC.CODES_VERSION");
+
+		HashMap<String,Object> table = new HashMap<String,Object>();
+		table.put("sql", "SELECT country, code, label FROM PUBLIC.CODES ORDER BY country, code");
+		JSONArray indexes = new JSONArray();
+		indexes.add("code");
+		JSONArray both = new JSONArray();
+		both.add("country");
+		both.add("code");
+		indexes.add(both);
+		table.put("indexes", indexes);
+		table.put("refresh", new Long(1));
+		table.put("change_query", "SELECT version FROM PUBLIC.CODES_VERSION");
+		HashMap<String,Object> tables = new HashMap<String,Object>();
+		tables.put("codes", table);
+		config.put("reference_tables", tables);
+
+		HashMap<String,Object> byCode = new HashMap<String,Object>();
+		byCode.put("table", "codes");
+		byCode.put("keys", "code");
+		config.addStatement("getByCode", "SELECT country, code, label FROM PUBLIC.CODES WHERE code = ?", "INTEGER").put("reference", byCode);
+
+		HashMap<String,Object> byBoth = new HashMap<String,Object>();
+		byBoth.put("table", "codes");
+		byBoth.put("keys", both);
+		config.addStatement("getCode", "SELECT country, code, label FROM PUBLIC.CODES WHERE country = ? AND code = ?", "STRING", "INTEGER").put("reference", byBoth);
+
+		HashMap<String,Object> all = new HashMap<String,Object>();
+		all.put("table", "codes");
+		config.addStatement("getCodes", "SELECT country, code, label FROM PUBLIC.CODES").put("reference", all);
+
+		worker = new JDBCQueryRunner(pc);
+		worker.setClient(kestrel);
+		worker.configure(config.getConfig());
+	}
+
+	@After
+	public void teardown() throws Exception {
+
+		execute("DROP TABLE PUBLIC.CODES");
+		execute("DROP TABLE PUBLIC.CODES_VERSION");
+		conn.close();
+	}
+
+	private void execute(String sql) throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute(sql);
+		st.close();
+	}
+
+	private List<JSONObject> run(String request) throws Exception {
+
+		worker.handle(pc, "responses", (JSONObject) JSONValue.parse(request));
+		List<JSONObject> responses = new ArrayList<JSONObject>();
+		String response;
+		while((response = kestrel.get("responses")) != null) {
+			responses.add((JSONObject) JSONValue.parse(response));
+		}
+		return responses;
+	}
+
+	@Test
+	public void testLookups() throws Exception {
+
+		List<JSONObject> rows = run("{\"statement\":\"getByCode\",\"params\":[1],\"tracer\":\"t\"}");
+		assertEquals("two countries have code 1", 2, rows.size());
+		assertEquals("fr", ((JSONObject) rows.get(0).get("row_data")).get("COUNTRY"));
+		assertEquals(new Long(1), rows.get(0).get("row_num"));
+		assertEquals("t", rows.get(0).get("tracer"));
+
+		rows = run("{\"statement\":\"getCode\",\"params\":[\"us\", 2]}");
+		assertEquals(1, rows.size());
+		assertEquals("two", ((JSONObject) rows.get(0).get("row_data")).get("LABEL"));
+
+		assertEquals("no match", 0, run("{\"statement\":\"getByCode\",\"params\":[9]}").size());
+		assertEquals("every row", 3, run("{\"statement\":\"getCodes\"}").size());
+		assertEquals("filtered", 1, run("{\"statement\":\"getCodes\",\"filter\":\"label = 'un'\"}").size());
+
+		rows = run("{\"statement\":\"getByCode\",\"params\":[1, 2]}");
+		assertTrue("params checked", rows.get(0).containsKey("ERROR"));
+	}
+
+	@Test
+	public void testRefresh() throws Exception {
+
+		// Served from memory, the change isn't seen until the change query
+		// says so.
+		execute("UPDATE PUBLIC.CODES SET label = 'uno' WHERE country = 'us' AND code = 1");
+		Thread.sleep(5);
+		worker.refreshReferences();
+		List<JSONObject> rows = run("{\"statement\":\"getCode\",\"params\":[\"us\", 1]}");
+		assertEquals("one", ((JSONObject) rows.get(0).get("row_data")).get("LABEL"));
+
+		execute("UPDATE PUBLIC.CODES_VERSION SET version = 2");
+		Thread.sleep(5);
+		worker.refreshReferences();
+		rows = run("{\"statement\":\"getCode\",\"params\":[\"us\", 1]}");
+		assertEquals("uno", ((JSONObject) rows.get(0).get("row_data")).get("LABEL"));
+	}
+}
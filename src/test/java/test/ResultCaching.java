@@ -0,0 +1,199 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+import iinteractive.bullfinch.util.ResultCache;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+import test.util.JDBCWorkerConfig;
+
+public class ResultCaching {
+
+	private static final String DSN = "jdbc:hsqldb:mem:caching";
+
+	private Connection conn;
+	private JDBCQueryRunner worker;
+	private MemcachedClient kestrel = new FakeKestrel();
+	private PerformanceCollector pc = new PerformanceCollector("test", false);
+
+	@Before
+	public void setup() throws Exception {
+
+		conn = DriverManager.getConnection(DSN, "SA", "");
+		execute("CREATE TABLE PUBLIC.THINGS (id INTEGER, name VARCHAR(32))");
+		execute("INSERT INTO PUBLIC.THINGS VALUES (1, 'one')");
+		execute("INSERT INTO PUBLIC.THINGS VALUES (2, 'two')");
+
+		// The cache is shared by everything using the dsn, start clean.
+		ResultCache.get(DSN, 1000).invalidate(Arrays.asList("things"));
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(DSN, "SELECT 1 FROM PUBLIC.THINGS");
+		config.put("cache_max_rows", new Long(3));
+
+		HashMap<String,Object> getThings = config.addStatement("getThings", "SELECT id, name FROM PUBLIC.THINGS ORDER BY id");
+		getThings.put("reads", "things");
+		getThings.put("cache_ttl", new Long(600000));
+
+		HashMap<String,Object> addThing = config.addStatement("addThing", "INSERT INTO PUBLIC.THINGS VALUES (?, ?)", "INTEGER", "STRING");
+		addThing.put("writes", "THINGS");
+
+		HashMap<String,Object> addOther = config.addStatement("addOther", "INSERT INTO PUBLIC.THINGS VALUES (?, ?)", "INTEGER", "STRING");
+		addOther.put("writes", Arrays.asList("others"));
+
+		worker = new JDBCQueryRunner(pc);
+		worker.setClient(kestrel);
+		worker.configure(config.getConfig());
+	}
+
+	@After
+	public void teardown() throws Exception {
+
+		execute("DROP TABLE PUBLIC.THINGS");
+		conn.close();
+	}
+
+	private void execute(String sql) throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute(sql);
+		st.close();
+	}
+
+	private List<JSONObject> run(String request) throws Exception {
+
+		worker.handle(pc, "responses", (JSONObject) JSONValue.parse(request));
+		List<JSONObject> responses = new ArrayList<JSONObject>();
+		String response;
+		while((response = kestrel.get("responses")) != null) {
+			responses.add((JSONObject) JSONValue.parse(response));
+		}
+		return responses;
+	}
+
+	@Test
+	public void testWriteInvalidates() throws Exception {
+
+		assertEquals(2, run("{\"statement\":\"getThings\"}").size());
+
+		// Behind the cache's back, so not seen.
+		execute("INSERT INTO PUBLIC.THINGS VALUES (3, 'three')");
+		List<JSONObject> rows = run("{\"statement\":\"getThings\",\"tracer\":\"t\"}");
+		assertEquals("served from the cache", 2, rows.size());
+		assertEquals("t", rows.get(0).get("tracer"));
+		assertEquals(new Long(2), rows.get(1).get("row_num"));
+
+		// A write said to be to another table leaves it be.
+		run("{\"statement\":\"addOther\",\"params\":[4, \"four\"]}");
+		assertEquals(2, run("{\"statement\":\"getThings\"}").size());
+
+		// A write to the table throws it out.
+		run("{\"statement\":\"addThing\",\"params\":[5, \"five\"]}");
+		assertEquals(0, ResultCache.get(DSN, 1000).size());
+		rows = run("{\"statement\":\"getThings\"}");
+		assertEquals(5, rows.size());
+		assertEquals("five", ((JSONObject) rows.get(4).get("row_data")).get("NAME"));
+	}
+
+	@Test
+	public void testFilterSharesCache() throws Exception {
+
+		List<JSONObject> rows = run("{\"statement\":\"getThings\",\"filter\":\"id = 2\",\"project\":[\"name\"]}");
+		assertEquals(1, rows.size());
+		assertEquals(new Long(2), rows.get(0).get("row_num"));
+		JSONObject data = (JSONObject) rows.get(0).get("row_data");
+		assertEquals("two", data.get("name"));
+		assertFalse(data.containsKey("ID"));
+
+		// The whole rows were cached.
+		execute("INSERT INTO PUBLIC.THINGS VALUES (3, 'three')");
+		rows = run("{\"statement\":\"getThings\"}");
+		assertEquals(2, rows.size());
+		assertEquals("one", ((JSONObject) rows.get(0).get("row_data")).get("NAME"));
+
+		rows = run("{\"statement\":\"getThings\",\"filter\":\"id = 1\"}");
+		assertEquals(1, rows.size());
+		assertEquals(new Long(1), rows.get(0).get("row_num"));
+	}
+
+	@Test
+	public void testTooManyRows() throws Exception {
+
+		execute("INSERT INTO PUBLIC.THINGS VALUES (3, 'three')");
+		execute("INSERT INTO PUBLIC.THINGS VALUES (4, 'four')");
+		assertEquals(4, run("{\"statement\":\"getThings\"}").size());
+
+		// Over cache_max_rows, so not cached.
+		execute("INSERT INTO PUBLIC.THINGS VALUES (5, 'five')");
+		assertEquals(5, run("{\"statement\":\"getThings\"}").size());
+	}
+
+	@Test
+	public void testStaleReadNotKept() throws Exception {
+
+		ResultCache cache = new ResultCache(10);
+		List<String> tags = Arrays.asList("things");
+		List<JSONObject> rows = new ArrayList<JSONObject>();
+
+		long[] stamp = cache.stamp(tags);
+		cache.invalidate(Arrays.asList("THINGS"));
+		assertFalse("a write raced the read", cache.put("key", rows, tags, stamp, 60000));
+		assertNull(cache.get("key"));
+
+		stamp = cache.stamp(tags);
+		assertTrue(cache.put("key", rows, tags, stamp, 60000));
+		assertEquals(rows, cache.get("key"));
+		assertEquals(1, cache.invalidate(Arrays.asList("Things")));
+		assertNull(cache.get("key"));
+	}
+
+	@Test
+	public void testLeastRecentlyUsedDropped() throws Exception {
+
+		ResultCache cache = new ResultCache(2);
+		List<String> tags = Arrays.asList("things");
+		List<JSONObject> rows = new ArrayList<JSONObject>();
+
+		cache.put("a", rows, tags, cache.stamp(tags), 60000);
+		cache.put("b", rows, tags, cache.stamp(tags), 60000);
+		cache.get("a");
+		cache.put("c", rows, tags, cache.stamp(tags), 60000);
+		assertEquals(2, cache.size());
+		assertNull(cache.get("b"));
+		assertEquals(2, cache.invalidate(tags));
+	}
+
+	@Test
+	public void testCachedNeedsReads() throws Exception {
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(DSN, "SELECT 1 FROM PUBLIC.THINGS");
+		config.addStatement("getThings", "SELECT id, name FROM PUBLIC.THINGS").put("cache_ttl", new Long(1000));
+		JDBCQueryRunner bad = new JDBCQueryRunner(pc);
+		try {
+			bad.configure(config.getConfig());
+			fail("configured a cached statement that doesn't say what it reads");
+		} catch(Exception e) {
+			assertTrue(e.getMessage().contains("doesn't say which tables it reads"));
+		}
+	}
+}
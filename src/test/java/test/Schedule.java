@@ -0,0 +1,119 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.minion.QueueSchedule;
+import iinteractive.bullfinch.minion.QueueSchedule.Subscription;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+public class Schedule {
+
+	@Test
+	public void testWeightedOrder() {
+
+		QueueSchedule schedule = new QueueSchedule(50, 1000);
+		schedule.add("big", 3);
+		schedule.add("small", 1);
+
+		HashMap<String,Integer> polls = new HashMap<String,Integer>();
+		String previous = null;
+		boolean spread = true;
+		for(int i = 0; i < 40; i++) {
+			Subscription sub = schedule.next();
+			schedule.gotItems(sub);
+			Integer n = polls.get(sub.getQueue());
+			polls.put(sub.getQueue(), n == null ? 1 : n + 1);
+			if("small".equals(previous) && "small".equals(sub.getQueue())) {
+				spread = false;
+			}
+			previous = sub.getQueue();
+		}
+		assertEquals("three to one", 30, polls.get("big").intValue());
+		assertEquals("three to one", 10, polls.get("small").intValue());
+		assertTrue("small never polled twice in a row", spread);
+	}
+
+	@Test
+	public void testEmptyQueuesSkipped() throws Exception {
+
+		QueueSchedule schedule = new QueueSchedule(200, 1000);
+		schedule.add("idle", 5);
+		schedule.add("busy", 1);
+
+		Subscription first = schedule.next();
+		assertEquals("heaviest first", "idle", first.getQueue());
+		schedule.wasEmpty(first);
+
+		for(int i = 0; i < 5; i++) {
+			assertEquals("idle skipped", "busy", schedule.next().getQueue());
+		}
+
+		Subscription busy = schedule.next();
+		schedule.wasEmpty(busy);
+		assertTrue("everything is backing off", schedule.next() == null);
+		assertTrue("wait for the first one", schedule.getWait() > 0);
+
+		Thread.sleep(schedule.getWait() + 10);
+		assertTrue("polled again", schedule.next() != null);
+	}
+
+	@Test
+	public void testSingleQueueNeverBacksOff() {
+
+		QueueSchedule schedule = new QueueSchedule(50, 1000);
+		schedule.add("only", 1);
+		Subscription sub = schedule.next();
+		schedule.wasEmpty(sub);
+		assertEquals("still polled", "only", schedule.next().getQueue());
+	}
+
+	@Test
+	public void testStrictLanes() throws Exception {
+
+		QueueSchedule schedule = new QueueSchedule(50, 1000);
+		schedule.add("interactive", 1, false);
+		schedule.add("bulk", 1, true);
+		schedule.setPriority(QueueSchedule.Policy.STRICT, 4, 300);
+
+		for(int i = 0; i < 20; i++) {
+			assertEquals("high lane only", "interactive", schedule.next().getQueue());
+		}
+
+		// Starvation protection lets the low lane in.
+		Thread.sleep(310);
+		assertEquals("starved lane polled", "bulk", schedule.next().getQueue());
+		assertEquals("back to high", "interactive", schedule.next().getQueue());
+
+		// An empty high lane leaves the low lane to it.
+		Subscription high = schedule.next();
+		schedule.wasEmpty(high);
+		assertEquals("low when high is empty", "bulk", schedule.next().getQueue());
+	}
+
+	@Test
+	public void testRatioLanes() {
+
+		QueueSchedule schedule = new QueueSchedule(50, 1000);
+		schedule.add("interactive", 1, false);
+		schedule.add("bulk", 1, true);
+		schedule.setPriority(QueueSchedule.Policy.RATIO, 3, 0);
+
+		int low = 0;
+		for(int i = 0; i < 40; i++) {
+			Subscription sub = schedule.next();
+			if(sub.getLane().equals("low")) {
+				low++;
+			}
+			sub.recordWait(sub.getLane().equals("low") ? 100 : 10);
+		}
+		assertEquals("one in four", 10, low);
+
+		Subscription bulk = schedule.getSubscriptions().get(1);
+		assertEquals("waits recorded", 10, bulk.getWaits());
+		assertEquals("mean wait", 100.0, bulk.getMeanWait(), 0.001);
+		assertEquals("max wait", 100, bulk.getMaxWait());
+	}
+}
@@ -0,0 +1,65 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.util.LatencyEstimator;
+
+import org.junit.Test;
+
+public class Shedding {
+
+	@Test
+	public void testEstimate() {
+
+		LatencyEstimator est = new LatencyEstimator(0.5, 3);
+
+		est.record("slowQuery", 1000);
+		est.record("slowQuery", 1000);
+		assertEquals("no estimate yet", -1, est.estimate("slowQuery"));
+		est.record("slowQuery", 1000);
+		assertEquals("steady", 1000, est.estimate("slowQuery"));
+
+		est.record("slowQuery", 2000);
+		assertTrue("erratic timings estimate high", est.estimate("slowQuery") > 1500);
+		assertEquals("unknown statement", -1, est.estimate("other"));
+	}
+
+	@Test
+	public void testShedding() {
+
+		LatencyEstimator est = new LatencyEstimator(0.2, 1);
+		est.record("slowQuery", 1000);
+
+		assertTrue("not enough time", est.shouldShed("slowQuery", 500));
+		assertFalse("enough time", est.shouldShed("slowQuery", 5000));
+		assertFalse("no estimate, run it", est.shouldShed("other", 10));
+		assertTrue("already late", est.shouldShed("other", 0));
+
+		assertEquals("shed", 2, est.getShed());
+		assertEquals("accepted", 2, est.getAccepted());
+		assertEquals("rate", 0.5, est.getShedRate(), 0.001);
+	}
+
+	@Test
+	public void testRecovers() throws Exception {
+
+		LatencyEstimator est = new LatencyEstimator(0.5, 1, 50);
+		est.record("slowQuery", 1000);
+		assertTrue("too slow", est.shouldShed("slowQuery", 500));
+		assertTrue("still too slow", est.shouldShed("slowQuery", 500));
+
+		// The database got fast again, probes find out.
+		boolean recovered = false;
+		for(int i = 0; i < 20 && !recovered; i++) {
+			Thread.sleep(60);
+			if(!est.shouldShed("slowQuery", 500)) {
+				est.record("slowQuery", 20);
+				recovered = est.estimate("slowQuery") < 500;
+			}
+		}
+		assertTrue("estimate came back down", recovered);
+		assertTrue("probes were let through", est.getProbes() > 0);
+		assertFalse("no longer shed", est.shouldShed("slowQuery", 500));
+	}
+}
@@ -1,6 +1,7 @@
 package test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
@@ -9,8 +10,12 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import iinteractive.bullfinch.Minion;
 import iinteractive.bullfinch.PerformanceCollector;
+
+import java.util.HashMap;
+
 import net.rubyeye.xmemcached.MemcachedClient;
 
+import org.joda.time.DateTime;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -56,4 +61,20 @@ public class SimpleKestrelBasedMinion {
 			worker.cancel();
 		}
 	}
+
+	@Test
+	public void testResponseExpiry() {
+
+		FakeKestrelWorker worker = new FakeKestrelWorker(new PerformanceCollector("foo", false));
+
+		HashMap<String,Object> request = new HashMap<String,Object>();
+		assertEquals("never by default", 0, worker.expiryFor(request));
+
+		request.put("process-by", DateTime.now().plusSeconds(120).toString());
+		int expiry = worker.expiryFor(request);
+		assertTrue("process-by plus grace", expiry > 170 && expiry <= 180);
+
+		request.put("response_ttl", new Long(30));
+		assertEquals("asked for", 30, worker.expiryFor(request));
+	}
 }
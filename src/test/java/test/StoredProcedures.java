@@ -0,0 +1,108 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCQueryRunner;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+import test.util.JDBCWorkerConfig;
+
+public class StoredProcedures {
+
+	private Connection conn;
+	private JDBCQueryRunner worker;
+	private MemcachedClient kestrel = new FakeKestrel();
+	private PerformanceCollector pc = new PerformanceCollector("test", false);
+
+	@Before
+	public void setup() throws Exception {
+
+		String dsn = "jdbc:hsqldb:mem:procedures";
+		conn = DriverManager.getConnection(dsn, "SA", "");
+		Statement st = conn.createStatement();
+		st.execute("CREATE TABLE PUBLIC.PROC_TABLE (an_int INTEGER, a_string VARCHAR(32))");
+		for(int i = 1; i <= 5; i++) {
+			st.execute("INSERT INTO PUBLIC.PROC_TABLE (an_int, a_string) VALUES (" + i + ", 'row" + i + "')");
+		}
+		st.execute("CREATE PROCEDURE PUBLIC.LIST_FROM(IN minimum INTEGER, OUT total INTEGER) "
+			+ "READS SQL DATA DYNAMIC RESULT SETS 2 "
+			+ "BEGIN ATOMIC "
+			+ "DECLARE ints CURSOR WITH RETURN FOR SELECT an_int FROM PUBLIC.PROC_TABLE WHERE an_int >= minimum ORDER BY an_int; "
+			+ "DECLARE strings CURSOR WITH RETURN FOR SELECT a_string FROM PUBLIC.PROC_TABLE WHERE an_int >= minimum ORDER BY an_int; "
+			+ "SELECT COUNT(*) INTO total FROM PUBLIC.PROC_TABLE WHERE an_int >= minimum; "
+			+ "OPEN ints; "
+			+ "OPEN strings; "
+			+ "END");
+		st.close();
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(dsn, "SELECT an_int FROM PUBLIC.PROC_TABLE");
+		config.addStatement("listFrom", "{call PUBLIC.LIST_FROM(?, ?)}", "INTEGER", "OUT INTEGER").put("callable", Boolean.TRUE);
+		config.addStatement("plain", "SELECT an_int FROM PUBLIC.PROC_TABLE WHERE an_int = ?", "INTEGER");
+
+		worker = new JDBCQueryRunner(pc);
+		worker.setClient(kestrel);
+		worker.configure(config.getConfig());
+	}
+
+	@After
+	public void teardown() throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute("DROP PROCEDURE PUBLIC.LIST_FROM");
+		st.execute("DROP TABLE PUBLIC.PROC_TABLE");
+		st.close();
+		conn.close();
+	}
+
+	@Test
+	public void testResultSetsAndOutParams() throws Exception {
+
+		List<JSONObject> responses = run("{\"statement\":\"listFrom\",\"params\":[4]}");
+		assertEquals("two rows in two sets and the out params", 5, responses.size());
+
+		assertEquals("first set", new Long(0), responses.get(0).get("result_set"));
+		assertEquals("first set data", new Long(4), ((JSONObject) responses.get(0).get("row_data")).get("AN_INT"));
+		assertEquals("first set", new Long(0), responses.get(1).get("result_set"));
+		assertEquals("second set", new Long(1), responses.get(2).get("result_set"));
+		assertEquals("second set data", "row4", ((JSONObject) responses.get(2).get("row_data")).get("A_STRING"));
+		assertEquals("second set", new Long(1), responses.get(3).get("result_set"));
+
+		JSONObject out = (JSONObject) responses.get(4).get("out_params");
+		assertEquals("total", new Long(2), out.get("2"));
+	}
+
+	@Test
+	public void testPlainStatementsUnchanged() throws Exception {
+
+		List<JSONObject> responses = run("{\"statement\":\"plain\",\"params\":[3]}");
+		assertEquals("one row", 1, responses.size());
+		assertTrue("no set index", !responses.get(0).containsKey("result_set"));
+	}
+
+	private List<JSONObject> run(String json) throws Exception {
+
+		worker.handle(pc, "responses", (JSONObject) JSONValue.parse(json));
+
+		List<JSONObject> responses = new ArrayList<JSONObject>();
+		String response;
+		while((response = kestrel.get("responses")) != null) {
+			responses.add((JSONObject) JSONValue.parse(response));
+		}
+		return responses;
+	}
+}
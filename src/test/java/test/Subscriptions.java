@@ -0,0 +1,150 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.JDBCSubscriptionRunner;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import net.rubyeye.xmemcached.MemcachedClient;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrel;
+import test.util.JDBCWorkerConfig;
+
+public class Subscriptions {
+
+	private Connection conn;
+	private JDBCSubscriptionRunner worker;
+	private MemcachedClient kestrel = new FakeKestrel();
+	private PerformanceCollector pc = new PerformanceCollector("test", false);
+
+	@Before
+	public void setup() throws Exception {
+
+		String dsn = "jdbc:hsqldb:mem:subscriptions";
+		conn = DriverManager.getConnection(dsn, "SA", "");
+		Statement st = conn.createStatement();
+		st.execute("CREATE TABLE PUBLIC.ORDERS (id INTEGER, customer INTEGER, status VARCHAR(16))");
+		st.execute("INSERT INTO PUBLIC.ORDERS VALUES (1, 12, 'new')");
+		st.execute("INSERT INTO PUBLIC.ORDERS VALUES (2, 12, 'new')");
+		st.execute("INSERT INTO PUBLIC.ORDERS VALUES (3, 13, 'new')");
+		st.close();
+
+		JDBCWorkerConfig config = new JDBCWorkerConfig(dsn, "SELECT id FROM PUBLIC.ORDERS");
+		HashMap<String,Object> stmt = config.addStatement("getOrders", "SELECT id, status FROM PUBLIC.ORDERS WHERE customer = ? ORDER BY id", "INTEGER");
+		stmt.put("key", "id");
+		stmt.put("interval", new Long(0));
+		config.addStatement("getAll", "SELECT id FROM PUBLIC.ORDERS");
+
+		worker = new JDBCSubscriptionRunner(pc);
+		worker.setClient(kestrel);
+		worker.configure(config.getConfig());
+	}
+
+	@After
+	public void teardown() throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute("DROP TABLE PUBLIC.ORDERS");
+		st.close();
+		conn.close();
+	}
+
+	private List<JSONObject> drain(String queue) throws Exception {
+
+		List<JSONObject> messages = new ArrayList<JSONObject>();
+		String message;
+		while((message = kestrel.get(queue)) != null) {
+			messages.add((JSONObject) JSONValue.parse(message));
+		}
+		return messages;
+	}
+
+	private void request(String queue, String action) throws Exception {
+
+		worker.handle(pc, queue, (JSONObject) JSONValue.parse(
+			"{\"statement\":\"getOrders\",\"params\":[12],\"subscription\":\"" + action + "\",\"tracer\":\"" + queue + "\"}"
+		));
+	}
+
+	private void execute(String sql) throws Exception {
+
+		Statement st = conn.createStatement();
+		st.execute(sql);
+		st.close();
+	}
+
+	@Test
+	public void testDeltas() throws Exception {
+
+		request("dash1", "subscribe");
+		List<JSONObject> snapshot = drain("dash1");
+		assertEquals("whole result", 2, snapshot.size());
+		assertEquals("insert", snapshot.get(0).get("op"));
+		assertEquals(new Long(1), snapshot.get(0).get("key"));
+		assertEquals("dash1", snapshot.get(0).get("tracer"));
+		assertEquals(1, JDBCSubscriptionRunner.getFeedCount());
+
+		worker.pollFeeds();
+		assertEquals("nothing changed", 0, drain("dash1").size());
+
+		execute("UPDATE PUBLIC.ORDERS SET status = 'shipped' WHERE id = 1");
+		execute("DELETE FROM PUBLIC.ORDERS WHERE id = 2");
+		execute("INSERT INTO PUBLIC.ORDERS VALUES (4, 12, 'new')");
+		execute("INSERT INTO PUBLIC.ORDERS VALUES (5, 13, 'new')");
+		worker.pollFeeds();
+
+		List<JSONObject> deltas = drain("dash1");
+		assertEquals("three changes and an EOF", 4, deltas.size());
+		assertEquals("update", deltas.get(0).get("op"));
+		assertEquals("shipped", ((JSONObject) deltas.get(0).get("row_data")).get("STATUS"));
+		assertEquals("insert", deltas.get(1).get("op"));
+		assertEquals(new Long(4), deltas.get(1).get("key"));
+		assertEquals("delete", deltas.get(2).get("op"));
+		assertEquals(new Long(2), deltas.get(2).get("key"));
+		assertEquals("EOF", deltas.get(3).get("EOF"));
+		assertEquals(deltas.get(0).get("version"), deltas.get(3).get("version"));
+
+		// A second subscriber shares the query and starts from the current
+		// result.
+		request("dash2", "subscribe");
+		List<JSONObject> second = drain("dash2");
+		assertEquals("current result", 2, second.size());
+		assertEquals(1, JDBCSubscriptionRunner.getFeedCount());
+		assertEquals("no change for the first", 0, drain("dash1").size());
+
+		request("dash1", "renew");
+		assertEquals("renewing doesn't resend", 0, drain("dash1").size());
+
+		request("dash1", "unsubscribe");
+		execute("DELETE FROM PUBLIC.ORDERS WHERE id = 4");
+		worker.pollFeeds();
+		assertEquals("unsubscribed", 0, drain("dash1").size());
+		assertEquals("delete and EOF", 2, drain("dash2").size());
+
+		request("dash2", "unsubscribe");
+		assertEquals("feed dropped", 0, JDBCSubscriptionRunner.getFeedCount());
+	}
+
+	@Test
+	public void testNeedsKey() throws Exception {
+
+		worker.handle(pc, "dash3", (JSONObject) JSONValue.parse("{\"statement\":\"getAll\"}"));
+		List<JSONObject> messages = drain("dash3");
+		assertEquals(1, messages.size());
+		assertTrue(((String) messages.get(0).get("ERROR")).indexOf("no key") > 0);
+		assertEquals(0, JDBCSubscriptionRunner.getFeedCount());
+	}
+}
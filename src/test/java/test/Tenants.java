@@ -0,0 +1,92 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import iinteractive.bullfinch.util.TenantLimiter;
+import iinteractive.bullfinch.util.TenantLimiter.Decision;
+
+import org.junit.Test;
+
+public class Tenants {
+
+	@Test
+	public void testRateLimit() {
+
+		TenantLimiter limiter = new TenantLimiter(1, 2, 1, 1000, 3);
+		limiter.addWorker();
+
+		assertEquals("first", Decision.ADMIT, limiter.admit("a", 0));
+		limiter.done("a");
+		assertEquals("burst", Decision.ADMIT, limiter.admit("a", 0));
+		limiter.done("a");
+		assertEquals("out of tokens", Decision.THROTTLE, limiter.admit("a", 0));
+		assertEquals("others unaffected", Decision.ADMIT, limiter.admit("b", 0));
+
+		assertEquals("throttled", 1, limiter.getThrottled("a"));
+		assertEquals("admitted", 2, limiter.getAdmitted("a"));
+		assertEquals("b throttled", 0, limiter.getThrottled("b"));
+	}
+
+	@Test
+	public void testOverrides() {
+
+		TenantLimiter limiter = new TenantLimiter(1, 1, 1, 1000, 3);
+		limiter.addWorker();
+		limiter.setTenant("big", 0, 1, 1);
+
+		for(int i = 0; i < 10; i++) {
+			assertEquals("unlimited", Decision.ADMIT, limiter.admit("big", 0));
+			limiter.done("big");
+		}
+	}
+
+	@Test
+	public void testFairShare() {
+
+		TenantLimiter limiter = new TenantLimiter(0, 1, 1, 1000, 3);
+		limiter.addWorker();
+		limiter.addWorker();
+
+		assertEquals("alone, a gets every worker", Decision.ADMIT, limiter.admit("a", 0));
+		assertEquals("b", Decision.ADMIT, limiter.admit("b", 0));
+		assertEquals("a over its share", Decision.DEFER, limiter.admit("a", 0));
+		assertEquals("deferred enough", Decision.ADMIT, limiter.admit("a", 3));
+		assertEquals("deferred", 1, limiter.getDeferred("a"));
+	}
+
+	@Test
+	public void testWeights() {
+
+		TenantLimiter limiter = new TenantLimiter(0, 1, 1, 1000, 3);
+		for(int i = 0; i < 4; i++) {
+			limiter.addWorker();
+		}
+		limiter.setTenant("heavy", 0, 1, 3);
+
+		assertEquals("heavy", Decision.ADMIT, limiter.admit("heavy", 0));
+		assertEquals("light", Decision.ADMIT, limiter.admit("light", 0));
+		assertEquals("light over its share", Decision.DEFER, limiter.admit("light", 0));
+		for(int i = 1; i < 3; i++) {
+			assertEquals("heavy " + i, Decision.ADMIT, limiter.admit("heavy", 0));
+		}
+		assertEquals("heavy over its share", Decision.DEFER, limiter.admit("heavy", 0));
+	}
+
+	@Test
+	public void testIdleTenantsForgotten() throws Exception {
+
+		TenantLimiter limiter = new TenantLimiter(1000, 1, 1, 50, 3);
+		limiter.addWorker();
+		limiter.setTenant("configured", 0, 1, 1);
+
+		for(int i = 0; i < 100; i++) {
+			assertEquals(Decision.ADMIT, limiter.admit("once-" + i, 3));
+			limiter.done("once-" + i);
+		}
+		assertEquals("busy", Decision.ADMIT, limiter.admit("busy", 3));
+		assertEquals(102, limiter.size());
+
+		Thread.sleep(100);
+		assertEquals(Decision.ADMIT, limiter.admit("new", 0));
+		assertEquals("idle tenants dropped, configured and in flight kept", 3, limiter.size());
+	}
+}
@@ -0,0 +1,200 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import iinteractive.bullfinch.PerformanceCollector;
+import iinteractive.bullfinch.minion.KestrelRefusedException;
+import iinteractive.bullfinch.minion.KestrelTextClient;
+import iinteractive.bullfinch.util.SpillJournal;
+import iinteractive.bullfinch.util.SpillJournal.FsyncPolicy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import net.rubyeye.xmemcached.exception.MemcachedException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeKestrelServer;
+
+public class TextClient {
+
+	private FakeKestrelServer server;
+	private KestrelTextClient client;
+
+	@Before
+	public void startServer() {
+
+		try {
+			server = new FakeKestrelServer();
+			client = new KestrelTextClient("127.0.0.1", server.getPort(), 2000, 4);
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@After
+	public void stopServer() {
+
+		client.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testPipelinedSets() {
+
+		try {
+			for(int i = 0; i < 50; i++) {
+				client.set("responses", 0, "{\"row_num\":" + i + "}");
+			}
+			client.flush();
+
+			assertEquals("all sets stored", 50, server.size("responses"));
+			assertEquals("in order", "{\"row_num\":0}", server.take("responses"));
+			assertEquals("set count", 50, client.getSetStats().getCount());
+			assertEquals("no set errors", 0, client.getSetStats().getErrors());
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testReliableRead() {
+
+		try {
+			server.put("work", "{\"response_queue\":\"r\",\"name\":\"café\"}");
+
+			String item = client.get("work/t=100/open", 1000);
+			assertEquals("got item", "{\"response_queue\":\"r\",\"name\":\"café\"}", item);
+			assertTrue("close returns nothing", client.get("work/close", 0) == null);
+			assertTrue("queue is empty", client.get("work/t=50/open", 1000) == null);
+			assertEquals("nothing left", 0, server.size("work"));
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testLargeValue() {
+
+		try {
+			StringBuilder big = new StringBuilder();
+			for(int i = 0; i < 100000; i++) {
+				big.append("0123456789");
+			}
+			server.put("big", big.toString());
+			assertEquals("read past the buffer size", big.toString(), client.get("big", 1000));
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testReportsLatency() {
+
+		PerformanceCollector pc = new PerformanceCollector("test", true);
+		KestrelTextClient reporting = new KestrelTextClient("127.0.0.1", server.getPort(), 2000, 4, pc);
+		try {
+			for(int i = 0; i < 10; i++) {
+				reporting.set("responses", 0, "{\"row_num\":" + i + "}");
+			}
+			reporting.flush();
+			reporting.shutdown();
+
+			List<String> activities = new ArrayList<String>();
+			String tick;
+			while((tick = pc.poll()) != null) {
+				activities.add(tick);
+			}
+			assertEquals("latency, max and errors for sets", 3, activities.size());
+			assertTrue(activities.get(0).contains("Kestrel set latency"));
+			assertTrue(activities.get(2).contains("Kestrel set errors"));
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testRefusedSetsHandedBack() {
+
+		try {
+			server.refuse("full");
+			client.set("responses", 0, "one");
+			// The refusal may come back before set returns, or only on flush.
+			boolean told = false;
+			try {
+				client.set("full", 30, "two");
+			} catch(MemcachedException e) {
+				told = true;
+			}
+			client.set("responses", 0, "three");
+			try {
+				client.flush();
+			} catch(KestrelRefusedException e) {
+				assertFalse("only told once", told);
+				assertEquals(1, e.getItems().size());
+				assertEquals("full", e.getItems().get(0).getQueue());
+				assertEquals(30, e.getItems().get(0).getExpiry());
+				assertEquals("two", e.getItems().get(0).getMessage());
+				told = true;
+			}
+			assertTrue("refusal reported", told);
+			assertEquals("the rest stored", 2, server.size("responses"));
+			client.flush();
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testRefusedResponsesSpilled() throws Exception {
+
+		server.refuse("responses");
+		server.put("work", "{\"response_queue\":\"responses\"}");
+
+		File spill = File.createTempFile("bullfinch-spill", ".log");
+		spill.deleteOnExit();
+		spill.delete();
+		HashMap<String,Object> spillConfig = new HashMap<String,Object>();
+		spillConfig.put("path", spill.getPath());
+		spillConfig.put("max_bytes", new Long(4096));
+
+		HashMap<String,Object> config = new HashMap<String,Object>();
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(server.getPort()));
+		config.put("kestrel_client", "native");
+		config.put("kestrel_send_retries", new Long(0));
+		config.put("subscribe_to", "work");
+		config.put("timeout", new Long(50));
+		config.put("spill", spillConfig);
+
+		Dedupe.Writer worker = new Dedupe.Writer(new PerformanceCollector("foo", false));
+		worker.configure(config);
+		Thread thread = new Thread(worker);
+		thread.start();
+
+		long until = System.currentTimeMillis() + 5000;
+		while(worker.executed < 1 && System.currentTimeMillis() < until) {
+			Thread.sleep(20);
+		}
+		Thread.sleep(200);
+		worker.cancel();
+		thread.join(2000);
+
+		assertEquals("handled once", 1, worker.executed);
+		assertEquals("nothing stored", 0, server.size("responses"));
+		assertEquals("request confirmed", 0, server.size("work"));
+		assertEquals("answer and EOF spilled", 2, SpillJournal.open(spill.getPath(), 4096, FsyncPolicy.NEVER, 0).getSpilled());
+	}
+}
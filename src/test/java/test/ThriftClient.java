@@ -0,0 +1,123 @@
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import iinteractive.bullfinch.minion.KestrelItem;
+import iinteractive.bullfinch.minion.KestrelRefusedException;
+import iinteractive.bullfinch.minion.KestrelThriftClient;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import test.util.FakeThriftKestrel;
+
+public class ThriftClient {
+
+	private FakeThriftKestrel server;
+	private KestrelThriftClient client;
+
+	@Before
+	public void startServer() {
+
+		try {
+			server = new FakeThriftKestrel();
+			client = new KestrelThriftClient("127.0.0.1", server.getPort(), 2000, 10, 0);
+		} catch(Exception e) {
+			fail(e.toString());
+		}
+	}
+
+	@After
+	public void stopServer() {
+
+		client.shutdown();
+		server.stop();
+	}
+
+	@Test
+	public void testBatchedPut() {
+
+		try {
+			for(int i = 0; i < 25; i++) {
+				client.set("responses", 0, "row" + i);
+			}
+			assertEquals("two full batches put", 2, server.putCalls);
+			client.flush();
+			assertEquals("flush puts the rest", 3, server.putCalls);
+			assertEquals("all items stored", 25, server.size("responses"));
+			assertEquals("in order", "row0", server.take("responses"));
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testPartialPutHandedBack() {
+
+		try {
+			server.putLimit = 3;
+			for(int i = 0; i < 5; i++) {
+				assertFalse("only buffered", client.set("responses", 60, "row" + i));
+			}
+			try {
+				client.flush();
+				fail("flushed as if everything was stored");
+			} catch(KestrelRefusedException e) {
+				assertEquals("two not stored", 2, e.getItems().size());
+				assertEquals("row3", e.getItems().get(0).getMessage());
+				assertEquals("responses", e.getItems().get(0).getQueue());
+				assertEquals(60, e.getItems().get(0).getExpiry());
+			}
+			assertEquals("the rest stored", 3, server.size("responses"));
+			client.flush();
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testBatchedOpenAndConfirm() {
+
+		try {
+			for(int i = 0; i < 5; i++) {
+				server.put("work", "item" + i);
+			}
+
+			List<KestrelItem> items = client.open("work", 3, 100);
+			assertEquals("got a batch", 3, items.size());
+			assertEquals("first item", "item0", items.get(0).getData());
+			assertEquals("three open", 3, server.openCount());
+
+			client.confirm("work", items);
+			assertEquals("one confirm call", 1, server.confirmCalls);
+			assertEquals("none open", 0, server.openCount());
+			assertEquals("two left", 2, server.size("work"));
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+	}
+
+	@Test
+	public void testTextStyleGet() {
+
+		try {
+			server.put("work", "only");
+			assertEquals("open", "only", client.get("work/t=10/open", 100));
+			assertEquals("held open", 1, server.openCount());
+			assertTrue("close", client.get("work/close", 0) == null);
+			assertEquals("confirmed", 0, server.openCount());
+			assertTrue("empty", client.get("work", 100) == null);
+		} catch(Exception e) {
+			e.printStackTrace();
+			fail(e.toString());
+		}
+	}
+}
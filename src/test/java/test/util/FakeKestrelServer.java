@@ -0,0 +1,207 @@
+package test.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A tiny kestrel that speaks enough of the text protocol (get with /open,
+ * /close, /abort and /t=, set and stats) to test clients against a real socket.
+ */
+public class FakeKestrelServer implements Runnable {
+
+	private ServerSocket server;
+	private HashMap<String,LinkedList<String>> queues = new HashMap<String,LinkedList<String>>();
+	private HashSet<String> refusing = new HashSet<String>();
+	private volatile boolean running = true;
+
+	public FakeKestrelServer() throws IOException {
+
+		server = new ServerSocket(0);
+		Thread t = new Thread(this);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public int getPort() {
+
+		return server.getLocalPort();
+	}
+
+	public synchronized void put(String queue, String item) {
+
+		getQueue(queue).add(item);
+	}
+
+	public synchronized String take(String queue) {
+
+		return getQueue(queue).poll();
+	}
+
+	public synchronized int size(String queue) {
+
+		return getQueue(queue).size();
+	}
+
+	/**
+	 * Answer sets to the queue with SERVER_ERROR from now on.
+	 */
+	public synchronized void refuse(String queue) {
+
+		refusing.add(queue);
+	}
+
+	private synchronized boolean isRefusing(String queue) {
+
+		return refusing.contains(queue);
+	}
+
+	public void stop() {
+
+		running = false;
+		try { server.close(); } catch(IOException e) { }
+	}
+
+	private LinkedList<String> getQueue(String name) {
+
+		LinkedList<String> q = queues.get(name);
+		if(q == null) {
+			q = new LinkedList<String>();
+			queues.put(name, q);
+		}
+		return q;
+	}
+
+	public void run() {
+
+		while(running) {
+			try {
+				final Socket sock = server.accept();
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						serve(sock);
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+			} catch(IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket sock) {
+
+		String openQueue = null;
+		String openItem = null;
+		try {
+			InputStream in = new BufferedInputStream(sock.getInputStream());
+			OutputStream out = sock.getOutputStream();
+			String line;
+			while((line = readLine(in)) != null) {
+				String[] parts = line.split(" ");
+				if(parts[0].equals("set")) {
+					int bytes = Integer.parseInt(parts[4]);
+					byte[] data = new byte[bytes];
+					int read = 0;
+					while(read < bytes) {
+						read += in.read(data, read, bytes - read);
+					}
+					readLine(in);
+					if(isRefusing(parts[1])) {
+						out.write("SERVER_ERROR out of space\r\n".getBytes());
+					} else {
+						put(parts[1], new String(data, "UTF-8"));
+						out.write("STORED\r\n".getBytes());
+					}
+				} else if(parts[0].equals("get")) {
+					String[] key = parts[1].split("/");
+					String queue = key[0];
+					boolean open = false;
+					long wait = 0;
+					String reply = null;
+					for(int i = 1; i < key.length; i++) {
+						if(key[i].equals("open")) {
+							open = true;
+						} else if(key[i].equals("close")) {
+							openItem = null;
+						} else if(key[i].equals("abort") && openItem != null) {
+							synchronized(this) { getQueue(openQueue).addFirst(openItem); }
+							openItem = null;
+						} else if(key[i].startsWith("t=")) {
+							wait = Long.parseLong(key[i].substring(2));
+						}
+					}
+					if(open || key.length == 1) {
+						long deadline = System.currentTimeMillis() + wait;
+						reply = take(queue);
+						while(reply == null && System.currentTimeMillis() < deadline) {
+							Thread.sleep(10);
+							reply = take(queue);
+						}
+						if(open && reply != null) {
+							openQueue = queue;
+							openItem = reply;
+						}
+					}
+					if(reply != null) {
+						byte[] data = reply.getBytes("UTF-8");
+						out.write(("VALUE " + parts[1] + " 0 " + data.length + "\r\n").getBytes());
+						out.write(data);
+						out.write("\r\n".getBytes());
+					}
+					out.write("END\r\n".getBytes());
+				} else if(parts[0].equals("stats")) {
+					StringBuilder stats = new StringBuilder();
+					synchronized(this) {
+						Iterator<String> names = queues.keySet().iterator();
+						while(names.hasNext()) {
+							String name = names.next();
+							long bytes = 0;
+							Iterator<String> items = queues.get(name).iterator();
+							while(items.hasNext()) {
+								bytes += items.next().getBytes("UTF-8").length;
+							}
+							stats.append("STAT queue_" + name + "_items " + queues.get(name).size() + "\r\n");
+							stats.append("STAT queue_" + name + "_bytes " + bytes + "\r\n");
+						}
+					}
+					stats.append("END\r\n");
+					out.write(stats.toString().getBytes("UTF-8"));
+				} else {
+					out.write("ERROR\r\n".getBytes());
+				}
+				out.flush();
+			}
+		} catch(Exception e) {
+			// Connection went away
+		} finally {
+			if(openItem != null) {
+				synchronized(this) { getQueue(openQueue).addFirst(openItem); }
+			}
+			try { sock.close(); } catch(IOException e) { }
+		}
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		int c;
+		while((c = in.read()) != -1) {
+			if(c == '\n') {
+				byte[] b = buf.toByteArray();
+				return new String(b, 0, b.length > 0 && b[b.length - 1] == '\r' ? b.length - 1 : b.length, "UTF-8");
+			}
+			buf.write(c);
+		}
+		return null;
+	}
+}
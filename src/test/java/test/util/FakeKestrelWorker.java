@@ -28,6 +28,11 @@ public class FakeKestrelWorker extends QueueMonitor {
 
 	}
 
+	public int expiryFor(HashMap<String,Object> request) {
+
+		return responseExpiryFor(request);
+	}
+
 	public void handle(PerformanceCollector collector, String responseQueue, HashMap<String,Object> request) throws ProcessTimeoutException {
 
 		// Do absolutely nothing
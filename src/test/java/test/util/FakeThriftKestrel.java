@@ -0,0 +1,209 @@
+package test.util;
+
+import iinteractive.bullfinch.util.ThriftBinaryProtocol;
+import iinteractive.bullfinch.util.ThriftBinaryProtocol.Reader;
+import iinteractive.bullfinch.util.ThriftBinaryProtocol.Writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A stand-in for kestrel's thrift service implementing put, get, confirm and
+ * abort over a framed binary protocol.  Items opened by a connection are
+ * aborted when it goes away, like kestrel does.
+ */
+public class FakeThriftKestrel implements Runnable {
+
+	private ServerSocket server;
+	private HashMap<String,LinkedList<String>> queues = new HashMap<String,LinkedList<String>>();
+	private HashMap<Long,String> open = new HashMap<Long,String>();
+	private HashMap<Long,String> openQueue = new HashMap<Long,String>();
+	private long nextId = 1;
+	private volatile boolean running = true;
+
+	public int getCalls = 0;
+	public int putCalls = 0;
+	public int confirmCalls = 0;
+	// Most items stored by one put, like a queue hitting its limits.
+	public int putLimit = Integer.MAX_VALUE;
+
+	public FakeThriftKestrel() throws IOException {
+
+		server = new ServerSocket(0);
+		Thread t = new Thread(this);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public int getPort() {
+
+		return server.getLocalPort();
+	}
+
+	public synchronized void put(String queue, String item) {
+
+		getQueue(queue).add(item);
+	}
+
+	public synchronized String take(String queue) {
+
+		return getQueue(queue).poll();
+	}
+
+	public synchronized int size(String queue) {
+
+		return getQueue(queue).size();
+	}
+
+	public synchronized int openCount() {
+
+		return open.size();
+	}
+
+	public void stop() {
+
+		running = false;
+		try { server.close(); } catch(IOException e) { }
+	}
+
+	private LinkedList<String> getQueue(String name) {
+
+		LinkedList<String> q = queues.get(name);
+		if(q == null) {
+			q = new LinkedList<String>();
+			queues.put(name, q);
+		}
+		return q;
+	}
+
+	public void run() {
+
+		while(running) {
+			try {
+				final Socket sock = server.accept();
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						serve(sock);
+					}
+				});
+				t.setDaemon(true);
+				t.start();
+			} catch(IOException e) {
+				return;
+			}
+		}
+	}
+
+	private void serve(Socket sock) {
+
+		List<Long> mine = new ArrayList<Long>();
+		try {
+			InputStream in = new BufferedInputStream(sock.getInputStream());
+			OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+			while(true) {
+				Reader r = ThriftBinaryProtocol.readFrame(in);
+				r.readMessageBegin();
+				String method = r.messageName;
+
+				String queue = null;
+				List<String> items = new ArrayList<String>();
+				List<Long> ids = new ArrayList<Long>();
+				int max = 1;
+				while(r.readFieldBegin()) {
+					if(r.fieldId == 1) {
+						queue = r.readString();
+					} else if(r.fieldId == 2 && method.equals("put")) {
+						int n = r.readListBegin();
+						for(int i = 0; i < n; i++) {
+							items.add(r.readString());
+						}
+					} else if(r.fieldId == 2 && method.equals("get")) {
+						max = r.readI32();
+					} else if(r.fieldId == 2) {
+						int n = r.readListBegin();
+						for(int i = 0; i < n; i++) {
+							ids.add(new Long(r.readI64()));
+						}
+					} else {
+						r.skip(r.fieldType);
+					}
+				}
+
+				Writer w = new Writer();
+				w.writeMessageBegin(method, ThriftBinaryProtocol.REPLY, r.seqId);
+				synchronized(this) {
+					if(method.equals("put")) {
+						putCalls++;
+						int stored = Math.min(items.size(), putLimit);
+						getQueue(queue).addAll(items.subList(0, stored));
+						w.writeFieldBegin(ThriftBinaryProtocol.I32, 0).writeI32(stored);
+					} else if(method.equals("get")) {
+						getCalls++;
+						List<String> got = new ArrayList<String>();
+						List<Long> gotIds = new ArrayList<Long>();
+						while(got.size() < max && !getQueue(queue).isEmpty()) {
+							Long id = new Long(nextId++);
+							String item = getQueue(queue).poll();
+							got.add(item);
+							gotIds.add(id);
+							open.put(id, item);
+							openQueue.put(id, queue);
+							mine.add(id);
+						}
+						w.writeFieldBegin(ThriftBinaryProtocol.LIST, 0).writeListBegin(ThriftBinaryProtocol.STRUCT, got.size());
+						for(int i = 0; i < got.size(); i++) {
+							w.writeFieldBegin(ThriftBinaryProtocol.STRING, 1).writeString(got.get(i));
+							w.writeFieldBegin(ThriftBinaryProtocol.I64, 2).writeI64(gotIds.get(i).longValue());
+							w.writeFieldStop();
+						}
+					} else if(method.equals("confirm") || method.equals("abort")) {
+						if(method.equals("confirm")) {
+							confirmCalls++;
+						}
+						int count = 0;
+						Iterator<Long> iter = ids.iterator();
+						while(iter.hasNext()) {
+							Long id = iter.next();
+							String item = open.remove(id);
+							String q = openQueue.remove(id);
+							mine.remove(id);
+							if(item != null) {
+								count++;
+								if(method.equals("abort")) {
+									getQueue(q).addFirst(item);
+								}
+							}
+						}
+						w.writeFieldBegin(ThriftBinaryProtocol.I32, 0).writeI32(count);
+					}
+				}
+				w.writeFieldStop();
+				w.writeFrame(out);
+			}
+		} catch(Exception e) {
+			// Connection went away
+		} finally {
+			synchronized(this) {
+				Iterator<Long> iter = mine.iterator();
+				while(iter.hasNext()) {
+					Long id = iter.next();
+					String item = open.remove(id);
+					if(item != null) {
+						getQueue(openQueue.remove(id)).addFirst(item);
+					}
+				}
+			}
+			try { sock.close(); } catch(IOException e) { }
+		}
+	}
+}
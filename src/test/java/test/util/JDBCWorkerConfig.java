@@ -0,0 +1,64 @@
+package test.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Builds the options for a JDBCQueryRunner on an hsqldb database, for tests
+ * that don't want to go through conf/bullfinch.json.
+ */
+public class JDBCWorkerConfig {
+
+	private HashMap<String,Object> config = new HashMap<String,Object>();
+	private HashMap<String,Object> statements = new HashMap<String,Object>();
+
+	public JDBCWorkerConfig(String dsn, String validation) {
+
+		HashMap<String,Object> connection = new HashMap<String,Object>();
+		connection.put("driver", "org.hsqldb.jdbcDriver");
+		connection.put("dsn", dsn);
+		connection.put("uid", "SA");
+		connection.put("validation", validation);
+
+		config.put("kestrel_host", "127.0.0.1");
+		config.put("kestrel_port", new Long(22133));
+		config.put("subscribe_to", "test");
+		config.put("timeout", new Long(1000));
+		config.put("connection", connection);
+		config.put("statements", statements);
+	}
+
+	/**
+	 * Add a statement.
+	 *
+	 * @param name		The statement's name
+	 * @param sql		The SQL
+	 * @param params	The param types, if any
+	 * @return The statement's config, to add more to
+	 */
+	public HashMap<String,Object> addStatement(String name, String sql, String... params) {
+
+		HashMap<String,Object> statement = new HashMap<String,Object>();
+		statement.put("sql", sql);
+		if(params.length > 0) {
+			ArrayList<String> types = new ArrayList<String>();
+			for(int i = 0; i < params.length; i++) {
+				types.add(params[i]);
+			}
+			statement.put("params", types);
+		}
+		statements.put(name, statement);
+		return statement;
+	}
+
+	public JDBCWorkerConfig put(String key, Object value) {
+
+		config.put(key, value);
+		return this;
+	}
+
+	public HashMap<String,Object> getConfig() {
+
+		return config;
+	}
+}